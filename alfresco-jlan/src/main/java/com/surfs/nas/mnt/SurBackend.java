@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2016 SurCloud.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ */
+package com.surfs.nas.mnt;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import org.alfresco.jlan.server.auth.UserAccount;
+import org.alfresco.jlan.server.filesys.DirectoryNotEmptyException;
+import org.alfresco.jlan.server.filesys.FileExistsException;
+
+/**
+ * Storage backend used by the SurFS driver, share mapper and user interface.
+ * The default backend is the SurFS client, other backends such as the in
+ * memory backend allow the gateway to run without a SurFS cluster.
+ */
+public interface SurBackend {
+
+    /**
+     * @return the backend name, the storage pool name for SurFS
+     */
+    public String getName();
+
+    /**
+     * Return a file for a path, the file does not have to exist
+     *
+     * @param path String
+     * @return SurBackendFile
+     * @throws IOException
+     */
+    public SurBackendFile getFile(String path) throws IOException;
+
+    /**
+     * Return a file within a directory
+     *
+     * @param parent SurBackendFile
+     * @param name String
+     * @return SurBackendFile
+     * @throws IOException
+     */
+    public SurBackendFile getFile(SurBackendFile parent, String name) throws IOException;
+
+    /**
+     * Return the path of a file id
+     *
+     * @param fileId int
+     * @return String, or null if not found or the backend cannot look up
+     * file ids
+     * @throws IOException
+     */
+    public String getPathForFileId(int fileId) throws IOException;
+
+    /**
+     * Open a file for reading and writing
+     *
+     * @param file SurBackendFile
+     * @return SurBackendAccessor
+     * @throws IOException
+     */
+    public SurBackendAccessor openAccessor(SurBackendFile file) throws IOException;
+
+    /**
+     * Create a file in one request, creating its parent directories if
+     * required
+     *
+     * @param file SurBackendFile
+     * @return boolean, false if the file already exists
+     * @throws IOException
+     */
+    public boolean createFile(SurBackendFile file) throws IOException;
+
+    /**
+     * Delete a path if it is a file, in one request
+     *
+     * @param file SurBackendFile
+     * @return int, file id of the deleted file, or -1 if the path does not
+     * exist or is not a file
+     * @throws IOException
+     */
+    public int deleteIfFile(SurBackendFile file) throws IOException;
+
+    /**
+     * Delete a path if it is an empty directory, in one request
+     *
+     * @param dir SurBackendFile
+     * @return int, file id of the deleted directory, or -1 if the path does not
+     * exist or is not a directory
+     * @throws DirectoryNotEmptyException if the directory is not empty
+     * @throws IOException
+     */
+    public int deleteIfEmptyDirectory(SurBackendFile dir) throws IOException;
+
+    /**
+     * Rename a path in one request, replacing an existing file at the new path
+     *
+     * @param from SurBackendFile
+     * @param to SurBackendFile
+     * @return int, file id of the renamed path
+     * @throws FileNotFoundException if the path does not exist
+     * @throws FileExistsException if the new path is a directory
+     * @throws IOException
+     */
+    public int renameReplace(SurBackendFile from, SurBackendFile to) throws IOException;
+
+    /**
+     * Create the disk space poller for a share
+     *
+     * @param root SurBackendFile, the share root
+     * @return SurBackendDiskSize
+     */
+    public SurBackendDiskSize createDiskSize(SurBackendFile root);
+
+    /**
+     * @return the mount paths that are exported as shares
+     * @throws IOException
+     */
+    public List<String> getMountList() throws IOException;
+
+    /**
+     * Return the quota of a mount, fails if the path is not a mount
+     *
+     * @param path String
+     * @return long
+     * @throws IOException
+     */
+    public long getQuota(String path) throws IOException;
+
+    /**
+     * Return the permissions of a mount, by user name
+     *
+     * @param path String
+     * @return Map of user name to permission, such as r or rw
+     * @throws IOException
+     */
+    public Map<String, String> getPermission(String path) throws IOException;
+
+    /**
+     * Return a user account
+     *
+     * @param userName String
+     * @return UserAccount, or null if the user does not exist
+     * @throws IOException
+     */
+    public UserAccount getUserAccount(String userName) throws IOException;
+
+    /**
+     * @return the creation date reported for directories
+     */
+    public long getDirectoryCreateDate();
+
+    /**
+     * @return the number of times a failed request is retried, or -1 if not
+     * known
+     */
+    public int getErrorRetryTimes();
+
+    /**
+     * @return the block size, in bytes, or zero if not known
+     */
+    public int getBlockSize();
+
+    /**
+     * @return the disk space polling interval, in seconds, or zero for the
+     * default
+     */
+    public int getCheckSpaceInterval();
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2016 SurCloud.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ */
+package com.surfs.nas.mnt;
+
+import java.io.IOException;
+
+/**
+ * Open file of a storage backend. Reads and writes are positional, so an
+ * accessor can be shared by several network files.
+ */
+public interface SurBackendAccessor {
+
+    public int read(byte[] buf, int pos, int len, long fileOff) throws IOException;
+
+    public void write(byte[] buf, int pos, int len, long fileOff) throws IOException;
+
+    public void setLength(long len) throws IOException;
+
+    public void close() throws IOException;
+}
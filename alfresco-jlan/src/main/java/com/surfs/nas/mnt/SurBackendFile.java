@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2016 SurCloud.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ */
+package com.surfs.nas.mnt;
+
+import java.io.IOException;
+
+/**
+ * File or directory of a storage backend. The object holds the metadata read
+ * by queryMeta(), which the accessors opened on it keep up to date.
+ */
+public interface SurBackendFile {
+
+    /**
+     * Metadata held by the file
+     */
+    public interface Meta {
+
+        public long getLength();
+
+        public long getLastModified();
+    }
+
+    public String getPath();
+
+    public String getName();
+
+    public boolean exists();
+
+    public boolean isFile() throws IOException;
+
+    public boolean isDirectory() throws IOException;
+
+    public boolean isEmptyDirectory() throws IOException;
+
+    public long length() throws IOException;
+
+    public long lastModified() throws IOException;
+
+    public int getFileId();
+
+    public SurBackendFile getParentFile() throws IOException;
+
+    public SurBackendFile[] listFiles() throws IOException;
+
+    public boolean createNewFile() throws IOException;
+
+    public boolean mkdirs() throws IOException;
+
+    public boolean delete() throws IOException;
+
+    public boolean renameTo(SurBackendFile dest) throws IOException;
+
+    /**
+     * Read the metadata from the backend
+     *
+     * @param force boolean, reload metadata that has already been read
+     * @throws IOException
+     */
+    public void queryMeta(boolean force) throws IOException;
+
+    /**
+     * @return the metadata held by the file, or null if it has not been read
+     */
+    public Meta getMeta();
+}
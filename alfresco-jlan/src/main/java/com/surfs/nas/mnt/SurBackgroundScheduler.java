@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2016 SurCloud.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ */
+package com.surfs.nas.mnt;
+
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.alfresco.jlan.debug.Debug;
+
+/**
+ * Scheduler shared by the background work of all SurFS shares, such as
+ * permission reloads and disk space polling. Uses a small fixed number of
+ * threads whatever the number of shares. Each run of a periodic task is
+ * delayed by a random jitter so that the tasks of shares created at the same
+ * time do not all hit the backend together.
+ */
+public class SurBackgroundScheduler {
+
+    // Number of scheduler threads and the jitter, as a fraction of the interval
+    public static final int SchedulerThreads = 4;
+    public static final double Jitter = 0.2;
+
+    private static final ScheduledThreadPoolExecutor executor;
+    private static final Random random = new Random();
+
+    static {
+        executor = new ScheduledThreadPoolExecutor(SchedulerThreads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "SurBackground_" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Periodic task, cancel it to stop further runs
+     */
+    public static final class Task implements Runnable {
+
+        private final Runnable work;
+        private final long interval;
+        private volatile boolean cancelled;
+        private ScheduledFuture<?> future;
+
+        Task(Runnable work, long interval) {
+            this.work = work;
+            this.interval = interval;
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            try {
+                work.run();
+            } catch (RuntimeException ex) {
+                if (Debug.EnableError) {
+                    Debug.println("[SurFS] Background task error, " + ex.toString());
+                }
+            }
+            reschedule(jitter(interval));
+        }
+
+        private synchronized void reschedule(long delay) {
+            if (!cancelled) {
+                future = executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * Stop the task, a run already in progress completes
+         */
+        public synchronized void cancel() {
+            cancelled = true;
+            if (future != null) {
+                future.cancel(false);
+                future = null;
+            }
+        }
+    }
+
+    /**
+     * Schedule a periodic task
+     *
+     * @param work Runnable
+     * @param interval long, time between runs, in milliseconds
+     * @param initialDelay long, delay before the first run, in milliseconds,
+     * jitter is added to it
+     * @return Task
+     */
+    public static Task schedule(Runnable work, long interval, long initialDelay) {
+        Task task = new Task(work, interval);
+        long spread;
+        synchronized (random) {
+            spread = (long) (random.nextDouble() * Jitter * interval);
+        }
+        task.reschedule(initialDelay + spread);
+        return task;
+    }
+
+    /**
+     * Run a one off task on the scheduler threads
+     *
+     * @param work Runnable
+     */
+    public static void execute(Runnable work) {
+        executor.execute(work);
+    }
+
+    /**
+     * Return an interval with random jitter added
+     *
+     * @param interval long
+     * @return long
+     */
+    private static long jitter(long interval) {
+        double factor;
+        synchronized (random) {
+            factor = 1.0 + Jitter * (random.nextDouble() * 2.0 - 1.0);
+        }
+        return Math.max(0L, (long) (interval * factor));
+    }
+
+    /**
+     * @return the number of scheduled tasks
+     */
+    public static int getTaskCount() {
+        return executor.getQueue().size();
+    }
+}
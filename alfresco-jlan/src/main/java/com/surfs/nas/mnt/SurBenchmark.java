@@ -0,0 +1,584 @@
+/*
+ * Copyright (C) 2016 SurCloud.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ */
+package com.surfs.nas.mnt;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.alfresco.config.ConfigElement;
+import org.alfresco.config.element.GenericConfigElement;
+import org.alfresco.jlan.locking.FileLock;
+import org.alfresco.jlan.locking.LockConflictException;
+import org.alfresco.jlan.locking.NotLockedException;
+import org.alfresco.jlan.server.filesys.AccessMode;
+import org.alfresco.jlan.server.filesys.DiskSharedDevice;
+import org.alfresco.jlan.server.filesys.FileAction;
+import org.alfresco.jlan.server.filesys.FileAttribute;
+import org.alfresco.jlan.server.filesys.FileInfo;
+import org.alfresco.jlan.server.filesys.FileOpenParams;
+import org.alfresco.jlan.server.filesys.NetworkFile;
+import org.alfresco.jlan.server.filesys.SearchContext;
+import org.alfresco.jlan.server.filesys.TreeConnection;
+import org.alfresco.jlan.server.filesys.cache.FileState;
+
+/**
+ * Benchmark of the SurFS driver against the in memory backend. The workloads
+ * call the driver the way the protocol servers do, so the caches, write back
+ * buffer and open file table are exercised without a SurFS cluster or
+ * network clients:
+ *
+ * smb - open a file, read or write it sequentially, close it, with a
+ * directory search every few files, as SMB clients copying files do.
+ *
+ * nfs - random reads and writes of open files, each preceded by a file
+ * information request, with lookups of other files, as the NFS server does
+ * for READ, WRITE, GETATTR and LOOKUP.
+ *
+ * meta - create, stat, rename and delete small files, and search the
+ * directories, as builds and unpacking archives do.
+ *
+ * lock - byte range locks on one shared file state, as database files opened
+ * over SMB use. files * 256 record locks are held by another process, each
+ * thread locks, checks and unlocks records of its own, contending with the
+ * other threads for the file's lock table.
+ *
+ * Each thread uses its own fixed random seed so runs are repeatable. To drive
+ * the full NFS and SMB servers with external clients, run the server with the
+ * com.surfs.nas.mnt.SurNasDriver.Backend system property set to
+ * com.surfs.nas.mnt.SurMemoryBackend instead.
+ */
+public class SurBenchmark {
+
+    // Share created on the memory backend
+    private static final String ShareName = "/bench";
+
+    // Locked record size, and held record locks per file of the lock workload
+    private static final int RecordSize = 128;
+    private static final int HeldLocks = 256;
+
+    private String workload = "smb";
+    private int threads = 4;
+    private int files = 64;
+    private int fileSize = 4 * 1024 * 1024;
+    private int ioSize = 64 * 1024;
+    private int readPercent = 70;
+    private int duration = 10;
+    private int warmup = 2;
+    private long latency = 500L;
+    private long bandwidth = 0L;
+    private long metadataTimeout = SurMetadataCache.DefaultTimeout;
+    private String blockCache = "64M";
+    private String writeBuffer = "1M";
+    private long seed = 1L;
+
+    private SurNasDriver driver;
+    private TreeConnection tree;
+    private SurMemoryBackend backend;
+    private FileState lockState;
+
+    /**
+     * Latency histogram of an operation, with eight buckets per power of two
+     * microseconds
+     */
+    static final class Stats {
+
+        private final long[] buckets = new long[64 * 8];
+        private long count;
+        private long bytes;
+        private long totalNanos;
+        private long maxNanos;
+
+        void record(long nanos, long len) {
+            count++;
+            bytes += len;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+            buckets[bucket(nanos / 1000L)]++;
+        }
+
+        void merge(Stats other) {
+            count += other.count;
+            bytes += other.bytes;
+            totalNanos += other.totalNanos;
+            maxNanos = Math.max(maxNanos, other.maxNanos);
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] += other.buckets[i];
+            }
+        }
+
+        private static int bucket(long micros) {
+            if (micros < 8) {
+                return (int) Math.max(0L, micros);
+            }
+            int msb = 63 - Long.numberOfLeadingZeros(micros);
+            return (msb << 3) | (int) ((micros >> (msb - 3)) & 7);
+        }
+
+        private static long bucketLimit(int idx) {
+            if (idx < 8) {
+                return idx + 1;
+            }
+            int msb = idx >> 3;
+            return (8L + (idx & 7) + 1) << (msb - 3);
+        }
+
+        /**
+         * @param pct double
+         * @return the latency percentile, in microseconds
+         */
+        long percentile(double pct) {
+            long target = (long) Math.ceil(count * pct / 100.0);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= target && seen > 0) {
+                    return Math.min(bucketLimit(i), maxNanos / 1000L);
+                }
+            }
+            return 0L;
+        }
+    }
+
+    /**
+     * Per thread statistics, by operation
+     */
+    private static final class Recorder {
+
+        private final Map<String, Stats> stats = new LinkedHashMap<>();
+        private final long recordFrom;
+
+        Recorder(long recordFrom) {
+            this.recordFrom = recordFrom;
+        }
+
+        void record(String op, long start, long len) {
+            long end = System.nanoTime();
+            if (start < recordFrom) {
+                return;
+            }
+            Stats st = stats.get(op);
+            if (st == null) {
+                st = new Stats();
+                stats.put(op, st);
+            }
+            st.record(end - start, len);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        SurBenchmark bench = new SurBenchmark();
+        try {
+            bench.parseArgs(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            printUsage();
+            System.exit(1);
+        }
+        bench.setup();
+        bench.run();
+        System.exit(0);
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: SurBenchmark [-workload smb|nfs|meta|lock] [-threads n] [-files n] [-fileSize bytes]");
+        System.err.println("       [-ioSize bytes] [-read percent] [-duration secs] [-warmup secs] [-latency usecs]");
+        System.err.println("       [-bandwidth bytesPerSec] [-metadataCache msecs] [-blockCache size] [-writeBuffer size]");
+        System.err.println("       [-seed n]");
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String opt = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + opt);
+            }
+            String val = args[++i];
+            try {
+                switch (opt) {
+                    case "-workload":
+                        workload = val;
+                        break;
+                    case "-threads":
+                        threads = Integer.parseInt(val);
+                        break;
+                    case "-files":
+                        files = Integer.parseInt(val);
+                        break;
+                    case "-fileSize":
+                        fileSize = Integer.parseInt(val);
+                        break;
+                    case "-ioSize":
+                        ioSize = Integer.parseInt(val);
+                        break;
+                    case "-read":
+                        readPercent = Integer.parseInt(val);
+                        break;
+                    case "-duration":
+                        duration = Integer.parseInt(val);
+                        break;
+                    case "-warmup":
+                        warmup = Integer.parseInt(val);
+                        break;
+                    case "-latency":
+                        latency = Long.parseLong(val);
+                        break;
+                    case "-bandwidth":
+                        bandwidth = Long.parseLong(val);
+                        break;
+                    case "-metadataCache":
+                        metadataTimeout = Long.parseLong(val);
+                        break;
+                    case "-blockCache":
+                        blockCache = val;
+                        break;
+                    case "-writeBuffer":
+                        writeBuffer = val;
+                        break;
+                    case "-seed":
+                        seed = Long.parseLong(val);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + opt);
+                }
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Invalid value for " + opt + ", " + val);
+            }
+        }
+        if (!workload.equals("smb") && !workload.equals("nfs") && !workload.equals("meta") && !workload.equals("lock")) {
+            throw new IllegalArgumentException("Unknown workload " + workload);
+        }
+        if (threads <= 0 || files <= 0 || fileSize <= 0 || ioSize <= 0 || duration <= 0) {
+            throw new IllegalArgumentException("Counts and sizes must be positive");
+        }
+    }
+
+    /**
+     * Create the backend, the share and the data files
+     *
+     * @throws Exception
+     */
+    private void setup() throws Exception {
+        backend = new SurMemoryBackend(new String[]{ShareName}, SurMemoryBackend.DefaultCapacity);
+        SurNasDriver.setBackend(backend);
+
+        ConfigElement args = new GenericConfigElement("driver");
+        ConfigElement elem = new GenericConfigElement("metadataCache");
+        elem.addAttribute("timeout", Long.toString(metadataTimeout));
+        args.addChild(elem);
+        elem = new GenericConfigElement("blockCache");
+        elem.addAttribute("memorySize", blockCache);
+        elem.addAttribute("blockSize", "64K");
+        args.addChild(elem);
+        elem = new GenericConfigElement("writeBuffer");
+        elem.addAttribute("maxBuffer", writeBuffer);
+        args.addChild(elem);
+
+        driver = new SurNasDriver();
+        SurDeviceContext ctx = (SurDeviceContext) driver.createContext(ShareName, args);
+        tree = new TreeConnection(new DiskSharedDevice(ShareName.substring(1), driver, ctx));
+        driver.treeOpened(null, tree);
+
+        // Data files are written without injected delays
+        driver.createDirectory(null, tree, new FileOpenParams("\\data", FileAction.CreateNotExist, AccessMode.ReadWrite, FileAttribute.Directory));
+        byte[] buf = new byte[ioSize];
+        new Random(seed).nextBytes(buf);
+        if (workload.equals("lock")) {
+            lockState = new FileState("\\data\\db.mdb");
+            for (int i = 0; i < files * HeldLocks; i++) {
+                lockState.addLock(new FileLock((long) i * RecordSize, RecordSize, 0));
+            }
+        } else if (!workload.equals("meta")) {
+            for (int i = 0; i < files; i++) {
+                NetworkFile file = driver.createFile(null, tree, openParams(dataFile(i), true));
+                for (int off = 0; off < fileSize; off += ioSize) {
+                    driver.writeFile(null, tree, file, buf, 0, Math.min(ioSize, fileSize - off), off);
+                }
+                driver.closeFile(null, tree, file);
+            }
+        }
+        backend.setLatency(latency, TimeUnit.MICROSECONDS);
+        backend.setBandwidth(bandwidth);
+    }
+
+    private static String dataFile(int idx) {
+        return "\\data\\file" + idx;
+    }
+
+    private static FileOpenParams openParams(String path, boolean write) {
+        return new FileOpenParams(path, FileAction.CreateNotExist, write ? AccessMode.ReadWrite : AccessMode.ReadOnly, 0);
+    }
+
+    /**
+     * Run the workload threads and print the results
+     *
+     * @throws Exception
+     */
+    private void run() throws Exception {
+        final long start = System.nanoTime();
+        final long recordFrom = start + TimeUnit.SECONDS.toNanos(warmup);
+        final long end = recordFrom + TimeUnit.SECONDS.toNanos(duration);
+        final List<Recorder> recorders = new ArrayList<>();
+        final List<Throwable> errors = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            final int id = i;
+            final Recorder rec = new Recorder(recordFrom);
+            recorders.add(rec);
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Random rand = new Random(seed + id);
+                        switch (workload) {
+                            case "smb":
+                                runSmb(id, rand, rec, end);
+                                break;
+                            case "nfs":
+                                runNfs(id, rand, rec, end);
+                                break;
+                            case "lock":
+                                runLock(id, rand, rec, end);
+                                break;
+                            default:
+                                runMeta(id, rand, rec, end);
+                                break;
+                        }
+                    } catch (Throwable ex) {
+                        synchronized (errors) {
+                            errors.add(ex);
+                        }
+                    }
+                }
+            }, "SurBenchmark_" + i);
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        if (!errors.isEmpty()) {
+            System.err.println("Workload failed, " + errors.get(0));
+            errors.get(0).printStackTrace();
+        }
+        printResults(recorders);
+    }
+
+    private void runSmb(int id, Random rand, Recorder rec, long end) throws IOException {
+        byte[] buf = new byte[ioSize];
+        rand.nextBytes(buf);
+        int count = 0;
+        while (System.nanoTime() < end) {
+            String path = dataFile(rand.nextInt(files));
+            boolean write = rand.nextInt(100) >= readPercent;
+
+            long t = System.nanoTime();
+            driver.getFileInformation(null, tree, path);
+            NetworkFile file = driver.openFile(null, tree, openParams(path, write));
+            rec.record("open", t, 0);
+            for (long off = 0; off < fileSize && System.nanoTime() < end; off += ioSize) {
+                int len = (int) Math.min(ioSize, fileSize - off);
+                t = System.nanoTime();
+                if (write) {
+                    driver.writeFile(null, tree, file, buf, 0, len, off);
+                    rec.record("write", t, len);
+                } else {
+                    int rdlen = driver.readFile(null, tree, file, buf, 0, len, off);
+                    rec.record("read", t, rdlen);
+                }
+            }
+            t = System.nanoTime();
+            driver.closeFile(null, tree, file);
+            rec.record("close", t, 0);
+
+            if (++count % 8 == 0) {
+                t = System.nanoTime();
+                int entries = search("\\data\\*");
+                rec.record("search", t, entries);
+            }
+        }
+    }
+
+    private void runNfs(int id, Random rand, Recorder rec, long end) throws IOException {
+        byte[] buf = new byte[ioSize];
+        rand.nextBytes(buf);
+
+        // Open files, as held by the NFS server file cache
+        Map<String, NetworkFile> open = new LinkedHashMap<>();
+        int blocks = Math.max(1, fileSize / ioSize);
+        while (System.nanoTime() < end) {
+            String path = dataFile(rand.nextInt(files));
+            long t = System.nanoTime();
+            if (rand.nextInt(10) == 0) {
+                driver.fileExists(null, tree, path);
+                driver.getFileInformation(null, tree, path);
+                rec.record("lookup", t, 0);
+                continue;
+            }
+            NetworkFile file = open.get(path);
+            if (file == null) {
+                if (open.size() >= 16) {
+                    String oldest = open.keySet().iterator().next();
+                    driver.closeFile(null, tree, open.remove(oldest));
+                }
+                file = driver.openFile(null, tree, openParams(path, true));
+                open.put(path, file);
+                rec.record("open", t, 0);
+                t = System.nanoTime();
+            }
+            long off = (long) rand.nextInt(blocks) * ioSize;
+            int len = (int) Math.min(ioSize, fileSize - off);
+            driver.getFileInformation(null, tree, path);
+            if (rand.nextInt(100) < readPercent) {
+                int rdlen = driver.readFile(null, tree, file, buf, 0, len, off);
+                rec.record("read", t, rdlen);
+            } else {
+                driver.writeFile(null, tree, file, buf, 0, len, off);
+                rec.record("write", t, len);
+            }
+        }
+        for (NetworkFile file : open.values()) {
+            driver.closeFile(null, tree, file);
+        }
+    }
+
+    private void runMeta(int id, Random rand, Recorder rec, long end) throws IOException {
+        String dir = "\\data\\t" + id;
+        driver.createDirectory(null, tree, new FileOpenParams(dir, FileAction.CreateNotExist, AccessMode.ReadWrite, FileAttribute.Directory));
+        byte[] buf = new byte[Math.min(ioSize, 4096)];
+        rand.nextBytes(buf);
+        int seq = 0;
+        while (System.nanoTime() < end) {
+            String path = dir + "\\f" + (seq++);
+            long t = System.nanoTime();
+            NetworkFile file = driver.createFile(null, tree, openParams(path, true));
+            driver.writeFile(null, tree, file, buf, 0, buf.length, 0);
+            driver.closeFile(null, tree, file);
+            rec.record("create", t, buf.length);
+
+            t = System.nanoTime();
+            driver.getFileInformation(null, tree, path);
+            rec.record("getattr", t, 0);
+
+            t = System.nanoTime();
+            driver.renameFile(null, tree, path, path + ".tmp");
+            rec.record("rename", t, 0);
+
+            if (seq % 16 == 0) {
+                t = System.nanoTime();
+                int entries = search(dir + "\\*");
+                rec.record("search", t, entries);
+            }
+            if (seq > files) {
+                t = System.nanoTime();
+                driver.deleteFile(null, tree, dir + "\\f" + (seq - files) + ".tmp");
+                rec.record("delete", t, 0);
+            }
+        }
+    }
+
+    private void runLock(int id, Random rand, Recorder rec, long end) throws NotLockedException {
+        int held = files * HeldLocks;
+        int pid = id + 1;
+        while (System.nanoTime() < end) {
+
+            // Records after the held locks are shared by the threads
+            FileLock lock = new FileLock((long) (held + rand.nextInt(held)) * RecordSize, RecordSize, pid);
+            long t = System.nanoTime();
+            try {
+                lockState.addLock(lock);
+                rec.record("lock", t, 0);
+            } catch (LockConflictException ex) {
+                rec.record("conflict", t, 0);
+                continue;
+            }
+
+            t = System.nanoTime();
+            lockState.canWriteFile((long) rand.nextInt(held * 2) * RecordSize, RecordSize, pid);
+            rec.record("check", t, 0);
+
+            t = System.nanoTime();
+            lockState.removeLock(lock);
+            rec.record("unlock", t, 0);
+        }
+    }
+
+    /**
+     * List a directory
+     *
+     * @param path String
+     * @return int, number of entries
+     * @throws IOException
+     */
+    private int search(String path) throws IOException {
+        SearchContext ctx = driver.startSearch(null, tree, path, FileAttribute.Directory);
+        if (ctx == null) {
+            return 0;
+        }
+        int entries = 0;
+        FileInfo info = new FileInfo();
+        while (ctx.nextFileInfo(info)) {
+            entries++;
+        }
+        ctx.closeSearch();
+        return entries;
+    }
+
+    private void printResults(List<Recorder> recorders) {
+        Map<String, Stats> total = new LinkedHashMap<>();
+        for (Recorder rec : recorders) {
+            for (Map.Entry<String, Stats> e : rec.stats.entrySet()) {
+                Stats st = total.get(e.getKey());
+                if (st == null) {
+                    st = new Stats();
+                    total.put(e.getKey(), st);
+                }
+                st.merge(e.getValue());
+            }
+        }
+        System.out.println("Workload " + workload + ", threads=" + threads + ", files=" + files + ", fileSize=" + fileSize
+                + ", ioSize=" + ioSize + ", read=" + readPercent + "%, duration=" + duration + "s, latency=" + latency
+                + "us, bandwidth=" + (bandwidth > 0 ? bandwidth + "B/s" : "unlimited"));
+        System.out.println(String.format("%-8s %10s %10s %10s %10s %10s %10s %10s", "op", "count", "ops/s", "MB/s",
+                "avg(us)", "p50(us)", "p99(us)", "max(us)"));
+        for (Map.Entry<String, Stats> e : total.entrySet()) {
+            Stats st = e.getValue();
+            System.out.println(String.format("%-8s %10d %10.1f %10.2f %10d %10d %10d %10d", e.getKey(), st.count,
+                    st.count / (double) duration, st.bytes / (duration * 1048576.0),
+                    st.count > 0 ? st.totalNanos / st.count / 1000L : 0L, st.percentile(50.0), st.percentile(99.0),
+                    st.maxNanos / 1000L));
+        }
+        SurDeviceContext ctx = (SurDeviceContext) tree.getContext();
+        System.out.println(backend.getStatistics());
+        if (ctx.getMetadataCache() != null) {
+            System.out.println(ctx.getMetadataCache());
+        }
+        if (SurBlockCache.getInstance() != null) {
+            System.out.println(SurBlockCache.getInstance());
+        }
+        System.out.println(ctx.getSpaceLease());
+        System.out.println(SurWriteBuffer.getStatistics());
+        System.out.println(SurOpenFileTable.getStatistics());
+        System.out.println(SurRetryPolicy.getPolicy(backend.getName()));
+    }
+}
@@ -0,0 +1,716 @@
+/*
+ * Copyright (C) 2016 SurCloud.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ */
+package com.surfs.nas.mnt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.alfresco.jlan.debug.Debug;
+
+/**
+ * Gateway wide cache of SurFS file data blocks, shared by all open files. The
+ * blocks are held in off heap memory, with an optional second tier in a file
+ * on local disk that receives the blocks evicted from memory. Each tier is
+ * split into fixed size slots and evicts the least recently used block when
+ * full. A block is only returned if the file length and modify date it was
+ * read with match the current values, and writes through any SurNetworkFile
+ * remove the blocks of the file.
+ * <p>
+ * The slots are divided between stripes by block key, each stripe has its own
+ * lock. Disk tier reads and writes are done outside the stripe lock, the slot
+ * is reserved while the I/O is in progress.
+ */
+public class SurBlockCache {
+
+    // Default block size and memory tier size
+    public static final int DefaultBlockSize = 64 * 1024;
+    public static final long DefaultMemorySize = 64L * 1024L * 1024L;
+
+    // Number of lock stripes, and of per file invalidation generations
+    public static final int StripeCount = 16;
+    public static final int GenerationCount = 4096;
+
+    // Maximum size of a single off heap buffer
+    private static final int MaximumSegmentSize = 1024 * 1024 * 1024;
+
+    // Gateway wide cache, null if block caching is disabled
+    private static volatile SurBlockCache instance;
+
+    /**
+     * Return the gateway wide block cache
+     *
+     * @return SurBlockCache, or null if not configured
+     */
+    public static SurBlockCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Configure the gateway wide block cache, the first share to configure the
+     * cache sets its size
+     *
+     * @param memorySize long, less than a block disables the cache
+     * @param blockSize int
+     * @param diskPath String, file used for the disk tier, or null
+     * @param diskSize long
+     * @return SurBlockCache, or null if disabled
+     * @throws IOException
+     */
+    public static synchronized SurBlockCache configure(long memorySize, int blockSize, String diskPath, long diskSize) throws IOException {
+        if (instance == null && blockSize > 0 && memorySize >= blockSize) {
+            instance = new SurBlockCache(memorySize, blockSize, diskPath, diskSize);
+            if (Debug.EnableInfo) {
+                Debug.println("[SurFS] Block cache " + instance);
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Cache key, a block of a SurFS file
+     */
+    private static final class Key {
+
+        private final int fileId;
+        private final long block;
+
+        Key(int fileId, long block) {
+            this.fileId = fileId;
+            this.block = block;
+        }
+
+        @Override
+        public int hashCode() {
+            return fileId * 31 + (int) (block ^ (block >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) obj;
+            return key.fileId == fileId && key.block == block;
+        }
+    }
+
+    /**
+     * Cached block, the file version it was read from and its slot in a tier
+     */
+    private static final class Block {
+
+        private final Key key;
+        private final long fileLength;
+        private final long modifyDate;
+        private final int length;
+        private Slots slots;
+        private int slot;
+
+        Block(Key key, long fileLength, long modifyDate, int length) {
+            this.key = key;
+            this.fileLength = fileLength;
+            this.modifyDate = modifyDate;
+            this.length = length;
+        }
+
+        boolean isVersion(long flen, long modDate) {
+            return fileLength == flen && modifyDate == modDate;
+        }
+    }
+
+    /**
+     * Block storage divided into fixed size slots
+     */
+    private static abstract class Tier {
+
+        private final int slots;
+
+        Tier(int slots) {
+            this.slots = slots;
+        }
+
+        int getSlots() {
+            return slots;
+        }
+
+        abstract void write(int slot, byte[] buf, int off, int len) throws IOException;
+
+        abstract void read(int slot, byte[] buf, int off, int blockOff, int len) throws IOException;
+
+        void close() {
+        }
+    }
+
+    /**
+     * Off heap memory tier
+     */
+    private static final class MemoryTier extends Tier {
+
+        private final ByteBuffer[] segments;
+        private final int slotSize;
+        private final int slotsPerSegment;
+
+        MemoryTier(long size, int slotSize) {
+            super((int) Math.min(Integer.MAX_VALUE, size / slotSize));
+            this.slotSize = slotSize;
+            int slots = getSlots();
+            slotsPerSegment = Math.max(1, MaximumSegmentSize / slotSize);
+            segments = new ByteBuffer[(slots + slotsPerSegment - 1) / slotsPerSegment];
+            for (int i = 0; i < segments.length; i++) {
+                int segSlots = Math.min(slotsPerSegment, slots - i * slotsPerSegment);
+                segments[i] = ByteBuffer.allocateDirect(segSlots * slotSize);
+            }
+        }
+
+        private ByteBuffer slice(int slot) {
+            ByteBuffer buf = segments[slot / slotsPerSegment].duplicate();
+            buf.position((slot % slotsPerSegment) * slotSize);
+            return buf;
+        }
+
+        @Override
+        void write(int slot, byte[] buf, int off, int len) {
+            slice(slot).put(buf, off, len);
+        }
+
+        @Override
+        void read(int slot, byte[] buf, int off, int blockOff, int len) {
+            ByteBuffer src = slice(slot);
+            src.position(src.position() + blockOff);
+            src.get(buf, off, len);
+        }
+    }
+
+    /**
+     * Local disk tier, blocks are stored in slots of a cache file
+     */
+    private static final class DiskTier extends Tier {
+
+        private final File file;
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+        private final int slotSize;
+
+        DiskTier(String path, long size, int slotSize) throws IOException {
+            super((int) Math.min(Integer.MAX_VALUE, size / slotSize));
+            this.slotSize = slotSize;
+            file = new File(path);
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(0L);
+            channel = raf.getChannel();
+        }
+
+        @Override
+        void write(int slot, byte[] buf, int off, int len) throws IOException {
+            ByteBuffer src = ByteBuffer.wrap(buf, off, len);
+            long pos = (long) slot * slotSize;
+            while (src.hasRemaining()) {
+                pos += channel.write(src, pos);
+            }
+        }
+
+        @Override
+        void read(int slot, byte[] buf, int off, int blockOff, int len) throws IOException {
+            ByteBuffer dst = ByteBuffer.wrap(buf, off, len);
+            long pos = (long) slot * slotSize + blockOff;
+            while (dst.hasRemaining()) {
+                int cnt = channel.read(dst, pos);
+                if (cnt < 0) {
+                    throw new IOException("Block cache file truncated, " + file);
+                }
+                pos += cnt;
+            }
+        }
+
+        @Override
+        void close() {
+            try {
+                raf.close();
+            } catch (IOException ex) {
+            }
+            file.delete();
+        }
+    }
+
+    /**
+     * A range of slots of a tier, with least recently used ordering of the
+     * blocks held in them
+     */
+    private static final class Slots {
+
+        private final LinkedHashMap<Key, Block> blocks = new LinkedHashMap<>(64, 0.75f, true);
+        private final int[] freeSlots;
+        private int freeCount;
+
+        Slots(int base, int count) {
+            freeSlots = new int[count];
+            for (int i = 0; i < count; i++) {
+                freeSlots[i] = base + count - 1 - i;
+            }
+            freeCount = count;
+        }
+
+        Block get(Key key) {
+            return blocks.get(key);
+        }
+
+        boolean contains(Key key) {
+            return blocks.containsKey(key);
+        }
+
+        boolean isFull() {
+            return freeCount == 0;
+        }
+
+        /**
+         * Reserve a free slot, the range must not be full
+         */
+        int allocate() {
+            return freeSlots[--freeCount];
+        }
+
+        void free(int slot) {
+            freeSlots[freeCount++] = slot;
+        }
+
+        void insert(Block block, int slot) {
+            block.slots = this;
+            block.slot = slot;
+            blocks.put(block.key, block);
+        }
+
+        /**
+         * Remove a block and keep its slot reserved, the caller frees the slot
+         */
+        void detach(Block block) {
+            blocks.remove(block.key);
+        }
+
+        void remove(Block block) {
+            if (blocks.get(block.key) == block) {
+                blocks.remove(block.key);
+                free(block.slot);
+            }
+        }
+
+        Block eldest() {
+            Iterator<Block> iter = blocks.values().iterator();
+            return iter.hasNext() ? iter.next() : null;
+        }
+
+        int size() {
+            return blocks.size();
+        }
+    }
+
+    /**
+     * Lock stripe, the slots of each tier used by a share of the block keys
+     */
+    private static final class Stripe {
+
+        private final Slots memory;
+        private final Slots disk;
+
+        // Keys of the cached blocks of each file
+        private final Map<Integer, Set<Key>> fileBlocks = new HashMap<>();
+
+        Stripe(Slots memory, Slots disk) {
+            this.memory = memory;
+            this.disk = disk;
+        }
+    }
+
+    /**
+     * Block moving from the memory tier to a reserved disk tier slot, written
+     * once the stripe lock has been released
+     */
+    private static final class Demotion {
+
+        private final Block block;
+        private final int slot;
+        private final byte[] data;
+        private final long gen;
+
+        Demotion(Block block, int slot, byte[] data, long gen) {
+            this.block = block;
+            this.slot = slot;
+            this.data = data;
+            this.gen = gen;
+        }
+    }
+
+    private final int blockSize;
+    private final MemoryTier memory;
+    private final DiskTier disk;
+    private final Stripe[] stripes;
+
+    // Invalidation generation of each file, indexed by file id. A block loaded
+    // from the backend is only cached if its file was not invalidated while it
+    // was loading
+    private final AtomicLongArray generations = new AtomicLongArray(GenerationCount);
+
+    // Statistics
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong staleBlocks = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    SurBlockCache(long memorySize, int blockSize, String diskPath, long diskSize) throws IOException {
+        this.blockSize = blockSize;
+        memory = new MemoryTier(memorySize, blockSize);
+        disk = diskPath != null && diskSize >= blockSize ? new DiskTier(diskPath, diskSize, blockSize) : null;
+
+        // Split the slots of each tier between the stripes, every stripe has at
+        // least one memory slot
+        int count = Math.min(StripeCount, memory.getSlots());
+        stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            Slots memSlots = stripeSlots(memory, i, count);
+            Slots diskSlots = disk != null ? stripeSlots(disk, i, count) : null;
+            stripes[i] = new Stripe(memSlots, diskSlots != null && diskSlots.isFull() == false ? diskSlots : null);
+        }
+    }
+
+    private static Slots stripeSlots(Tier tier, int idx, int count) {
+        int base = (int) ((long) tier.getSlots() * idx / count);
+        int end = (int) ((long) tier.getSlots() * (idx + 1) / count);
+        return new Slots(base, end - base);
+    }
+
+    private Stripe getStripe(Key key) {
+        return stripes[(key.hashCode() & 0x7FFFFFFF) % stripes.length];
+    }
+
+    /**
+     * @return the block size
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Return the invalidation generation of a file, to pass to put()
+     *
+     * @param fileId int
+     * @return long
+     */
+    public long getGeneration(int fileId) {
+        return generations.get(fileId & (GenerationCount - 1));
+    }
+
+    /**
+     * Copy data from a cached block
+     *
+     * @param fileId int
+     * @param block long, block index
+     * @param fileLength long, current file length
+     * @param modifyDate long, current file modify date
+     * @param buf byte[]
+     * @param off int
+     * @param blockOff int, offset within the block
+     * @param len int
+     * @return int, bytes copied, or -1 if the block is not cached
+     */
+    public int read(int fileId, long block, long fileLength, long modifyDate, byte[] buf, int off, int blockOff, int len) {
+        Key key = new Key(fileId, block);
+        Stripe stripe = getStripe(key);
+        Block blk;
+        long gen;
+        synchronized (stripe) {
+            blk = stripe.memory.get(key);
+            if (blk == null && stripe.disk != null) {
+                blk = stripe.disk.get(key);
+            }
+            if (blk == null) {
+                misses.incrementAndGet();
+                return -1;
+            }
+            if (!blk.isVersion(fileLength, modifyDate)) {
+                staleBlocks.incrementAndGet();
+                removeBlock(stripe, blk);
+                misses.incrementAndGet();
+                return -1;
+            }
+            if (blk.slots == stripe.memory) {
+                int cnt = Math.max(0, Math.min(len, blk.length - blockOff));
+                memory.read(blk.slot, buf, off, blockOff, cnt);
+                hits.incrementAndGet();
+                return cnt;
+            }
+
+            // Take the block out of the disk tier, its slot stays reserved while it is read
+            stripe.disk.detach(blk);
+            unindex(stripe, key);
+            gen = getGeneration(fileId);
+        }
+
+        // Promote the block from the disk tier to memory
+        byte[] data = new byte[blk.length];
+        try {
+            disk.read(blk.slot, data, 0, 0, blk.length);
+        } catch (IOException ex) {
+            if (Debug.EnableError) {
+                Debug.println("[SurFS] Block cache read error, " + ex.getMessage());
+            }
+            synchronized (stripe) {
+                stripe.disk.free(blk.slot);
+            }
+            misses.incrementAndGet();
+            return -1;
+        }
+        int cnt = Math.max(0, Math.min(len, blk.length - blockOff));
+        System.arraycopy(data, blockOff, buf, off, cnt);
+        diskHits.incrementAndGet();
+        Demotion demote = null;
+        synchronized (stripe) {
+            stripe.disk.free(blk.slot);
+            if (gen == getGeneration(fileId) && !stripe.memory.contains(key) && !stripe.disk.contains(key)) {
+                demote = addToMemory(stripe, new Block(key, blk.fileLength, blk.modifyDate, blk.length), data);
+            }
+        }
+        if (demote != null) {
+            demote(stripe, demote);
+        }
+        return cnt;
+    }
+
+    /**
+     * Add a block read from the backend
+     *
+     * @param fileId int
+     * @param block long, block index
+     * @param fileLength long, file length the block was read with
+     * @param modifyDate long, file modify date the block was read with
+     * @param buf byte[], block data
+     * @param len int, block length
+     * @param gen long, file generation before the block was read
+     */
+    public void put(int fileId, long block, long fileLength, long modifyDate, byte[] buf, int len, long gen) {
+        if (len <= 0 || len > blockSize) {
+            return;
+        }
+        Key key = new Key(fileId, block);
+        Stripe stripe = getStripe(key);
+        Demotion demote;
+        synchronized (stripe) {
+            if (gen != getGeneration(fileId)) {
+                return;
+            }
+            Block old = stripe.memory.get(key);
+            if (old == null && stripe.disk != null) {
+                old = stripe.disk.get(key);
+            }
+            if (old != null) {
+                removeBlock(stripe, old);
+            }
+            demote = addToMemory(stripe, new Block(key, fileLength, modifyDate, len), buf);
+        }
+        if (demote != null) {
+            demote(stripe, demote);
+        }
+    }
+
+    /**
+     * Add a block to the memory tier of a stripe, the stripe lock must be held.
+     * If memory is full the least recently used block is evicted, or reserved a
+     * disk tier slot if there is a disk tier.
+     *
+     * @param stripe Stripe
+     * @param blk Block
+     * @param buf byte[]
+     * @return Demotion to complete once the stripe lock is released, or null
+     */
+    private Demotion addToMemory(Stripe stripe, Block blk, byte[] buf) {
+        Demotion demote = null;
+        if (stripe.memory.isFull()) {
+            Block eldest = stripe.memory.eldest();
+            if (stripe.disk != null && stripe.disk.isFull()) {
+                Block drop = stripe.disk.eldest();
+                if (drop != null) {
+                    removeBlock(stripe, drop);
+                    evictions.incrementAndGet();
+                }
+            }
+            if (stripe.disk != null && stripe.disk.isFull() == false) {
+                byte[] data = new byte[eldest.length];
+                memory.read(eldest.slot, data, 0, 0, eldest.length);
+                Block moved = new Block(eldest.key, eldest.fileLength, eldest.modifyDate, eldest.length);
+                demote = new Demotion(moved, stripe.disk.allocate(), data, getGeneration(eldest.key.fileId));
+            } else {
+                evictions.incrementAndGet();
+            }
+            removeBlock(stripe, eldest);
+        }
+        int slot = stripe.memory.allocate();
+        memory.write(slot, buf, 0, blk.length);
+        stripe.memory.insert(blk, slot);
+        Set<Key> keys = stripe.fileBlocks.get(blk.key.fileId);
+        if (keys == null) {
+            keys = new HashSet<>();
+            stripe.fileBlocks.put(blk.key.fileId, keys);
+        }
+        keys.add(blk.key);
+        return demote;
+    }
+
+    /**
+     * Write a block evicted from memory to its reserved disk tier slot, called
+     * without the stripe lock. The block is dropped if its file was invalidated
+     * or the block was cached again while it was being written.
+     *
+     * @param stripe Stripe
+     * @param demote Demotion
+     */
+    private void demote(Stripe stripe, Demotion demote) {
+        Block blk = demote.block;
+        boolean written = false;
+        try {
+            disk.write(demote.slot, demote.data, 0, blk.length);
+            written = true;
+        } catch (IOException ex) {
+            if (Debug.EnableError) {
+                Debug.println("[SurFS] Block cache write error, " + ex.getMessage());
+            }
+        }
+        synchronized (stripe) {
+            if (written && demote.gen == getGeneration(blk.key.fileId) && !stripe.memory.contains(blk.key)
+                    && !stripe.disk.contains(blk.key)) {
+                stripe.disk.insert(blk, demote.slot);
+                Set<Key> keys = stripe.fileBlocks.get(blk.key.fileId);
+                if (keys == null) {
+                    keys = new HashSet<>();
+                    stripe.fileBlocks.put(blk.key.fileId, keys);
+                }
+                keys.add(blk.key);
+            } else {
+                stripe.disk.free(demote.slot);
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Remove all cached blocks of a file, called when the file is written or
+     * truncated
+     *
+     * @param fileId int
+     */
+    public void invalidate(int fileId) {
+        generations.incrementAndGet(fileId & (GenerationCount - 1));
+        boolean found = false;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                Set<Key> keys = stripe.fileBlocks.remove(fileId);
+                if (keys == null) {
+                    continue;
+                }
+                found = true;
+                for (Key key : keys) {
+                    Block blk = stripe.memory.get(key);
+                    if (blk == null && stripe.disk != null) {
+                        blk = stripe.disk.get(key);
+                    }
+                    if (blk != null) {
+                        blk.slots.remove(blk);
+                    }
+                }
+            }
+        }
+        if (found) {
+            invalidations.incrementAndGet();
+        }
+    }
+
+    private void removeBlock(Stripe stripe, Block blk) {
+        blk.slots.remove(blk);
+        unindex(stripe, blk.key);
+    }
+
+    private void unindex(Stripe stripe, Key key) {
+        Set<Key> keys = stripe.fileBlocks.get(key.fileId);
+        if (keys != null) {
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                stripe.fileBlocks.remove(key.fileId);
+            }
+        }
+    }
+
+    /**
+     * Release the disk tier
+     */
+    public void close() {
+        if (disk != null) {
+            disk.close();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Return the percentage of block reads answered from the cache
+     *
+     * @return double
+     */
+    public double getHitRatio() {
+        long hit = hits.get() + diskHits.get();
+        long total = hit + misses.get();
+        return total > 0 ? (hit * 100.0) / total : 0.0;
+    }
+
+    @Override
+    public String toString() {
+        int memBlocks = 0;
+        int diskBlocks = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                memBlocks += stripe.memory.size();
+                diskBlocks += stripe.disk != null ? stripe.disk.size() : 0;
+            }
+        }
+        return "[SurBlockCache blockSize=" + blockSize + ", stripes=" + stripes.length + ", memoryBlocks=" + memBlocks
+                + (disk != null ? ", diskBlocks=" + diskBlocks : "") + ", hits=" + getHits() + ", diskHits="
+                + getDiskHits() + ", misses=" + getMisses() + ", hitRatio=" + String.format("%.1f", getHitRatio())
+                + "%, stale=" + staleBlocks.get() + ", evictions=" + evictions.get() + ", invalidations="
+                + invalidations.get() + "]";
+    }
+}
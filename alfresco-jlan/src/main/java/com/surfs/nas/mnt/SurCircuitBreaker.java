@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2016 SurCloud.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ */
+package com.surfs.nas.mnt;
+
+/**
+ * Circuit breaker for a storage pool. After a number of consecutive backend
+ * failures the breaker opens and requests fail immediately. Once the open time
+ * has passed a single request is let through as a probe, the breaker closes if
+ * the probe succeeds and opens again if it fails.
+ */
+public class SurCircuitBreaker {
+
+    // Default failure threshold and open time, in milliseconds
+    public static final int DefaultFailureThreshold = 5;
+    public static final long DefaultOpenTime = 5000L;
+
+    private static final int Closed = 0;
+    private static final int Open = 1;
+    private static final int HalfOpen = 2;
+
+    private final int failureThreshold;
+    private final long openTime;
+
+    private int state = Closed;
+    private int failures;
+    private long openUntil;
+    private long openCount;
+
+    public SurCircuitBreaker() {
+        this(DefaultFailureThreshold, DefaultOpenTime);
+    }
+
+    public SurCircuitBreaker(int failureThreshold, long openTime) {
+        this.failureThreshold = failureThreshold;
+        this.openTime = openTime;
+    }
+
+    /**
+     * Check if a request may be sent to the backend
+     *
+     * @return boolean
+     */
+    public synchronized boolean allowRequest() {
+        if (state == Closed) {
+            return true;
+        }
+        if (state == Open && System.currentTimeMillis() >= openUntil) {
+
+            // Let a single probe request through
+            state = HalfOpen;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Record a successful backend request
+     */
+    public synchronized void recordSuccess() {
+        failures = 0;
+        state = Closed;
+    }
+
+    /**
+     * Record a failed backend request
+     */
+    public synchronized void recordFailure() {
+        failures++;
+        if (state == HalfOpen || failures >= failureThreshold) {
+            if (state != Open) {
+                openCount++;
+            }
+            state = Open;
+            openUntil = System.currentTimeMillis() + openTime;
+        }
+    }
+
+    /**
+     * @return true if requests are currently being rejected
+     */
+    public synchronized boolean isOpen() {
+        return state != Closed;
+    }
+
+    /**
+     * @return the number of times the breaker has opened
+     */
+    public synchronized long getOpenCount() {
+        return openCount;
+    }
+}
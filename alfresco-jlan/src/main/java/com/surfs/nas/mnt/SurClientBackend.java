@@ -0,0 +1,361 @@
+/*
+ * Copyright (C) 2016 SurCloud.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ */
+package com.surfs.nas.mnt;
+
+import com.surfs.nas.StorageConfig;
+import com.surfs.nas.StoragePool;
+import com.surfs.nas.StorageSources;
+import com.surfs.nas.client.NasRandomAccessor;
+import com.surfs.nas.client.SurFile;
+import com.surfs.nas.client.SurFileFactory;
+import com.surfs.nas.client.SurfsDiskSize;
+import com.surfs.nas.error.VolumeNotFoundException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import org.alfresco.jlan.server.auth.UserAccount;
+import org.alfresco.jlan.server.filesys.DirectoryNotEmptyException;
+import org.alfresco.jlan.server.filesys.FileExistsException;
+
+/**
+ * Backend using the SurFS client. The storage pool is the default pool of the
+ * client configuration, or the pool named by the
+ * com.surfs.nas.mnt.SurfsNasDriver.PoolName system property.
+ */
+public class SurClientBackend implements SurBackend {
+
+    private final String poolname;
+
+    public SurClientBackend() throws IOException {
+        StorageConfig.initClient();
+        poolname = System.getProperty("com.surfs.nas.mnt.SurfsNasDriver.PoolName", StorageSources.getDefaultStoragePool().getName());
+    }
+
+    private StoragePool getPool() throws IOException {
+        return StorageSources.getStoragePool(poolname);
+    }
+
+    @Override
+    public String getName() {
+        return poolname;
+    }
+
+    @Override
+    public SurBackendFile getFile(String path) throws IOException {
+        return new ClientFile(SurFileFactory.newInstance(path, poolname));
+    }
+
+    @Override
+    public SurBackendFile getFile(SurBackendFile parent, String name) throws IOException {
+        return new ClientFile(new SurFile(((ClientFile) parent).sf, name));
+    }
+
+    @Override
+    public String getPathForFileId(int fileId) {
+
+        // The SurFS client has no lookup by file id
+        return null;
+    }
+
+    @Override
+    public SurBackendAccessor openAccessor(SurBackendFile file) throws IOException {
+        final NasRandomAccessor io = new NasRandomAccessor(((ClientFile) file).sf);
+        return new SurBackendAccessor() {
+            @Override
+            public int read(byte[] buf, int pos, int len, long fileOff) throws IOException {
+                return io.read(buf, pos, len, fileOff);
+            }
+
+            @Override
+            public void write(byte[] buf, int pos, int len, long fileOff) throws IOException {
+                io.write(buf, pos, len, fileOff);
+            }
+
+            @Override
+            public void setLength(long len) throws IOException {
+                io.setLength(len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                io.close();
+            }
+        };
+    }
+
+    // The SurFS client has no compound requests, they are made of the single requests
+
+    @Override
+    public boolean createFile(SurBackendFile file) throws IOException {
+        SurFile sf = ((ClientFile) file).sf;
+        SurFile parent = sf.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        return sf.createNewFile();
+    }
+
+    @Override
+    public int deleteIfFile(SurBackendFile file) throws IOException {
+        SurFile sf = ((ClientFile) file).sf;
+        if (!sf.exists() || !sf.isFile()) {
+            return -1;
+        }
+        int fileId = sf.getFileId();
+        sf.delete();
+        return fileId;
+    }
+
+    @Override
+    public int deleteIfEmptyDirectory(SurBackendFile dir) throws IOException {
+        SurFile sf = ((ClientFile) dir).sf;
+        if (!sf.exists() || !sf.isDirectory()) {
+            return -1;
+        }
+        if (!sf.isEmptyDirectory()) {
+            throw new DirectoryNotEmptyException();
+        }
+        int fileId = sf.getFileId();
+        sf.delete();
+        return fileId;
+    }
+
+    @Override
+    public int renameReplace(SurBackendFile from, SurBackendFile to) throws IOException {
+        SurFile oldFile = ((ClientFile) from).sf;
+        SurFile newFile = ((ClientFile) to).sf;
+        if (!oldFile.exists()) {
+            throw new FileNotFoundException(oldFile.getPath());
+        }
+        if (newFile.exists()) {
+            if (newFile.isDirectory()) {
+                throw new FileExistsException(newFile.getPath());
+            }
+            newFile.delete();
+        }
+        int fileId = oldFile.getFileId();
+        oldFile.renameTo(newFile);
+        return fileId;
+    }
+
+    @Override
+    public SurBackendDiskSize createDiskSize(SurBackendFile root) {
+        return new ClientDiskSize(((ClientFile) root).sf);
+    }
+
+    @Override
+    public List<String> getMountList() throws IOException {
+        return getPool().getDatasource().getNasMetaAccessor().getMountList();
+    }
+
+    @Override
+    public long getQuota(String path) throws IOException {
+        return getPool().getDatasource().getNasMetaAccessor().getQuata(path);
+    }
+
+    @Override
+    public Map<String, String> getPermission(String path) throws IOException {
+        return getPool().getDatasource().getNasMetaAccessor().getPermission(path);
+    }
+
+    @Override
+    public UserAccount getUserAccount(String userName) throws IOException {
+        com.surfs.nas.UserAccount userAcc = getPool().getDatasource().getNasMetaAccessor().getUserAccount(userName);
+        if (userAcc == null) {
+            return null;
+        }
+        UserAccount account = new UserAccount();
+        account.setUserName(userAcc.getUserName());
+        account.setPassword(userAcc.getPassword());
+        account.setComment(userAcc.getComment());
+        account.setRealName(userAcc.getRealName());
+        return account;
+    }
+
+    @Override
+    public long getDirectoryCreateDate() {
+        return SurFile._globalCreateDate;
+    }
+
+    @Override
+    public int getErrorRetryTimes() {
+        try {
+            return getPool().getClientSourceMgr().getGlobleProperties().getErrRetryTimes();
+        } catch (Exception ex) {
+            return -1;
+        }
+    }
+
+    @Override
+    public int getBlockSize() {
+        try {
+            return getPool().getClientSourceMgr().getGlobleProperties().getBlocksize() * 1024;
+        } catch (Exception ex) {
+            return 0;
+        }
+    }
+
+    @Override
+    public int getCheckSpaceInterval() {
+        try {
+            return getPool().getClientSourceMgr().getGlobleProperties().getCheckSpaceInterval();
+        } catch (Exception ex) {
+            return 0;
+        }
+    }
+
+    /**
+     * SurFile wrapper
+     */
+    private final class ClientFile implements SurBackendFile {
+
+        private final SurFile sf;
+        private final Meta meta = new Meta() {
+            @Override
+            public long getLength() {
+                return sf.getMeta().getLength();
+            }
+
+            @Override
+            public long getLastModified() {
+                return sf.getMeta().getLastModified();
+            }
+        };
+
+        ClientFile(SurFile sf) {
+            this.sf = sf;
+        }
+
+        @Override
+        public String getPath() {
+            return sf.getPath();
+        }
+
+        @Override
+        public String getName() {
+            return sf.getName();
+        }
+
+        @Override
+        public boolean exists() {
+            return sf.exists();
+        }
+
+        @Override
+        public boolean isFile() throws IOException {
+            return sf.isFile();
+        }
+
+        @Override
+        public boolean isDirectory() throws IOException {
+            return sf.isDirectory();
+        }
+
+        @Override
+        public boolean isEmptyDirectory() throws IOException {
+            return sf.isEmptyDirectory();
+        }
+
+        @Override
+        public long length() throws IOException {
+            return sf.length();
+        }
+
+        @Override
+        public long lastModified() throws IOException {
+            return sf.lastModified();
+        }
+
+        @Override
+        public int getFileId() {
+            return sf.getFileId();
+        }
+
+        @Override
+        public SurBackendFile getParentFile() throws IOException {
+            SurFile parent = sf.getParentFile();
+            return parent != null ? new ClientFile(parent) : null;
+        }
+
+        @Override
+        public SurBackendFile[] listFiles() throws IOException {
+            SurFile[] list = sf.listFiles();
+            if (list == null) {
+                return null;
+            }
+            SurBackendFile[] files = new SurBackendFile[list.length];
+            for (int i = 0; i < list.length; i++) {
+                files[i] = list[i] != null ? new ClientFile(list[i]) : null;
+            }
+            return files;
+        }
+
+        @Override
+        public boolean createNewFile() throws IOException {
+            return sf.createNewFile();
+        }
+
+        @Override
+        public boolean mkdirs() throws IOException {
+            return sf.mkdirs();
+        }
+
+        @Override
+        public boolean delete() throws IOException {
+            return sf.delete();
+        }
+
+        @Override
+        public boolean renameTo(SurBackendFile dest) throws IOException {
+            return sf.renameTo(((ClientFile) dest).sf);
+        }
+
+        @Override
+        public void queryMeta(boolean force) throws IOException {
+            sf.queryMeta(force);
+        }
+
+        @Override
+        public Meta getMeta() {
+            return sf.getMeta() != null ? meta : null;
+        }
+    }
+
+    /**
+     * SurFS disk space poller, a volume that no longer exists is reported as
+     * a FileNotFoundException
+     */
+    private static final class ClientDiskSize extends SurfsDiskSize implements SurBackendDiskSize {
+
+        ClientDiskSize(SurFile root) {
+            super(root);
+        }
+
+        @Override
+        public void refresh() throws IOException {
+            try {
+                getDirSpace();
+            } catch (VolumeNotFoundException e) {
+                throw new FileNotFoundException(e.getMessage());
+            }
+        }
+    }
+}
@@ -1,93 +1,314 @@
-/*
- * Copyright (C) 2016 SurCloud.
- *
- * This program is free software; you can redistribute it and/or
- * modify it under the terms of the GNU General Public License
- * as published by the Free Software Foundation; either version 2
- * of the License, or (at your option) any later version.
- *
- * This program is distributed in the hope that it will be useful,
- * but WITHOUT ANY WARRANTY; without even the implied warranty of
- * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
- * GNU General Public License for more details.
- *
- * You should have received a copy of the GNU General Public License
- * along with this program; if not, write to the Free Software
- * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
- *
- * http://www.gnu.org/licenses/licenses.html
- */ 
-
-package com.surfs.nas.mnt;
-
-import com.surfs.nas.client.SurfsDiskSize;
-import com.surfs.nas.client.SurFile;
-import com.surfs.nas.error.VolumeNotFoundException;
-import com.surfs.nas.transport.ThreadPool;
-import java.io.IOException;
-import org.alfresco.jlan.server.filesys.DiskDeviceContext;
-
-public class SurDeviceContext extends DiskDeviceContext {
-
-    private final SurMntDiskSize surfsDiskSize;
-    private final SurDevicePermission surDevicePermission;
-    private boolean useable = true;
-
-    public SurDeviceContext(SurFile sf) throws IOException {
-        super(sf.getPath());
-        surfsDiskSize = new SurMntDiskSize(sf, this);
-        surDevicePermission = new SurDevicePermission(sf.getPath());
-    }
-
-    /**
-     * @return the surfsDiskSize
-     */
-    public SurfsDiskSize getSurfsDiskSize() {
-        return surfsDiskSize;
-    }
-
-    public void open() {
-        surDevicePermission.start();
-        surfsDiskSize.start();
-    }
-
-    @Override
-    public void CloseContext() {
-        super.CloseContext();
-        ThreadPool.stopThread(surfsDiskSize);
-        ThreadPool.stopThread(surDevicePermission);
-    }
-
-    /**
-     * @return the surDevicePermission
-     */
-    public SurDevicePermission getSurDevicePermission() {
-        return surDevicePermission;
-    }
-
-    /**
-     * @return the useable
-     */
-    public boolean isUseable() {
-        return useable;
-    }
-
-    private class SurMntDiskSize extends SurfsDiskSize {
-
-        SurDeviceContext surDeviceContext = null;
-
-        public SurMntDiskSize(SurFile root, SurDeviceContext surDeviceContext) {
-            super(root);
-            this.surDeviceContext = surDeviceContext;
-        }
-
-        @Override
-        protected void getDirSpace() throws IOException {
-            try {
-                super.getDirSpace();
-            } catch (VolumeNotFoundException e) {
-                surDeviceContext.useable = false;
-            }
-        }
-    }
-}
+/*
+ * Copyright (C) 2016 SurCloud.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ */ 
+
+package com.surfs.nas.mnt;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import org.alfresco.jlan.server.filesys.DiskDeviceContext;
+
+public class SurDeviceContext extends DiskDeviceContext {
+
+    // Default disk space polling interval, in milliseconds
+    public static final long DefaultDiskSizeInterval = 60000L;
+
+    private final SurBackendDiskSize surfsDiskSize;
+    private final SurSpaceLease spaceLease;
+    private final SurDevicePermission surDevicePermission;
+    private boolean useable = true;
+
+    // Background tasks, only scheduled while the share has tree connections
+    private int treeCount;
+    private SurBackgroundScheduler.Task diskSizeTask;
+    private SurBackgroundScheduler.Task permissionTask;
+    private volatile long lastDiskSizeRefresh;
+    private volatile long lastPermissionRefresh;
+    private boolean closed;
+
+    // Time the share was last used, and set once the share has been used over
+    // NFS, whose clients can hold handles to the share without a connection
+    private volatile long lastAccess = System.currentTimeMillis();
+    private volatile boolean nfsExported;
+    private SurMetadataCache metadataCache;
+
+    // File ids of the share, to resolve NFS handles
+    private SurFileIdMap fileIdMap;
+    private int rootFileId = -1;
+    private int searchPageSize = SurFileSearchContext.DefaultPageSize;
+    private Class<? extends SurDirectoryReader> searchReaderClass = SurListFilesReader.class;
+
+    public SurDeviceContext(SurBackendFile sf) throws IOException {
+        super(sf.getPath());
+        surfsDiskSize = SurNasDriver.getBackend().createDiskSize(sf);
+        spaceLease = new SurSpaceLease(surfsDiskSize, SurSpaceLease.DefaultLeaseSize);
+        surDevicePermission = new SurDevicePermission(sf.getPath());
+    }
+
+    /**
+     * @return the surfsDiskSize, polled first if the share has not been
+     * polled yet
+     */
+    public SurBackendDiskSize getSurfsDiskSize() {
+        if (lastDiskSizeRefresh == 0L) {
+            refreshDiskSize();
+        }
+        return surfsDiskSize;
+    }
+
+    /**
+     * @return the disk space leased to the share's writers
+     */
+    public SurSpaceLease getSpaceLease() {
+        return spaceLease;
+    }
+
+    /**
+     * Reserve disk space for a write
+     *
+     * @param size int
+     * @throws IOException if the share is full
+     */
+    public void reserveSpace(int size) throws IOException {
+        if (lastDiskSizeRefresh == 0L) {
+            refreshDiskSize();
+        }
+        spaceLease.reserve(size);
+    }
+
+    /**
+     * Record that the share has been used
+     */
+    public void touch() {
+        lastAccess = System.currentTimeMillis();
+    }
+
+    /**
+     * Mark the share as exported over NFS
+     */
+    public void setNFSExported() {
+        nfsExported = true;
+    }
+
+    /**
+     * Check if the share has no tree connections and has not been used for a
+     * time. A share that has been used over NFS is never idle.
+     *
+     * @param now long
+     * @param idleTimeout long, in milliseconds
+     * @return boolean
+     */
+    public synchronized boolean isIdle(long now, long idleTimeout) {
+        return !nfsExported && treeCount == 0 && now - lastAccess >= idleTimeout;
+    }
+
+    public void open() {
+
+        // Background work is started by the first tree connection
+    }
+
+    /**
+     * A tree has been connected to the share, start the background tasks if
+     * this is the first connection
+     */
+    public void treeOpened() {
+        boolean refreshNow;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            lastAccess = now;
+            if (closed || treeCount++ > 0) {
+                return;
+            }
+            long diskInterval = getDiskSizeInterval();
+            refreshNow = now - lastDiskSizeRefresh >= diskInterval;
+            diskSizeTask = SurBackgroundScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    refreshDiskSize();
+                }
+            }, diskInterval, refreshNow ? diskInterval : Math.max(0L, diskInterval - (now - lastDiskSizeRefresh)));
+            permissionTask = SurBackgroundScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    lastPermissionRefresh = System.currentTimeMillis();
+                    surDevicePermission.refresh();
+                }
+            }, SurDevicePermission.RefreshInterval, lastPermissionRefresh == 0L ? SurDevicePermission.RefreshInterval
+                    : Math.max(0L, SurDevicePermission.RefreshInterval - (now - lastPermissionRefresh)));
+        }
+
+        // Make sure the disk space is known before the share is used
+        if (refreshNow) {
+            refreshDiskSize();
+        }
+    }
+
+    /**
+     * A tree has been disconnected from the share, stop the background tasks
+     * if there are no connections left
+     */
+    public synchronized void treeClosed() {
+        lastAccess = System.currentTimeMillis();
+        if (treeCount > 0 && --treeCount == 0) {
+            cancelTasks();
+        }
+    }
+
+    private void refreshDiskSize() {
+        lastDiskSizeRefresh = System.currentTimeMillis();
+        try {
+            spaceLease.refresh();
+        } catch (FileNotFoundException ex) {
+            useable = false;
+        } catch (IOException ex) {
+        }
+    }
+
+    private synchronized void cancelTasks() {
+        if (diskSizeTask != null) {
+            diskSizeTask.cancel();
+            diskSizeTask = null;
+        }
+        if (permissionTask != null) {
+            permissionTask.cancel();
+            permissionTask = null;
+        }
+    }
+
+    /**
+     * Return the disk space polling interval of the storage backend
+     *
+     * @return long, in milliseconds
+     */
+    private static long getDiskSizeInterval() {
+        try {
+            int interval = SurNasDriver.getBackend().getCheckSpaceInterval();
+            return interval > 0 ? interval * 1000L : DefaultDiskSizeInterval;
+        } catch (Exception ex) {
+            return DefaultDiskSizeInterval;
+        }
+    }
+
+    @Override
+    public void CloseContext() {
+        super.CloseContext();
+        synchronized (this) {
+            closed = true;
+            cancelTasks();
+        }
+        if (metadataCache != null) {
+            metadataCache.close();
+        }
+        if (fileIdMap != null) {
+            fileIdMap.close();
+        }
+    }
+
+    /**
+     * @return the metadata cache, or null if metadata caching is disabled
+     */
+    public SurMetadataCache getMetadataCache() {
+        return metadataCache;
+    }
+
+    /**
+     * @param metadataCache the metadata cache, or null to disable metadata
+     * caching
+     */
+    public void setMetadataCache(SurMetadataCache metadataCache) {
+        this.metadataCache = metadataCache;
+    }
+
+    /**
+     * @return the file id map, or null if disabled
+     */
+    public SurFileIdMap getFileIdMap() {
+        return fileIdMap;
+    }
+
+    /**
+     * @param fileIdMap the file id map, or null to disable it
+     */
+    public void setFileIdMap(SurFileIdMap fileIdMap) {
+        this.fileIdMap = fileIdMap;
+    }
+
+    /**
+     * @return the file id of the share root
+     */
+    public int getRootFileId() {
+        return rootFileId;
+    }
+
+    /**
+     * @param rootFileId the file id of the share root
+     */
+    public void setRootFileId(int rootFileId) {
+        this.rootFileId = rootFileId;
+    }
+
+    /**
+     * @return the number of entries read from SurFS per page by searches
+     */
+    public int getSearchPageSize() {
+        return searchPageSize;
+    }
+
+    /**
+     * @param searchPageSize the number of entries read per page by searches
+     */
+    public void setSearchPageSize(int searchPageSize) {
+        this.searchPageSize = searchPageSize;
+    }
+
+    /**
+     * Create a directory reader for a search
+     *
+     * @return SurDirectoryReader
+     * @throws IOException
+     */
+    public SurDirectoryReader createDirectoryReader() throws IOException {
+        try {
+            return searchReaderClass.newInstance();
+        } catch (InstantiationException | IllegalAccessException ex) {
+            throw new IOException("Failed to create directory reader " + searchReaderClass.getName(), ex);
+        }
+    }
+
+    /**
+     * @param searchReaderClass the directory reader class used by searches
+     */
+    public void setSearchReaderClass(Class<? extends SurDirectoryReader> searchReaderClass) {
+        this.searchReaderClass = searchReaderClass;
+    }
+
+    /**
+     * @return the surDevicePermission
+     */
+    public SurDevicePermission getSurDevicePermission() {
+        return surDevicePermission;
+    }
+
+    /**
+     * @return the useable
+     */
+    public boolean isUseable() {
+        return useable;
+    }
+}
@@ -1,73 +1,166 @@
-/*
- * Copyright (C) 2016 SurCloud.
- *
- * This program is free software; you can redistribute it and/or
- * modify it under the terms of the GNU General Public License
- * as published by the Free Software Foundation; either version 2
- * of the License, or (at your option) any later version.
- *
- * This program is distributed in the hope that it will be useful,
- * but WITHOUT ANY WARRANTY; without even the implied warranty of
- * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
- * GNU General Public License for more details.
- *
- * You should have received a copy of the GNU General Public License
- * along with this program; if not, write to the Free Software
- * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
- *
- * http://www.gnu.org/licenses/licenses.html
- */ 
-
-package com.surfs.nas.mnt;
-
-import com.surfs.nas.StoragePool;
-import com.surfs.nas.StorageSources;
-import java.io.IOException;
-import java.util.Map;
-
-public class SurDevicePermission extends Thread {
-
-    private String name = null;
-    private Map<String, String> map;
-
-    public SurDevicePermission(String name) throws IOException {
-        this.name = name;
-        load();
-    }
-
-    private synchronized void load() throws IOException {
-        StoragePool pool = StorageSources.getStoragePool(SurNasDriver.poolname);
-        map = pool.getDatasource().getNasMetaAccessor().getPermission(name);
-    }
-
-    @Override
-    public void run() {
-        while (!this.isInterrupted()) {
-            try {
-                sleep(1000 * 60 * 10);
-                load();
-            } catch (IOException ex) {
-            } catch (InterruptedException ex) {
-                break;
-            }
-        }
-    }
-
-    /**
-     *
-     * @param username
-     * @return
-     */
-    public String getPermission(String username) {
-        String per = map.get(username);
-        if (per == null) {
-            try {
-                load();
-            } catch (IOException ex) {
-            }
-            return map.get(username);
-        } else {
-            return per;
-        }
-    }
-}
+/*
+ * Copyright (C) 2016 SurCloud.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ */ 
+
+package com.surfs.nas.mnt;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Share permissions by user name. The permission map is loaded from the storage
+ * backend and replaced as a whole on each reload, so lookups never lock.
+ * A lookup of an unknown user triggers a reload, concurrent lookups share the
+ * same reload, reloads are rate limited and users still unknown after a
+ * successful reload are remembered for a while so they do not trigger more
+ * reloads. The map is loaded by the first lookup and reloaded periodically by
+ * the share's background task.
+ */
+public class SurDevicePermission {
+
+    // Periodic reload interval, minimum time between reloads and unknown user timeout, in milliseconds
+    public static final long RefreshInterval = 1000L * 60 * 10;
+    public static final long MinimumRefreshInterval = 5000L;
+    public static final long NegativeTimeout = 60000L;
+
+    // Maximum number of unknown users remembered
+    public static final int MaximumNegativeEntries = 10000;
+
+    private String name = null;
+    private volatile Map<String, String> map = Collections.emptyMap();
+
+    // Unknown users, with the time the entry expires
+    private final ConcurrentMap<String, Long> negative = new ConcurrentHashMap<>();
+
+    // Reload state, guarded by loadLock
+    private final Object loadLock = new Object();
+    private boolean loading;
+    private long lastLoadStart;
+    private long lastLoadOk;
+
+    public SurDevicePermission(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Reload the permission map, unless a reload that started after the
+     * request time has already completed. Callers arriving while a reload is
+     * running wait for it instead of starting another.
+     *
+     * @param requestTime long
+     * @param force boolean, ignore the minimum reload interval
+     * @return true if a reload that started after the request time succeeded
+     * @throws IOException
+     */
+    private boolean load(long requestTime, boolean force) throws IOException {
+        long startTime;
+        synchronized (loadLock) {
+            while (loading) {
+                try {
+                    loadLock.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            if (lastLoadStart >= requestTime) {
+                return lastLoadOk >= requestTime;
+            }
+            startTime = System.currentTimeMillis();
+            if (!force && startTime - lastLoadStart < MinimumRefreshInterval) {
+                return false;
+            }
+            loading = true;
+        }
+        boolean loaded = false;
+        try {
+            Map<String, String> newMap = SurNasDriver.getBackend().getPermission(name);
+            map = newMap != null ? Collections.unmodifiableMap(new HashMap<>(newMap)) : Collections.<String, String>emptyMap();
+
+            // Forget unknown users that now have a permission
+            Iterator<String> iter = negative.keySet().iterator();
+            while (iter.hasNext()) {
+                if (map.containsKey(iter.next())) {
+                    iter.remove();
+                }
+            }
+            loaded = true;
+        } finally {
+            synchronized (loadLock) {
+                loading = false;
+                lastLoadStart = startTime;
+                if (loaded) {
+                    lastLoadOk = startTime;
+                }
+                loadLock.notifyAll();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Periodic reload of the permission map
+     */
+    public void refresh() {
+        try {
+            load(System.currentTimeMillis(), true);
+        } catch (IOException ex) {
+        }
+    }
+
+    /**
+     *
+     * @param username
+     * @return
+     */
+    public String getPermission(String username) {
+        if (username == null) {
+            return null;
+        }
+        String per = map.get(username);
+        if (per != null) {
+            return per;
+        }
+        long now = System.currentTimeMillis();
+        Long expires = negative.get(username);
+        if (expires != null && expires > now) {
+            return null;
+        }
+        boolean loaded = false;
+        try {
+            loaded = load(now, false);
+        } catch (IOException ex) {
+        }
+
+        // Only remember the user as unknown if a reload succeeded without it
+        per = map.get(username);
+        if (per == null && loaded) {
+            if (negative.size() >= MaximumNegativeEntries) {
+                negative.clear();
+            }
+            negative.put(username, now + NegativeTimeout);
+        }
+        return per;
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2016 SurCloud.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ */
+package com.surfs.nas.mnt;
+
+import java.io.IOException;
+import java.util.List;
+import org.alfresco.jlan.util.WildCard;
+
+/**
+ * Paged reader of a SurFS directory listing. Each page returns the entries
+ * along with their attributes, so a search only holds one page in memory and
+ * does not need a backend request per entry.
+ */
+public interface SurDirectoryReader {
+
+    /**
+     * Open the listing of a directory
+     *
+     * @param dir SurBackendFile
+     * @param filter WildCard, only entries with matching names are returned,
+     * or null for all entries
+     * @throws IOException
+     */
+    public void open(SurBackendFile dir, WildCard filter) throws IOException;
+
+    /**
+     * Read a page of entries
+     *
+     * @param start int, index of the first entry, counting matching entries
+     * only
+     * @param max int, maximum number of entries
+     * @return List of entries, empty at the end of the listing
+     * @throws IOException
+     */
+    public List<SurMetadataCache.Entry> readPage(int start, int max) throws IOException;
+
+    /**
+     * Release the listing
+     */
+    public void close();
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2016 SurCloud.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ */
+package com.surfs.nas.mnt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.alfresco.jlan.debug.Debug;
+
+/**
+ * Map of SurFS file ids to share relative paths, used to resolve NFS handles
+ * that are not in the NFS server's own file id cache. Paths are recorded as
+ * the driver reads file information and lists directories, the least recently
+ * used ids are dropped when the map is full. The map can be saved to a local
+ * file so that handles still resolve after the gateway restarts.
+ */
+public class SurFileIdMap {
+
+    // Default maximum number of ids and save interval, in milliseconds
+    public static final int DefaultMaximumEntries = 262144;
+    public static final long DefaultSaveInterval = 60000L;
+
+    // Saved map file format version
+    private static final int FileVersion = 1;
+
+    private final LinkedHashMap<Integer, String> ids;
+    private final File saveFile;
+    private boolean dirty;
+    private SurBackgroundScheduler.Task saveTask;
+
+    // Statistics
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Create a file id map
+     *
+     * @param maxEntries int
+     * @param saveFile File, file the map is loaded from and saved to, or null
+     */
+    public SurFileIdMap(final int maxEntries, File saveFile) {
+        this.saveFile = saveFile;
+        this.ids = new LinkedHashMap<Integer, String>(1024, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        if (saveFile != null) {
+            load();
+            saveTask = SurBackgroundScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    save();
+                }
+            }, DefaultSaveInterval, DefaultSaveInterval);
+        }
+    }
+
+    /**
+     * Record the path of a file id
+     *
+     * @param fileId int
+     * @param path String, share relative path
+     */
+    public synchronized void put(int fileId, String path) {
+        if (fileId == -1 || path == null) {
+            return;
+        }
+        String old = ids.put(fileId, path);
+        if (old == null || !old.equals(path)) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Return the path recorded for a file id, the caller must check the path
+     * still has the file id
+     *
+     * @param fileId int
+     * @return String, or null if not known
+     */
+    public synchronized String get(int fileId) {
+        String path = ids.get(fileId);
+        if (path != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return path;
+    }
+
+    /**
+     * Remove a file id
+     *
+     * @param fileId int
+     */
+    public synchronized void remove(int fileId) {
+        if (ids.remove(fileId) != null) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * @return the number of ids held
+     */
+    public synchronized int size() {
+        return ids.size();
+    }
+
+    /**
+     * Load the saved map, a missing or unreadable file leaves the map empty
+     */
+    private void load() {
+        if (!saveFile.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(saveFile)))) {
+            if (in.readInt() != FileVersion) {
+                return;
+            }
+            synchronized (this) {
+                while (true) {
+                    int fileId;
+                    try {
+                        fileId = in.readInt();
+                    } catch (EOFException ex) {
+                        break;
+                    }
+                    ids.put(fileId, in.readUTF());
+                }
+            }
+        } catch (IOException ex) {
+            if (Debug.EnableError) {
+                Debug.println("[SurFS] Failed to load file id map " + saveFile + ", " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Save the map if it has changed, to a temporary file that then replaces
+     * the saved map
+     */
+    public void save() {
+        if (saveFile == null) {
+            return;
+        }
+        List<Map.Entry<Integer, String>> entries;
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            dirty = false;
+            entries = new ArrayList<>(ids.size());
+            Iterator<Map.Entry<Integer, String>> iter = ids.entrySet().iterator();
+            while (iter.hasNext()) {
+                Map.Entry<Integer, String> e = iter.next();
+                entries.add(new AbstractMap.SimpleEntry<>(e.getKey(), e.getValue()));
+            }
+        }
+        File tmpFile = new File(saveFile.getPath() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+                out.writeInt(FileVersion);
+                for (Map.Entry<Integer, String> e : entries) {
+                    out.writeInt(e.getKey());
+                    out.writeUTF(e.getValue());
+                }
+            }
+            if (!tmpFile.renameTo(saveFile)) {
+                saveFile.delete();
+                if (!tmpFile.renameTo(saveFile)) {
+                    throw new IOException("Failed to replace " + saveFile);
+                }
+            }
+        } catch (IOException ex) {
+            synchronized (this) {
+                dirty = true;
+            }
+            if (Debug.EnableError) {
+                Debug.println("[SurFS] Failed to save file id map " + saveFile + ", " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Stop the periodic save and save the map
+     */
+    public void close() {
+        if (saveTask != null) {
+            saveTask.cancel();
+            saveTask = null;
+        }
+        save();
+    }
+
+    @Override
+    public String toString() {
+        return "[SurFileIdMap ids=" + size() + ", hits=" + hits.get() + ", misses=" + misses.get() + "]";
+    }
+}
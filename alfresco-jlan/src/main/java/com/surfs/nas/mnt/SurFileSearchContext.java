@@ -1,233 +1,290 @@
-/*
- * Copyright (C) 2016 SurCloud.
- *
- * This program is free software; you can redistribute it and/or
- * modify it under the terms of the GNU General Public License
- * as published by the Free Software Foundation; either version 2
- * of the License, or (at your option) any later version.
- *
- * This program is distributed in the hope that it will be useful,
- * but WITHOUT ANY WARRANTY; without even the implied warranty of
- * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
- * GNU General Public License for more details.
- *
- * You should have received a copy of the GNU General Public License
- * along with this program; if not, write to the Free Software
- * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
- *
- * http://www.gnu.org/licenses/licenses.html
- */ 
-
-package com.surfs.nas.mnt;
-
-import com.surfs.nas.client.SurFile;
-import java.io.IOException;
-import org.alfresco.jlan.server.filesys.FileAttribute;
-import org.alfresco.jlan.server.filesys.FileInfo;
-import org.alfresco.jlan.server.filesys.SearchContext;
-import org.alfresco.jlan.util.WildCard;
-
-public class SurFileSearchContext extends SearchContext {
-
-    private final int m_attr;
-    private WildCard m_wildcard;
-    private boolean m_single;
-    private SurFile[] m_list;
-    private int m_idx;
-    private final SurFile m_root;
-
-    SurFileSearchContext(SurFile searchPath, String searchString, int attrib) throws IOException {
-        this.m_attr = attrib;
-        this.setSearchString(searchString);
-        if (searchString != null && WildCard.containsWildcards(searchString) == false) {
-            setSingleFileSearch(true);
-            m_root = new SurFile(searchPath, searchString);
-        } else {
-            m_root = searchPath;
-            if (m_root.isDirectory()) {
-                if (searchString == null) {
-                    setSingleFileSearch(true);
-                } else {
-                    m_list = m_root.listFiles();
-                    setSingleFileSearch(false);
-                    m_wildcard = new WildCard(searchString, false);
-                }
-            }
-        }
-        m_idx = 0;
-    }
-
-    @Override
-    public int getResumeId() {
-        return m_idx;
-    }
-
-    @Override
-    public boolean hasMoreFiles() {
-        if (m_single == true && m_idx > 0) {
-            return false;
-        } else if (m_list != null && m_idx >= m_list.length) {
-            return false;
-        }
-        return true;
-    }
-
-    @Override
-    public boolean nextFileInfo(FileInfo info) {
-        if (!m_root.exists()) {
-            return false;
-        }
-        boolean infoValid = false;
-        try {
-            if (isSingleFileSearch()) {
-                if (m_idx == 0) {
-                    m_idx++;
-                    if (!m_root.exists()) {
-                        return false;
-                    }
-                    int fattr = 0;
-                    long flen = 0L;
-                    if (m_root.isDirectory()) {
-                        fattr = FileAttribute.Directory;
-                    } else {
-                        flen = m_root.length();
-                    }
-                    info.setFileName(m_root.getName());
-                    info.setSize(flen);
-                    info.setFileAttributes(fattr);
-                    info.setFileId(m_root.getFileId());
-                    long modifyDate = m_root.lastModified();
-                    info.setModifyDateTime(modifyDate);
-                    info.setChangeDateTime(modifyDate);
-                    info.setCreationDateTime(modifyDate);
-                    infoValid = true;
-                }
-            } else if (m_list != null && m_idx < m_list.length) {
-                boolean foundMatch = false;
-                SurFile curFile = m_list[m_idx++];
-                while (foundMatch == false && curFile != null) {
-                    if (m_wildcard.matchesPattern(curFile.getName()) == true) {
-                        if (FileAttribute.hasAttribute(m_attr, FileAttribute.Directory) && curFile.isDirectory()) {
-                            foundMatch = true;
-                        } else if (curFile.isFile()) {
-                            foundMatch = true;
-                        }
-                    }
-                    if (foundMatch == false) {
-                        if (m_idx < m_list.length) {
-                            curFile = m_list[m_idx++];
-                        } else {
-                            curFile = null;
-                        }
-                    }
-                }
-                if (curFile != null) {
-                    if (!curFile.exists()) {
-                        return false;
-                    }
-                    int fattr = 0;
-                    long flen = 0L;
-                    String fname = curFile.getName();
-                    if (curFile.isDirectory()) {
-                        fattr = FileAttribute.Directory;
-                        if (fname.startsWith(".")) {
-                            fattr += FileAttribute.Hidden;
-                        }
-                    } else {
-                        flen = curFile.length();
-                        if (fname.equalsIgnoreCase("Desktop.ini")
-                                || fname.equalsIgnoreCase("Thumbs.db")
-                                || fname.startsWith(".")) {
-                            fattr += FileAttribute.Hidden;
-                        }
-                    }
-                    info.setFileName(curFile.getName());
-                    info.setSize(flen);
-                    info.setFileAttributes(fattr);
-                    info.setFileId(curFile.getFileId());
-                    long modifyDate = curFile.lastModified();
-                    info.setModifyDateTime(modifyDate);
-                    info.setChangeDateTime(modifyDate);
-                    info.setCreationDateTime(modifyDate);
-                    infoValid = true;
-                }
-            }
-        } catch (java.io.FileNotFoundException e) {
-            return false;
-        } catch (Exception r) {
-            
-        }
-        return infoValid;
-    }
-
-    @Override
-    public String nextFileName() {
-        try {
-            if (m_root.exists()) {
-                if (!m_root.isDirectory()) {
-                    if (m_idx == 0) {
-                        m_idx++;
-                        return m_root.getName();
-                    } else {
-                        return null;
-                    }
-                } else if (m_list != null && m_idx < m_list.length) {
-                    while (m_idx < m_list.length) {
-                        String fname = m_list[m_idx++].getName();
-                        if (m_wildcard.matchesPattern(fname)) {
-                            return fname;
-                        }
-                    }
-                }
-            }
-        } catch (java.io.FileNotFoundException e) {
-            return null;
-        } catch (IOException ex) {
-            
-        }
-        return null;
-    }
-
-    @Override
-    public boolean restartAt(int resumeId) {
-        if (m_list == null || resumeId >= m_list.length) {
-            return false;
-        }
-        m_idx = resumeId;
-        return true;
-    }
-
-    @Override
-    public boolean restartAt(FileInfo info) {
-        boolean restartOK = false;
-        m_idx--;
-        if (m_list != null) {
-            while (m_idx > 0 && restartOK == false) {
-                if (m_list[m_idx].getName().compareTo(info.getFileName()) == 0) {
-                    restartOK = true;
-                } else {
-                    m_idx--;
-                }
-            }
-        }
-        return restartOK;
-    }
-
-    /**
-     * Set the wildcard/single file search flag.
-     *
-     * @param single boolean
-     */
-    protected final void setSingleFileSearch(boolean single) {
-        m_single = single;
-    }
-
-    /**
-     * Determine if this is a wildcard or single file/directory type search.
-     *
-     * @return boolean
-     */
-    protected final boolean isSingleFileSearch() {
-        return m_single;
-    }
-}
+/*
+ * Copyright (C) 2016 SurCloud.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ */ 
+
+package com.surfs.nas.mnt;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import org.alfresco.jlan.server.filesys.FileAttribute;
+import org.alfresco.jlan.server.filesys.FileInfo;
+import org.alfresco.jlan.server.filesys.SearchContext;
+import org.alfresco.jlan.util.WildCard;
+
+public class SurFileSearchContext extends SearchContext {
+
+    // Default number of entries read from SurFS per page
+    public static final int DefaultPageSize = 512;
+
+    private final int m_attr;
+    private WildCard m_wildcard;
+    private boolean m_single;
+    private int m_idx;
+    private final SurBackendFile m_root;
+
+    // Paged listing, the current page and the index of its first entry
+    private SurDirectoryReader m_reader;
+    private final int m_pageSize;
+    private List<SurMetadataCache.Entry> m_page = Collections.emptyList();
+    private int m_pageStart;
+    private boolean m_endOfList;
+
+    // Metadata cache primed with the listed entries, may be null, and the cache path of the directory
+    private final SurMetadataCache m_cache;
+    private final String m_cachePath;
+
+    // File id map updated with the listed entries, may be null, and the share relative path of the directory
+    private SurFileIdMap m_ids;
+    private String m_idPath;
+
+    SurFileSearchContext(SurBackendFile searchPath, String searchString, int attrib) throws IOException {
+        this(searchPath, searchString, attrib, new SurListFilesReader(), DefaultPageSize, null, null);
+    }
+
+    SurFileSearchContext(SurBackendFile searchPath, String searchString, int attrib, SurDirectoryReader reader, int pageSize,
+            SurMetadataCache cache, String cachePath) throws IOException {
+        this.m_attr = attrib;
+        this.m_pageSize = pageSize > 0 ? pageSize : DefaultPageSize;
+        this.m_cache = cachePath != null ? cache : null;
+        this.m_cachePath = cachePath;
+        this.setSearchString(searchString);
+        if (searchString != null && WildCard.containsWildcards(searchString) == false) {
+            setSingleFileSearch(true);
+            m_root = SurNasDriver.getBackend().getFile(searchPath, searchString);
+        } else {
+            m_root = searchPath;
+            if (m_root.isDirectory()) {
+                if (searchString == null) {
+                    setSingleFileSearch(true);
+                } else {
+                    m_wildcard = new WildCard(searchString, false);
+                    reader.open(m_root, m_wildcard);
+                    m_reader = reader;
+                    setSingleFileSearch(false);
+                }
+            } else {
+                m_endOfList = true;
+            }
+        }
+        m_idx = 0;
+    }
+
+    /**
+     * Record the file ids of the listed entries
+     *
+     * @param ids SurFileIdMap
+     * @param dir String, share relative path of the directory
+     */
+    void setFileIdMap(SurFileIdMap ids, String dir) {
+        m_ids = ids;
+        m_idPath = dir.length() > 0 ? dir : "\\";
+    }
+
+    /**
+     * Make sure the page holding the current entry is loaded
+     *
+     * @return boolean, false if there are no more entries
+     */
+    private boolean loadPage() {
+        if (m_reader == null || m_endOfList) {
+            return false;
+        }
+        if (m_idx >= m_pageStart && m_idx < m_pageStart + m_page.size()) {
+            return true;
+        }
+        try {
+            long gen = m_cache != null ? m_cache.getGeneration() : 0L;
+            m_page = m_reader.readPage(m_idx, m_pageSize);
+            m_pageStart = m_idx;
+            if (m_cache != null) {
+                String dir = m_cachePath;
+                String sep = dir.endsWith("/") || dir.endsWith("\\") ? "" : "/";
+                for (SurMetadataCache.Entry entry : m_page) {
+                    m_cache.prime(dir + sep + entry.getName(), entry, gen);
+                }
+            }
+            if (m_ids != null) {
+                String dir = m_idPath.endsWith("\\") ? m_idPath : m_idPath + "\\";
+                for (SurMetadataCache.Entry entry : m_page) {
+                    if (entry.exists()) {
+                        m_ids.put(entry.getFileId(), dir + entry.getName());
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            m_page = Collections.emptyList();
+        }
+        if (m_page.isEmpty()) {
+            m_endOfList = true;
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int getResumeId() {
+        return m_idx;
+    }
+
+    @Override
+    public boolean hasMoreFiles() {
+        if (m_single == true) {
+            return m_idx == 0;
+        }
+        return loadPage();
+    }
+
+    @Override
+    public boolean nextFileInfo(FileInfo info) {
+        boolean infoValid = false;
+        try {
+            if (isSingleFileSearch()) {
+                if (m_idx == 0) {
+                    m_idx++;
+                    if (!m_root.exists()) {
+                        return false;
+                    }
+                    int fattr = 0;
+                    long flen = 0L;
+                    if (m_root.isDirectory()) {
+                        fattr = FileAttribute.Directory;
+                    } else {
+                        flen = m_root.length();
+                    }
+                    info.setFileName(m_root.getName());
+                    info.setSize(flen);
+                    info.setFileAttributes(fattr);
+                    info.setFileId(m_root.getFileId());
+                    long modifyDate = m_root.lastModified();
+                    info.setModifyDateTime(modifyDate);
+                    info.setChangeDateTime(modifyDate);
+                    info.setCreationDateTime(modifyDate);
+                    infoValid = true;
+                }
+            } else {
+                SurMetadataCache.Entry curFile = null;
+                while (curFile == null && loadPage()) {
+                    SurMetadataCache.Entry entry = m_page.get(m_idx++ - m_pageStart);
+                    if (FileAttribute.hasAttribute(m_attr, FileAttribute.Directory) && entry.isDirectory()) {
+                        curFile = entry;
+                    } else if (entry.isFile()) {
+                        curFile = entry;
+                    }
+                }
+                if (curFile != null) {
+                    int fattr = 0;
+                    long flen = 0L;
+                    String fname = curFile.getName();
+                    if (curFile.isDirectory()) {
+                        fattr = FileAttribute.Directory;
+                        if (fname.startsWith(".")) {
+                            fattr += FileAttribute.Hidden;
+                        }
+                    } else {
+                        flen = curFile.length();
+                        if (fname.equalsIgnoreCase("Desktop.ini")
+                                || fname.equalsIgnoreCase("Thumbs.db")
+                                || fname.startsWith(".")) {
+                            fattr += FileAttribute.Hidden;
+                        }
+                    }
+                    info.setFileName(fname);
+                    info.setSize(flen);
+                    info.setFileAttributes(fattr);
+                    info.setFileId(curFile.getFileId());
+                    long modifyDate = curFile.lastModified();
+                    info.setModifyDateTime(modifyDate);
+                    info.setChangeDateTime(modifyDate);
+                    info.setCreationDateTime(modifyDate);
+                    infoValid = true;
+                }
+            }
+        } catch (java.io.FileNotFoundException e) {
+            return false;
+        } catch (Exception r) {
+            
+        }
+        return infoValid;
+    }
+
+    @Override
+    public String nextFileName() {
+        if (isSingleFileSearch()) {
+            if (m_idx == 0 && m_root.exists()) {
+                m_idx++;
+                return m_root.getName();
+            }
+        } else if (loadPage()) {
+            return m_page.get(m_idx++ - m_pageStart).getName();
+        }
+        return null;
+    }
+
+    @Override
+    public boolean restartAt(int resumeId) {
+        if (m_reader == null || resumeId < 0) {
+            return false;
+        }
+        m_idx = resumeId;
+        m_endOfList = false;
+        return loadPage();
+    }
+
+    @Override
+    public boolean restartAt(FileInfo info) {
+
+        // Search back through the current page for the entry
+        int idx = Math.min(m_idx, m_pageStart + m_page.size()) - 1;
+        while (idx >= m_pageStart) {
+            if (m_page.get(idx - m_pageStart).getName().compareTo(info.getFileName()) == 0) {
+                m_idx = idx;
+                return true;
+            }
+            idx--;
+        }
+        return false;
+    }
+
+    @Override
+    public void closeSearch() {
+        if (m_reader != null) {
+            m_reader.close();
+        }
+        super.closeSearch();
+    }
+
+    /**
+     * Set the wildcard/single file search flag.
+     *
+     * @param single boolean
+     */
+    protected final void setSingleFileSearch(boolean single) {
+        m_single = single;
+    }
+
+    /**
+     * Determine if this is a wildcard or single file/directory type search.
+     *
+     * @return boolean
+     */
+    protected final boolean isSingleFileSearch() {
+        return m_single;
+    }
+}
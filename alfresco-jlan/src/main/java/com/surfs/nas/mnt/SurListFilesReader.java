@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2016 SurCloud.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ */
+package com.surfs.nas.mnt;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.alfresco.jlan.util.WildCard;
+
+/**
+ * Directory reader using SurBackendFile.listFiles(), for SurFS clients without a
+ * paged listing. The names are matched against the filter once when the
+ * listing is opened, attributes are only loaded for the entries of the page
+ * being read.
+ */
+public class SurListFilesReader implements SurDirectoryReader {
+
+    private SurBackendFile[] m_list;
+    private int[] m_matches;
+    private int m_count;
+
+    @Override
+    public void open(SurBackendFile dir, WildCard filter) throws IOException {
+        m_list = dir.listFiles();
+        if (m_list == null) {
+            m_list = new SurBackendFile[0];
+        }
+        m_matches = new int[m_list.length];
+        m_count = 0;
+        for (int i = 0; i < m_list.length; i++) {
+            if (m_list[i] != null && (filter == null || filter.matchesPattern(m_list[i].getName()))) {
+                m_matches[m_count++] = i;
+            }
+        }
+    }
+
+    @Override
+    public List<SurMetadataCache.Entry> readPage(int start, int max) throws IOException {
+        int end = Math.min(m_count, start + max);
+        List<SurMetadataCache.Entry> page = new ArrayList<>(Math.max(0, end - start));
+        for (int i = start; i < end; i++) {
+            try {
+                page.add(SurMetadataCache.loadEntry(m_list[m_matches[i]]));
+            } catch (FileNotFoundException ex) {
+
+                // Deleted since the listing was read
+                page.add(new SurMetadataCache.Entry(false, false, 0L, 0L, 0, m_list[m_matches[i]].getName(), 0L));
+            }
+        }
+        return page;
+    }
+
+    @Override
+    public void close() {
+        m_list = null;
+        m_matches = null;
+    }
+}
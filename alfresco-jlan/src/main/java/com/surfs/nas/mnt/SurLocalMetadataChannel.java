@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2016 SurCloud.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ */
+package com.surfs.nas.mnt;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * In process metadata channel, used when there is no channel between gateway
+ * nodes. All instances share one set of subscribers so the caches of the
+ * shares in this process stay coherent with each other.
+ */
+public class SurLocalMetadataChannel implements SurMetadataChannel {
+
+    // Subscribers in this process
+    private static final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void subscribe(Listener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    @Override
+    public void unsubscribe(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    @Override
+    public void publish(Listener source, String path, boolean tree) {
+        for (Listener listener : listeners) {
+            if (listener != source) {
+                listener.pathInvalidated(path, tree);
+            }
+        }
+    }
+}
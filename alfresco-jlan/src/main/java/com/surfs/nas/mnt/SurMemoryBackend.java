@@ -0,0 +1,761 @@
+/*
+ * Copyright (C) 2016 SurCloud.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ */
+package com.surfs.nas.mnt;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.alfresco.jlan.server.auth.UserAccount;
+import org.alfresco.jlan.server.filesys.DirectoryNotEmptyException;
+import org.alfresco.jlan.server.filesys.DiskFullException;
+import org.alfresco.jlan.server.filesys.FileExistsException;
+
+/**
+ * In memory storage backend, to run and benchmark the gateway without a SurFS
+ * cluster. Each backend request can be delayed by a fixed latency, and data
+ * transfers share a link of limited bandwidth, to model the network between
+ * the gateway and SurFS.
+ *
+ * When created by the driver, using the com.surfs.nas.mnt.SurNasDriver.Backend
+ * system property, the backend is configured by system properties with the
+ * com.surfs.nas.mnt.SurMemoryBackend. prefix: Mounts, a comma separated list
+ * of mount paths, Capacity in bytes, Latency in microseconds, Bandwidth in
+ * bytes per second and Users, a comma separated list of user:password pairs.
+ * All users have read/write access to all mounts.
+ */
+public class SurMemoryBackend implements SurBackend {
+
+    public static final String PropertyPrefix = "com.surfs.nas.mnt.SurMemoryBackend.";
+
+    // Default mount, capacity and block size
+    public static final String DefaultMount = "/surfs";
+    public static final long DefaultCapacity = 16L * 1024L * 1024L * 1024L;
+    public static final int DefaultBlockSize = 128 * 1024;
+
+    /**
+     * File or directory
+     */
+    private static final class Node {
+
+        private final int fileId;
+        private final boolean directory;
+        private final ConcurrentSkipListSet<String> children;
+        private byte[] data = new byte[0];
+        private long length;
+        private long lastModified = System.currentTimeMillis();
+
+        Node(int fileId, boolean directory) {
+            this.fileId = fileId;
+            this.directory = directory;
+            this.children = directory ? new ConcurrentSkipListSet<String>() : null;
+        }
+    }
+
+    // Nodes by path, the root always exists
+    private final ConcurrentMap<String, Node> nodes = new ConcurrentHashMap<>();
+    private final AtomicInteger nextFileId = new AtomicInteger(1);
+    private final AtomicLong used = new AtomicLong();
+    private final long createDate = System.currentTimeMillis();
+
+    // Namespace changes are serialized, so parent and child updates stay consistent
+    private final Object namespaceLock = new Object();
+
+    private final List<String> mounts = new ArrayList<>();
+    private final Map<String, String> users = new HashMap<>();
+    private final long capacity;
+
+    // Injected request latency, in nanoseconds, and link bandwidth, in bytes per second, zero for unlimited
+    private volatile long latency;
+    private volatile long bandwidth;
+    private long linkFree;
+
+    // Statistics
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    /**
+     * Create a backend configured from system properties
+     */
+    public SurMemoryBackend() {
+        this(System.getProperty(PropertyPrefix + "Mounts", DefaultMount).split(","),
+                Long.getLong(PropertyPrefix + "Capacity", DefaultCapacity));
+        setLatency(Long.getLong(PropertyPrefix + "Latency", 0L), TimeUnit.MICROSECONDS);
+        setBandwidth(Long.getLong(PropertyPrefix + "Bandwidth", 0L));
+        String userList = System.getProperty(PropertyPrefix + "Users");
+        if (userList != null) {
+            for (String user : userList.split(",")) {
+                int pos = user.indexOf(':');
+                if (pos > 0) {
+                    addUser(user.substring(0, pos).trim(), user.substring(pos + 1));
+                }
+            }
+        }
+    }
+
+    /**
+     * Create a backend
+     *
+     * @param mountPaths String[], mount paths to create
+     * @param capacity long, total space in bytes
+     */
+    public SurMemoryBackend(String[] mountPaths, long capacity) {
+        this.capacity = capacity;
+        nodes.put("/", new Node(nextFileId.getAndIncrement(), true));
+        for (String mount : mountPaths) {
+            String path = normalize(mount.trim().toLowerCase());
+            if (path.length() > 1 && !mounts.contains(path)) {
+                mounts.add(path);
+                mkdirs(path);
+            }
+        }
+    }
+
+    /**
+     * Set the latency added to each backend request
+     *
+     * @param time long
+     * @param unit TimeUnit
+     */
+    public void setLatency(long time, TimeUnit unit) {
+        latency = unit.toNanos(Math.max(0L, time));
+    }
+
+    /**
+     * Set the bandwidth of the link shared by all data transfers
+     *
+     * @param bytesPerSecond long, zero for unlimited
+     */
+    public void setBandwidth(long bytesPerSecond) {
+        bandwidth = Math.max(0L, bytesPerSecond);
+    }
+
+    /**
+     * Add a user, with read/write access to all mounts
+     *
+     * @param userName String
+     * @param password String
+     */
+    public synchronized void addUser(String userName, String password) {
+        users.put(userName, password);
+    }
+
+    /**
+     * Delay a request by the latency and, for data transfers, the time the
+     * data takes on the shared link
+     *
+     * @param bytes int, bytes transferred
+     */
+    private void delay(int bytes) {
+        requests.incrementAndGet();
+        long wait = latency;
+        long bw = bandwidth;
+        if (bytes > 0 && bw > 0) {
+            long xfer = bytes * 1000000000L / bw;
+            long now = System.nanoTime();
+            long finish;
+            synchronized (this) {
+                linkFree = Math.max(linkFree, now) + xfer;
+                finish = linkFree;
+            }
+            wait += finish - now;
+        }
+        if (wait > 0) {
+            long deadline = System.nanoTime() + wait;
+            long remaining = wait;
+            while (remaining > 0) {
+                LockSupport.parkNanos(remaining);
+                remaining = deadline - System.nanoTime();
+            }
+        }
+    }
+
+    private static String normalize(String path) {
+        if (path == null || path.length() == 0) {
+            return "/";
+        }
+        String p = path.replace('\\', '/');
+        if (!p.startsWith("/")) {
+            p = "/" + p;
+        }
+        while (p.length() > 1 && p.endsWith("/")) {
+            p = p.substring(0, p.length() - 1);
+        }
+        return p;
+    }
+
+    private static String parentOf(String path) {
+        int pos = path.lastIndexOf('/');
+        return pos <= 0 ? "/" : path.substring(0, pos);
+    }
+
+    private static String nameOf(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    private boolean mkdirs(String path) {
+        synchronized (namespaceLock) {
+            Node node = nodes.get(path);
+            if (node != null) {
+                return false;
+            }
+            String parent = parentOf(path);
+            if (!nodes.containsKey(parent)) {
+                mkdirs(parent);
+            }
+            Node pnode = nodes.get(parent);
+            if (pnode == null || !pnode.directory) {
+                return false;
+            }
+            nodes.put(path, new Node(nextFileId.getAndIncrement(), true));
+            pnode.children.add(nameOf(path));
+            return true;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "memory";
+    }
+
+    @Override
+    public SurBackendFile getFile(String path) {
+        return new MemoryFile(normalize(path));
+    }
+
+    @Override
+    public SurBackendFile getFile(SurBackendFile parent, String name) {
+        String ppath = parent.getPath();
+        return new MemoryFile(normalize(ppath.endsWith("/") ? ppath + name : ppath + "/" + name));
+    }
+
+    @Override
+    public String getPathForFileId(int fileId) {
+        delay(0);
+        for (Map.Entry<String, Node> e : nodes.entrySet()) {
+            if (e.getValue().fileId == fileId) {
+                return e.getKey();
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public SurBackendAccessor openAccessor(SurBackendFile file) throws IOException {
+        delay(0);
+        final MemoryFile mfile = (MemoryFile) file;
+        final Node node = nodes.get(mfile.path);
+        if (node == null || node.directory) {
+            throw new FileNotFoundException(mfile.path);
+        }
+        return new SurBackendAccessor() {
+            @Override
+            public int read(byte[] buf, int pos, int len, long fileOff) throws IOException {
+                int cnt;
+                synchronized (node) {
+                    if (fileOff >= node.length) {
+                        cnt = -1;
+                    } else {
+                        cnt = (int) Math.min(len, node.length - fileOff);
+                        System.arraycopy(node.data, (int) fileOff, buf, pos, cnt);
+                    }
+                }
+                delay(Math.max(0, cnt));
+                if (cnt > 0) {
+                    bytesRead.addAndGet(cnt);
+                }
+                return cnt;
+            }
+
+            @Override
+            public void write(byte[] buf, int pos, int len, long fileOff) throws IOException {
+                delay(len);
+                synchronized (node) {
+                    long end = fileOff + len;
+                    if (end > Integer.MAX_VALUE) {
+                        throw new DiskFullException("File too large for memory backend");
+                    }
+                    if (end > node.length && used.get() + (end - node.length) > capacity) {
+                        throw new DiskFullException();
+                    }
+                    if (end > node.data.length) {
+                        byte[] data = new byte[(int) Math.min(Integer.MAX_VALUE, Math.max(end, node.data.length * 2L))];
+                        System.arraycopy(node.data, 0, data, 0, (int) node.length);
+                        node.data = data;
+                    }
+                    System.arraycopy(buf, pos, node.data, (int) fileOff, len);
+                    if (end > node.length) {
+                        used.addAndGet(end - node.length);
+                        node.length = end;
+                    }
+                    node.lastModified = System.currentTimeMillis();
+                    mfile.setMeta(node.length, node.lastModified);
+                }
+                bytesWritten.addAndGet(len);
+            }
+
+            @Override
+            public void setLength(long len) throws IOException {
+                delay(0);
+                synchronized (node) {
+                    if (len > Integer.MAX_VALUE) {
+                        throw new DiskFullException("File too large for memory backend");
+                    }
+                    if (len > node.data.length) {
+                        byte[] data = new byte[(int) len];
+                        System.arraycopy(node.data, 0, data, 0, (int) node.length);
+                        node.data = data;
+                    } else if (len < node.length) {
+                        Arrays.fill(node.data, (int) len, (int) node.length, (byte) 0);
+                    }
+                    used.addAndGet(len - node.length);
+                    node.length = len;
+                    node.lastModified = System.currentTimeMillis();
+                    mfile.setMeta(node.length, node.lastModified);
+                }
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * Create a file or directory, the caller holds no locks
+     *
+     * @param path String
+     * @param directory boolean
+     * @return Node, or null if the path exists
+     * @throws FileNotFoundException if the parent directory does not exist
+     */
+    private Node createNode(String path, boolean directory) throws FileNotFoundException {
+        synchronized (namespaceLock) {
+            Node pnode = nodes.get(parentOf(path));
+            if (pnode == null || !pnode.directory) {
+                throw new FileNotFoundException(parentOf(path));
+            }
+            if (nodes.containsKey(path)) {
+                return null;
+            }
+            Node node = new Node(nextFileId.getAndIncrement(), directory);
+            nodes.put(path, node);
+            pnode.children.add(nameOf(path));
+            return node;
+        }
+    }
+
+    /**
+     * Remove a file or empty directory, the caller holds the namespace lock
+     *
+     * @param path String
+     * @return boolean
+     */
+    private boolean removeNode(String path) {
+        Node node = nodes.get(path);
+        if (node == null || path.equals("/")) {
+            return false;
+        }
+        nodes.remove(path);
+        Node pnode = nodes.get(parentOf(path));
+        if (pnode != null) {
+            pnode.children.remove(nameOf(path));
+        }
+        synchronized (node) {
+            used.addAndGet(-node.length);
+        }
+        return true;
+    }
+
+    /**
+     * Move a path and, for a directory, everything below it
+     *
+     * @param path String
+     * @param dpath String
+     * @return boolean, false if the path does not exist or the new path exists
+     */
+    private boolean moveNode(String path, String dpath) {
+        synchronized (namespaceLock) {
+            Node node = nodes.get(path);
+            Node dparent = nodes.get(parentOf(dpath));
+            if (node == null || dparent == null || !dparent.directory || nodes.containsKey(dpath)
+                    || dpath.startsWith(path + "/")) {
+                return false;
+            }
+            List<String> moved = new ArrayList<>();
+            for (String p : nodes.keySet()) {
+                if (p.equals(path) || p.startsWith(path + "/")) {
+                    moved.add(p);
+                }
+            }
+            for (String p : moved) {
+                nodes.put(dpath + p.substring(path.length()), nodes.remove(p));
+            }
+            Node pnode = nodes.get(parentOf(path));
+            if (pnode != null) {
+                pnode.children.remove(nameOf(path));
+            }
+            dparent.children.add(nameOf(dpath));
+            return true;
+        }
+    }
+
+    @Override
+    public boolean createFile(SurBackendFile file) throws IOException {
+        delay(0);
+        String path = file.getPath();
+        if (!nodes.containsKey(parentOf(path))) {
+            mkdirs(parentOf(path));
+        }
+        Node node = createNode(path, false);
+        if (node == null) {
+            return false;
+        }
+        ((MemoryFile) file).setMeta(0L, node.lastModified);
+        return true;
+    }
+
+    @Override
+    public int deleteIfFile(SurBackendFile file) {
+        delay(0);
+        String path = file.getPath();
+        synchronized (namespaceLock) {
+            Node node = nodes.get(path);
+            if (node == null || node.directory) {
+                return -1;
+            }
+            removeNode(path);
+            return node.fileId;
+        }
+    }
+
+    @Override
+    public int deleteIfEmptyDirectory(SurBackendFile dir) throws IOException {
+        delay(0);
+        String path = dir.getPath();
+        synchronized (namespaceLock) {
+            Node node = nodes.get(path);
+            if (node == null || !node.directory || path.equals("/")) {
+                return -1;
+            }
+            if (!node.children.isEmpty()) {
+                throw new DirectoryNotEmptyException();
+            }
+            removeNode(path);
+            return node.fileId;
+        }
+    }
+
+    @Override
+    public int renameReplace(SurBackendFile from, SurBackendFile to) throws IOException {
+        delay(0);
+        String path = from.getPath();
+        String dpath = to.getPath();
+        synchronized (namespaceLock) {
+            Node node = nodes.get(path);
+            if (node == null) {
+                throw new FileNotFoundException(path);
+            }
+            Node dnode = nodes.get(dpath);
+            if (dnode != null && dnode != node) {
+                if (dnode.directory) {
+                    throw new FileExistsException(dpath);
+                }
+                removeNode(dpath);
+            }
+            if (!path.equals(dpath) && !moveNode(path, dpath)) {
+                throw new FileNotFoundException(dpath);
+            }
+            return node.fileId;
+        }
+    }
+
+    @Override
+    public SurBackendDiskSize createDiskSize(SurBackendFile root) {
+        return new SurBackendDiskSize() {
+            private volatile long free = capacity - used.get();
+
+            @Override
+            public void refresh() throws IOException {
+                delay(0);
+                free = capacity - used.get();
+            }
+
+            @Override
+            public void checkDiskSpace() throws IOException {
+                if (free <= 0) {
+                    throw new DiskFullException();
+                }
+            }
+
+            @Override
+            public int getBlockSize() {
+                return 512;
+            }
+
+            @Override
+            public int getBlockPerunit() {
+                return 64;
+            }
+
+            @Override
+            public long getFreeUnits() {
+                return free / (512 * 64);
+            }
+
+            @Override
+            public long getTotalUnits() {
+                return capacity / (512 * 64);
+            }
+        };
+    }
+
+    @Override
+    public List<String> getMountList() {
+        delay(0);
+        return Collections.unmodifiableList(mounts);
+    }
+
+    @Override
+    public long getQuota(String path) throws IOException {
+        delay(0);
+        if (!mounts.contains(normalize(path))) {
+            throw new FileNotFoundException(path);
+        }
+        return capacity;
+    }
+
+    @Override
+    public synchronized Map<String, String> getPermission(String path) {
+        delay(0);
+        Map<String, String> map = new HashMap<>();
+        for (String user : users.keySet()) {
+            map.put(user, "rw");
+        }
+        return map;
+    }
+
+    @Override
+    public UserAccount getUserAccount(String userName) {
+        delay(0);
+        String password;
+        synchronized (this) {
+            password = users.get(userName);
+        }
+        return password != null ? new UserAccount(userName, password) : null;
+    }
+
+    @Override
+    public long getDirectoryCreateDate() {
+        return createDate;
+    }
+
+    @Override
+    public int getErrorRetryTimes() {
+        return 0;
+    }
+
+    @Override
+    public int getBlockSize() {
+        return DefaultBlockSize;
+    }
+
+    @Override
+    public int getCheckSpaceInterval() {
+        return 0;
+    }
+
+    /**
+     * @return backend statistics
+     */
+    public String getStatistics() {
+        return "[SurMemoryBackend requests=" + requests.get() + ", bytesRead=" + bytesRead.get() + ", bytesWritten="
+                + bytesWritten.get() + ", used=" + used.get() + ", nodes=" + nodes.size() + "]";
+    }
+
+    /**
+     * File of the memory backend, metadata is read by queryMeta() and kept
+     * up to date by the accessors
+     */
+    private final class MemoryFile implements SurBackendFile {
+
+        private final String path;
+        private volatile Meta meta;
+
+        MemoryFile(String path) {
+            this.path = path;
+        }
+
+        void setMeta(final long length, final long lastModified) {
+            meta = new Meta() {
+                @Override
+                public long getLength() {
+                    return length;
+                }
+
+                @Override
+                public long getLastModified() {
+                    return lastModified;
+                }
+            };
+        }
+
+        private Node lookup() {
+            delay(0);
+            return nodes.get(path);
+        }
+
+        @Override
+        public String getPath() {
+            return path;
+        }
+
+        @Override
+        public String getName() {
+            return nameOf(path);
+        }
+
+        @Override
+        public boolean exists() {
+            return lookup() != null;
+        }
+
+        @Override
+        public boolean isFile() {
+            Node node = lookup();
+            return node != null && !node.directory;
+        }
+
+        @Override
+        public boolean isDirectory() {
+            Node node = lookup();
+            return node != null && node.directory;
+        }
+
+        @Override
+        public boolean isEmptyDirectory() {
+            Node node = lookup();
+            return node != null && node.directory && node.children.isEmpty();
+        }
+
+        @Override
+        public long length() throws IOException {
+            queryMeta(false);
+            return meta.getLength();
+        }
+
+        @Override
+        public long lastModified() throws IOException {
+            queryMeta(false);
+            return meta.getLastModified();
+        }
+
+        @Override
+        public int getFileId() {
+            Node node = nodes.get(path);
+            return node != null ? node.fileId : -1;
+        }
+
+        @Override
+        public SurBackendFile getParentFile() {
+            return new MemoryFile(parentOf(path));
+        }
+
+        @Override
+        public SurBackendFile[] listFiles() throws IOException {
+            Node node = lookup();
+            if (node == null || !node.directory) {
+                return null;
+            }
+            List<SurBackendFile> list = new ArrayList<>();
+            String prefix = path.equals("/") ? "/" : path + "/";
+            for (String name : node.children) {
+                list.add(new MemoryFile(prefix + name));
+            }
+            return list.toArray(new SurBackendFile[list.size()]);
+        }
+
+        @Override
+        public boolean createNewFile() throws IOException {
+            delay(0);
+            Node node = createNode(path, false);
+            if (node == null) {
+                return false;
+            }
+            setMeta(0L, node.lastModified);
+            return true;
+        }
+
+        @Override
+        public boolean mkdirs() {
+            delay(0);
+            return SurMemoryBackend.this.mkdirs(path);
+        }
+
+        @Override
+        public boolean delete() {
+            delay(0);
+            synchronized (namespaceLock) {
+                Node node = nodes.get(path);
+                if (node == null || (node.directory && !node.children.isEmpty())) {
+                    return false;
+                }
+                return removeNode(path);
+            }
+        }
+
+        @Override
+        public boolean renameTo(SurBackendFile dest) throws IOException {
+            delay(0);
+            return moveNode(path, dest.getPath());
+        }
+
+        @Override
+        public void queryMeta(boolean force) throws IOException {
+            if (meta != null && !force) {
+                return;
+            }
+            Node node = lookup();
+            if (node == null) {
+                throw new FileNotFoundException(path);
+            }
+            synchronized (node) {
+                setMeta(node.directory ? 0L : node.length, node.lastModified);
+            }
+        }
+
+        @Override
+        public Meta getMeta() {
+            return meta;
+        }
+    }
+}
@@ -0,0 +1,426 @@
+/*
+ * Copyright (C) 2016 SurCloud.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ */
+package com.surfs.nas.mnt;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SurFS metadata cache for a share. Holds the exists, type, length and last
+ * modified details of recently used paths for a short time, including paths
+ * that do not exist, so that repeated lookups of the same path do not go to
+ * the backend. Changes made through the driver invalidate the cache and are
+ * published to the caches on the other gateway nodes.
+ */
+public class SurMetadataCache implements SurMetadataChannel.Listener {
+
+    // Default entry timeouts, in milliseconds, and maximum number of entries
+    public static final long DefaultTimeout = 1000L;
+    public static final long DefaultNegativeTimeout = 1000L;
+    public static final int DefaultMaximumEntries = 100000;
+
+    /**
+     * Cached metadata for a path
+     */
+    public static final class Entry {
+
+        private final boolean exists;
+        private final boolean directory;
+        private final long length;
+        private final long lastModified;
+        private final int fileId;
+        private final String name;
+        private final long expiresAt;
+
+        Entry(boolean exists, boolean directory, long length, long lastModified, int fileId, String name, long expiresAt) {
+            this.exists = exists;
+            this.directory = directory;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.fileId = fileId;
+            this.name = name;
+            this.expiresAt = expiresAt;
+        }
+
+        public boolean exists() {
+            return exists;
+        }
+
+        public boolean isDirectory() {
+            return exists && directory;
+        }
+
+        public boolean isFile() {
+            return exists && !directory;
+        }
+
+        public long length() {
+            return length;
+        }
+
+        public long lastModified() {
+            return lastModified;
+        }
+
+        public int getFileId() {
+            return fileId;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    private final ConcurrentMap<String, Entry> cache = new ConcurrentHashMap<>();
+    private final AtomicInteger count = new AtomicInteger();
+    private final long timeout;
+    private final long negativeTimeout;
+    private final int maxEntries;
+
+    // Incremented by every invalidation, a lookup only caches its result if
+    // there was no invalidation while it was loading
+    private final AtomicLong generation = new AtomicLong();
+
+    // Channel to the caches on other gateway nodes
+    private SurMetadataChannel channel;
+
+    // Statistics
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong negativeHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong remoteInvalidations = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public SurMetadataCache() {
+        this(DefaultTimeout, DefaultNegativeTimeout, DefaultMaximumEntries);
+    }
+
+    public SurMetadataCache(long timeout, long negativeTimeout, int maxEntries) {
+        this.timeout = timeout;
+        this.negativeTimeout = negativeTimeout;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Subscribe to a channel, invalidations are published to the channel
+     *
+     * @param channel SurMetadataChannel
+     */
+    public void setChannel(SurMetadataChannel channel) {
+        if (this.channel != null) {
+            this.channel.unsubscribe(this);
+        }
+        this.channel = channel;
+        if (channel != null) {
+            channel.subscribe(this);
+        }
+    }
+
+    /**
+     * @return the timeout of positive entries, in milliseconds
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Release the cache, unsubscribe from the channel
+     */
+    public void close() {
+        setChannel(null);
+        clear();
+    }
+
+    /**
+     * Load the metadata for a path from the backend, without caching it
+     *
+     * @param sf SurBackendFile
+     * @return Entry
+     * @throws IOException
+     */
+    public static Entry loadEntry(SurBackendFile sf) throws IOException {
+        return loadEntry(sf, 0L, 0L);
+    }
+
+    /**
+     * Load the metadata for a path from the backend
+     *
+     * @param sf SurBackendFile
+     * @param expiresAt long, expiry time if the path exists
+     * @param negativeExpiresAt long, expiry time if the path does not exist
+     * @return Entry
+     * @throws IOException
+     */
+    private static Entry loadEntry(SurBackendFile sf, long expiresAt, long negativeExpiresAt) throws IOException {
+        if (!sf.exists()) {
+            return new Entry(false, false, 0L, 0L, 0, sf.getName(), negativeExpiresAt);
+        }
+        if (sf.isFile()) {
+            return new Entry(true, false, sf.length(), sf.lastModified(), sf.getFileId(), sf.getName(), expiresAt);
+        }
+        return new Entry(true, true, 0L, SurNasDriver.getBackend().getDirectoryCreateDate(), sf.getFileId(), sf.getName(), expiresAt);
+    }
+
+    /**
+     * Return the metadata for a path, from the cache or the backend
+     *
+     * @param path String
+     * @param sf SurBackendFile for the path, or null to create it if required
+     * @return Entry
+     * @throws IOException
+     */
+    public Entry lookup(String path, SurBackendFile sf) throws IOException {
+        String key = normalize(path);
+        long now = System.currentTimeMillis();
+        Entry entry = cache.get(key);
+        if (entry != null) {
+            if (entry.expiresAt > now) {
+                if (entry.exists) {
+                    hits.incrementAndGet();
+                } else {
+                    negativeHits.incrementAndGet();
+                }
+                return entry;
+            }
+            if (cache.remove(key, entry)) {
+                count.decrementAndGet();
+            }
+        }
+
+        // Load the metadata, only cache it if the path was not changed while loading
+        misses.incrementAndGet();
+        long gen = generation.get();
+        if (sf == null) {
+            sf = SurNasDriver.getBackend().getFile(path);
+        }
+        entry = loadEntry(sf, now + timeout, now + negativeTimeout);
+        if (gen == generation.get()) {
+            put(key, entry, now);
+        }
+        return entry;
+    }
+
+    /**
+     * @return the current invalidation generation, to pass to prime()
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Add metadata that was read by a directory listing, unless the path has
+     * been invalidated since the listing was read
+     *
+     * @param path String
+     * @param entry Entry
+     * @param gen long, generation before the listing was read
+     */
+    public void prime(String path, Entry entry, long gen) {
+        if (!entry.exists || gen != generation.get()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        put(normalize(path), new Entry(true, entry.directory, entry.length, entry.lastModified, entry.fileId,
+                entry.name, now + timeout), now);
+    }
+
+    /**
+     * Add an entry to the cache, remove expired entries if the cache is full
+     *
+     * @param key String
+     * @param entry Entry
+     * @param now long
+     */
+    private void put(String key, Entry entry, long now) {
+        if (count.get() >= maxEntries) {
+            removeExpired(now);
+            if (count.get() >= maxEntries) {
+                return;
+            }
+        }
+        if (cache.put(key, entry) == null) {
+            count.incrementAndGet();
+        }
+    }
+
+    /**
+     * Remove the expired entries
+     *
+     * @param now long
+     */
+    private void removeExpired(long now) {
+        Iterator<Map.Entry<String, Entry>> iter = cache.entrySet().iterator();
+        while (iter.hasNext()) {
+            if (iter.next().getValue().expiresAt <= now) {
+                iter.remove();
+                count.decrementAndGet();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * A path has been changed through this node
+     *
+     * @param path String
+     */
+    public void invalidate(String path) {
+        invalidate(path, false, true);
+    }
+
+    /**
+     * A path and the paths below it have been changed through this node, used
+     * for directory deletes and renames
+     *
+     * @param path String
+     */
+    public void invalidateTree(String path) {
+        invalidate(path, true, true);
+    }
+
+    /**
+     * A path has been created through this node, along with any missing parent
+     * directories
+     *
+     * @param path String
+     */
+    public void invalidateCreated(String path) {
+        String key = normalize(path);
+        invalidate(key, false, true);
+        int pos = key.lastIndexOf('/');
+        while (pos > 0) {
+            key = key.substring(0, pos);
+            if (cache.remove(key) != null) {
+                count.decrementAndGet();
+            }
+            pos = key.lastIndexOf('/');
+        }
+    }
+
+    @Override
+    public void pathInvalidated(String path, boolean tree) {
+        remoteInvalidations.incrementAndGet();
+        invalidate(path, tree, false);
+    }
+
+    /**
+     * Remove a path, and optionally the paths below it, from the cache
+     *
+     * @param path String
+     * @param tree boolean
+     * @param publish boolean
+     */
+    private void invalidate(String path, boolean tree, boolean publish) {
+        String key = normalize(path);
+        generation.incrementAndGet();
+        invalidations.incrementAndGet();
+        if (cache.remove(key) != null) {
+            count.decrementAndGet();
+        }
+        if (tree) {
+            String prefix = key + "/";
+            Iterator<String> iter = cache.keySet().iterator();
+            while (iter.hasNext()) {
+                if (iter.next().startsWith(prefix)) {
+                    iter.remove();
+                    count.decrementAndGet();
+                }
+            }
+        }
+        if (publish && channel != null) {
+            channel.publish(this, key, tree);
+        }
+    }
+
+    /**
+     * Remove all entries
+     */
+    public void clear() {
+        generation.incrementAndGet();
+        cache.clear();
+        count.set(0);
+    }
+
+    /**
+     * Normalize a path to use as a cache key
+     *
+     * @param path String
+     * @return String
+     */
+    private static String normalize(String path) {
+        String key = path.replace('\\', '/');
+        if (key.length() > 1 && key.endsWith("/")) {
+            key = key.substring(0, key.length() - 1);
+        }
+        return key;
+    }
+
+    public int size() {
+        return count.get();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getNegativeHits() {
+        return negativeHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    public long getRemoteInvalidations() {
+        return remoteInvalidations.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Return the percentage of lookups answered from the cache
+     *
+     * @return double
+     */
+    public double getHitRatio() {
+        long hit = hits.get() + negativeHits.get();
+        long total = hit + misses.get();
+        return total > 0 ? (hit * 100.0) / total : 0.0;
+    }
+
+    @Override
+    public String toString() {
+        return "[SurMetadataCache entries=" + size() + ", hits=" + getHits() + ", negativeHits=" + getNegativeHits()
+                + ", misses=" + getMisses() + ", hitRatio=" + String.format("%.1f", getHitRatio()) + "%, invalidations="
+                + getInvalidations() + ", remote=" + getRemoteInvalidations() + ", evictions=" + getEvictions() + "]";
+    }
+}
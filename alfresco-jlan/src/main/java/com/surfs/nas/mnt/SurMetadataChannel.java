@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2016 SurCloud.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ */
+package com.surfs.nas.mnt;
+
+/**
+ * Publish/subscribe channel used to keep the metadata caches of the gateway
+ * nodes coherent. A cache publishes the paths changed through its node and
+ * drops the paths published by the other nodes.
+ */
+public interface SurMetadataChannel {
+
+    /**
+     * Receiver of invalidations published by other caches
+     */
+    public interface Listener {
+
+        /**
+         * A path has been changed by another cache
+         *
+         * @param path String
+         * @param tree boolean, true if the paths below the path have also
+         * changed
+         */
+        public void pathInvalidated(String path, boolean tree);
+    }
+
+    /**
+     * Subscribe to invalidations
+     *
+     * @param listener Listener
+     */
+    public void subscribe(Listener listener);
+
+    /**
+     * Unsubscribe from invalidations
+     *
+     * @param listener Listener
+     */
+    public void unsubscribe(Listener listener);
+
+    /**
+     * Publish an invalidation to the other subscribers
+     *
+     * @param source Listener, the publishing cache
+     * @param path String
+     * @param tree boolean
+     */
+    public void publish(Listener source, String path, boolean tree);
+}
@@ -1,433 +1,831 @@
-/*
- * Copyright (C) 2016 SurCloud.
- *
- * This program is free software; you can redistribute it and/or
- * modify it under the terms of the GNU General Public License
- * as published by the Free Software Foundation; either version 2
- * of the License, or (at your option) any later version.
- *
- * This program is distributed in the hope that it will be useful,
- * but WITHOUT ANY WARRANTY; without even the implied warranty of
- * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
- * GNU General Public License for more details.
- *
- * You should have received a copy of the GNU General Public License
- * along with this program; if not, write to the Free Software
- * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
- *
- * http://www.gnu.org/licenses/licenses.html
- */ 
-package com.surfs.nas.mnt;
-
-import com.surfs.nas.client.SurfsDiskSize;
-import com.surfs.nas.StorageConfig;
-import com.surfs.nas.StorageSources;
-import com.surfs.nas.client.SurFile;
-import com.surfs.nas.client.SurFileFactory;
-import com.surfs.nas.error.ArgumentException;
-import com.surfs.nas.error.SessionTimeoutException;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import org.alfresco.config.ConfigElement;
-import org.alfresco.jlan.server.SrvSession;
-import org.alfresco.jlan.server.core.DeviceContext;
-import org.alfresco.jlan.server.core.DeviceContextException;
-import org.alfresco.jlan.server.filesys.AccessDeniedException;
-import org.alfresco.jlan.server.filesys.DirectoryNotEmptyException;
-import org.alfresco.jlan.server.filesys.DiskDeviceContext;
-import org.alfresco.jlan.server.filesys.DiskInterface;
-import org.alfresco.jlan.server.filesys.FileAttribute;
-import org.alfresco.jlan.server.filesys.FileInfo;
-import org.alfresco.jlan.server.filesys.FileName;
-import org.alfresco.jlan.server.filesys.FileOpenParams;
-import org.alfresco.jlan.server.filesys.FileStatus;
-import org.alfresco.jlan.server.filesys.FileSystem;
-import org.alfresco.jlan.server.filesys.NetworkFile;
-import org.alfresco.jlan.server.filesys.SearchContext;
-import org.alfresco.jlan.server.filesys.TreeConnection;
-import org.alfresco.jlan.server.filesys.DiskSizeInterface;
-import org.alfresco.jlan.server.filesys.FileType;
-import org.alfresco.jlan.server.filesys.SrvDiskInfo;
-
-public class SurNasDriver implements DiskInterface, DiskSizeInterface {
-
-    public static String poolname;
-
-  
-    static {
-        StorageConfig.initClient();
-        poolname = System.getProperty("com.surfs.nas.mnt.SurfsNasDriver.PoolName", StorageSources.getDefaultStoragePool().getName());
-    }
-
-    @Override
-    public void createDirectory(SrvSession sess, TreeConnection tree, FileOpenParams params) throws IOException {
-        String path = tree.getContext().getDeviceName() + params.getPath();
-        SurFile sf = SurFileFactory.newInstance(path, poolname);
-        int retrytimes = 0;
-        while (true) {
-            try {
-                sf.mkdirs();
-                return;
-            } catch (Exception e) {
-                try {
-                    if (retrytimes++ >= sf.getStoragePool().getClientSourceMgr().getGlobleProperties().getErrRetryTimes()) {
-                        
-                        throw e instanceof IOException ? (IOException) e : new IOException(e);
-                    }
-                    Thread.sleep(sf.getStoragePool().getClientSourceMgr().getGlobleProperties().getReadTimeout() * 1000);
-                } catch (InterruptedException ex) {
-                    
-                    throw e instanceof IOException ? (IOException) e : new IOException(e);
-                }
-            }
-        }
-    }
-
-    @Override
-    public void deleteDirectory(SrvSession sess, TreeConnection tree, String dir) throws IOException {
-        SurFile delDir = SurFileFactory.newInstance(tree.getContext().getDeviceName() + dir, poolname);
-        int retrytimes = 0;
-        while (true) {
-            try {
-                if (delDir.exists() && delDir.isDirectory()) {
-                    if (!delDir.isEmptyDirectory()) {
-                        throw new DirectoryNotEmptyException();
-                    }
-                    delDir.delete();
-                    return;
-                }
-            } catch (DirectoryNotEmptyException e) {
-                throw e;
-            } catch (Exception e) {
-                try {
-                    if (retrytimes++ >= delDir.getStoragePool().getClientSourceMgr().getGlobleProperties().getErrRetryTimes()) {
-                       
-                        throw e instanceof IOException ? (IOException) e : new IOException(e);
-                    }
-                    Thread.sleep(delDir.getStoragePool().getClientSourceMgr().getGlobleProperties().getReadTimeout() * 1000);
-                } catch (InterruptedException ex) {
-                   
-                    throw e instanceof IOException ? (IOException) e : new IOException(e);
-                }
-            }
-        }
-    }
-
-    @Override
-    public void deleteFile(SrvSession sess, TreeConnection tree, String name) throws IOException {
-        SurFile delFile = SurFileFactory.newInstance(tree.getContext().getDeviceName() + name, poolname);
-        int retrytimes = 0;
-        while (true) {
-            try {
-                if (delFile.exists() && delFile.isFile()) {
-                    SurNetworkFile.closeSurNetworkFile(delFile);
-                    delFile.delete();
-                }
-                return;
-            } catch (Exception e) {
-                try {
-                    if (retrytimes++ >= delFile.getStoragePool().getClientSourceMgr().getGlobleProperties().getErrRetryTimes()) {
-                       
-                        throw e instanceof IOException ? (IOException) e : new IOException(e);
-                    }
-                    Thread.sleep(delFile.getStoragePool().getClientSourceMgr().getGlobleProperties().getReadTimeout() * 1000);
-                } catch (InterruptedException ex) {
-                    
-                    throw e instanceof IOException ? (IOException) e : new IOException(e);
-                }
-            }
-        }
-    }
-
-    @Override
-    public int fileExists(SrvSession sess, TreeConnection tree, String name) {
-        try {
-            SurFile chkFile = SurFileFactory.newInstance(tree.getContext().getDeviceName() + name, poolname);
-            if (chkFile.exists()) {
-                if (chkFile.isFile()) {
-                    return FileStatus.FileExists;
-                } else {
-                    return FileStatus.DirectoryExists;
-                }
-            } else {
-                return FileStatus.NotExist;
-            }
-        } catch (IOException ex) {
-            return FileStatus.NotExist;
-        }
-    }
-
-    @Override
-    public void flushFile(SrvSession sess, TreeConnection tree, NetworkFile file) throws IOException {
-        try {
-            file.flushFile();
-        } catch (IOException r) {
-            try {
-                file.closeFile();
-            } catch (Exception e) {
-            }
-            if (r instanceof SessionTimeoutException) {
-                return;
-            }
-            throw r;
-        }
-    }
-
-    @Override
-    public FileInfo getFileInformation(SrvSession sess, TreeConnection tree, String name) throws IOException {
-        try {
-            SurFile file = SurFileFactory.newInstance(tree.getContext().getDeviceName() + name, poolname);
-            if (file.exists()) {
-                if (file.isFile()) {
-                    long flen = file.length();
-                    FileInfo finfo = new FileInfo(file.getName(), flen, 0);
-                    long fdate = file.lastModified();
-                    finfo.setModifyDateTime(fdate);
-                    finfo.setFileId(file.getFileId());
-                    finfo.setCreationDateTime(fdate);
-                    finfo.setChangeDateTime(fdate);
-                    //log.info("getFileInformation[{0}]", new Object[]{finfo.toString()});
-                    return finfo;
-                } else {
-                    int fattr = FileAttribute.Directory;
-                    FileInfo finfo = new FileInfo(file.getName(), 0, fattr);
-                    finfo.setFileType(FileType.Directory);
-                    long fdate = SurFile._globalCreateDate;
-                    finfo.setFileAttributes(fattr);
-                    finfo.setModifyDateTime(fdate);
-                    finfo.setFileId(file.getFileId());
-                    finfo.setCreationDateTime(fdate);
-                    finfo.setChangeDateTime(fdate);
-                    return finfo;
-                }
-            } else {
-                return null;
-            }
-        } catch (ArgumentException ae) {
-            return null;
-        }
-    }
-
-    @Override
-    public boolean isReadOnly(SrvSession sess, DeviceContext ctx) throws IOException {
-        return false;
-    }
-
-    @Override
-    public NetworkFile createFile(SrvSession sess, TreeConnection tree, FileOpenParams params) throws IOException {
-        String path = tree.getContext().getDeviceName() + params.getPath();
-        SurFile sf = SurFileFactory.newInstance(path, poolname);
-        int retrytimes = 0;
-        if (!sf.exists()) {
-            while (true) {
-                try {
-                    SurFile parent = sf.getParentFile();
-                    parent.mkdirs();
-                    sf.createNewFile();
-                    break;
-                } catch (Exception e) {
-                    try {
-                        if (retrytimes++ >= sf.getStoragePool().getClientSourceMgr().getGlobleProperties().getErrRetryTimes()) {
-                           
-                            throw e instanceof IOException ? (IOException) e : new IOException(e);
-                        }
-                        Thread.sleep(sf.getStoragePool().getClientSourceMgr().getGlobleProperties().getCheckSpaceInterval() * 1000);
-
-                    } catch (InterruptedException ex) {
-                  
-                        throw e instanceof IOException ? (IOException) e : new IOException(e);
-                    }
-                }
-            }
-        }
-        SurNetworkFile file = new SurNetworkFile(sf);
-        if (params.isReadOnlyAccess()) {
-            file.setGrantedAccess(NetworkFile.READONLY);
-        } else {
-            file.setGrantedAccess(NetworkFile.READWRITE);
-        }
-        file.setFullName(sf.getPath().substring(tree.getContext().getDeviceName().length()));
-        return file;
-    }
-
-    @Override
-    public NetworkFile openFile(SrvSession sess, TreeConnection tree, FileOpenParams params) throws IOException {
-        String path = tree.getContext().getDeviceName() + params.getPath();
-        SurFile file = SurFileFactory.newInstance(path, poolname);
-        if (!file.exists()) {
-          
-            throw new FileNotFoundException(path);
-        }
-        SurNetworkFile netFile = new SurNetworkFile(file);
-        netFile.setFullName(file.getPath().substring(tree.getContext().getDeviceName().length()));
-        if (params.isReadOnlyAccess()) {
-            netFile.setGrantedAccess(NetworkFile.READONLY);
-        } else {
-            netFile.setGrantedAccess(NetworkFile.READWRITE);
-        }
-        if (file.isDirectory()) {
-            netFile.setAttributes(FileAttribute.Directory);
-        }
-        return netFile;
-    }
-
-    @Override
-    public void closeFile(SrvSession sess, TreeConnection tree, NetworkFile file) throws IOException {
-        file.closeFile();
-        if (file.hasDeleteOnClose()) {
-            if (file.isDirectory()) {
-                deleteDirectory(sess, tree, file.getFullName());
-            } else {
-                deleteFile(sess, tree, file.getFullName());
-            }
-        }
-    }
-
-    @Override
-    public int writeFile(SrvSession sess, TreeConnection tree, NetworkFile file, byte[] buf, int bufoff, int siz, long fileoff) throws IOException {
-        if (file.isDirectory()) {
-            throw new AccessDeniedException();
-        }
-        ((SurDeviceContext) tree.getContext()).getSurfsDiskSize().checkDiskSpace();
-        file.writeFile(buf, siz, bufoff, fileoff);
-        return siz;
-    }
-
-    @Override
-    public int readFile(SrvSession sess, TreeConnection tree, NetworkFile file, byte[] buf, int bufPos, int siz, long filePos) throws IOException {
-        if (file.isDirectory()) {
-            throw new AccessDeniedException();
-        }
-        int rdlen = file.readFile(buf, siz, bufPos, filePos);
-        if (rdlen == -1) {
-            rdlen = 0;
-        }
-        return rdlen;
-    }
-
-    @Override
-    public void renameFile(SrvSession sess, TreeConnection tree, String oldName, String newName) throws IOException {
-        SurFile oldFile = SurFileFactory.newInstance(tree.getContext().getDeviceName() + oldName, poolname);
-        if (!oldFile.exists()) {
-            throw new FileNotFoundException("Rename file, does not exist " + oldName);
-        }
-        SurFile newFile = SurFileFactory.newInstance(tree.getContext().getDeviceName() + newName, poolname);
-        int retrytimes = 0;
-        while (true) {
-            try {
-                if (newFile.exists()) {
-                    SurNetworkFile.closeSurNetworkFile(newFile);
-                    newFile.delete();
-                }
-                SurNetworkFile.closeSurNetworkFile(oldFile);
-                oldFile.renameTo(newFile);
-                return;
-            } catch (Exception e) {
-                try {
-                    if (retrytimes++ >= oldFile.getStoragePool().getClientSourceMgr().getGlobleProperties().getErrRetryTimes()) {
-                       
-                        throw e instanceof IOException ? (IOException) e : new IOException(e);
-                    }
-                    Thread.sleep(oldFile.getStoragePool().getClientSourceMgr().getGlobleProperties().getReadTimeout() * 1000);
-                } catch (InterruptedException ex) {
-                  
-                    throw e instanceof IOException ? (IOException) e : new IOException(e);
-                }
-            }
-        }
-    }
-
-    @Override
-    public long seekFile(SrvSession sess, TreeConnection tree, NetworkFile file, long pos, int typ) throws IOException {
-        return file.seekFile(pos, typ);
-    }
-
-    @Override
-    public void setFileInformation(SrvSession sess, TreeConnection tree, String name, FileInfo info) throws IOException {
-        /*
-         if (info.hasSetFlag(FileInfo.SetModifyDate)) {
-         SurFile file = SurFileFactory.newInstance(tree.getContext().getDeviceName() + name, poolname);
-         if (file.exists()) {
-         if (file.isFile()) {
-         file.getMeta().setLastModified(info.getModifyDateTime());
-         }
-         }
-         }
-         */
-    }
-
-    @Override
-    public SearchContext startSearch(SrvSession sess, TreeConnection tree, String searchPath, int attrib) throws FileNotFoundException {
-        String path = tree.getContext().getDeviceName() + searchPath;
-        String[] paths = FileName.splitPath(path);
-        int retrytimes = 0;
-        while (true) {
-            try {
-                SurFile file = SurFileFactory.newInstance(paths[0], poolname);
-                SurFileSearchContext ctx = new SurFileSearchContext(file, paths[1], attrib);
-                return ctx;
-            } catch (Exception e) {
-                try {
-                    if (retrytimes++ >= StorageSources.getStoragePool(poolname).getClientSourceMgr().getGlobleProperties().getErrRetryTimes()) {
-                     
-                        return null;
-                    }
-                    Thread.sleep(StorageSources.getStoragePool(poolname).getClientSourceMgr().getGlobleProperties().getReadTimeout() * 1000);
-                } catch (IOException ex) {
-                } catch (InterruptedException ex) {
-                    
-                    return null;
-                }
-            }
-        }
-    }
-
-    @Override
-    public void truncateFile(SrvSession sess, TreeConnection tree, NetworkFile file, long siz) throws IOException {
-        file.truncateFile(siz);
-    }
-
-    @Override
-    public DeviceContext createContext(String shareName, ConfigElement args) throws DeviceContextException {
-        SurFile sf;
-        try {
-            sf = SurFileFactory.newInstance(shareName, poolname);
-            if (!(sf.exists() && sf.isDirectory())) {
-                throw new DeviceContextException("");
-            }
-        } catch (IOException ex) {
-            throw new DeviceContextException(ex.getMessage());
-        }
-        SurDeviceContext ctx;
-        try {
-            ctx = new SurDeviceContext(sf);
-        } catch (IOException ex) {
-       
-            throw new DeviceContextException(ex.getMessage());
-        }
-        ctx.open();
-        ctx.setFilesystemAttributes(FileSystem.CasePreservedNames + FileSystem.UnicodeOnDisk);
-        ctx.setFilesystemType(FileSystem.TypeNTFS);
-
-        return ctx;
-    }
-
-    @Override
-    public void treeOpened(SrvSession sess, TreeConnection tree) {
-    }
-
-    @Override
-    public void treeClosed(SrvSession sess, TreeConnection tree) {
-    }
-
-    @Override
-    public void getDiskInformation(DiskDeviceContext ctx, SrvDiskInfo diskDev) throws IOException {
-        SurDeviceContext sctx = (SurDeviceContext) ctx;
-        SurfsDiskSize surfsDiskSize = sctx.getSurfsDiskSize();
-        diskDev.setBlockSize(surfsDiskSize.getBlockSize());
-        diskDev.setBlocksPerAllocationUnit(surfsDiskSize.getBlockPerunit());
-        long free = surfsDiskSize.getFreeUnits();
-        diskDev.setFreeUnits(free < 0 ? 0 : free);
-        diskDev.setTotalUnits(surfsDiskSize.getTotalUnits());
-    }
-}
+/*
+ * Copyright (C) 2016 SurCloud.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ */ 
+package com.surfs.nas.mnt;
+
+import com.surfs.nas.error.ArgumentException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import org.alfresco.config.ConfigElement;
+import org.alfresco.jlan.oncrpc.nfs.NFSSrvSession;
+import org.alfresco.jlan.server.SrvSession;
+import org.alfresco.jlan.server.core.DeviceContext;
+import org.alfresco.jlan.server.core.DeviceContextException;
+import org.alfresco.jlan.server.filesys.AccessDeniedException;
+import org.alfresco.jlan.server.filesys.DiskDeviceContext;
+import org.alfresco.jlan.server.filesys.DiskInterface;
+import org.alfresco.jlan.server.filesys.FileAttribute;
+import org.alfresco.jlan.server.filesys.FileIdInterface;
+import org.alfresco.jlan.server.filesys.FileInfo;
+import org.alfresco.jlan.server.filesys.FileName;
+import org.alfresco.jlan.server.filesys.FileOpenParams;
+import org.alfresco.jlan.server.filesys.FileStatus;
+import org.alfresco.jlan.server.filesys.FileSystem;
+import org.alfresco.jlan.server.filesys.NetworkFile;
+import org.alfresco.jlan.server.filesys.SearchContext;
+import org.alfresco.jlan.server.filesys.TreeConnection;
+import org.alfresco.jlan.server.filesys.DiskSizeInterface;
+import org.alfresco.jlan.server.filesys.FileType;
+import org.alfresco.jlan.server.filesys.SrvDiskInfo;
+import org.alfresco.jlan.util.MemorySize;
+
+public class SurNasDriver implements DiskInterface, DiskSizeInterface, FileIdInterface {
+
+    // Storage backend, created when first used
+    private static volatile SurBackend backend;
+
+    /**
+     * Return the storage backend, the SurFS client unless another backend class
+     * is named by the com.surfs.nas.mnt.SurNasDriver.Backend system property or
+     * set with setBackend()
+     *
+     * @return SurBackend
+     */
+    public static SurBackend getBackend() {
+        SurBackend current = backend;
+        return current != null ? current : createBackend();
+    }
+
+    private static synchronized SurBackend createBackend() {
+        if (backend == null) {
+            String backendClass = System.getProperty("com.surfs.nas.mnt.SurNasDriver.Backend");
+            try {
+                if (backendClass != null && backendClass.length() > 0) {
+                    backend = Class.forName(backendClass).asSubclass(SurBackend.class).newInstance();
+                } else {
+                    backend = new SurClientBackend();
+                }
+            } catch (IOException | ClassNotFoundException | ClassCastException | InstantiationException | IllegalAccessException ex) {
+                throw new IllegalStateException("Failed to create storage backend, " + ex.toString(), ex);
+            }
+        }
+        return backend;
+    }
+
+    /**
+     * Set the storage backend, before any share is created
+     *
+     * @param surBackend SurBackend
+     */
+    public static synchronized void setBackend(SurBackend surBackend) {
+        backend = surBackend;
+    }
+
+    @Override
+    public void createDirectory(SrvSession sess, final TreeConnection tree, FileOpenParams params) throws IOException {
+        final String path = tree.getContext().getDeviceName() + params.getPath();
+        final SurBackendFile sf = getBackend().getFile(path);
+        retryPolicy().execute(new SurRetryPolicy.Operation<Void>() {
+            @Override
+            public Void execute() throws Exception {
+                sf.mkdirs();
+                invalidateCreated(tree, path);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void deleteDirectory(SrvSession sess, final TreeConnection tree, String dir) throws IOException {
+        final String path = tree.getContext().getDeviceName() + dir;
+        final SurBackendFile delDir = getBackend().getFile(path);
+        retryPolicy().execute(new SurRetryPolicy.Operation<Void>() {
+            @Override
+            public Void execute() throws Exception {
+                int fileId = getBackend().deleteIfEmptyDirectory(delDir);
+                if (fileId != -1) {
+                    invalidateTree(tree, path);
+                    removeFileId(tree, fileId);
+                }
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void deleteFile(SrvSession sess, final TreeConnection tree, String name) throws IOException {
+        final String path = tree.getContext().getDeviceName() + name;
+        final SurBackendFile delFile = getBackend().getFile(path);
+        retryPolicy().execute(new SurRetryPolicy.Operation<Void>() {
+            @Override
+            public Void execute() throws Exception {
+                SurNetworkFile.closeSurNetworkFile(delFile);
+                int fileId = getBackend().deleteIfFile(delFile);
+                if (fileId != -1) {
+                    invalidatePath(tree, path);
+                    removeFileId(tree, fileId);
+                }
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public int fileExists(SrvSession sess, TreeConnection tree, String name) {
+        try {
+            SurMetadataCache.Entry meta = getMetadata(tree, tree.getContext().getDeviceName() + name, null);
+            if (meta.exists()) {
+                if (meta.isFile()) {
+                    return FileStatus.FileExists;
+                } else {
+                    return FileStatus.DirectoryExists;
+                }
+            } else {
+                return FileStatus.NotExist;
+            }
+        } catch (IOException ex) {
+            return FileStatus.NotExist;
+        }
+    }
+
+    @Override
+    public void flushFile(SrvSession sess, TreeConnection tree, NetworkFile file) throws IOException {
+
+        // The file stays open and unwritten data stays buffered, the error is returned to the client
+        file.flushFile();
+    }
+
+    @Override
+    public FileInfo getFileInformation(SrvSession sess, TreeConnection tree, String name) throws IOException {
+        try {
+            SurMetadataCache.Entry file = getMetadata(tree, tree.getContext().getDeviceName() + name, null);
+            if (file.exists()) {
+                putFileId(tree, file.getFileId(), name);
+                if (file.isFile()) {
+                    long flen = Math.max(file.length(), SurWriteBuffer.getDirtyEnd(file.getFileId()));
+                    FileInfo finfo = new FileInfo(file.getName(), flen, 0);
+                    long fdate = file.lastModified();
+                    finfo.setModifyDateTime(fdate);
+                    finfo.setFileId(file.getFileId());
+                    finfo.setCreationDateTime(fdate);
+                    finfo.setChangeDateTime(fdate);
+                    //log.info("getFileInformation[{0}]", new Object[]{finfo.toString()});
+                    return finfo;
+                } else {
+                    int fattr = FileAttribute.Directory;
+                    FileInfo finfo = new FileInfo(file.getName(), 0, fattr);
+                    finfo.setFileType(FileType.Directory);
+                    long fdate = file.lastModified();
+                    finfo.setFileAttributes(fattr);
+                    finfo.setModifyDateTime(fdate);
+                    finfo.setFileId(file.getFileId());
+                    finfo.setCreationDateTime(fdate);
+                    finfo.setChangeDateTime(fdate);
+                    return finfo;
+                }
+            } else {
+                return null;
+            }
+        } catch (ArgumentException ae) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean isReadOnly(SrvSession sess, DeviceContext ctx) throws IOException {
+        return false;
+    }
+
+    @Override
+    public NetworkFile createFile(SrvSession sess, final TreeConnection tree, FileOpenParams params) throws IOException {
+        final String path = tree.getContext().getDeviceName() + params.getPath();
+        final SurBackendFile sf = getBackend().getFile(path);
+        SurMetadataCache.Entry meta = getMetadata(tree, path, sf);
+        if (!meta.exists()) {
+            retryPolicy().execute(new SurRetryPolicy.Operation<Void>() {
+                @Override
+                public Void execute() throws Exception {
+                    getBackend().createFile(sf);
+                    invalidateCreated(tree, path);
+                    return null;
+                }
+            });
+        }
+        SurNetworkFile file;
+        if (meta.exists()) {
+            file = new SurNetworkFile(sf, meta.length(), meta.lastModified());
+        } else if (sf.getMeta() != null) {
+
+            // Use the metadata returned by the create
+            file = new SurNetworkFile(sf, sf.getMeta().getLength(), sf.getMeta().getLastModified());
+        } else {
+            file = new SurNetworkFile(sf);
+        }
+        if (params.isReadOnlyAccess()) {
+            file.setGrantedAccess(NetworkFile.READONLY);
+        } else {
+            file.setGrantedAccess(NetworkFile.READWRITE);
+        }
+        file.setWriteThrough(params.isWriteThrough());
+        setMetaTimeout(tree, file);
+        file.setFullName(sf.getPath().substring(tree.getContext().getDeviceName().length()));
+        putFileId(tree, file.getFileId(), params.getPath());
+        return file;
+    }
+
+    @Override
+    public NetworkFile openFile(SrvSession sess, TreeConnection tree, FileOpenParams params) throws IOException {
+        String path = tree.getContext().getDeviceName() + params.getPath();
+        SurBackendFile file = getBackend().getFile(path);
+        SurMetadataCache.Entry meta = getMetadata(tree, path, file);
+        if (!meta.exists()) {
+          
+            throw new FileNotFoundException(path);
+        }
+        SurNetworkFile netFile = new SurNetworkFile(file, meta.length(), meta.lastModified());
+        netFile.setFullName(file.getPath().substring(tree.getContext().getDeviceName().length()));
+        putFileId(tree, meta.getFileId(), params.getPath());
+        if (params.isReadOnlyAccess()) {
+            netFile.setGrantedAccess(NetworkFile.READONLY);
+        } else {
+            netFile.setGrantedAccess(NetworkFile.READWRITE);
+        }
+        netFile.setWriteThrough(params.isWriteThrough());
+        setMetaTimeout(tree, netFile);
+        if (meta.isDirectory()) {
+            netFile.setAttributes(FileAttribute.Directory);
+        }
+        return netFile;
+    }
+
+    @Override
+    public void closeFile(SrvSession sess, TreeConnection tree, NetworkFile file) throws IOException {
+        file.closeFile();
+        if (file.getWriteCount() > 0) {
+            invalidatePath(tree, tree.getContext().getDeviceName() + file.getFullName());
+        }
+        if (file.hasDeleteOnClose()) {
+            if (file.isDirectory()) {
+                deleteDirectory(sess, tree, file.getFullName());
+            } else {
+                deleteFile(sess, tree, file.getFullName());
+            }
+        }
+    }
+
+    @Override
+    public int writeFile(SrvSession sess, TreeConnection tree, NetworkFile file, byte[] buf, int bufoff, int siz, long fileoff) throws IOException {
+        if (file.isDirectory()) {
+            throw new AccessDeniedException();
+        }
+        SurDeviceContext ctx = (SurDeviceContext) tree.getContext();
+        ctx.touch();
+        ctx.reserveSpace(siz);
+        if (file.getWriteCount() == 0) {
+            invalidatePath(tree, tree.getContext().getDeviceName() + file.getFullName());
+        }
+        file.writeFile(buf, siz, bufoff, fileoff);
+        return siz;
+    }
+
+    @Override
+    public int readFile(SrvSession sess, TreeConnection tree, NetworkFile file, byte[] buf, int bufPos, int siz, long filePos) throws IOException {
+        if (file.isDirectory()) {
+            throw new AccessDeniedException();
+        }
+        ((SurDeviceContext) tree.getContext()).touch();
+        int rdlen = file.readFile(buf, siz, bufPos, filePos);
+        if (rdlen == -1) {
+            rdlen = 0;
+        }
+        return rdlen;
+    }
+
+    @Override
+    public void renameFile(SrvSession sess, final TreeConnection tree, String oldName, final String newName) throws IOException {
+        final String oldPath = tree.getContext().getDeviceName() + oldName;
+        final SurBackendFile oldFile = getBackend().getFile(oldPath);
+        final String newPath = tree.getContext().getDeviceName() + newName;
+        final SurBackendFile newFile = getBackend().getFile(newPath);
+        retryPolicy().execute(new SurRetryPolicy.Operation<Void>() {
+            @Override
+            public Void execute() throws Exception {
+                SurNetworkFile.closeSurNetworkFile(newFile);
+                SurNetworkFile.closeSurNetworkFile(oldFile);
+                int fileId;
+                try {
+                    fileId = getBackend().renameReplace(oldFile, newFile);
+                } finally {
+                    invalidateTree(tree, oldPath);
+                    invalidateTree(tree, newPath);
+                }
+
+                // Paths recorded below a renamed directory are found to be stale when used
+                putFileId(tree, fileId, newName);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public long seekFile(SrvSession sess, TreeConnection tree, NetworkFile file, long pos, int typ) throws IOException {
+        return file.seekFile(pos, typ);
+    }
+
+    @Override
+    public void setFileInformation(SrvSession sess, TreeConnection tree, String name, FileInfo info) throws IOException {
+        /*
+         if (info.hasSetFlag(FileInfo.SetModifyDate)) {
+         SurFile file = SurFileFactory.newInstance(tree.getContext().getDeviceName() + name, poolname);
+         if (file.exists()) {
+         if (file.isFile()) {
+         file.getMeta().setLastModified(info.getModifyDateTime());
+         }
+         }
+         }
+         */
+    }
+
+    @Override
+    public SearchContext startSearch(SrvSession sess, TreeConnection tree, String searchPath, final int attrib) throws FileNotFoundException {
+        String path = tree.getContext().getDeviceName() + searchPath;
+        final String[] paths = FileName.splitPath(path);
+        final SurDeviceContext ctx = (SurDeviceContext) tree.getContext();
+        ctx.touch();
+        try {
+            return retryPolicy().execute(new SurRetryPolicy.Operation<SearchContext>() {
+                @Override
+                public SearchContext execute() throws Exception {
+                    SurBackendFile file = getBackend().getFile(paths[0]);
+                    SurFileSearchContext search = new SurFileSearchContext(file, paths[1], attrib, ctx.createDirectoryReader(),
+                            ctx.getSearchPageSize(), ctx.getMetadataCache(), paths[0]);
+                    if (ctx.getFileIdMap() != null) {
+                        search.setFileIdMap(ctx.getFileIdMap(), paths[0].substring(ctx.getDeviceName().length()));
+                    }
+                    return search;
+                }
+            });
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    @Override
+    public void truncateFile(SrvSession sess, TreeConnection tree, NetworkFile file, long siz) throws IOException {
+        file.truncateFile(siz);
+        invalidatePath(tree, tree.getContext().getDeviceName() + file.getFullName());
+    }
+
+    @Override
+    public DeviceContext createContext(String shareName, ConfigElement args) throws DeviceContextException {
+        SurBackendFile sf;
+        try {
+            sf = getBackend().getFile(shareName);
+            if (!(sf.exists() && sf.isDirectory())) {
+                throw new DeviceContextException("");
+            }
+        } catch (IOException ex) {
+            throw new DeviceContextException(ex.getMessage());
+        }
+        SurDeviceContext ctx;
+        try {
+            ctx = new SurDeviceContext(sf);
+        } catch (IOException ex) {
+       
+            throw new DeviceContextException(ex.getMessage());
+        }
+        ctx.setMetadataCache(createMetadataCache(args));
+        configureBlockCache(args);
+        configureWriteBuffer(args);
+        configureSearch(ctx, args);
+        configureFileIds(ctx, shareName, sf, args);
+        configureSpaceLease(ctx, args);
+        ctx.open();
+        ctx.setFilesystemAttributes(FileSystem.CasePreservedNames + FileSystem.UnicodeOnDisk);
+        ctx.setFilesystemType(FileSystem.TypeNTFS);
+
+        return ctx;
+    }
+
+    /**
+     * Create the metadata cache for a share from the optional metadataCache
+     * element of the driver configuration. The timeout and negativeTimeout
+     * attributes are in milliseconds, a timeout of zero disables the cache. The
+     * channel attribute names the SurMetadataChannel class used to keep the
+     * caches on the gateway nodes coherent.
+     *
+     * @param args ConfigElement
+     * @return SurMetadataCache, or null if disabled
+     * @throws DeviceContextException
+     */
+    private SurMetadataCache createMetadataCache(ConfigElement args) throws DeviceContextException {
+        long timeout = SurMetadataCache.DefaultTimeout;
+        long negativeTimeout = SurMetadataCache.DefaultNegativeTimeout;
+        int maxEntries = SurMetadataCache.DefaultMaximumEntries;
+        String channelClass = null;
+        ConfigElement elem = args != null ? args.getChild("metadataCache") : null;
+        if (elem != null) {
+            try {
+                if (elem.getAttribute("timeout") != null) {
+                    timeout = Long.parseLong(elem.getAttribute("timeout"));
+                }
+                if (elem.getAttribute("negativeTimeout") != null) {
+                    negativeTimeout = Long.parseLong(elem.getAttribute("negativeTimeout"));
+                }
+                if (elem.getAttribute("maxEntries") != null) {
+                    maxEntries = Integer.parseInt(elem.getAttribute("maxEntries"));
+                }
+            } catch (NumberFormatException ex) {
+                throw new DeviceContextException("Invalid metadata cache setting, " + ex.getMessage());
+            }
+            channelClass = elem.getAttribute("channel");
+        }
+        if (timeout <= 0) {
+            return null;
+        }
+        SurMetadataChannel channel;
+        if (channelClass != null && channelClass.length() > 0) {
+            try {
+                Object obj = Class.forName(channelClass).newInstance();
+                if (!(obj instanceof SurMetadataChannel)) {
+                    throw new DeviceContextException("Metadata channel class is not a SurMetadataChannel, " + channelClass);
+                }
+                channel = (SurMetadataChannel) obj;
+            } catch (ClassNotFoundException | InstantiationException | IllegalAccessException ex) {
+                throw new DeviceContextException("Failed to create metadata channel " + channelClass + ", " + ex.toString());
+            }
+        } else {
+            channel = new SurLocalMetadataChannel();
+        }
+        SurMetadataCache cache = new SurMetadataCache(timeout, negativeTimeout, maxEntries);
+        cache.setChannel(channel);
+        return cache;
+    }
+
+    /**
+     * Configure the gateway wide block read cache from the optional blockCache
+     * element of the driver configuration. The memorySize and blockSize
+     * attributes accept memory size values such as 64M, a memorySize of zero
+     * disables the cache. The diskPath and diskSize attributes add a tier on
+     * local disk for blocks evicted from memory. The cache is shared by all
+     * shares, the first share to be created sets its size.
+     *
+     * @param args ConfigElement
+     * @throws DeviceContextException
+     */
+    private void configureBlockCache(ConfigElement args) throws DeviceContextException {
+        long memorySize = SurBlockCache.DefaultMemorySize;
+        int blockSize = SurBlockCache.DefaultBlockSize;
+        String diskPath = null;
+        long diskSize = 0L;
+        ConfigElement elem = args != null ? args.getChild("blockCache") : null;
+        if (elem != null) {
+            try {
+                if (elem.getAttribute("memorySize") != null) {
+                    memorySize = MemorySize.getByteValue(elem.getAttribute("memorySize"));
+                }
+                if (elem.getAttribute("blockSize") != null) {
+                    blockSize = MemorySize.getByteValueInt(elem.getAttribute("blockSize"));
+                }
+                diskPath = elem.getAttribute("diskPath");
+                if (elem.getAttribute("diskSize") != null) {
+                    diskSize = MemorySize.getByteValue(elem.getAttribute("diskSize"));
+                }
+            } catch (NumberFormatException ex) {
+                throw new DeviceContextException("Invalid block cache setting, " + ex.getMessage());
+            }
+        }
+        try {
+            SurBlockCache.configure(memorySize, blockSize, diskPath, diskSize);
+        } catch (IOException ex) {
+            throw new DeviceContextException("Failed to create block cache, " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Configure write back buffering from the optional writeBuffer element of
+     * the driver configuration. The maxBuffer attribute is the per file buffer
+     * size, flushDelay the maximum time in milliseconds data is held before it
+     * is written, and dirtyLimit the limit on buffered data for the gateway.
+     * Write back is disabled if the element is not present or maxBuffer is
+     * zero.
+     *
+     * @param args ConfigElement
+     * @throws DeviceContextException
+     */
+    private void configureWriteBuffer(ConfigElement args) throws DeviceContextException {
+        ConfigElement elem = args != null ? args.getChild("writeBuffer") : null;
+        if (elem == null) {
+            return;
+        }
+        int maxBuffer = SurWriteBuffer.DefaultMaximumBuffer;
+        long flushDelay = SurWriteBuffer.DefaultFlushDelay;
+        long dirtyLimit = SurWriteBuffer.DefaultDirtyLimit;
+        try {
+            if (elem.getAttribute("maxBuffer") != null) {
+                maxBuffer = MemorySize.getByteValueInt(elem.getAttribute("maxBuffer"));
+            }
+            if (elem.getAttribute("flushDelay") != null) {
+                flushDelay = Long.parseLong(elem.getAttribute("flushDelay"));
+            }
+            if (elem.getAttribute("dirtyLimit") != null) {
+                dirtyLimit = MemorySize.getByteValue(elem.getAttribute("dirtyLimit"));
+            }
+        } catch (NumberFormatException ex) {
+            throw new DeviceContextException("Invalid write buffer setting, " + ex.getMessage());
+        }
+        SurWriteBuffer.configure(maxBuffer, flushDelay, dirtyLimit);
+    }
+
+    /**
+     * Configure directory searches from the optional search element of the
+     * driver configuration. The pageSize attribute sets the number of entries
+     * read from SurFS at a time, the reader attribute names a
+     * SurDirectoryReader class for SurFS clients with a paged listing.
+     *
+     * @param ctx SurDeviceContext
+     * @param args ConfigElement
+     * @throws DeviceContextException
+     */
+    private void configureSearch(SurDeviceContext ctx, ConfigElement args) throws DeviceContextException {
+        ConfigElement elem = args != null ? args.getChild("search") : null;
+        if (elem == null) {
+            return;
+        }
+        if (elem.getAttribute("pageSize") != null) {
+            try {
+                ctx.setSearchPageSize(Integer.parseInt(elem.getAttribute("pageSize")));
+            } catch (NumberFormatException ex) {
+                throw new DeviceContextException("Invalid search page size, " + elem.getAttribute("pageSize"));
+            }
+        }
+        String readerClass = elem.getAttribute("reader");
+        if (readerClass != null && readerClass.length() > 0) {
+            try {
+                ctx.setSearchReaderClass(Class.forName(readerClass).asSubclass(SurDirectoryReader.class));
+            } catch (ClassNotFoundException | ClassCastException ex) {
+                throw new DeviceContextException("Invalid directory reader class " + readerClass + ", " + ex.toString());
+            }
+        }
+    }
+
+    /**
+     * Create the file id map of a share from the optional fileIds element of
+     * the driver configuration. The maxEntries attribute sets the size of the
+     * map, zero disables it and NFS handles are then only resolved by the NFS
+     * server's own cache. If the saveDirectory attribute is set the map is
+     * saved there, in a file per share, so handles survive a restart.
+     *
+     * @param ctx SurDeviceContext
+     * @param shareName String
+     * @param root SurBackendFile
+     * @param args ConfigElement
+     * @throws DeviceContextException
+     */
+    private void configureFileIds(SurDeviceContext ctx, String shareName, SurBackendFile root, ConfigElement args)
+            throws DeviceContextException {
+        int maxEntries = SurFileIdMap.DefaultMaximumEntries;
+        File saveFile = null;
+        ConfigElement elem = args != null ? args.getChild("fileIds") : null;
+        if (elem != null) {
+            if (elem.getAttribute("maxEntries") != null) {
+                try {
+                    maxEntries = Integer.parseInt(elem.getAttribute("maxEntries"));
+                } catch (NumberFormatException ex) {
+                    throw new DeviceContextException("Invalid file id map size, " + elem.getAttribute("maxEntries"));
+                }
+            }
+            String dir = elem.getAttribute("saveDirectory");
+            if (dir != null && dir.length() > 0) {
+                File saveDir = new File(dir);
+                if (!saveDir.isDirectory() && !saveDir.mkdirs()) {
+                    throw new DeviceContextException("File id map directory not available, " + dir);
+                }
+                saveFile = new File(saveDir, shareName.replace('/', '_').replace('\\', '_') + ".ids");
+            }
+        }
+        ctx.setRootFileId(root.getFileId());
+        if (maxEntries > 0) {
+            ctx.setFileIdMap(new SurFileIdMap(maxEntries, saveFile));
+        }
+    }
+
+    /**
+     * Configure the disk space leased to the writers of a share from the
+     * optional spaceLease element of the driver configuration. The size
+     * attribute sets the lease size, zero checks the disk space on every
+     * write.
+     *
+     * @param ctx SurDeviceContext
+     * @param args ConfigElement
+     * @throws DeviceContextException
+     */
+    private void configureSpaceLease(SurDeviceContext ctx, ConfigElement args) throws DeviceContextException {
+        ConfigElement elem = args != null ? args.getChild("spaceLease") : null;
+        if (elem == null || elem.getAttribute("size") == null) {
+            return;
+        }
+        try {
+            ctx.getSpaceLease().setLeaseSize(MemorySize.getByteValue(elem.getAttribute("size")));
+        } catch (NumberFormatException ex) {
+            throw new DeviceContextException("Invalid space lease size, " + elem.getAttribute("size"));
+        }
+    }
+
+    /**
+     * Validate the cached blocks of a file against metadata no older than the
+     * share metadata cache entries
+     *
+     * @param tree TreeConnection
+     * @param file SurNetworkFile
+     */
+    private static void setMetaTimeout(TreeConnection tree, SurNetworkFile file) {
+        SurMetadataCache cache = ((SurDeviceContext) tree.getContext()).getMetadataCache();
+        if (cache != null) {
+            file.setMetaTimeout(cache.getTimeout());
+        }
+    }
+
+    /**
+     * Return the metadata for a path, from the share metadata cache if enabled
+     *
+     * @param tree TreeConnection
+     * @param path String
+     * @param sf SurBackendFile for the path, or null to create it if required
+     * @return SurMetadataCache.Entry
+     * @throws IOException
+     */
+    private static SurMetadataCache.Entry getMetadata(TreeConnection tree, String path, SurBackendFile sf) throws IOException {
+        SurDeviceContext ctx = (SurDeviceContext) tree.getContext();
+        ctx.touch();
+        SurMetadataCache cache = ctx.getMetadataCache();
+        if (cache != null) {
+            return cache.lookup(path, sf);
+        }
+        return SurMetadataCache.loadEntry(sf != null ? sf : getBackend().getFile(path));
+    }
+
+    /**
+     * Return the retry policy for the storage pool
+     *
+     * @return SurRetryPolicy
+     */
+    private static SurRetryPolicy retryPolicy() {
+        return SurRetryPolicy.getPolicy(getBackend().getName());
+    }
+
+    private static void putFileId(TreeConnection tree, int fileId, String name) {
+        SurFileIdMap ids = ((SurDeviceContext) tree.getContext()).getFileIdMap();
+        if (ids != null) {
+            ids.put(fileId, name);
+        }
+    }
+
+    private static void removeFileId(TreeConnection tree, int fileId) {
+        SurFileIdMap ids = ((SurDeviceContext) tree.getContext()).getFileIdMap();
+        if (ids != null) {
+            ids.remove(fileId);
+        }
+    }
+
+    @Override
+    public String buildPathForFileId(SrvSession sess, TreeConnection tree, int dirid, int fileid) throws FileNotFoundException {
+        try {
+            String path = resolveFileId(tree, fileid);
+            if (path == null && dirid != -1) {
+
+                // Look for the file in its parent directory, the handle holds the directory id
+                String dir = resolveFileId(tree, dirid);
+                if (dir != null) {
+                    path = findFileId(tree, dir, fileid);
+                }
+            }
+            if (path != null) {
+                return path;
+            }
+        } catch (IOException ex) {
+        }
+        throw new FileNotFoundException("File id " + fileid);
+    }
+
+    /**
+     * Resolve a file id from the file id map or the backend, checking the
+     * path still has the file id
+     *
+     * @param tree TreeConnection
+     * @param fileId int
+     * @return String, share relative path, or null if not known
+     * @throws IOException
+     */
+    private static String resolveFileId(TreeConnection tree, int fileId) throws IOException {
+        SurDeviceContext ctx = (SurDeviceContext) tree.getContext();
+        if (fileId == 0 || fileId == ctx.getRootFileId()) {
+            return "\\";
+        }
+        SurFileIdMap ids = ctx.getFileIdMap();
+        String path = ids != null ? ids.get(fileId) : null;
+        if (path != null) {
+            if (hasFileId(tree, path, fileId)) {
+                return path;
+            }
+            ids.remove(fileId);
+        }
+        String devName = ctx.getDeviceName();
+        String fullPath = getBackend().getPathForFileId(fileId);
+        if (fullPath != null && fullPath.length() > devName.length() && fullPath.startsWith(devName)) {
+            path = fullPath.substring(devName.length()).replace('/', '\\');
+            if (hasFileId(tree, path, fileId)) {
+                putFileId(tree, fileId, path);
+                return path;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Search a directory for a file id, recording the ids of all its entries
+     *
+     * @param tree TreeConnection
+     * @param dir String, share relative directory path
+     * @param fileId int
+     * @return String, share relative path, or null if not found
+     * @throws IOException
+     */
+    private static String findFileId(TreeConnection tree, String dir, int fileId) throws IOException {
+        SurBackendFile[] list = getBackend().getFile(tree.getContext().getDeviceName() + dir).listFiles();
+        if (list == null) {
+            return null;
+        }
+        String prefix = dir.endsWith("\\") ? dir : dir + "\\";
+        String found = null;
+        for (SurBackendFile file : list) {
+            if (file != null) {
+                String path = prefix + file.getName();
+                putFileId(tree, file.getFileId(), path);
+                if (file.getFileId() == fileId) {
+                    found = path;
+                }
+            }
+        }
+        return found;
+    }
+
+    private static boolean hasFileId(TreeConnection tree, String path, int fileId) throws IOException {
+        SurMetadataCache.Entry meta = getMetadata(tree, tree.getContext().getDeviceName() + path, null);
+        return meta.exists() && meta.getFileId() == fileId;
+    }
+
+    private static void invalidatePath(TreeConnection tree, String path) {
+        SurMetadataCache cache = ((SurDeviceContext) tree.getContext()).getMetadataCache();
+        if (cache != null) {
+            cache.invalidate(path);
+        }
+    }
+
+    private static void invalidateTree(TreeConnection tree, String path) {
+        SurMetadataCache cache = ((SurDeviceContext) tree.getContext()).getMetadataCache();
+        if (cache != null) {
+            cache.invalidateTree(path);
+        }
+    }
+
+    private static void invalidateCreated(TreeConnection tree, String path) {
+        SurMetadataCache cache = ((SurDeviceContext) tree.getContext()).getMetadataCache();
+        if (cache != null) {
+            cache.invalidateCreated(path);
+        }
+    }
+
+    @Override
+    public void treeOpened(SrvSession sess, TreeConnection tree) {
+        SurDeviceContext ctx = (SurDeviceContext) tree.getContext();
+        if (sess instanceof NFSSrvSession) {
+            ctx.setNFSExported();
+        }
+        ctx.treeOpened();
+    }
+
+    @Override
+    public void treeClosed(SrvSession sess, TreeConnection tree) {
+        ((SurDeviceContext) tree.getContext()).treeClosed();
+    }
+
+    @Override
+    public void getDiskInformation(DiskDeviceContext ctx, SrvDiskInfo diskDev) throws IOException {
+        SurDeviceContext sctx = (SurDeviceContext) ctx;
+        sctx.touch();
+        SurBackendDiskSize surfsDiskSize = sctx.getSurfsDiskSize();
+        diskDev.setBlockSize(surfsDiskSize.getBlockSize());
+        diskDev.setBlocksPerAllocationUnit(surfsDiskSize.getBlockPerunit());
+        long free = surfsDiskSize.getFreeUnits();
+        diskDev.setFreeUnits(free < 0 ? 0 : free);
+        diskDev.setTotalUnits(surfsDiskSize.getTotalUnits());
+    }
+}
@@ -1,159 +1,344 @@
-/*
- * Copyright (C) 2016 SurCloud.
- *
- * This program is free software; you can redistribute it and/or
- * modify it under the terms of the GNU General Public License
- * as published by the Free Software Foundation; either version 2
- * of the License, or (at your option) any later version.
- *
- * This program is distributed in the hope that it will be useful,
- * but WITHOUT ANY WARRANTY; without even the implied warranty of
- * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
- * GNU General Public License for more details.
- *
- * You should have received a copy of the GNU General Public License
- * along with this program; if not, write to the Free Software
- * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
- *
- * http://www.gnu.org/licenses/licenses.html
- */ 
-package com.surfs.nas.mnt;
-
-import com.surfs.nas.client.NasRandomAccessor;
-import com.surfs.nas.client.SurFile;
-import java.io.IOException;
-import java.util.Map;
-import org.alfresco.jlan.server.filesys.FileInfo;
-import org.alfresco.jlan.server.filesys.NetworkFile;
-
-public class SurNetworkFile extends NetworkFile {
-
-
-    private static final Map<String, SurNetworkFile> fileChache = new java.util.concurrent.ConcurrentHashMap<>();
-
-    public static SurNetworkFile getSurNetworkFile(String path) {
-        return fileChache.get(path);
-    }
-
-    public static SurNetworkFile closeSurNetworkFile(SurFile surfile) {
-        SurNetworkFile snf = fileChache.get(surfile.getPath());
-        if (snf != null) {
-            try {
-                snf.closeFile();
-                snf.needUpdate = true;
-            } catch (IOException ex) {
-            }
-        }
-        return snf;
-    }
-
-    private final SurFile m_file;
-    private NasRandomAccessor m_io = null;
-    private final FileInfo finfo;
-
-    public SurNetworkFile(SurFile surfile) throws IOException {
-        super(surfile.getName());
-        this.m_file = surfile;
-        long flen = m_file.length();
-        setFileSize(flen);
-        long modDate = m_file.lastModified();
-        setModifyDate(modDate);
-        setCreationDate(modDate);
-        setFileId(surfile.getFileId());
-        finfo = new FileInfo(surfile.getName(), flen, 0);
-        finfo.setModifyDateTime(modDate);
-        finfo.setFileId(this.getFileId());
-        finfo.setCreationDateTime(modDate);
-        finfo.setChangeDateTime(modDate);
-    }
-
-    @Override
-    public FileInfo getFileInformation() {
-        return finfo;
-    }
-
-    private boolean needUpdate = false;
-
-    @Override
-    public void openFile(boolean createFlag) throws IOException {
-        synchronized (m_file) {
-            if (m_io == null) {
-                if (needUpdate) {
-                    m_file.queryMeta(true);
-                    needUpdate = false;
-                }
-                m_io = new NasRandomAccessor(m_file);
-                fileChache.put(m_file.getPath(), this);
-                setClosed(false);
-                //setFileId(m_file.getFileId());
-                //finfo.setFileId(this.getFileId());
-                if (m_file.getMeta() != null) {
-                    finfo.setFileSize(m_file.getMeta().getLength());
-                    this.setFileSize(m_file.getMeta().getLength());
-                    finfo.setModifyDateTime(m_file.getMeta().getLastModified());
-                    this.setModifyDate(m_file.getMeta().getLastModified());
-                }
-               
-            }
-        }
-    }
-
-    /**
-     *
-     * @throws IOException
-     */
-    @Override
-    public void closeFile() throws IOException {
-        synchronized (m_file) {
-            if (m_io != null) {
-                fileChache.remove(m_file.getPath());
-                m_io.close();
-                m_io = null;
-
-                setClosed(true);
-            }
-        }
-    }
-
-    @Override
-    public void flushFile() throws IOException {
-    }
-
-    @Override
-    public int readFile(byte[] buf, int len, int pos, long fileOff) throws IOException {
-        openFile(false);
-        return m_io.read(buf, pos, len, fileOff);
-    }
-
-    @Override
-    public void writeFile(byte[] buf, int len, int pos, long fileOff) throws IOException {
-        openFile(false);
-        m_io.write(buf, pos, len, fileOff);
-        if (m_file.getMeta() != null) {
-            finfo.setFileSize(m_file.getMeta().getLength());
-            this.setFileSize(m_file.getMeta().getLength());
-            finfo.setModifyDateTime(m_file.getMeta().getLastModified());
-            this.setModifyDate(m_file.getMeta().getLastModified());
-        }
-        incrementWriteCount();
-    }
-
-    @Override
-    public void truncateFile(long siz) throws IOException {
-        openFile(false);
-        if (siz != m_file.getMeta().getLength()) {
-            m_io.setLength(siz);
-            if (m_file.getMeta() != null) {
-                finfo.setFileSize(m_file.getMeta().getLength());
-                this.setFileSize(m_file.getMeta().getLength());
-                finfo.setModifyDateTime(m_file.getMeta().getLastModified());
-                this.setModifyDate(m_file.getMeta().getLastModified());
-            }
-        }
-    }
-
-    @Override
-    public long seekFile(long pos, int typ) throws IOException {
-        throw new UnsupportedOperationException("Not supported yet.");
-    }
-}
+/*
+ * Copyright (C) 2016 SurCloud.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ */ 
+package com.surfs.nas.mnt;
+
+import java.io.IOException;
+import org.alfresco.jlan.server.filesys.FileInfo;
+import org.alfresco.jlan.server.filesys.NetworkFile;
+
+public class SurNetworkFile extends NetworkFile {
+
+
+    public static SurNetworkFile getSurNetworkFile(String path) {
+        return SurOpenFileTable.getOpenFile(path);
+    }
+
+    /**
+     * Close the shared accessor of a path that is being deleted or renamed,
+     * the files open on the path reopen it with fresh metadata when next used
+     *
+     * @param surfile SurBackendFile
+     */
+    public static void closeSurNetworkFile(SurBackendFile surfile) {
+        SurOpenFileTable.invalidate(surfile.getPath());
+    }
+
+    private final SurBackendFile m_file;
+    private SurBackendAccessor m_io = null;
+    private final FileInfo finfo;
+
+    // Accessor shared with the other files open on the same path
+    private SurOpenFileTable.SharedFile m_shared;
+
+    // Write back buffer, created by the first write if write back is enabled
+    private SurWriteBuffer m_writeBuffer;
+
+    // Maximum age of the metadata used to validate cached blocks, in milliseconds
+    private long m_metaTimeout = SurMetadataCache.DefaultTimeout;
+
+    public SurNetworkFile(SurBackendFile surfile) throws IOException {
+        this(surfile, surfile.length(), surfile.lastModified());
+    }
+
+    /**
+     * Create a network file using metadata that has already been read
+     *
+     * @param surfile SurBackendFile
+     * @param flen long
+     * @param modDate long
+     */
+    public SurNetworkFile(SurBackendFile surfile, long flen, long modDate) {
+        super(surfile.getName());
+        this.m_file = surfile;
+        setFileSize(flen);
+        setModifyDate(modDate);
+        setCreationDate(modDate);
+        setFileId(surfile.getFileId());
+        finfo = new FileInfo(surfile.getName(), flen, 0);
+        finfo.setModifyDateTime(modDate);
+        finfo.setFileId(this.getFileId());
+        finfo.setCreationDateTime(modDate);
+        finfo.setChangeDateTime(modDate);
+    }
+
+    @Override
+    public FileInfo getFileInformation() {
+        return finfo;
+    }
+
+    @Override
+    public void openFile(boolean createFlag) throws IOException {
+        synchronized (m_file) {
+            if (m_shared == null || m_shared.isClosed()) {
+
+                // Reload the metadata if the previous accessor was closed by a delete or rename
+                m_shared = SurOpenFileTable.acquire(this, m_file, m_shared != null);
+                m_io = m_shared.getAccessor();
+                setClosed(false);
+                //setFileId(m_file.getFileId());
+                //finfo.setFileId(this.getFileId());
+                SurBackendFile.Meta meta = m_shared.getFile().getMeta();
+                if (meta != null) {
+                    finfo.setFileSize(meta.getLength());
+                    this.setFileSize(meta.getLength());
+                    finfo.setModifyDateTime(meta.getLastModified());
+                    this.setModifyDate(meta.getLastModified());
+                }
+               
+            }
+        }
+    }
+
+    /**
+     * @return the metadata of the shared accessor, or null
+     */
+    private SurBackendFile.Meta getMeta() {
+        SurOpenFileTable.SharedFile shared = m_shared;
+        return shared != null ? shared.getFile().getMeta() : m_file.getMeta();
+    }
+
+    /**
+     *
+     * @throws IOException
+     */
+    @Override
+    public void closeFile() throws IOException {
+
+        // Write any buffered data before closing, the buffer is dropped even if the write fails
+        SurWriteBuffer wbuf = m_writeBuffer;
+        try {
+            if (wbuf != null) {
+                wbuf.flush();
+            }
+        } finally {
+            if (wbuf != null) {
+                wbuf.discard();
+            }
+            synchronized (m_file) {
+                if (m_shared != null) {
+                    SurOpenFileTable.SharedFile shared = m_shared;
+                    m_shared = null;
+                    m_io = null;
+                    setClosed(true);
+                    SurOpenFileTable.release(shared, this);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void flushFile() throws IOException {
+        SurWriteBuffer wbuf = m_writeBuffer;
+        if (wbuf != null) {
+            wbuf.flush();
+        }
+    }
+
+    /**
+     * Set the maximum age of the metadata used to validate cached blocks
+     *
+     * @param timeout long, in milliseconds
+     */
+    public void setMetaTimeout(long timeout) {
+        m_metaTimeout = timeout;
+    }
+
+    @Override
+    public boolean hasBufferedWrites() {
+        SurWriteBuffer wbuf = m_writeBuffer;
+        return wbuf != null && wbuf.isDirty();
+    }
+
+    @Override
+    public int readFile(byte[] buf, int len, int pos, long fileOff) throws IOException {
+        SurWriteBuffer.flushOverlapping(getFileId(), fileOff, len);
+        openFile(false);
+        SurBlockCache cache = SurBlockCache.getInstance();
+
+        // Use the current length of the shared accessor, another handle may have extended the file.
+        // Cached blocks are only trusted against metadata recently read from SurFS.
+        SurOpenFileTable.SharedFile shared = m_shared;
+        if (cache != null && shared != null) {
+            SurOpenFileTable.refreshMeta(shared, m_metaTimeout);
+        }
+        SurBackendFile.Meta meta = getMeta();
+        long flen = meta != null ? meta.getLength() : getFileSize();
+        if (cache == null || fileOff >= flen) {
+            return m_io.read(buf, pos, len, fileOff);
+        }
+
+        // Read through the block cache, loading missing blocks from SurFS
+        long modDate = meta != null ? meta.getLastModified() : getModifyDate();
+        int bsize = cache.getBlockSize();
+        long end = Math.min(fileOff + len, flen);
+        long off = fileOff;
+        int total = 0;
+        byte[] blockBuf = null;
+        while (off < end) {
+            long block = off / bsize;
+            int blockOff = (int) (off - block * bsize);
+            int cnt = (int) Math.min(end - off, bsize - blockOff);
+            int rdlen = cache.read(getFileId(), block, flen, modDate, buf, pos + total, blockOff, cnt);
+            if (rdlen < 0) {
+                if (blockBuf == null) {
+                    blockBuf = new byte[bsize];
+                }
+                long gen = cache.getGeneration(getFileId());
+                int blen = (int) Math.min(bsize, flen - block * bsize);
+                int n = readBlock(blockBuf, blen, block * bsize);
+                if (n == blen) {
+                    cache.put(getFileId(), block, flen, modDate, blockBuf, n, gen);
+                }
+                rdlen = Math.max(0, Math.min(cnt, n - blockOff));
+                System.arraycopy(blockBuf, blockOff, buf, pos + total, rdlen);
+            }
+            if (rdlen <= 0) {
+                break;
+            }
+            total += rdlen;
+            off += rdlen;
+        }
+
+        // Pass any part of the read beyond the known length straight to SurFS
+        if (off == end && total < len) {
+            int n = m_io.read(buf, pos + total, len - total, off);
+            if (n > 0) {
+                total += n;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Read a whole block from SurFS
+     *
+     * @param buf byte[]
+     * @param len int
+     * @param fileOff long
+     * @return int, bytes read
+     * @throws IOException
+     */
+    private int readBlock(byte[] buf, int len, long fileOff) throws IOException {
+        int total = 0;
+        while (total < len) {
+            int n = m_io.read(buf, total, len - total, fileOff + total);
+            if (n <= 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Remove the cached blocks of the file after a change
+     */
+    private void invalidateBlocks() {
+        SurBlockCache cache = SurBlockCache.getInstance();
+        if (cache != null) {
+            cache.invalidate(getFileId());
+        }
+    }
+
+    @Override
+    public void writeFile(byte[] buf, int len, int pos, long fileOff) throws IOException {
+        openFile(false);
+        if (isWriteThrough()) {
+
+            // Write through files write any buffered data first, so the writes reach SurFS in order
+            flushFile();
+            writeExtent(buf, pos, len, fileOff);
+        } else if (SurWriteBuffer.isEnabled()) {
+            SurWriteBuffer wbuf;
+            synchronized (m_file) {
+                if (m_writeBuffer == null) {
+                    m_writeBuffer = new SurWriteBuffer(this);
+                }
+                wbuf = m_writeBuffer;
+            }
+            wbuf.write(buf, pos, len, fileOff);
+            if (fileOff + len > getFileSize()) {
+                finfo.setFileSize(fileOff + len);
+                this.setFileSize(fileOff + len);
+            }
+        } else {
+            writeExtent(buf, pos, len, fileOff);
+        }
+        incrementWriteCount();
+    }
+
+    /**
+     * Write data to SurFS, called directly or when the write back buffer is
+     * flushed
+     *
+     * @param buf byte[]
+     * @param pos int
+     * @param len int
+     * @param fileOff long
+     * @throws IOException
+     */
+    void writeExtent(byte[] buf, int pos, int len, long fileOff) throws IOException {
+        openFile(false);
+        try {
+            m_io.write(buf, pos, len, fileOff);
+        } finally {
+            invalidateBlocks();
+        }
+        SurBackendFile.Meta meta = getMeta();
+        if (meta != null) {
+
+            // Keep reporting the length including data still in the write back buffer
+            long flen = meta.getLength();
+            SurWriteBuffer wbuf = m_writeBuffer;
+            if (wbuf != null) {
+                flen = Math.max(flen, wbuf.getDirtyEnd());
+            }
+            finfo.setFileSize(flen);
+            this.setFileSize(flen);
+            finfo.setModifyDateTime(meta.getLastModified());
+            this.setModifyDate(meta.getLastModified());
+        }
+    }
+
+    @Override
+    public void truncateFile(long siz) throws IOException {
+        flushFile();
+        openFile(false);
+        if (siz != getMeta().getLength()) {
+            try {
+                m_io.setLength(siz);
+            } finally {
+                invalidateBlocks();
+            }
+            SurBackendFile.Meta meta = getMeta();
+            if (meta != null) {
+                finfo.setFileSize(meta.getLength());
+                this.setFileSize(meta.getLength());
+                finfo.setModifyDateTime(meta.getLastModified());
+                this.setModifyDate(meta.getLastModified());
+            }
+        }
+    }
+
+    @Override
+    public long seekFile(long pos, int typ) throws IOException {
+        throw new UnsupportedOperationException("Not supported yet.");
+    }
+}
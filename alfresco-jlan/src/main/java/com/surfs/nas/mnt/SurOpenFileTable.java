@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2016 SurCloud.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ */
+package com.surfs.nas.mnt;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gateway wide table of open SurFS files. All the network files open on the
+ * same SurFS path, from any session or protocol, share one accessor and one
+ * metadata view. The accessor is closed when the last network file using it
+ * is closed, or when the path is deleted or renamed.
+ */
+public class SurOpenFileTable {
+
+    /**
+     * Accessor shared by the network files open on a path
+     */
+    public static final class SharedFile {
+
+        private final String path;
+        private SurBackendFile file;
+        private SurBackendAccessor io;
+        private final List<SurNetworkFile> handles = new ArrayList<>(2);
+        private boolean closed;
+
+        // Time the metadata was last read from SurFS
+        private volatile long metaTime;
+
+        SharedFile(String path) {
+            this.path = path;
+        }
+
+        /**
+         * @return the SurBackendFile the accessor was opened with, its metadata is
+         * kept up to date by the accessor
+         */
+        public SurBackendFile getFile() {
+            return file;
+        }
+
+        /**
+         * @return the shared accessor
+         */
+        public SurBackendAccessor getAccessor() {
+            return io;
+        }
+
+        /**
+         * @return true if the accessor has been closed, users must acquire
+         * the file again
+         */
+        public synchronized boolean isClosed() {
+            return closed;
+        }
+
+        /**
+         * @return the number of network files using the accessor
+         */
+        public synchronized int getReferenceCount() {
+            return handles.size();
+        }
+
+        private synchronized List<SurNetworkFile> getHandles() {
+            return new ArrayList<>(handles);
+        }
+    }
+
+    // Open files, by SurFS path
+    private static final ConcurrentMap<String, SharedFile> openFiles = new ConcurrentHashMap<>();
+
+    // Statistics
+    private static final AtomicLong acquires = new AtomicLong();
+    private static final AtomicLong backendOpens = new AtomicLong();
+
+    /**
+     * Acquire the shared accessor for a path, opening it if this is the first
+     * user
+     *
+     * @param handle SurNetworkFile
+     * @param sf SurBackendFile, used to open the accessor if it is not open
+     * @param refresh boolean, reload the metadata if the accessor is opened
+     * @return SharedFile
+     * @throws IOException
+     */
+    public static SharedFile acquire(SurNetworkFile handle, SurBackendFile sf, boolean refresh) throws IOException {
+        acquires.incrementAndGet();
+        String path = sf.getPath();
+        while (true) {
+            SharedFile shared = openFiles.get(path);
+            if (shared == null) {
+                SharedFile newShared = new SharedFile(path);
+                shared = openFiles.putIfAbsent(path, newShared);
+                if (shared == null) {
+                    shared = newShared;
+                }
+            }
+            synchronized (shared) {
+                if (shared.closed) {
+
+                    // Released or invalidated while we were looking it up
+                    continue;
+                }
+                if (shared.io == null) {
+                    try {
+                        if (refresh) {
+                            sf.queryMeta(true);
+                        }
+                        shared.io = SurNasDriver.getBackend().openAccessor(sf);
+                        shared.file = sf;
+                        shared.metaTime = System.currentTimeMillis();
+                        backendOpens.incrementAndGet();
+                    } catch (IOException | RuntimeException ex) {
+                        shared.closed = true;
+                        openFiles.remove(path, shared);
+                        throw ex;
+                    }
+                }
+                shared.handles.add(handle);
+                return shared;
+            }
+        }
+    }
+
+    /**
+     * Reload the metadata of a shared accessor if it was read more than maxAge
+     * milliseconds ago. The accessor only tracks changes made through this
+     * gateway, writes made through other nodes or SurFS clients are seen once
+     * the metadata is reloaded.
+     *
+     * @param shared SharedFile
+     * @param maxAge long
+     * @throws IOException
+     */
+    public static void refreshMeta(SharedFile shared, long maxAge) throws IOException {
+        if (System.currentTimeMillis() - shared.metaTime < maxAge) {
+            return;
+        }
+        synchronized (shared) {
+            long now = System.currentTimeMillis();
+            if (shared.closed || now - shared.metaTime < maxAge) {
+                return;
+            }
+            shared.file.queryMeta(true);
+            shared.metaTime = now;
+        }
+    }
+
+    /**
+     * Release a network file's use of a shared accessor, the accessor is
+     * closed when there are no users left
+     *
+     * @param shared SharedFile
+     * @param handle SurNetworkFile
+     * @throws IOException
+     */
+    public static void release(SharedFile shared, SurNetworkFile handle) throws IOException {
+        synchronized (shared) {
+            if (!shared.handles.remove(handle) || !shared.handles.isEmpty() || shared.closed) {
+                return;
+            }
+            shared.closed = true;
+            openFiles.remove(shared.path, shared);
+            shared.io.close();
+        }
+    }
+
+    /**
+     * Close the accessor for a path that is being deleted or renamed. Buffered
+     * writes are flushed first, the network files open on the path acquire a
+     * new accessor, with fresh metadata, when next used.
+     *
+     * @param path String
+     */
+    public static void invalidate(String path) {
+        SharedFile shared = openFiles.get(path);
+        if (shared == null) {
+            return;
+        }
+        for (SurNetworkFile handle : shared.getHandles()) {
+            try {
+                handle.flushFile();
+            } catch (IOException ex) {
+            }
+        }
+        synchronized (shared) {
+            if (shared.closed) {
+                return;
+            }
+            shared.closed = true;
+            openFiles.remove(path, shared);
+            try {
+                shared.io.close();
+            } catch (IOException ex) {
+            }
+        }
+    }
+
+    /**
+     * Return a network file open on a path
+     *
+     * @param path String
+     * @return SurNetworkFile, or null if the path is not open
+     */
+    public static SurNetworkFile getOpenFile(String path) {
+        SharedFile shared = openFiles.get(path);
+        if (shared != null) {
+            List<SurNetworkFile> handles = shared.getHandles();
+            if (!handles.isEmpty()) {
+                return handles.get(0);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the number of paths open
+     */
+    public static int getOpenCount() {
+        return openFiles.size();
+    }
+
+    /**
+     * @return open file table statistics
+     */
+    public static String getStatistics() {
+        return "[SurOpenFileTable open=" + openFiles.size() + ", acquires=" + acquires.get() + ", backendOpens="
+                + backendOpens.get() + "]";
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2016 SurCloud.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ */
+package com.surfs.nas.mnt;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.alfresco.jlan.server.filesys.AccessDeniedException;
+import org.alfresco.jlan.server.filesys.DirectoryNotEmptyException;
+import org.alfresco.jlan.server.filesys.DiskFullException;
+import org.alfresco.jlan.server.filesys.DiskOfflineException;
+import org.alfresco.jlan.server.filesys.FileExistsException;
+
+/**
+ * Retry policy for backend operations on a storage pool. Failed operations are
+ * retried after a short, jittered, exponentially increasing delay. The pool
+ * has a circuit breaker so that requests fail immediately while the backend is
+ * down, and a retry budget that limits retries to a fraction of the requests
+ * so a failing backend is not flooded with retries.
+ */
+public class SurRetryPolicy {
+
+    // Backoff base and maximum delay, and the maximum total time spent retrying, in milliseconds
+    public static final long BaseDelay = 50L;
+    public static final long MaximumDelay = 1000L;
+    public static final long MaximumRetryTime = 5000L;
+
+    // Default number of retries, used if the pool settings cannot be read
+    public static final int DefaultRetries = 3;
+
+    // Retry budget, retries allowed per second as a fraction of the requests, with a minimum
+    public static final double RetryRatio = 0.1;
+    public static final int MinimumRetriesPerSecond = 10;
+
+    /**
+     * Backend operation
+     *
+     * @param <T> result type
+     */
+    public interface Operation<T> {
+
+        public T execute() throws Exception;
+    }
+
+    // Policy for each pool
+    private static final ConcurrentMap<String, SurRetryPolicy> policies = new ConcurrentHashMap<>();
+
+    /**
+     * Return the retry policy for a storage pool
+     *
+     * @param poolName String
+     * @return SurRetryPolicy
+     */
+    public static SurRetryPolicy getPolicy(String poolName) {
+        SurRetryPolicy policy = policies.get(poolName);
+        if (policy == null) {
+            policies.putIfAbsent(poolName, new SurRetryPolicy(poolName));
+            policy = policies.get(poolName);
+        }
+        return policy;
+    }
+
+    private final String poolName;
+    private final SurCircuitBreaker breaker = new SurCircuitBreaker();
+    private final Random random = new Random();
+
+    // Retry budget window
+    private long windowStart;
+    private int windowRequests;
+    private int windowRetries;
+
+    // Statistics
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong budgetExhausted = new AtomicLong();
+
+    SurRetryPolicy(String poolName) {
+        this.poolName = poolName;
+    }
+
+    /**
+     * Run an operation, retrying it if it fails
+     *
+     * @param <T> result type
+     * @param op Operation
+     * @return T
+     * @throws IOException
+     */
+    public <T> T execute(Operation<T> op) throws IOException {
+        requests.incrementAndGet();
+        int maxRetries = getMaximumRetries();
+        long deadline = System.currentTimeMillis() + MaximumRetryTime;
+        int attempt = 0;
+        synchronized (this) {
+            rollWindow();
+            windowRequests++;
+        }
+        while (true) {
+            if (!breaker.allowRequest()) {
+                rejected.incrementAndGet();
+                throw new DiskOfflineException("Storage pool " + poolName + " unavailable");
+            }
+            try {
+                T result = op.execute();
+                breaker.recordSuccess();
+                return result;
+            } catch (Exception e) {
+                if (!isRetryable(e)) {
+                    breaker.recordSuccess();
+                    throw e instanceof IOException ? (IOException) e : new IOException(e);
+                }
+                breaker.recordFailure();
+
+                // Check if the operation can be retried
+                long delay = getDelay(attempt);
+                if (attempt++ >= maxRetries || System.currentTimeMillis() + delay > deadline || !takeRetry()) {
+                    failures.incrementAndGet();
+                    throw e instanceof IOException ? (IOException) e : new IOException(e);
+                }
+                retries.incrementAndGet();
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw e instanceof IOException ? (IOException) e : new IOException(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Check if a failure is worth retrying, errors such as a missing file or
+     * denied access will not change on a retry
+     *
+     * @param e Exception
+     * @return boolean
+     */
+    private static boolean isRetryable(Exception e) {
+        return !(e instanceof FileNotFoundException || e instanceof DirectoryNotEmptyException
+                || e instanceof AccessDeniedException || e instanceof FileExistsException
+                || e instanceof DiskFullException || e instanceof DiskOfflineException);
+    }
+
+    /**
+     * Return the delay before a retry, a random time up to an exponentially
+     * increasing limit
+     *
+     * @param attempt int
+     * @return long
+     */
+    private long getDelay(int attempt) {
+        long limit = Math.min(MaximumDelay, BaseDelay << Math.min(attempt, 16));
+        synchronized (random) {
+            return limit / 2 + (long) (random.nextDouble() * (limit / 2));
+        }
+    }
+
+    /**
+     * Take a retry from the retry budget
+     *
+     * @return boolean, false if the budget is exhausted
+     */
+    private synchronized boolean takeRetry() {
+        rollWindow();
+        int allowed = Math.max(MinimumRetriesPerSecond, (int) (windowRequests * RetryRatio));
+        if (windowRetries >= allowed) {
+            budgetExhausted.incrementAndGet();
+            return false;
+        }
+        windowRetries++;
+        return true;
+    }
+
+    /**
+     * Start a new retry budget window each second
+     */
+    private void rollWindow() {
+        long now = System.currentTimeMillis();
+        if (now - windowStart >= 1000L) {
+            windowStart = now;
+            windowRequests = 0;
+            windowRetries = 0;
+        }
+    }
+
+    /**
+     * Return the configured number of retries for the pool
+     *
+     * @return int
+     */
+    private int getMaximumRetries() {
+        int retries = SurNasDriver.getBackend().getErrorRetryTimes();
+        return retries >= 0 ? retries : DefaultRetries;
+    }
+
+    /**
+     * @return the circuit breaker for the pool
+     */
+    public SurCircuitBreaker getCircuitBreaker() {
+        return breaker;
+    }
+
+    @Override
+    public String toString() {
+        return "[SurRetryPolicy pool=" + poolName + ", requests=" + requests.get() + ", retries=" + retries.get()
+                + ", failures=" + failures.get() + ", rejected=" + rejected.get() + ", budgetExhausted="
+                + budgetExhausted.get() + ", breakerOpen=" + breaker.isOpen() + ", opened=" + breaker.getOpenCount() + "]";
+    }
+}
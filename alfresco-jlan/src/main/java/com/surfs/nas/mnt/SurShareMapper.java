@@ -20,18 +20,21 @@
 
 package com.surfs.nas.mnt;
 
-import com.surfs.nas.StoragePool;
-import com.surfs.nas.StorageSources;
 import com.surfs.nas.client.SurFile;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import org.alfresco.config.ConfigElement;
 import org.alfresco.jlan.app.XMLServerConfiguration;
+import org.alfresco.jlan.debug.Debug;
 import org.alfresco.jlan.oncrpc.nfs.NFSInfo;
 import org.alfresco.jlan.server.SrvSession;
 import org.alfresco.jlan.server.config.ConfigId;
@@ -52,31 +55,68 @@ import org.xml.sax.SAXException;
 
 public class SurShareMapper implements ShareMapper, ConfigurationListener {
 
+    // Default idle time before a lazily created share is removed, in seconds
+    public static final long DefaultIdleTimeout = 600L;
+
     private XMLServerConfiguration m_config;
     private FilesystemsConfigSection m_filesysConfig;
-    private StoragePool pool;
+    private SurBackend backend;
+
+    // Share template, parsed once
+    private Element m_template;
+
+    // Lazy share mode, mount paths are only turned into shares when first used. NFS handles only
+    // carry a hash of the share name, so shares are always created at startup when NFS is enabled.
+    private boolean m_lazy;
+    private long m_idleTimeout = DefaultIdleTimeout * 1000L;
+    private final Set<String> m_mounts = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private SurBackgroundScheduler.Task m_evictTask;
 
     @Override
     public void initializeMapper(ServerConfiguration config, ConfigElement params) throws InvalidConfigurationException {
         m_config = (XMLServerConfiguration) config;
+
+        // Check if shares should be created when first used
+        ConfigElement lazyElem = params != null ? params.getChild("lazyShares") : null;
+        if (lazyElem != null && m_config.isNFSServerEnabled()) {
+            if (Debug.EnableInfo) {
+                Debug.println("[SurFS] Lazy shares ignored, NFS is enabled");
+            }
+        } else if (lazyElem != null) {
+            m_lazy = true;
+            String attr = lazyElem.getAttribute("idleTimeout");
+            if (attr != null && attr.length() > 0) {
+                try {
+                    m_idleTimeout = Long.parseLong(attr) * 1000L;
+                } catch (NumberFormatException ex) {
+                    throw new InvalidConfigurationException("Invalid lazy share idle timeout, " + attr);
+                }
+            }
+            if (m_idleTimeout > 0) {
+                m_evictTask = SurBackgroundScheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        removeIdleShares();
+                    }
+                }, Math.max(10000L, m_idleTimeout / 2), Math.max(10000L, m_idleTimeout / 2));
+            }
+        }
+
         m_filesysConfig = (FilesystemsConfigSection) m_config.getConfigSection(FilesystemsConfigSection.SectionName);
         if (m_filesysConfig == null) {
             m_config.addListener(this);
         }
         try {
-            pool = StorageSources.getStoragePool(SurNasDriver.poolname);
-        } catch (IOException ex) {
-            throw new InvalidConfigurationException("");
+            backend = SurNasDriver.getBackend();
+        } catch (IllegalStateException ex) {
+            throw new InvalidConfigurationException(ex.getMessage());
         }
         NFSInfo info = new NFSInfo() {
 
             @Override
             public int getBlockSize() {
-                try {
-                    return pool.getClientSourceMgr().getGlobleProperties().getBlocksize()*1024;
-                } catch (IOException ex) {
-                    return 1024 * 128;
-                }
+                int blockSize = backend.getBlockSize();
+                return blockSize > 0 ? blockSize : 1024 * 128;
             }
 
         };
@@ -88,10 +128,14 @@ public class SurShareMapper implements ShareMapper, ConfigurationListener {
      * @param shares
      */
     private void initShare() throws IOException, InvalidConfigurationException {
-        List<String> shares = pool.getDatasource().getNasMetaAccessor().getMountList();
+        List<String> shares = backend.getMountList();
         for (String path : shares) {
             String p = path.toLowerCase();
-            if (m_filesysConfig.getShares().findShare(p) == null) {
+            if (m_lazy) {
+
+                // Only remember the mount, the share is created by the first findShare()
+                m_mounts.add(p.startsWith("/") ? p : "/" + p);
+            } else if (m_filesysConfig.getShares().findShare(p) == null) {
                 Element e = getShareElement(p);
               
                 m_config.addDiskShare(e, m_filesysConfig);
@@ -99,19 +143,69 @@ public class SurShareMapper implements ShareMapper, ConfigurationListener {
         }
     }
 
+    /**
+     * Create the share for a path, unless another thread has already created
+     * it
+     *
+     * @param path String
+     * @throws InvalidConfigurationException
+     */
+    private synchronized void addShare(String path) throws InvalidConfigurationException {
+        if (m_filesysConfig.getShares().findShare(path.substring(1)) == null) {
+            Element e = getShareElement(path);
+            m_config.addDiskShare(e, m_filesysConfig);
+        }
+    }
+
+    /**
+     * Remove the lazily created shares that have had no tree connections and
+     * no activity for the idle timeout, they are created again when next used
+     */
+    private void removeIdleShares() {
+        if (m_filesysConfig == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        List<SharedDevice> idle = new ArrayList<>();
+        Enumeration<SharedDevice> list = new SharedDeviceList(m_filesysConfig.getShares()).enumerateShares();
+        while (list.hasMoreElements()) {
+            SharedDevice sd = list.nextElement();
+            if (sd instanceof DiskSharedDevice && m_mounts.contains("/" + sd.getName())) {
+                DiskDeviceContext dc = ((DiskSharedDevice) sd).getDiskContext();
+                if (dc instanceof SurDeviceContext && ((SurDeviceContext) dc).isIdle(now, m_idleTimeout)) {
+                    idle.add(sd);
+                }
+            }
+        }
+        for (SharedDevice sd : idle) {
+            synchronized (this) {
+                SurDeviceContext sdc = (SurDeviceContext) ((DiskSharedDevice) sd).getDiskContext();
+                if (sdc.isIdle(now, m_idleTimeout) && m_filesysConfig.getShares().deleteShare(sd.getName()) != null) {
+                    sdc.CloseContext();
+                    if (Debug.EnableInfo) {
+                        Debug.println("[SurFS] Removed idle share " + sd.getName());
+                    }
+                }
+            }
+        }
+    }
+
     /**
      *
      * @param name
      * @return
      */
-    private Element getShareElement(String name) {
+    private synchronized Element getShareElement(String name) {
         try {
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder builder = factory.newDocumentBuilder();
-            InputStream in = SurShareMapper.class.getResourceAsStream("SurShare.xml");
-            InputSource xmlSource = new InputSource(in);
-            Document doc = builder.parse(xmlSource);
-            Element shareElement = doc.getDocumentElement();
+            if (m_template == null) {
+                DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+                DocumentBuilder builder = factory.newDocumentBuilder();
+                InputStream in = SurShareMapper.class.getResourceAsStream("SurShare.xml");
+                InputSource xmlSource = new InputSource(in);
+                Document doc = builder.parse(xmlSource);
+                m_template = doc.getDocumentElement();
+            }
+            Element shareElement = (Element) m_template.cloneNode(true);
             if (name.startsWith("/")) {
                 shareElement.setAttribute("name", name.substring(1));
             } else {
@@ -166,15 +260,18 @@ public class SurShareMapper implements ShareMapper, ConfigurationListener {
             String path = SurFile.checkPath(name).toLowerCase();
             share = m_filesysConfig.getShares().findShare(path.substring(1), typ, false);
             if (share == null) { 
-                try {
-                    pool.getDatasource().getNasMetaAccessor().getQuata(path);
-                } catch (Exception r) {
+                if (!m_mounts.contains(path)) {
+                    try {
+                        backend.getQuota(path);
+                    } catch (Exception r) {
                   
-                    return null;
+                        return null;
+                    }
+                    if (m_lazy) {
+                        m_mounts.add(path);
+                    }
                 }
-                Element e = getShareElement(path);
-                
-                m_config.addDiskShare(e, m_filesysConfig);
+                addShare(path);
                 share = m_filesysConfig.getShares().findShare(path.substring(1), typ, false);
             }
         }
@@ -200,7 +297,9 @@ public class SurShareMapper implements ShareMapper, ConfigurationListener {
 
     @Override
     public void closeMapper() {
-       
+        if (m_evictTask != null) {
+            m_evictTask.cancel();
+        }
         m_config.closeConfiguration();
     }
 
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2016 SurCloud.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ */
+package com.surfs.nas.mnt;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.alfresco.jlan.server.filesys.DiskFullException;
+
+/**
+ * Disk space reserved by the writers of a share. Space is leased in large
+ * chunks out of the free space found by the last disk space poll and spent
+ * with an atomic counter, so a write only checks the disk space when a lease
+ * runs out. The leases granted between two polls never add up to more than
+ * the free space of the first, so a share fills up at most a lease early.
+ * A poll is started in the background when the free space left to lease gets
+ * below a lease, and a writer that finds it all leased polls before failing
+ * with a DiskFullException.
+ */
+public class SurSpaceLease {
+
+    // Default lease size, in bytes
+    public static final long DefaultLeaseSize = 64L * 1024 * 1024;
+
+    // Minimum time between polls started by writers, in milliseconds
+    public static final long MinimumPollInterval = 1000L;
+
+    private final SurBackendDiskSize diskSize;
+    private volatile long leaseSize;
+
+    // Unspent bytes of the current lease, negative while a writer renews it
+    private final AtomicLong remaining = new AtomicLong();
+
+    // Free space at the last poll, -1 if not known, and bytes leased since, guarded by this
+    private long polledFree = -1L;
+    private long granted;
+    private volatile long lastPoll;
+    private final AtomicBoolean polling = new AtomicBoolean();
+
+    // Statistics
+    private final AtomicLong leases = new AtomicLong();
+    private final AtomicLong polls = new AtomicLong();
+
+    public SurSpaceLease(SurBackendDiskSize diskSize, long leaseSize) {
+        this.diskSize = diskSize;
+        this.leaseSize = leaseSize;
+    }
+
+    /**
+     * Reserve space for a write
+     *
+     * @param size int
+     * @throws IOException if the share is full
+     */
+    public void reserve(int size) throws IOException {
+        if (leaseSize <= 0L) {
+            diskSize.checkDiskSpace();
+            return;
+        }
+        if (remaining.addAndGet(-size) >= 0L) {
+            return;
+        }
+        renew(size);
+    }
+
+    /**
+     * Lease more space until the writers that have overdrawn the current lease
+     * are covered
+     *
+     * @param size int, the size reserved by the calling writer
+     * @throws IOException
+     */
+    private synchronized void renew(int size) throws IOException {
+        boolean covered = false;
+        try {
+            while (remaining.get() < 0L) {
+                if (grant()) {
+                    continue;
+                }
+                if (System.currentTimeMillis() - lastPoll < MinimumPollInterval) {
+                    throw new DiskFullException();
+                }
+                try {
+                    refresh();
+                } catch (IOException ex) {
+                }
+                if (!grant()) {
+                    throw new DiskFullException();
+                }
+            }
+            covered = true;
+        } finally {
+            if (!covered) {
+                remaining.addAndGet(size);
+            }
+        }
+    }
+
+    /**
+     * Grant a lease out of the free space left since the last poll, caller
+     * holds the lock
+     *
+     * @return boolean, false if all of the polled free space has been leased
+     * @throws IOException if the backend reports the share full
+     */
+    private boolean grant() throws IOException {
+        diskSize.checkDiskSpace();
+        long size = leaseSize;
+        if (polledFree >= 0L) {
+            size = Math.min(size, polledFree - granted);
+            if (size <= 0L) {
+                return false;
+            }
+            if (polledFree - granted - size < leaseSize) {
+                startPoll();
+            }
+        }
+        granted += size;
+        remaining.addAndGet(size);
+        leases.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Poll the disk space in the background, unless a poll is running or one
+     * was made recently
+     */
+    private void startPoll() {
+        if (System.currentTimeMillis() - lastPoll < MinimumPollInterval || !polling.compareAndSet(false, true)) {
+            return;
+        }
+        SurBackgroundScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresh();
+                } catch (IOException ex) {
+                } finally {
+                    polling.set(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Poll the disk space from the backend. The unspent part of the current
+     * lease stays reserved out of the new free space.
+     *
+     * @throws IOException
+     */
+    public void refresh() throws IOException {
+        long start = System.currentTimeMillis();
+        lastPoll = start;
+        polls.incrementAndGet();
+        diskSize.refresh();
+        long free = -1L;
+        if (diskSize.getTotalUnits() > 0L) {
+            free = diskSize.getFreeUnits() * diskSize.getBlockSize() * diskSize.getBlockPerunit();
+        }
+        synchronized (this) {
+            polledFree = free;
+            granted = Math.max(0L, remaining.get());
+        }
+    }
+
+    /**
+     * @return the lease size, in bytes
+     */
+    public long getLeaseSize() {
+        return leaseSize;
+    }
+
+    /**
+     * @param leaseSize the lease size in bytes, zero checks the disk space on
+     * every write
+     */
+    public void setLeaseSize(long leaseSize) {
+        this.leaseSize = leaseSize;
+    }
+
+    @Override
+    public String toString() {
+        return "[SurSpaceLease leaseSize=" + leaseSize + ", remaining=" + remaining.get() + ", leases=" + leases.get()
+                + ", polls=" + polls.get() + "]";
+    }
+}
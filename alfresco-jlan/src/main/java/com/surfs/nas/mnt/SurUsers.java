@@ -20,44 +20,169 @@
 
 package com.surfs.nas.mnt;
 
-import com.surfs.nas.StoragePool;
-import com.surfs.nas.StorageSources;
-import com.surfs.nas.error.PoolNotFoundException;
 import com.surfs.nas.log.LogFactory;
 import com.surfs.nas.log.Logger;
 import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import org.alfresco.config.ConfigElement;
 import org.alfresco.jlan.server.auth.UserAccount;
 import org.alfresco.jlan.server.auth.UsersInterface;
 import org.alfresco.jlan.server.config.InvalidConfigurationException;
 import org.alfresco.jlan.server.config.ServerConfiguration;
 
+/**
+ * User accounts from the storage backend. Accounts are cached for a
+ * timeout, so a logon burst only loads each account once. When an account
+ * expires it is reloaded and, if the password has not changed, the same
+ * UserAccount is kept so the MD4 hash the authenticator stored on it is
+ * reused. Unknown users are cached for a shorter negative timeout.
+ */
 public class SurUsers implements UsersInterface {
     
     private static final Logger log = LogFactory.getLogger(SurAuthenticator.class);
-    private StoragePool pool;
+
+    // Default account and negative timeouts, in milliseconds, and maximum number of cached accounts
+    public static final long DefaultTimeout = 60000L;
+    public static final long DefaultNegativeTimeout = 5000L;
+    public static final int DefaultMaximumEntries = 10000;
+
+    private SurBackend backend;
+    private long timeout = DefaultTimeout;
+    private long negativeTimeout = DefaultNegativeTimeout;
+    private int maxEntries = DefaultMaximumEntries;
+
+    /**
+     * Cached account, loads are serialized on the entry so concurrent logons
+     * of a user share one meta service request
+     */
+    private static final class Entry {
+
+        private volatile UserAccount account;
+        private volatile long expires;
+    }
+
+    private final ConcurrentMap<String, Entry> accounts = new ConcurrentHashMap<>();
     
     @Override
     public void initializeUsers(ServerConfiguration config, ConfigElement params) throws InvalidConfigurationException {
         try {
-            pool = StorageSources.getStoragePool(SurNasDriver.poolname);
-        } catch (PoolNotFoundException ex) {
-            throw new InvalidConfigurationException("");
+            backend = SurNasDriver.getBackend();
+        } catch (IllegalStateException ex) {
+            throw new InvalidConfigurationException(ex.getMessage());
+        }
+        ConfigElement elem = params != null ? params.getChild("accountCache") : null;
+        if (elem != null) {
+            try {
+                if (elem.getAttribute("timeout") != null) {
+                    timeout = Long.parseLong(elem.getAttribute("timeout"));
+                }
+                if (elem.getAttribute("negativeTimeout") != null) {
+                    negativeTimeout = Long.parseLong(elem.getAttribute("negativeTimeout"));
+                }
+                if (elem.getAttribute("maxEntries") != null) {
+                    maxEntries = Integer.parseInt(elem.getAttribute("maxEntries"));
+                }
+            } catch (NumberFormatException ex) {
+                throw new InvalidConfigurationException("Invalid account cache setting, " + ex.getMessage());
+            }
         }
     }
     
     @Override
     public UserAccount getUserAccount(String userName) {
-        try {
-            com.surfs.nas.UserAccount userAcc = pool.getDatasource().getNasMetaAccessor().getUserAccount(userName);
-            UserAccount account = new UserAccount();
-            account.setUserName(userAcc.getUserName());
-            account.setPassword(userAcc.getPassword());
-            account.setComment(userAcc.getComment());
-            account.setRealName(userAcc.getRealName());
+        if (userName == null) {
+            return null;
+        }
+        if (timeout <= 0) {
+            return loadAccount(userName, null);
+        }
+        long now = System.currentTimeMillis();
+        Entry entry = accounts.get(userName);
+        if (entry == null) {
+            if (accounts.size() >= maxEntries) {
+                removeExpired(now);
+                if (accounts.size() >= maxEntries) {
+                    return loadAccount(userName, null);
+                }
+            }
+            Entry newEntry = new Entry();
+            entry = accounts.putIfAbsent(userName, newEntry);
+            if (entry == null) {
+                entry = newEntry;
+            }
+        }
+        if (entry.expires > now) {
+            return entry.account;
+        }
+        synchronized (entry) {
+
+            // Loaded by another logon while we waited
+            now = System.currentTimeMillis();
+            if (entry.expires > now) {
+                return entry.account;
+            }
+            UserAccount account = loadAccount(userName, entry.account);
+            entry.account = account;
+            entry.expires = now + (account != null ? timeout : negativeTimeout);
             return account;
+        }
+    }
+
+    /**
+     * Drop a cached account, so the next logon reloads it
+     *
+     * @param userName String
+     */
+    public void invalidate(String userName) {
+        accounts.remove(userName);
+    }
+
+    /**
+     * Load an account from the meta service
+     *
+     * @param userName String
+     * @param cached UserAccount, the previously loaded account or null
+     * @return UserAccount, or null if the user does not exist or the meta
+     * service fails with no cached account
+     */
+    private UserAccount loadAccount(String userName, UserAccount cached) {
+        UserAccount userAcc;
+        try {
+            userAcc = backend.getUserAccount(userName);
         } catch (IOException ex) {
+
+            // Keep using the cached account while the meta service is unreachable
+            return cached;
+        }
+        if (userAcc == null) {
             return null;
         }
+
+        // Keep the cached account, and its MD4 hash, if the password is unchanged
+        UserAccount account = cached;
+        if (account == null || !equals(account.getPassword(), userAcc.getPassword())
+                || !equals(account.getUserName(), userAcc.getUserName())) {
+            account = new UserAccount();
+            account.setUserName(userAcc.getUserName());
+            account.setPassword(userAcc.getPassword());
+        }
+        account.setComment(userAcc.getComment());
+        account.setRealName(userAcc.getRealName());
+        return account;
+    }
+
+    private void removeExpired(long now) {
+        Iterator<Entry> iter = accounts.values().iterator();
+        while (iter.hasNext()) {
+            if (iter.next().expires <= now) {
+                iter.remove();
+            }
+        }
+    }
+
+    private static boolean equals(String s1, String s2) {
+        return s1 == null ? s2 == null : s1.equals(s2);
     }
 }
@@ -0,0 +1,415 @@
+/*
+ * Copyright (C) 2016 SurCloud.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ */
+package com.surfs.nas.mnt;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import org.alfresco.jlan.debug.Debug;
+
+/**
+ * Write back buffer for an open SurFS file. Client writes are held in memory
+ * and adjacent or overlapping writes are merged into extents, which are
+ * written to SurFS when the buffer reaches its size limit, when the oldest
+ * data reaches the flush delay, when the file is flushed or closed and before
+ * a read of a dirty range. The total buffered data on the gateway is limited,
+ * once the limit is reached writes flush their own buffer and go straight to
+ * SurFS. The first error of a background flush is held and returned by the
+ * next write, flush or close of the file.
+ */
+public class SurWriteBuffer {
+
+    // Default per file buffer size, flush delay in milliseconds and gateway wide dirty data limit
+    public static final int DefaultMaximumBuffer = 1024 * 1024;
+    public static final long DefaultFlushDelay = 1000L;
+    public static final long DefaultDirtyLimit = 64L * 1024L * 1024L;
+
+    // Maximum number of separate extents held before the buffer is flushed
+    public static final int MaximumExtents = 64;
+
+    // Gateway wide settings, a maximum buffer size of zero disables write back
+    private static volatile int maxBuffer = 0;
+    private static volatile long flushDelay = DefaultFlushDelay;
+    private static volatile long dirtyLimit = DefaultDirtyLimit;
+
+    // Buffered data on the gateway
+    private static final AtomicLong dirtyBytes = new AtomicLong();
+
+    // Dirty buffers, by file id, and the background flush thread
+    private static final Object registryLock = new Object();
+    private static final ConcurrentMap<Integer, CopyOnWriteArrayList<SurWriteBuffer>> dirtyFiles = new ConcurrentHashMap<>();
+    private static final Set<SurWriteBuffer> dirtyBuffers = Collections.newSetFromMap(new ConcurrentHashMap<SurWriteBuffer, Boolean>());
+    private static Thread flushThread;
+
+    // Statistics
+    private static final AtomicLong writes = new AtomicLong();
+    private static final AtomicLong backendWrites = new AtomicLong();
+    private static final AtomicLong writeThroughs = new AtomicLong();
+
+    /**
+     * Configure write back for the gateway
+     *
+     * @param maxBufferSize int, per file buffer size, zero disables write back
+     * @param delay long, maximum time data is held, in milliseconds
+     * @param limit long, gateway wide limit on buffered data
+     */
+    public static synchronized void configure(int maxBufferSize, long delay, long limit) {
+        maxBuffer = Math.max(0, maxBufferSize);
+        flushDelay = Math.max(10L, delay);
+        dirtyLimit = limit;
+        if (maxBuffer > 0 && flushThread == null) {
+            flushThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    flushExpired();
+                }
+            }, "SurWriteBufferFlush");
+            flushThread.setDaemon(true);
+            flushThread.start();
+        }
+    }
+
+    /**
+     * @return true if write back is enabled
+     */
+    public static boolean isEnabled() {
+        return maxBuffer > 0;
+    }
+
+    /**
+     * Flush any buffered data of a file that overlaps a range, used before
+     * reads so that a read sees the data written through any open file
+     *
+     * @param fileId int
+     * @param fileOff long
+     * @param len int
+     * @throws IOException
+     */
+    public static void flushOverlapping(int fileId, long fileOff, int len) throws IOException {
+        CopyOnWriteArrayList<SurWriteBuffer> list = dirtyFiles.get(fileId);
+        if (list != null) {
+            for (SurWriteBuffer buf : list) {
+                buf.flushIfOverlaps(fileOff, len);
+            }
+        }
+    }
+
+    /**
+     * Return the end of the buffered data of a file, so file information can
+     * report the length including data that has not been written yet
+     *
+     * @param fileId int
+     * @return long, or -1 if there is no buffered data
+     */
+    public static long getDirtyEnd(int fileId) {
+        long end = -1L;
+        CopyOnWriteArrayList<SurWriteBuffer> list = dirtyFiles.get(fileId);
+        if (list != null) {
+            for (SurWriteBuffer buf : list) {
+                end = Math.max(end, buf.getDirtyEnd());
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Background flush of the buffers holding data older than the flush delay
+     */
+    private static void flushExpired() {
+        while (true) {
+            try {
+                Thread.sleep(Math.max(10L, flushDelay / 2));
+            } catch (InterruptedException ex) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            for (SurWriteBuffer buf : dirtyBuffers) {
+                try {
+                    buf.flushIfExpired(now);
+                } catch (IOException ex) {
+
+                    // The data stays buffered, the error is returned by the next write, flush or close
+                    buf.setFlushError(ex);
+                    if (Debug.EnableError) {
+                        Debug.println("[SurFS] Write back flush failed, fileId=" + buf.fileId + ", " + ex.getMessage());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Dirty range of the file
+     */
+    private static final class Extent {
+
+        private final long offset;
+        private final byte[] data;
+        private final int length;
+
+        Extent(long offset, byte[] data, int length) {
+            this.offset = offset;
+            this.data = data;
+            this.length = length;
+        }
+
+        long end() {
+            return offset + length;
+        }
+    }
+
+    private final SurNetworkFile file;
+    private final int fileId;
+    private final TreeMap<Long, Extent> extents = new TreeMap<>();
+    private long buffered;
+    private long dirtySince;
+    private long dirtyEnd = -1L;
+
+    // First background flush error, not yet returned to the client
+    private IOException flushError;
+
+    SurWriteBuffer(SurNetworkFile file) {
+        this.file = file;
+        this.fileId = file.getFileId();
+    }
+
+    /**
+     * Buffer a write
+     *
+     * @param buf byte[]
+     * @param pos int
+     * @param len int
+     * @param fileOff long
+     * @throws IOException
+     */
+    public synchronized void write(byte[] buf, int pos, int len, long fileOff) throws IOException {
+        checkFlushError();
+        writes.incrementAndGet();
+        int limit = maxBuffer;
+
+        // Large writes, and writes once the gateway dirty limit is reached, go straight to SurFS
+        if (len >= limit || dirtyBytes.get() + len > dirtyLimit) {
+            flush();
+            writeThroughs.incrementAndGet();
+            backendWrites.incrementAndGet();
+            file.writeExtent(buf, pos, len, fileOff);
+            return;
+        }
+        add(buf, pos, len, fileOff);
+        if (buffered >= limit || extents.size() > MaximumExtents
+                || System.currentTimeMillis() - dirtySince >= flushDelay) {
+            flush();
+        }
+    }
+
+    /**
+     * Merge a write into the extents
+     */
+    private void add(byte[] buf, int pos, int len, long fileOff) {
+        long start = fileOff;
+        long end = fileOff + len;
+
+        // Find the extents that overlap or touch the new data
+        Map.Entry<Long, Extent> prev = extents.floorEntry(fileOff);
+        if (prev != null && prev.getValue().end() >= fileOff) {
+            start = prev.getKey();
+        }
+        Extent first = extents.get(start);
+        Map.Entry<Long, Extent> last = extents.floorEntry(end);
+        if (last != null && last.getValue().end() > end) {
+            end = last.getValue().end();
+        }
+        int newLen = (int) (end - start);
+
+        // Reuse the first extent if it has room, so sequential writes only append
+        byte[] data;
+        if (first != null && first.data.length >= newLen) {
+            data = first.data;
+        } else {
+            int capacity = newLen;
+            if (first != null) {
+                capacity = Math.max(newLen, Math.min(first.data.length * 2, maxBuffer));
+            }
+            data = new byte[capacity];
+            if (first != null) {
+                System.arraycopy(first.data, 0, data, 0, first.length);
+            }
+        }
+
+        // Copy the other merged extents, then the new data over them
+        long removed = 0L;
+        Iterator<Extent> iter = extents.subMap(start, true, end, true).values().iterator();
+        while (iter.hasNext()) {
+            Extent ext = iter.next();
+            if (ext != first) {
+                System.arraycopy(ext.data, 0, data, (int) (ext.offset - start), ext.length);
+            }
+            removed += ext.length;
+            iter.remove();
+        }
+        System.arraycopy(buf, pos, data, (int) (fileOff - start), len);
+        extents.put(start, new Extent(start, data, newLen));
+
+        long delta = newLen - removed;
+        buffered += delta;
+        dirtyBytes.addAndGet(delta);
+        dirtyEnd = Math.max(dirtyEnd, end);
+        if (removed == 0L && extents.size() == 1) {
+            dirtySince = System.currentTimeMillis();
+            register(this);
+        }
+    }
+
+    /**
+     * Write all buffered extents to SurFS. Extents that fail to write stay
+     * buffered, a held background flush error is returned once all extents
+     * have been written.
+     *
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException {
+        try {
+            while (!extents.isEmpty()) {
+                Extent ext = extents.firstEntry().getValue();
+                backendWrites.incrementAndGet();
+                file.writeExtent(ext.data, 0, ext.length, ext.offset);
+                extents.remove(ext.offset);
+                buffered -= ext.length;
+                dirtyBytes.addAndGet(-ext.length);
+            }
+        } catch (IOException ex) {
+
+            // Returned in place of any held error
+            flushError = null;
+            throw ex;
+        } finally {
+            if (extents.isEmpty()) {
+                dirtyEnd = -1L;
+                unregister(this);
+            }
+        }
+        checkFlushError();
+    }
+
+    /**
+     * Hold the error of a background flush, only the first error is kept
+     *
+     * @param ex IOException
+     */
+    private synchronized void setFlushError(IOException ex) {
+        if (flushError == null) {
+            flushError = ex;
+            file.setDelayedWriteError(true);
+        }
+    }
+
+    /**
+     * Return a held background flush error, once
+     *
+     * @throws IOException
+     */
+    private void checkFlushError() throws IOException {
+        IOException ex = flushError;
+        if (ex != null) {
+            flushError = null;
+            throw ex;
+        }
+    }
+
+    /**
+     * Drop the buffered data without writing it
+     */
+    public synchronized void discard() {
+        dirtyBytes.addAndGet(-buffered);
+        buffered = 0L;
+        extents.clear();
+        dirtyEnd = -1L;
+        unregister(this);
+    }
+
+    private synchronized void flushIfOverlaps(long fileOff, int len) throws IOException {
+        Map.Entry<Long, Extent> ext = extents.lowerEntry(fileOff + len);
+        if (ext != null && ext.getValue().end() > fileOff) {
+            flush();
+        }
+    }
+
+    private synchronized void flushIfExpired(long now) throws IOException {
+        if (!extents.isEmpty() && now - dirtySince >= flushDelay) {
+            flush();
+        }
+    }
+
+    /**
+     * @return true if there is buffered data
+     */
+    public synchronized boolean isDirty() {
+        return !extents.isEmpty();
+    }
+
+    /**
+     * @return the end of the buffered data, or -1 if there is none
+     */
+    synchronized long getDirtyEnd() {
+        return dirtyEnd;
+    }
+
+    private static void register(SurWriteBuffer buf) {
+        synchronized (registryLock) {
+            CopyOnWriteArrayList<SurWriteBuffer> list = dirtyFiles.get(buf.fileId);
+            if (list == null) {
+                list = new CopyOnWriteArrayList<>();
+                dirtyFiles.put(buf.fileId, list);
+            }
+            list.addIfAbsent(buf);
+            dirtyBuffers.add(buf);
+        }
+    }
+
+    private static void unregister(SurWriteBuffer buf) {
+        synchronized (registryLock) {
+            if (!dirtyBuffers.remove(buf)) {
+                return;
+            }
+            CopyOnWriteArrayList<SurWriteBuffer> list = dirtyFiles.get(buf.fileId);
+            if (list != null) {
+                list.remove(buf);
+                if (list.isEmpty()) {
+                    dirtyFiles.remove(buf.fileId);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return write back statistics for the gateway
+     */
+    public static String getStatistics() {
+        return "[SurWriteBuffer dirtyBytes=" + dirtyBytes.get() + ", dirtyFiles=" + dirtyBuffers.size() + ", writes="
+                + writes.get() + ", backendWrites=" + backendWrites.get() + ", writeThroughs=" + writeThroughs.get() + "]";
+    }
+}
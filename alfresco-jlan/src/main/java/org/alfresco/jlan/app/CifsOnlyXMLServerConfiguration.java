@@ -80,6 +80,7 @@ import org.alfresco.jlan.server.filesys.DiskSharedDevice;
 import org.alfresco.jlan.server.filesys.FilesystemsConfigSection;
 import org.alfresco.jlan.server.filesys.SrvDiskInfo;
 import org.alfresco.jlan.server.filesys.VolumeInfo;
+import org.alfresco.jlan.server.filesys.cache.DirectoryCache;
 import org.alfresco.jlan.server.thread.ThreadRequestPool;
 import org.alfresco.jlan.smb.Dialect;
 import org.alfresco.jlan.smb.DialectSelector;
@@ -134,8 +135,8 @@ public class CifsOnlyXMLServerConfiguration extends ServerConfiguration {
     private static final int DefaultThreadPoolInit = 25;
     private static final int DefaultThreadPoolMax = 50;
 
-    // Default memory pool settings
-    private static final int[] DefaultMemoryPoolBufSizes = {256, 4096, 16384, 65536};
+    // Default memory pool settings, the largest size holds a full size SMB session buffer
+    private static final int[] DefaultMemoryPoolBufSizes = {256, 4096, 16384, SMBSrvSession.DefaultBufferSize};
     private static final int[] DefaultMemoryPoolInitAlloc = {20, 20, 5, 5};
     private static final int[] DefaultMemoryPoolMaxAlloc = {100, 50, 50, 50};
 
@@ -1942,6 +1943,47 @@ public class CifsOnlyXMLServerConfiguration extends ServerConfiguration {
             diskInfo = new SrvDiskInfo(2560000, 64, 512, 2304000);
         }
 
+        // Check if the directory search cache has been enabled
+        Element dirCacheElem = findChildNode("directoryCache", disk.getChildNodes());
+        long dirCacheTimeout = DirectoryCache.DefaultTimeout;
+        int dirCacheMaxDirs = DirectoryCache.DefaultMaximumDirectories;
+        int dirCacheMaxEntries = DirectoryCache.DefaultMaximumEntries;
+
+        if (dirCacheElem != null) {
+
+            // The directory cache is invalidated using the change notification events
+            if (changeNotify == false) {
+                throw new InvalidConfigurationException("Directory cache requires change notification to be enabled");
+            }
+
+            try {
+
+                // Get the snapshot timeout, in seconds
+                attr = dirCacheElem.getAttribute("timeout");
+                if (attr != null && attr.length() > 0) {
+                    dirCacheTimeout = Long.parseLong(attr) * 1000L;
+                }
+
+                // Get the maximum number of cached folders
+                attr = dirCacheElem.getAttribute("maxDirectories");
+                if (attr != null && attr.length() > 0) {
+                    dirCacheMaxDirs = Integer.parseInt(attr);
+                }
+
+                // Get the maximum number of entries in a cached folder
+                attr = dirCacheElem.getAttribute("maxEntries");
+                if (attr != null && attr.length() > 0) {
+                    dirCacheMaxEntries = Integer.parseInt(attr);
+                }
+            } catch (NumberFormatException ex) {
+                throw new InvalidConfigurationException("Directory cache setting invalid, " + attr);
+            }
+
+            if (dirCacheTimeout <= 0 || dirCacheMaxDirs <= 0 || dirCacheMaxEntries <= 0) {
+                throw new InvalidConfigurationException("Directory cache settings must be greater than zero");
+            }
+        }
+
         // Check if a share with this name already exists
         if (filesysConfig.getShares().findShare(name) != null) {
             throw new InvalidConfigurationException("Share " + name + " already exists");
@@ -1965,6 +2007,11 @@ public class CifsOnlyXMLServerConfiguration extends ServerConfiguration {
                 // Enable/disable change notification for this device
                 devCtx.enableChangeHandler(changeNotify);
 
+                // Enable the directory search cache for this device
+                if (dirCacheElem != null) {
+                    devCtx.setDirectoryCache(new DirectoryCache(dirCacheTimeout, dirCacheMaxDirs, dirCacheMaxEntries, devCtx.isCaseless()));
+                }
+
                 // Set the volume information, may be null
                 devCtx.setVolumeInformation(volInfo);
 
@@ -46,6 +46,10 @@ public class FileLock {
   //  Owner process id
 
   private int m_pid;
+
+  //	Time to wait for a conflicting lock to be released, in milliseconds
+
+  private long m_timeout;
   
   /**
    * Class constructor
@@ -117,6 +121,25 @@ public class FileLock {
 		return m_length == LockWholeFile ? true : false;
 	}
 	
+  /**
+   * Return the time to wait for a conflicting lock to be released, in milliseconds. A zero timeout
+   * indicates that the lock request should fail immediately if there is a conflicting lock.
+   *
+   * @return long
+   */
+  public final long getTimeout() {
+    return m_timeout;
+  }
+
+  /**
+   * Set the time to wait for a conflicting lock to be released, in milliseconds
+   *
+   * @param tmo long
+   */
+  public final void setTimeout(long tmo) {
+    m_timeout = tmo;
+  }
+
   /**
    * Set the process id of the owner of this lock
    *
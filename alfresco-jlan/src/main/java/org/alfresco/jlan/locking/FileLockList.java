@@ -25,26 +25,49 @@
 
 package org.alfresco.jlan.locking;
 
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 
 /**
  * File Lock List Class
  *
  * <p>Contains a list of the current locks on a file.
  *
+ * <p>Byte range locks are held in a balanced interval tree ordered by lock offset, each node holds the
+ * highest end offset in its subtree so overlap checks and lock removal are O(log n). Whole file locks
+ * are held separately as they overlap every byte range. A count of locks per process id allows reads
+ * and writes to skip the overlap check when all locks are owned by the caller.
+ *
+ * <p>Lock requests that cannot be granted immediately and have a timeout are queued as pending locks,
+ * pending locks are granted in the order they were queued.
+ *
  * @author gkspencer
  */
 public class FileLockList {
 
-  //  List of file locks
+  //  Interval tree of byte range locks
+
+  private LockNode m_root;
+
+  //  Whole file locks
+
+  private List<FileLock> m_wholeFileLocks;
 
-  private Vector<FileLock> m_lockList;
+  //  Count of locks per process id
+
+  private HashMap<Integer, Integer> m_pidCounts;
+
+  //  Insertion sequence number, used to order locks with identical ranges
+
+  private long m_seqNo;
 
   /**
    * Construct an empty file lock list.
    */
   public FileLockList() {
-    m_lockList = new Vector<FileLock>();
+    m_wholeFileLocks = new ArrayList<FileLock>();
+    m_pidCounts = new HashMap<Integer, Integer>();
   }
   
   /**
@@ -53,7 +76,11 @@ public class FileLockList {
    * @param lock Lock to be added to the list.
    */
   public final void addLock(FileLock lock) {
-    m_lockList.add(lock);
+    if ( lock.isWholeFile())
+      m_wholeFileLocks.add(lock);
+    else
+      m_root = insert(m_root, new LockNode(lock, m_seqNo++));
+    updateProcessCount(lock.getProcessId(), 1);
   }
   
 	/**
@@ -81,34 +108,45 @@ public class FileLockList {
 		if (numberOfLocks() == 0)
 			return null;
 
-		//  Search for the required lock
+		//	Search for the required lock
+
+		FileLock curLock = null;
 
-		for (int i = 0; i < numberOfLocks(); i++) {
+		if ( len < 0) {
 
-			//  Get the current lock details
+			//	Search the whole file locks, a negative length indicates a whole file lock
 
-			FileLock curLock = getLockAt(i);
-			if ( curLock.getOffset()    == offset &&
-					 curLock.getLength()    == len    &&
-					 curLock.getProcessId() == pid) {
-					 	
-				//	Remove the lock from the list
-				
-				m_lockList.removeElementAt(i);
-				return curLock;
-		 	}
+			for (int i = 0; i < m_wholeFileLocks.size() && curLock == null; i++) {
+				FileLock wholeLock = m_wholeFileLocks.get(i);
+				if ( wholeLock.getOffset() == offset && wholeLock.getProcessId() == pid)
+					curLock = m_wholeFileLocks.remove(i);
+			}
 		}
-		
-		//	Lock not found
-		
-    return null;
+		else {
+
+			//	Find the lock in the tree, and remove it
+
+			LockNode node = find(m_root, offset, len, pid);
+			if ( node != null) {
+				curLock = node.lock;
+				m_root = delete(m_root, node);
+			}
+		}
+
+		//	Update the per process lock count
+
+		if ( curLock != null)
+			updateProcessCount(pid, -1);
+		return curLock;
   }
 
 	/**
    * Remove all locks from the list
    */
   public final void removeAllLocks() {
-    m_lockList.removeAllElements();
+    m_root = null;
+    m_wholeFileLocks.clear();
+    m_pidCounts.clear();
   }
   
   /**
@@ -118,8 +156,14 @@ public class FileLockList {
    * @return FileLock
    */
   public final FileLock getLockAt(int idx) {
-    if (idx < m_lockList.size())
-      return m_lockList.get(idx);
+    if ( idx < 0)
+      return null;
+    int treeSize = size(m_root);
+    if ( idx < treeSize)
+      return select(m_root, idx).lock;
+    idx -= treeSize;
+    if ( idx < m_wholeFileLocks.size())
+      return m_wholeFileLocks.get(idx);
     return null;
   }
   
@@ -136,20 +180,14 @@ public class FileLockList {
     if (numberOfLocks() == 0)
       return true;
 
-    //  Search for any overlapping locks
-
-    for (int i = 0; i < numberOfLocks(); i++) {
+    //	A whole file lock request conflicts with any existing lock
 
-      //  Get the current lock details
+    if ( lock.isWholeFile())
+      return false;
 
-      FileLock curLock = getLockAt(i);
-      if ( curLock.hasOverlap(lock))      
-        return false;
-    }
-
-    //  The lock does not overlap with any existing locks
+    //  Search for any overlapping locks
 
-    return true;
+    return hasOverlap(lock.getOffset(), lock.getLength(), 0, true) == false;
   }
 
 	/**
@@ -161,34 +199,7 @@ public class FileLockList {
 	 * @return boolean
 	 */
 	public final boolean canReadFile(long offset, long len, int pid) {
-
-		//  If the list is empty we can allow the read request
-
-		if (numberOfLocks() == 0)
-			return true;
-
-		//  Search for a lock that prevents the read
-
-		for (int i = 0; i < numberOfLocks(); i++) {
-
-			//  Get the current lock details
-
-			FileLock curLock = getLockAt(i);
-			
-			//	Check if the process owns the lock, if not then check if there is an overlap
-			
-			if ( curLock.getProcessId() != pid) {
-				
-				//	Check if the read overlaps with the locked area
-				
-				if ( curLock.hasOverlap(offset, len) == true)
-					return false;
-			}
-		}
-
-		//  The lock does not overlap with any existing locks
-
-		return true;
+		return hasOverlap(offset, len, pid, false) == false;
 	}
 	
 	/**
@@ -200,42 +211,325 @@ public class FileLockList {
 	 * @return boolean
 	 */
 	public final boolean canWriteFile(long offset, long len, int pid) {
+		return hasOverlap(offset, len, pid, false) == false;
+	}
+	
+  /**
+   * Return the count of locks in the list.
+   *
+   * @return int Number of locks in the list.
+   */
+  public final int numberOfLocks() {
+    return size(m_root) + m_wholeFileLocks.size();
+  }
 
-		//  If the list is empty we can allow the read request
+  /**
+   * Check if any lock overlaps the specified section of the file
+   *
+   * @param offset long
+   * @param len long
+   * @param pid int
+   * @param anyPid boolean, if false then locks owned by the process id are ignored
+   * @return boolean
+   */
+  private boolean hasOverlap(long offset, long len, int pid, boolean anyPid) {
 
-		if (numberOfLocks() == 0)
-			return true;
+    //	If the list is empty, or all locks are owned by the process, there is no overlap
 
-		//  Search for a lock that prevents the read
+    int lockCnt = numberOfLocks();
+    if ( lockCnt == 0)
+      return false;
 
-		for (int i = 0; i < numberOfLocks(); i++) {
+    if ( anyPid == false) {
+      Integer pidCnt = m_pidCounts.get(pid);
+      if ( pidCnt != null && pidCnt.intValue() == lockCnt)
+        return false;
+    }
 
-			//  Get the current lock details
+    //	Check the whole file locks
 
-			FileLock curLock = getLockAt(i);
-			
-			//	Check if the process owns the lock, if not then check if there is an overlap
-			
-			if ( curLock.getProcessId() != pid) {
-				
-				//	Check if the read overlaps with the locked area
-				
-				if ( curLock.hasOverlap(offset, len) == true)
-					return false;
-			}
-		}
+    for ( FileLock wholeLock : m_wholeFileLocks) {
+      if ( anyPid || wholeLock.getProcessId() != pid)
+        return true;
+    }
 
-		//  The lock does not overlap with any existing locks
+    //	Search the interval tree
+
+    long endOff = len == FileLock.LockWholeFile ? Long.MAX_VALUE : endOffset(offset, len);
+    return findOverlap(m_root, offset, endOff, pid, anyPid);
+  }
 
-		return true;
-	}
-	
   /**
-   * Return the count of locks in the list.
+   * Update the lock count for a process id
    *
-   * @return int Number of locks in the list.
+   * @param pid int
+   * @param delta int
    */
-  public final int numberOfLocks() {
-    return m_lockList.size();
+  private void updateProcessCount(int pid, int delta) {
+    Integer cnt = m_pidCounts.get(pid);
+    int newCnt = (cnt != null ? cnt.intValue() : 0) + delta;
+    if ( newCnt > 0)
+      m_pidCounts.put(pid, newCnt);
+    else
+      m_pidCounts.remove(pid);
+  }
+
+  /**
+   * Return the last offset of a byte range, limited to the maximum offset. A zero length range ends
+   * one byte before its start offset, so a zero length request only overlaps locks that start before
+   * its offset, to match the FileLock overlap check. Zero length locks held in the tree end at their
+   * start offset instead, see LockNode.
+   *
+   * @param offset long
+   * @param len long
+   * @return long
+   */
+  private static long endOffset(long offset, long len) {
+    if ( len == 0)
+      return offset - 1;
+    long endOff = offset + ( len - 1);
+    return endOff < offset ? Long.MAX_VALUE : endOff;
+  }
+
+  /**
+   * Search a subtree for a lock that overlaps the specified range
+   *
+   * @param node LockNode
+   * @param offset long
+   * @param endOff long
+   * @param pid int
+   * @param anyPid boolean
+   * @return boolean
+   */
+  private static boolean findOverlap(LockNode node, long offset, long endOff, int pid, boolean anyPid) {
+    while ( node != null && node.maxEnd >= offset) {
+      if ( findOverlap(node.left, offset, endOff, pid, anyPid))
+        return true;
+      if ( node.lock.getOffset() > endOff)
+        return false;
+      if ( node.end >= offset && ( anyPid || node.lock.getProcessId() != pid))
+        return true;
+      node = node.right;
+    }
+    return false;
+  }
+
+  /**
+   * Find a lock with the specified offset, length and process id
+   *
+   * @param node LockNode
+   * @param offset long
+   * @param len long
+   * @param pid int
+   * @return LockNode
+   */
+  private static LockNode find(LockNode node, long offset, long len, int pid) {
+    while ( node != null) {
+      int cmp = compare(offset, len, pid, node);
+      if ( cmp == 0)
+        return node;
+      node = cmp < 0 ? node.left : node.right;
+    }
+    return null;
+  }
+
+  /**
+   * Return the lock at the specified index within a subtree, in offset order
+   *
+   * @param node LockNode
+   * @param idx int
+   * @return LockNode
+   */
+  private static LockNode select(LockNode node, int idx) {
+    while ( true) {
+      int leftSize = size(node.left);
+      if ( idx < leftSize)
+        node = node.left;
+      else if ( idx == leftSize)
+        return node;
+      else {
+        idx -= leftSize + 1;
+        node = node.right;
+      }
+    }
+  }
+
+  /**
+   * Insert a node into a subtree, and rebalance
+   *
+   * @param node LockNode
+   * @param newNode LockNode
+   * @return LockNode
+   */
+  private static LockNode insert(LockNode node, LockNode newNode) {
+    if ( node == null)
+      return newNode;
+    if ( compare(newNode, node) < 0)
+      node.left = insert(node.left, newNode);
+    else
+      node.right = insert(node.right, newNode);
+    return rebalance(node);
+  }
+
+  /**
+   * Delete a node from a subtree, and rebalance
+   *
+   * @param node LockNode
+   * @param delNode LockNode
+   * @return LockNode
+   */
+  private static LockNode delete(LockNode node, LockNode delNode) {
+    if ( node == null)
+      return null;
+    if ( node == delNode) {
+      if ( node.left == null)
+        return node.right;
+      if ( node.right == null)
+        return node.left;
+
+      //	Replace the node with the lowest node from the right subtree
+
+      LockNode minNode = node.right;
+      while ( minNode.left != null)
+        minNode = minNode.left;
+      minNode.right = delete(node.right, minNode);
+      minNode.left = node.left;
+      return rebalance(minNode);
+    }
+    if ( compare(delNode, node) < 0)
+      node.left = delete(node.left, delNode);
+    else
+      node.right = delete(node.right, delNode);
+    return rebalance(node);
+  }
+
+  /**
+   * Rebalance a node, and update the subtree details
+   *
+   * @param node LockNode
+   * @return LockNode
+   */
+  private static LockNode rebalance(LockNode node) {
+    int bal = height(node.left) - height(node.right);
+    if ( bal > 1) {
+      if ( height(node.left.left) < height(node.left.right))
+        node.left = rotateLeft(node.left);
+      return rotateRight(node);
+    }
+    else if ( bal < -1) {
+      if ( height(node.right.right) < height(node.right.left))
+        node.right = rotateRight(node.right);
+      return rotateLeft(node);
+    }
+    node.update();
+    return node;
+  }
+
+  private static LockNode rotateLeft(LockNode node) {
+    LockNode newTop = node.right;
+    node.right = newTop.left;
+    newTop.left = node;
+    node.update();
+    newTop.update();
+    return newTop;
+  }
+
+  private static LockNode rotateRight(LockNode node) {
+    LockNode newTop = node.left;
+    node.left = newTop.right;
+    newTop.right = node;
+    node.update();
+    newTop.update();
+    return newTop;
+  }
+
+  private static int height(LockNode node) {
+    return node != null ? node.height : 0;
+  }
+
+  private static int size(LockNode node) {
+    return node != null ? node.size : 0;
+  }
+
+  /**
+   * Compare two nodes by offset, length, process id and insertion order
+   *
+   * @param node1 LockNode
+   * @param node2 LockNode
+   * @return int
+   */
+  private static int compare(LockNode node1, LockNode node2) {
+    int cmp = compare(node1.lock.getOffset(), node1.lock.getLength(), node1.lock.getProcessId(), node2);
+    if ( cmp == 0 && node1.seqNo != node2.seqNo)
+      cmp = node1.seqNo < node2.seqNo ? -1 : 1;
+    return cmp;
+  }
+
+  /**
+   * Compare a lock range and process id with a node
+   *
+   * @param offset long
+   * @param len long
+   * @param pid int
+   * @param node LockNode
+   * @return int
+   */
+  private static int compare(long offset, long len, int pid, LockNode node) {
+    FileLock lock = node.lock;
+    if ( offset != lock.getOffset())
+      return offset < lock.getOffset() ? -1 : 1;
+    if ( len != lock.getLength())
+      return len < lock.getLength() ? -1 : 1;
+    if ( pid != lock.getProcessId())
+      return pid < lock.getProcessId() ? -1 : 1;
+    return 0;
+  }
+
+  /**
+   * Lock Node Class
+   *
+   * <p>Interval tree node, holds a byte range lock and the subtree height, size and highest end offset.
+   */
+  private static final class LockNode {
+
+    //	Lock details, last locked offset and insertion sequence number
+
+    final FileLock lock;
+    final long end;
+    final long seqNo;
+
+    //	Subtree details
+
+    LockNode left;
+    LockNode right;
+    int height;
+    int size;
+    long maxEnd;
+
+    /**
+     * Class constructor
+     *
+     * @param lock FileLock
+     * @param seqNo long
+     */
+    LockNode(FileLock lock, long seqNo) {
+      this.lock = lock;
+      this.seqNo = seqNo;
+      this.end = lock.getLength() == 0 ? lock.getOffset() : endOffset(lock.getOffset(), lock.getLength());
+      update();
+    }
+
+    /**
+     * Update the subtree details from the child nodes
+     */
+    void update() {
+      height = Math.max(height(left), height(right)) + 1;
+      size = size(left) + size(right) + 1;
+      maxEnd = end;
+      if ( left != null && left.maxEnd > maxEnd)
+        maxEnd = left.maxEnd;
+      if ( right != null && right.maxEnd > maxEnd)
+        maxEnd = right.maxEnd;
+    }
   }
 }
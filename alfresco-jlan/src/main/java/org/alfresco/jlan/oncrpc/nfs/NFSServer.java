@@ -57,6 +57,7 @@ import org.alfresco.jlan.server.Version;
 import org.alfresco.jlan.server.auth.acl.AccessControl;
 import org.alfresco.jlan.server.auth.acl.AccessControlManager;
 import org.alfresco.jlan.server.config.ServerConfiguration;
+import org.alfresco.jlan.server.core.DeviceInterface;
 import org.alfresco.jlan.server.core.InvalidDeviceInterfaceException;
 import org.alfresco.jlan.server.core.ShareType;
 import org.alfresco.jlan.server.core.SharedDevice;
@@ -1195,6 +1196,14 @@ public class NFSServer extends RpcNetworkServer implements RpcProcessor {
             }
             //	Write to the network file
             disk.writeFile(sess, conn, netFile, rpc.getBuffer(), rpc.getPosition(), count, offset);
+            //	Stable writes must reach storage before the reply, unstable writes are only reported as
+            //	unstable if the file is still holding them
+            int committed = stable;
+            if (stable != NFS.WriteUnstable) {
+                disk.flushFile(sess, conn, netFile);
+            } else if (netFile.hasBufferedWrites() == false) {
+                committed = NFS.WriteFileSync;
+            }
             //	Get file information for the path and pack the response
             FileInfo finfo = netFile.getFileInformation();
             if (finfo == null) {
@@ -1205,7 +1214,7 @@ public class NFSServer extends RpcNetworkServer implements RpcProcessor {
             packPreOpAttr(sess, preInfo, rpc);
             packPostOpAttr(sess, finfo, shareId, rpc);
             rpc.packInt(count);
-            rpc.packInt(stable);
+            rpc.packInt(committed);
             rpc.packLong(m_writeVerifier);			//	verifier
             //	DEBUG
             if (Debug.EnableInfo && hasDebugFlag(DBG_FILEIO)) {
@@ -2793,17 +2802,60 @@ public class NFSServer extends RpcNetworkServer implements RpcProcessor {
      * @return RpcPacket
      */
     private RpcPacket procCommit(NFSSrvSession sess, RpcPacket rpc) {
+        //	Unpack the commit parameters, the whole file is flushed
+        byte[] handle = new byte[NFS.FileHandleSize];
+        rpc.unpackByteArrayWithLength(handle);
+        long offset = rpc.unpackLong();
+        int count = rpc.unpackInt();
         //	DEBUG
         if (Debug.EnableInfo && hasDebugFlag(DBG_FILEIO)) {
-            sess.debugPrintln("Commit request from " + rpc.getClientDetails());
+            sess.debugPrintln("Commit request from " + rpc.getClientDetails() + ", count=" + count + ", offset=" + offset);
+        }
+        NetworkFile netFile = null;
+        int errorSts = NFS.StsSuccess;
+        try {
+            //	Get the share id and associated shared device
+            int shareId = getShareIdFromHandle(handle);
+            TreeConnection conn = getTreeConnection(sess, shareId);
+            //	Get the network file, it may be cached
+            netFile = getNetworkFileForHandle(sess, handle, conn, false);
+            //	Write any data buffered by the file to storage
+            DiskInterface disk = (DiskInterface) conn.getSharedDevice().getInterface();
+            disk.flushFile(sess, conn, netFile);
+            //	Pack the response
+            rpc.buildResponseHeader();
+            rpc.packInt(NFS.StsSuccess);
+            packWccData(rpc, null);
+            packPostOpAttr(sess, netFile.getFileInformation(), shareId, rpc);
+            //	Pack the write verifier, indicates if the server has been restarted since the file write requests
+            rpc.packLong(m_writeVerifier);
+        } catch (BadHandleException ex) {
+            errorSts = NFS.StsBadHandle;
+        } catch (StaleHandleException ex) {
+            errorSts = NFS.StsStale;
+        } catch (AccessDeniedException ex) {
+            errorSts = NFS.StsAccess;
+        } catch (DiskFullException ex) {
+            errorSts = NFS.StsNoSpc;
+        } catch (Exception ex) {
+            errorSts = NFS.StsIO;
+            //	DEBUG
+            if (Debug.EnableError && hasDebugFlag(DBG_ERROR)) {
+                sess.debugPrintln("Commit Exception: netFile=" + netFile);
+                sess.debugPrintln(ex);
+            }
+        }
+        //	Check for a failure status
+        if (errorSts != NFS.StsSuccess) {
+            //	Pack the error response
+            rpc.buildErrorResponse(errorSts);
+            packWccData(rpc, null); // before attributes
+            packWccData(rpc, null); // after attributes
+            //	DEBUG
+            if (Debug.EnableInfo && hasDebugFlag(DBG_ERROR)) {
+                sess.debugPrintln("Commit error=" + NFS.getStatusString(errorSts));
+            }
         }
-        //	Pack the response
-        rpc.buildResponseHeader();
-        rpc.packInt(NFS.StsSuccess);
-        packWccData(rpc, null);
-        packPostOpAttr(sess, null, 0, rpc);
-        //	Pack the write verifier, indicates if the server has been restarted since the file write requests
-        rpc.packLong(m_writeVerifier);
         //	Return the response
         rpc.setLength();
         return rpc;
@@ -3276,6 +3328,11 @@ public class NFSServer extends RpcNetworkServer implements RpcProcessor {
                 //  Add the tree connection to the active list for the session
                 sess.addConnection(conn);
             }
+            //  Inform the driver that the connection has been opened, it is closed when the session is closed
+            DeviceInterface devIface = conn.getInterface();
+            if (devIface != null) {
+                devIface.treeOpened(sess, conn);
+            }
         }
         //	Return the tree connection
         return conn;
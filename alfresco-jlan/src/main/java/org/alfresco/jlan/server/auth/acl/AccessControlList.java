@@ -43,6 +43,10 @@ public class AccessControlList {
 	
 	private int m_defaultAccess = AccessControl.ReadWrite;
 	
+	//	Compiled form of the list, discarded when the list changes
+	
+	private volatile CompiledAccessControlList m_compiled;
+	
 	/**
 	 * Create an access control list.
 	 */
@@ -65,7 +69,7 @@ public class AccessControlList {
 	 * @param level int
 	 * @exception InvalidACLTypeException		If the access level is invalid
 	 */	
-	public final void setDefaultAccessLevel(int level)
+	public synchronized final void setDefaultAccessLevel(int level)
 		throws InvalidACLTypeException {
 		
 		//	Check the default access level
@@ -76,6 +80,7 @@ public class AccessControlList {
 		//	Set the default access level for the access control list
 		
 		m_defaultAccess = level;
+		m_compiled = null;
 	}
 	
 	/**
@@ -83,11 +88,12 @@ public class AccessControlList {
 	 *
 	 * @param accCtrl AccessControl
 	 */
-	public final void addControl(AccessControl accCtrl) {
+	public synchronized final void addControl(AccessControl accCtrl) {
 
 		//	Add the access control to the list
 
 		m_list.add(accCtrl);
+		m_compiled = null;
 	}
 
 	/**
@@ -114,8 +120,9 @@ public class AccessControlList {
 	/**
 	 * Remove all access controls from the list
 	 */
-	public final void removeAllControls() {
+	public synchronized final void removeAllControls() {
 		m_list.removeAllElements();
+		m_compiled = null;
 	}
 
 	/**
@@ -124,12 +131,31 @@ public class AccessControlList {
 	 * @param idx int
 	 * @return AccessControl
 	 */
-	public final AccessControl removeControl(int idx) {
+	public synchronized final AccessControl removeControl(int idx) {
 		if ( idx < 0 || idx >= m_list.size())
 			return null;
+		m_compiled = null;
 		return m_list.remove(idx);
 	}
 
+	/**
+	 * Return the compiled form of the access control list, the list is compiled again after it has
+	 * changed.
+	 * 
+	 * @return CompiledAccessControlList
+	 */
+	final CompiledAccessControlList getCompiledList() {
+		CompiledAccessControlList compiled = m_compiled;
+		if ( compiled == null) {
+			synchronized ( this) {
+				if ( m_compiled == null)
+					m_compiled = new CompiledAccessControlList(this);
+				compiled = m_compiled;
+			}
+		}
+		return compiled;
+	}
+
 	/**
 	 * Return the access control list as a string.
 	 *
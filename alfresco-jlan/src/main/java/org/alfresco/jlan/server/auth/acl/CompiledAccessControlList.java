@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2006-2008 Alfresco Software Limited.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+
+ * As a special exception to the terms and conditions of version 2.0 of 
+ * the GPL, you may redistribute this Program in connection with Free/Libre 
+ * and Open Source Software ("FLOSS") applications as described in Alfresco's 
+ * FLOSS exception.  You should have recieved a copy of the text describing 
+ * the FLOSS exception, and it is also available here: 
+ * http://www.alfresco.com/legal/licensing"
+ */
+
+package org.alfresco.jlan.server.auth.acl;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.alfresco.jlan.server.SrvSession;
+import org.alfresco.jlan.server.auth.ClientInfo;
+import org.alfresco.jlan.server.core.SharedDevice;
+import org.alfresco.jlan.smb.server.SMBSrvSession;
+import org.alfresco.jlan.util.IPAddress;
+
+/**
+ * Compiled Access Control List Class
+ * 
+ * <p>Holds the rules of an access control list in lookup tables so the time to check access does not
+ * grow with the number of rules. User names, domains, protocols, user ids, group ids and single addresses
+ * are looked up by value, subnets are looked up in a trie of the address bits. Each table stores the
+ * highest index of the rules for a value, so the access of the last matching rule in the list is used, the
+ * same as when each rule is checked in turn. Custom rule types, and subnets with a non-contiguous mask, are
+ * still checked in turn.
+ * 
+ * <p>The compiled list is discarded by the access control list when the list changes.
+ */
+class CompiledAccessControlList {
+
+	//	Access controls and the default access level
+
+	private AccessControl[] m_rules;
+	private int m_defaultAccess;
+
+	//	Highest rule index by user name, domain and protocol name, the names are case folded
+	
+	private HashMap<String, Integer> m_users;
+	private HashMap<String, Integer> m_domains;
+	private HashMap<String, Integer> m_protocols;
+	
+	//	Highest rule index by user id, group id and address
+	
+	private HashMap<Integer, Integer> m_uids;
+	private HashMap<Integer, Integer> m_gids;
+	private HashMap<Integer, Integer> m_addresses;
+	
+	//	Subnet trie
+	
+	private SubnetNode m_subnets;
+	
+	//	Rules that are checked in turn, and their indexes in the list
+	
+	private AccessControl[] m_otherRules;
+	private int[] m_otherIndexes;
+	
+	/**
+	 * Subnet trie node, a node at depth n holds the rules for the subnets with an n bit mask
+	 */
+	private static class SubnetNode {
+		
+		//	Child nodes for the next address bit, and the highest rule index for this subnet
+		
+		private SubnetNode[] m_child = new SubnetNode[2];
+		private int m_ruleIdx = -1;
+	}
+	
+	/**
+	 * Class constructor
+	 * 
+	 * @param acls AccessControlList
+	 */
+	CompiledAccessControlList(AccessControlList acls) {
+		
+		//	Get the rules and default access level
+		
+		m_rules = new AccessControl[acls.numberOfControls()];
+		for ( int i = 0; i < m_rules.length; i++)
+			m_rules[i] = acls.getControlAt(i);
+		m_defaultAccess = acls.getDefaultAccessLevel();
+		
+		//	Add each rule to the lookup table for its type
+		
+		List<AccessControl> otherRules = new ArrayList<AccessControl>();
+		List<Integer> otherIndexes = new ArrayList<Integer>();
+		
+		for ( int i = 0; i < m_rules.length; i++) {
+			
+			AccessControl acl = m_rules[i];
+			Class<?> aclClass = acl.getClass();
+			
+			if ( aclClass == UserAccessControl.class)
+				m_users = addRule(m_users, foldCase(acl.getName()), i);
+			else if ( aclClass == DomainAccessControl.class)
+				m_domains = addRule(m_domains, foldCase(acl.getName()), i);
+			else if ( aclClass == ProtocolAccessControl.class) {
+				String[] protList = ((ProtocolAccessControl) acl).getProtocolList();
+				for ( int j = 0; protList != null && j < protList.length; j++)
+					m_protocols = addRule(m_protocols, foldCase(protList[j]), i);
+			}
+			else if ( aclClass == UidAccessControl.class)
+				m_uids = addRule(m_uids, ((UidAccessControl) acl).getUid(), i);
+			else if ( aclClass == GidAccessControl.class)
+				m_gids = addRule(m_gids, ((GidAccessControl) acl).getGid(), i);
+			else if ( aclClass != IpAddressAccessControl.class || addAddressRule((IpAddressAccessControl) acl, i) == false) {
+				
+				//	Check the rule in turn
+				
+				otherRules.add(acl);
+				otherIndexes.add(i);
+			}
+		}
+		
+		m_otherRules = otherRules.toArray(new AccessControl[otherRules.size()]);
+		m_otherIndexes = new int[otherIndexes.size()];
+		for ( int i = 0; i < m_otherIndexes.length; i++)
+			m_otherIndexes[i] = otherIndexes.get(i).intValue();
+	}
+	
+	/**
+	 * Check the access allowed for the session
+	 * 
+	 * @param sess SrvSession
+	 * @param share SharedDevice
+	 * @param mgr AccessControlManager
+	 * @return int
+	 */
+	final int checkAccess(SrvSession sess, SharedDevice share, AccessControlManager mgr) {
+		
+		//	Find the highest index of the compiled rules that match the session
+		
+		int ruleIdx = -1;
+		
+		if ( sess.hasClientInformation()) {
+			
+			ClientInfo cInfo = sess.getClientInformation();
+			
+			if ( m_users != null && cInfo.getUserName() != null)
+				ruleIdx = findRule(m_users, foldCase(cInfo.getUserName()), ruleIdx);
+			
+			if ( m_domains != null && cInfo.getDomain() != null && sess instanceof SMBSrvSession)
+				ruleIdx = findRule(m_domains, foldCase(cInfo.getDomain()), ruleIdx);
+			
+			if ( m_uids != null && cInfo.getUid() != -1)
+				ruleIdx = findRule(m_uids, cInfo.getUid(), ruleIdx);
+			
+			if ( m_gids != null) {
+				if ( cInfo.getGid() != -1)
+					ruleIdx = findRule(m_gids, cInfo.getGid(), ruleIdx);
+				
+				if ( cInfo.hasGroupsList()) {
+					int[] groups = cInfo.getGroupsList();
+					for ( int i = 0; i < groups.length; i++)
+						ruleIdx = findRule(m_gids, groups[i], ruleIdx);
+				}
+			}
+		}
+		
+		if ( m_protocols != null) {
+			
+			//	Get the session protocol
+			
+			String sessProto = null;
+			String sessName = sess.getClass().getName();
+			
+			if ( sessName.endsWith(".SMBSrvSession"))
+				sessProto = "CIFS";
+			else if ( sessName.endsWith(".FTPSrvSession"))
+				sessProto = "FTP";
+			else if ( sessName.endsWith(".NFSSrvSession"))
+				sessProto = "NFS";
+			
+			if ( sessProto != null)
+				ruleIdx = findRule(m_protocols, foldCase(sessProto), ruleIdx);
+		}
+		
+		if ( m_addresses != null || m_subnets != null) {
+			
+			InetAddress remoteAddr = sess.getRemoteAddress();
+			
+			if ( remoteAddr != null) {
+				int ipAddr = IPAddress.parseNumericAddress(remoteAddr.getHostAddress());
+				
+				if ( m_addresses != null)
+					ruleIdx = findRule(m_addresses, ipAddr, ruleIdx);
+				
+				if ( m_subnets != null && ipAddr != 0)
+					ruleIdx = findSubnet(ipAddr, ruleIdx);
+			}
+		}
+		
+		//	Check the rules that could not be compiled that are after the matching rule, the last rule in the
+		//	list that applies sets the access
+		
+		for ( int i = m_otherRules.length - 1; i >= 0 && m_otherIndexes[i] > ruleIdx; i--) {
+			int curAccess = m_otherRules[i].allowsAccess(sess, share, mgr);
+			if ( curAccess != AccessControl.Default)
+				return curAccess;
+		}
+		
+		//	Return the access of the matching rule, or the default access level
+		
+		if ( ruleIdx != -1)
+			return m_rules[ruleIdx].getAccess();
+		return m_defaultAccess;
+	}
+	
+	/**
+	 * Add an address rule to the address table or subnet trie
+	 * 
+	 * @param acl IpAddressAccessControl
+	 * @param idx int
+	 * @return boolean, false if the rule must be checked in turn
+	 */
+	private boolean addAddressRule(IpAddressAccessControl acl, int idx) {
+		
+		//	Check for a single address
+		
+		if ( acl.getNetMask() == null) {
+			m_addresses = addRule(m_addresses, IPAddress.parseNumericAddress(acl.getName()), idx);
+			return true;
+		}
+		
+		//	A subnet only matches if the subnet and mask are valid and the subnet has no bits outside the mask
+		
+		int subnet = IPAddress.parseNumericAddress(acl.getSubnet());
+		int mask = IPAddress.parseNumericAddress(acl.getNetMask());
+		
+		if ( subnet == 0 || mask == 0 || ( subnet & ~mask) != 0)
+			return true;
+		
+		//	Subnets with a non-contiguous mask cannot be added to the trie
+		
+		if ((( ~mask) & ( ~mask + 1)) != 0)
+			return false;
+		
+		//	Add the subnet to the trie
+		
+		if ( m_subnets == null)
+			m_subnets = new SubnetNode();
+		
+		SubnetNode node = m_subnets;
+		int bits = Integer.bitCount(mask);
+		
+		for ( int i = 0; i < bits; i++) {
+			int bit = ( subnet >>> ( 31 - i)) & 1;
+			if ( node.m_child[bit] == null)
+				node.m_child[bit] = new SubnetNode();
+			node = node.m_child[bit];
+		}
+		
+		node.m_ruleIdx = Math.max(node.m_ruleIdx, idx);
+		return true;
+	}
+	
+	/**
+	 * Find the highest rule index of the subnets that contain an address
+	 * 
+	 * @param ipAddr int
+	 * @param ruleIdx int
+	 * @return int
+	 */
+	private int findSubnet(int ipAddr, int ruleIdx) {
+		SubnetNode node = m_subnets;
+		
+		for ( int i = 0; i < 32 && node != null; i++) {
+			node = node.m_child[( ipAddr >>> ( 31 - i)) & 1];
+			if ( node != null && node.m_ruleIdx > ruleIdx)
+				ruleIdx = node.m_ruleIdx;
+		}
+		
+		return ruleIdx;
+	}
+	
+	/**
+	 * Add a rule index to a lookup table
+	 * 
+	 * @param table HashMap<K, Integer>
+	 * @param key K
+	 * @param idx int
+	 * @return HashMap<K, Integer>
+	 */
+	private static <K> HashMap<K, Integer> addRule(HashMap<K, Integer> table, K key, int idx) {
+		if ( table == null)
+			table = new HashMap<K, Integer>();
+		table.put(key, idx);
+		return table;
+	}
+	
+	/**
+	 * Return the higher of the rule index for a key and the current rule index
+	 * 
+	 * @param table HashMap<K, Integer>
+	 * @param key K
+	 * @param ruleIdx int
+	 * @return int
+	 */
+	private static <K> int findRule(HashMap<K, Integer> table, K key, int ruleIdx) {
+		Integer idx = table.get(key);
+		if ( idx != null && idx.intValue() > ruleIdx)
+			return idx.intValue();
+		return ruleIdx;
+	}
+	
+	/**
+	 * Fold the case of a name so that names that are equal ignoring case have the same value
+	 * 
+	 * @param name String
+	 * @return String
+	 */
+	private static String foldCase(String name) {
+		char[] chars = name.toCharArray();
+		for ( int i = 0; i < chars.length; i++)
+			chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+		return new String(chars);
+	}
+}
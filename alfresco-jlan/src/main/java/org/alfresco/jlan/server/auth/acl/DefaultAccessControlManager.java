@@ -86,9 +86,16 @@ public class DefaultAccessControlManager implements AccessControlManager {
 			return AccessControl.ReadWrite;
 		}
 			
-		//	Process the access control list
+		//	Use the compiled access control list unless debug output is enabled, the compiled list does not
+		//	report which rules matched
 		
 		AccessControlList acls = share.getAccessControls();
+		
+		if ( hasDebug() == false)
+			return acls.getCompiledList().checkAccess(sess, share, this);
+		
+		//	Process the access control list
+		
 		int access = AccessControl.Default;
 		
 		//	DEBUG
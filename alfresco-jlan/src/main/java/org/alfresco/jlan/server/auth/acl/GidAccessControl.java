@@ -58,6 +58,15 @@ public class GidAccessControl extends AccessControl {
 		m_gid = gid;
 	}
   
+	/**
+	 * Return the group id to check for
+	 * 
+	 * @return int
+	 */
+	final int getGid() {
+		return m_gid;
+	}
+	
   /**
 	 * Check if the session is an RPC session (NFS/mount) and the client is a member of the required
 	 * group.
@@ -68,6 +68,24 @@ public class IpAddressAccessControl extends AccessControl {
 			setName(m_subnet + "/" + m_netMask);
 	}
 
+	/**
+	 * Return the address, or subnet if a network mask has been specified
+	 * 
+	 * @return String
+	 */
+	final String getSubnet() {
+		return m_subnet;
+	}
+	
+	/**
+	 * Return the network mask, or null if the rule is for a single address
+	 * 
+	 * @return String
+	 */
+	final String getNetMask() {
+		return m_netMask;
+	}
+	
 	/**
 	 * Check if the TCP/IP address matches the specifed address or is within the subnet.
 	 * 
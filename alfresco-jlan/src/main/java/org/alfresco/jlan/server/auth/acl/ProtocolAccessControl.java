@@ -63,6 +63,15 @@ public class ProtocolAccessControl extends AccessControl {
 		m_checkList = listFromString(protList);
 	}
 	
+	/**
+	 * Return the parsed list of protocol types
+	 * 
+	 * @return String[]
+	 */
+	final String[] getProtocolList() {
+		return m_checkList;
+	}
+	
 	/**
 	 * Check if the protocol matches the access control protocol list and return the allowed access.
 	 * 
@@ -59,6 +59,15 @@ public class UidAccessControl extends AccessControl {
 	}
   
 
+	/**
+	 * Return the user id to check for
+	 * 
+	 * @return int
+	 */
+	final int getUid() {
+		return m_uid;
+	}
+	
   /**
 	 * Check if the session is an RPC session (NFS/mount) and the client has the required Unix user id.
 	 * 
@@ -78,6 +78,10 @@ public class PassthruAuthenticator extends CifsAuthenticator implements SessionL
 
   public final static int MaxSessionTmo = 30000; // 30 seconds
 
+  // Maximum number of pre-negotiated sessions kept for each authentication server
+
+  public final static int MaxSessionPoolSize = 64;
+
   // Passthru keep alive interval
 
   public final static long PassthruKeepAliveInterval = 60000L; // 60 seconds
@@ -278,7 +282,7 @@ public class PassthruAuthenticator extends CifsAuthenticator implements SessionL
           // Close the authentication session
 
           AuthenticateSession authSess = passDetails.getAuthenticateSession();
-          authSess.CloseSession();
+          m_passthruServers.closeSession(authSess);
 
           // DEBUG
 
@@ -943,7 +947,7 @@ public class PassthruAuthenticator extends CifsAuthenticator implements SessionL
           // Close the authentication session
 
           AuthenticateSession authSess = passDetails.getAuthenticateSession();
-          authSess.CloseSession();
+          m_passthruServers.closeSession(authSess);
 
           // DEBUG
 
@@ -1016,6 +1020,38 @@ public class PassthruAuthenticator extends CifsAuthenticator implements SessionL
       }
     }
 
+    // Check if pre-negotiated sessions should be kept for each authentication server
+
+    ConfigElement poolElem = params.getChild("SessionPool");
+    if (poolElem != null) {
+
+      try {
+
+        // Validate the pool size, defaults to one session for each server
+
+        int poolSize = 1;
+        if (poolElem.getAttribute("size") != null)
+          poolSize = Integer.parseInt(poolElem.getAttribute("size"));
+
+        if (poolSize < 0 || poolSize > MaxSessionPoolSize)
+          throw new InvalidConfigurationException("Invalid session pool size, valid range is 0 to " + MaxSessionPoolSize);
+
+        // Set the time a pooled session is kept for, in seconds
+
+        if (poolElem.getAttribute("idleTimeout") != null) {
+          long idleTimeout = Long.parseLong(poolElem.getAttribute("idleTimeout"));
+          if (idleTimeout <= 0L)
+            throw new InvalidConfigurationException("Invalid session pool idle timeout");
+          m_passthruServers.setSessionPoolIdleTimeout(idleTimeout);
+        }
+
+        m_passthruServers.setSessionPoolSize(poolSize);
+      }
+      catch (NumberFormatException ex) {
+        throw new InvalidConfigurationException("Invalid session pool value specified");
+      }
+    }
+
     // Check if a server name has been specified
 
     String srvList = null;
@@ -1134,7 +1170,7 @@ public class PassthruAuthenticator extends CifsAuthenticator implements SessionL
         // Close the authentication session
 
         AuthenticateSession authSess = passDetails.getAuthenticateSession();
-        authSess.CloseSession();
+        m_passthruServers.closeSession(authSess);
 
         // DEBUG
 
@@ -1183,7 +1219,7 @@ public class PassthruAuthenticator extends CifsAuthenticator implements SessionL
         // Close the authentication session
 
         AuthenticateSession authSess = passDetails.getAuthenticateSession();
-        authSess.CloseSession();
+        m_passthruServers.closeSession(authSess);
 
         // DEBUG
 
@@ -44,13 +44,17 @@ public class PassthruServerDetails
     
     // Server status
     
-    private boolean m_online;
+    private volatile boolean m_online;
     
     // Authentication statistics
     
     private int m_authCount;
     private long m_lastAuthTime;
     
+    // Count of authentication sessions handed out and not yet closed
+    
+    private int m_outstanding;
+    
     /**
      * Class constructor
      * 
@@ -127,6 +131,16 @@ public class PassthruServerDetails
         return m_lastAuthTime;
     }
     
+    /**
+     * Return the count of authentication sessions in use for this server
+     * 
+     * @return int
+     */
+    public synchronized final int getOutstandingCount()
+    {
+        return m_outstanding;
+    }
+    
     /**
      * Set the domain that the offline server belongs to
      * 
@@ -147,6 +161,20 @@ public class PassthruServerDetails
         m_online = online;
     }
     
+    /**
+     * Change the online status for the server, if it is not already set
+     * 
+     * @param online boolean
+     * @return boolean true if the status was changed
+     */
+    public synchronized final boolean changeOnline(boolean online)
+    {
+        if ( m_online == online)
+            return false;
+        m_online = online;
+        return true;
+    }
+    
     /**
      * Update the authentication count and date/time
      */
@@ -156,6 +184,19 @@ public class PassthruServerDetails
         m_lastAuthTime = System.currentTimeMillis();
     }
     
+    /**
+     * Update the count of authentication sessions in use
+     * 
+     * @param inc boolean, true if a session has been handed out, false if it has been closed
+     */
+    synchronized final void updateOutstandingCount(boolean inc)
+    {
+        if ( inc)
+            m_outstanding++;
+        else if ( m_outstanding > 0)
+            m_outstanding--;
+    }
+    
     /**
      * Return the hash code for this object
      * 
@@ -190,6 +231,8 @@ public class PassthruServerDetails
         
         str.append(":");
         str.append(getAuthenticationCount());
+        str.append(":");
+        str.append(getOutstandingCount());
         str.append(",");
         str.append(getAuthenticationDateTime() != 0L ? new Date(getAuthenticationDateTime()).toString() : "0");
         str.append("]");
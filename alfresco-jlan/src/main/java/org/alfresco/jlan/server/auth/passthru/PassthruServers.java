@@ -29,6 +29,9 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.StringTokenizer;
 
@@ -37,6 +40,7 @@ import org.alfresco.jlan.netbios.NetBIOSName;
 import org.alfresco.jlan.netbios.NetBIOSNameList;
 import org.alfresco.jlan.netbios.NetBIOSSession;
 import org.alfresco.jlan.smb.PCShare;
+import org.alfresco.jlan.smb.SMBException;
 import org.alfresco.jlan.util.IPAddress;
 
 /**
@@ -49,6 +53,12 @@ import org.alfresco.jlan.util.IPAddress;
  * <p>The server list may be initialized from a list of server names or addresses, or by specifying a domain
  * name in which case the primary and backup domain controllers will be used.
  * 
+ * <p>Logons are sent to the online server with the fewest sessions in use. Each online server may have a pool
+ * of sessions that have already been connected and negotiated, so a logon does not wait for the connection to
+ * the server. The challenge of a negotiated session is only valid for a single logon, so a pooled session is
+ * used once and the pool is topped up in the background by the offline checker thread, which also closes pooled
+ * sessions that have been idle too long or have been dropped by the server.
+ * 
  * @author GKSpencer
  *
  */
@@ -62,6 +72,11 @@ public class PassthruServers
     
     private static final long DefaultOfflineCheckInterval = 5 * 60000;  // 5 minutes
     
+    // Default idle time of a pooled session, and the interval the session pools are checked at
+    
+    private static final long DefaultPoolIdleTimeout = 30000L;  // 30 seconds
+    private static final long PoolCheckInterval = 10000L;       // 10 seconds
+    
     // List of online and offline authentication servers
     
     private List<PassthruServerDetails> m_onlineList;
@@ -83,10 +98,70 @@ public class PassthruServers
     
     PassthruOfflineChecker m_offlineChecker;
     
+    // Number of pre-negotiated sessions kept for each online server, and the time a pooled session is kept for
+    
+    private volatile int m_poolSize;
+    private long m_poolIdleTimeout = DefaultPoolIdleTimeout;
+    
+    // Pooled sessions by server, and the sessions in use with the server they are connected to
+    
+    private HashMap<PassthruServerDetails, LinkedList<PooledSession>> m_pools;
+    private HashMap<AuthenticateSession, PassthruServerDetails> m_activeSessions;
+    
     // Debug output enable
     
     private boolean m_debug;
     
+    /**
+     * Inner class used to hold a pre-negotiated session and the time it was opened
+     */
+    static class PooledSession
+    {
+        private AuthenticateSession m_sess;
+        private long m_openTime;
+        
+        /**
+         * Class constructor
+         * 
+         * @param sess AuthenticateSession
+         */
+        PooledSession(AuthenticateSession sess)
+        {
+            m_sess = sess;
+            m_openTime = System.currentTimeMillis();
+        }
+        
+        /**
+         * Return the session
+         * 
+         * @return AuthenticateSession
+         */
+        final AuthenticateSession getSession()
+        {
+            return m_sess;
+        }
+        
+        /**
+         * Check if the session can still be used for a logon, the server may have sent a disconnect on an
+         * idle session
+         * 
+         * @param now long
+         * @param idleTimeout long
+         * @return boolean
+         */
+        final boolean isUsable(long now, long idleTimeout)
+        {
+            try
+            {
+                return now - m_openTime < idleTimeout && m_sess.isActive() && m_sess.hasDataAvailable() == false;
+            }
+            catch ( IOException ex)
+            {
+                return false;
+            }
+        }
+    }
+    
     /**
      * Inner class used to periodically check offline servers to see if they are back online
      */
@@ -96,6 +171,10 @@ public class PassthruServers
         
         private boolean m_ishutdown;
         
+        // Offline check requested flag
+        
+        private volatile boolean m_offlineCheck;
+        
         /**
          * Default constructor
          */
@@ -114,14 +193,19 @@ public class PassthruServers
             // Loop until shutdown
             
             m_ishutdown = false;
+            long lastOfflineCheck = System.currentTimeMillis();
             
             while ( m_ishutdown == false)
             {
-                // Sleep for a while
+                // Sleep for a while, the session pools are checked more often than the offline servers
+                
+                long sleepTime = m_offlineCheckInterval;
+                if ( getSessionPoolSize() > 0)
+                    sleepTime = Math.min( sleepTime, PoolCheckInterval);
                 
                 try
                 {
-                    sleep( m_offlineCheckInterval);
+                    sleep( sleepTime);
                 }
                 catch ( InterruptedException ex)
                 {
@@ -132,70 +216,89 @@ public class PassthruServers
                 if( m_ishutdown == true)
                     continue;
                 
-                // Check if there are any offline servers to check
+                // Check the offline servers if a check has been requested or the check interval has passed
                 
-                if ( getOfflineServerCount() > 0)
+                long now = System.currentTimeMillis();
+                
+                if ( m_offlineCheck == true || now - lastOfflineCheck >= m_offlineCheckInterval)
                 {
-                    // Enumerate the offline server list
-
-                    int idx = 0;
-                    PassthruServerDetails offlineServer = null;
-                    PCShare authShare = new PCShare("", "IPC$", "", "");
-                    AuthenticateSession authSess = null;
+                    m_offlineCheck = false;
+                    lastOfflineCheck = now;
                     
-                    while ( idx < getOfflineServerCount())
+                    if ( getOfflineServerCount() > 0)
+                        checkOfflineServers();
+                }
+                
+                // Close stale pooled sessions and top up the session pools
+                
+                if ( getSessionPoolSize() > 0)
+                    checkSessionPools();
+            }
+            
+            // Debug
+            
+            if( hasDebug())
+                Debug.println("Passthru offline checker thread closed");
+        }
+        
+        /**
+         * Check if the offline servers are back online
+         */
+        private void checkOfflineServers()
+        {
+            // Enumerate the offline server list
+
+            int idx = 0;
+            PassthruServerDetails offlineServer = null;
+            PCShare authShare = new PCShare("", "IPC$", "", "");
+            AuthenticateSession authSess = null;
+            
+            while ( idx < getOfflineServerCount())
+            {
+                // Get an offline server from the list
+                
+                offlineServer = (PassthruServerDetails) m_offlineList.get(idx);
+                
+                if ( offlineServer != null)
+                {
+                    try 
                     {
-                        // Get an offline server from the list
+                        // Set the target host name
+                        
+                        authShare.setNodeName(offlineServer.getAddress().getHostAddress());
+                        
+                        // Try and connect to the authentication server
                         
-                        offlineServer = (PassthruServerDetails) m_offlineList.get(idx);
+                        authSess = AuthSessionFactory.OpenAuthenticateSession( authShare, getConnectionTimeout());
                         
-                        if ( offlineServer != null)
+                        // Close the session
+                        
+                        try
+                        {
+                            authSess.CloseSession();
+                        }
+                        catch ( Exception ex)
                         {
-                            try 
-                            {
-                                // Set the target host name
-                                
-                                authShare.setNodeName(offlineServer.getAddress().getHostAddress());
-                                
-                                // Try and connect to the authentication server
-                                
-                                authSess = AuthSessionFactory.OpenAuthenticateSession( authShare, getConnectionTimeout());
-                                
-                                // Close the session
-                                
-                                try
-                                {
-                                    authSess.CloseSession();
-                                }
-                                catch ( Exception ex)
-                                {
-                                }
-                                
-                                // Authentication server is online, move it to the online list
-                                
-                                serverOnline(offlineServer);
-                            }
-                            catch ( Exception ex)
-                            {
-                                // Debug
-                                
-                                if ( hasDebug())
-                                    Debug.println("Passthru offline check failed for " + offlineServer.getName());
-                            }
-                            
-                            // Check if the server is now online
-                            
-                            if ( offlineServer.isOnline() == false)
-                                idx++;
                         }
+                        
+                        // Authentication server is online, move it to the online list
+                        
+                        serverOnline(offlineServer);
+                    }
+                    catch ( Exception ex)
+                    {
+                        // Debug
+                        
+                        if ( hasDebug())
+                            Debug.println("Passthru offline check failed for " + offlineServer.getName());
                     }
+                    
+                    // Check if the server is now online
+                    
+                    if ( offlineServer.isOnline() == false)
+                        idx++;
                 }
             }
-            
-            // Debug
-            
-            if( hasDebug())
-                Debug.println("Passthru offline checker thread closed");
         }
         
         /**
@@ -211,6 +314,15 @@ public class PassthruServers
          * Wakeup the offline checker thread to process the offline server list
          */
         public final void processOfflineServers()
+        {
+            m_offlineCheck = true;
+            this.interrupt();
+        }
+        
+        /**
+         * Wakeup the offline checker thread to top up the session pools
+         */
+        public final void processSessionPools()
         {
             this.interrupt();
         }
@@ -226,6 +338,11 @@ public class PassthruServers
         m_onlineList  = new ArrayList<PassthruServerDetails>();
         m_offlineList = new ArrayList<PassthruServerDetails>();
         
+        // Create the session pools
+        
+        m_pools = new HashMap<PassthruServerDetails, LinkedList<PooledSession>>();
+        m_activeSessions = new HashMap<AuthenticateSession, PassthruServerDetails>();
+        
         // Create and start the offline server checker thread
         
         m_offlineChecker = new PassthruOfflineChecker();
@@ -281,6 +398,34 @@ public class PassthruServers
         return m_tmo;
     }
     
+    /**
+     * Return the number of pre-negotiated sessions kept for each online server
+     * 
+     * @return int
+     */
+    public final int getSessionPoolSize()
+    {
+        return m_poolSize;
+    }
+    
+    /**
+     * Return the count of pooled sessions
+     * 
+     * @return int
+     */
+    public final int getPooledSessionCount()
+    {
+        int cnt = 0;
+        
+        synchronized ( m_pools)
+        {
+            for ( LinkedList<PooledSession> pool : m_pools.values())
+                cnt += pool.size();
+        }
+        
+        return cnt;
+    }
+    
     /**
      * Determine if the authentication servers are domain controllers
      * 
@@ -348,20 +493,33 @@ public class PassthruServers
         
         // Open a new authentication session to the server
         
-        PCShare authShare = new PCShare(passthruServer.getAddress().getHostAddress(), "IPC$", "", "");
         AuthenticateSession authSess = null;
         
         while ( authSess == null && passthruServer != null && hasOnlineServers()) {
 
+            // Use a pre-negotiated session from the server's pool, if available
+            
+            authSess = takePooledSession( passthruServer);
+            
             try
             {
                 // Open a session to the current authentication server
 
-                authSess = AuthSessionFactory.OpenAuthenticateSession( authShare, getConnectionTimeout());
+                if ( authSess == null)
+                {
+                    PCShare authShare = new PCShare(passthruServer.getAddress().getHostAddress(), "IPC$", "", "");
+                    authSess = AuthSessionFactory.OpenAuthenticateSession( authShare, getConnectionTimeout());
+                }
                 
-                // Update the passthru statistics
+                // Update the passthru statistics, and count the session as in use until it is closed
                 
                 passthruServer.incrementAuthenticationCount();
+                passthruServer.updateOutstandingCount( true);
+                
+                synchronized ( m_activeSessions)
+                {
+                    m_activeSessions.put( authSess, passthruServer);
+                }
             }
             catch ( Exception ex)
             {
@@ -390,11 +548,197 @@ public class PassthruServers
             }
         }
 
+        // Wakeup the checker thread to replace the pooled session
+        
+        if ( getSessionPoolSize() > 0)
+            m_offlineChecker.processSessionPools();
+        
         // Return the authentication session
         
         return authSess;
     }
     
+    /**
+     * Close an authentication session opened by openSession()
+     * 
+     * @param authSess AuthenticateSession
+     * @exception IOException
+     * @exception SMBException
+     */
+    public final void closeSession(AuthenticateSession authSess)
+        throws IOException, SMBException
+    {
+        // Update the count of sessions in use for the server
+        
+        PassthruServerDetails passthruServer = null;
+        
+        synchronized ( m_activeSessions)
+        {
+            passthruServer = m_activeSessions.remove( authSess);
+        }
+        
+        if ( passthruServer != null)
+            passthruServer.updateOutstandingCount( false);
+        
+        // Close the session
+        
+        authSess.CloseSession();
+    }
+    
+    /**
+     * Take a pre-negotiated session from the pool of a server, sessions that can no longer be used are closed
+     * 
+     * @param server PassthruServerDetails
+     * @return AuthenticateSession, or null if there are no pooled sessions
+     */
+    private AuthenticateSession takePooledSession(PassthruServerDetails server)
+    {
+        long now = System.currentTimeMillis();
+        
+        while ( true)
+        {
+            // Use the most recently opened session
+            
+            PooledSession pooledSess = null;
+            
+            synchronized ( m_pools)
+            {
+                LinkedList<PooledSession> pool = m_pools.get( server);
+                if ( pool == null || pool.size() == 0)
+                    return null;
+                pooledSess = pool.removeLast();
+            }
+            
+            if ( pooledSess.isUsable( now, m_poolIdleTimeout))
+                return pooledSess.getSession();
+            
+            closePooledSession( pooledSess);
+        }
+    }
+    
+    /**
+     * Close pooled sessions that can no longer be used and open new sessions to keep the pool of each online
+     * server full, called by the checker thread. A server that cannot be connected to is moved to the offline
+     * list.
+     */
+    protected final void checkSessionPools()
+    {
+        // Get a copy of the online server list
+        
+        List<PassthruServerDetails> servers = null;
+        
+        synchronized ( m_onlineList)
+        {
+            servers = new ArrayList<PassthruServerDetails>( m_onlineList);
+        }
+        
+        for ( PassthruServerDetails server : servers)
+        {
+            // Remove the pooled sessions that can no longer be used
+            
+            long now = System.currentTimeMillis();
+            List<PooledSession> staleList = new ArrayList<PooledSession>();
+            int pooled = 0;
+            
+            synchronized ( m_pools)
+            {
+                LinkedList<PooledSession> pool = m_pools.get( server);
+                
+                if ( pool != null)
+                {
+                    Iterator<PooledSession> iter = pool.iterator();
+                    
+                    while ( iter.hasNext())
+                    {
+                        PooledSession pooledSess = iter.next();
+                        
+                        if ( pooledSess.isUsable( now, m_poolIdleTimeout) == false)
+                        {
+                            iter.remove();
+                            staleList.add( pooledSess);
+                        }
+                    }
+                    
+                    pooled = pool.size();
+                }
+            }
+            
+            for ( PooledSession pooledSess : staleList)
+                closePooledSession( pooledSess);
+            
+            // Top up the pool
+            
+            while ( pooled < getSessionPoolSize() && server.isOnline())
+            {
+                try
+                {
+                    PCShare authShare = new PCShare(server.getAddress().getHostAddress(), "IPC$", "", "");
+                    AuthenticateSession authSess = AuthSessionFactory.OpenAuthenticateSession( authShare, getConnectionTimeout());
+                    
+                    synchronized ( m_pools)
+                    {
+                        LinkedList<PooledSession> pool = m_pools.get( server);
+                        
+                        if ( pool == null)
+                        {
+                            pool = new LinkedList<PooledSession>();
+                            m_pools.put( server, pool);
+                        }
+                        
+                        pool.addLast( new PooledSession( authSess));
+                        pooled = pool.size();
+                    }
+                }
+                catch ( Exception ex)
+                {
+                    // Debug
+                    
+                    if ( hasDebug())
+                        Debug.println("Passthru failed to open pooled session to " + server + " : " + ex.getMessage());
+                    
+                    serverOffline( server);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Close all pooled sessions for a server
+     * 
+     * @param server PassthruServerDetails
+     */
+    private void closeSessionPool(PassthruServerDetails server)
+    {
+        LinkedList<PooledSession> pool = null;
+        
+        synchronized ( m_pools)
+        {
+            pool = m_pools.remove( server);
+        }
+        
+        if ( pool != null)
+        {
+            for ( PooledSession pooledSess : pool)
+                closePooledSession( pooledSess);
+        }
+    }
+    
+    /**
+     * Close a pooled session
+     * 
+     * @param pooledSess PooledSession
+     */
+    private void closePooledSession(PooledSession pooledSess)
+    {
+        try
+        {
+            pooledSess.getSession().CloseSession();
+        }
+        catch ( Exception ex)
+        {
+        }
+    }
+    
     /**
      * Return the details of an online server to use for authentication
      * 
@@ -402,7 +746,8 @@ public class PassthruServers
      */
     protected PassthruServerDetails getAuthenticationServer()
     {
-        // Rotate the head of the list and return the new head of list server details
+        // Rotate the head of the list and return the server with the fewest sessions in use, the rotation
+        // spreads logons across servers with the same number of sessions in use
 
         PassthruServerDetails passthruServer = null;
 
@@ -410,8 +755,12 @@ public class PassthruServers
         {
             if ( m_onlineList.size() > 1)
                 m_onlineList.add(m_onlineList.remove(0));
-            if ( m_onlineList.size() > 0)
-                passthruServer = (PassthruServerDetails) m_onlineList.get(0);
+            
+            for ( PassthruServerDetails curServer : m_onlineList)
+            {
+                if ( passthruServer == null || curServer.getOutstandingCount() < passthruServer.getOutstandingCount())
+                    passthruServer = curServer;
+            }
         }
         
         return passthruServer;
@@ -426,34 +775,25 @@ public class PassthruServers
      */
     protected PassthruServerDetails getAuthenticationServer( String clientDomain)
     {
-        // Rotate the head of the list and return the new head of list server details
+        // Use the server for the domain with the fewest sessions in use and move it to the back of the list
 
         PassthruServerDetails passthruServer = null;
 
         synchronized ( m_onlineList)
         {
-          int idx = 0;
-          
-          while ( idx < m_onlineList.size() && passthruServer == null)
+          for ( PassthruServerDetails curServer : m_onlineList)
           {
-            // Get the current passthru server details
-            
-            PassthruServerDetails curServer = m_onlineList.get( idx);
-            
             if ( curServer.getDomain() != null && curServer.getDomain().equals( clientDomain))
             {
-              // Use this passthru server
-            
-              passthruServer = curServer;
-              
-              // Move to the back of the list
-              
-              m_onlineList.add( m_onlineList.remove( idx));
+              if ( passthruServer == null || curServer.getOutstandingCount() < passthruServer.getOutstandingCount())
+                passthruServer = curServer;
             }
-            
-            // Update the server index
-            
-            idx++;
+          }
+          
+          if ( passthruServer != null)
+          {
+            m_onlineList.remove( passthruServer);
+            m_onlineList.add( passthruServer);
           }
         }
         
@@ -467,9 +807,10 @@ public class PassthruServers
      */
     protected final void serverOffline(PassthruServerDetails server)
     {
-        // Set the server status
+        // Set the server status, another thread may have already moved the server
         
-        server.setOnline(false);
+        if ( server.changeOnline(false) == false)
+            return;
         
         // Remove the server from the online list
         
@@ -485,6 +826,10 @@ public class PassthruServers
             m_offlineList.add( server);
         }
         
+        // Close the server's pooled sessions
+        
+        closeSessionPool( server);
+        
         // Debug
         
         if ( hasDebug())
@@ -498,9 +843,10 @@ public class PassthruServers
      */
     protected final void serverOnline(PassthruServerDetails server)
     {
-        // Set the server status
+        // Set the server status, another thread may have already moved the server
         
-        server.setOnline(true);
+        if ( server.changeOnline(true) == false)
+            return;
         
         // Remove the server from the offline list
         
@@ -532,6 +878,31 @@ public class PassthruServers
         m_tmo = tmo;
     }
 
+    /**
+     * Set the number of pre-negotiated sessions kept for each online server, zero disables the session pools
+     * 
+     * @param poolSize int
+     */
+    public final void setSessionPoolSize(int poolSize)
+    {
+        m_poolSize = poolSize;
+        
+        // Wakeup the checker thread to fill the pools
+        
+        if ( poolSize > 0)
+            m_offlineChecker.processSessionPools();
+    }
+    
+    /**
+     * Set the time a pooled session is kept before it is replaced, in seconds
+     * 
+     * @param idleTimeout long
+     */
+    public final void setSessionPoolIdleTimeout(long idleTimeout)
+    {
+        m_poolIdleTimeout = idleTimeout * 1000L;
+    }
+    
     /**
      * Set the offline check interval, in seconds
      * 
@@ -773,6 +1144,18 @@ public class PassthruServers
         
         m_offlineChecker.shutdownRequest();
         
+        // Close the pooled sessions
+        
+        List<PassthruServerDetails> servers = null;
+        
+        synchronized ( m_pools)
+        {
+            servers = new ArrayList<PassthruServerDetails>( m_pools.keySet());
+        }
+        
+        for ( PassthruServerDetails server : servers)
+            closeSessionPool( server);
+        
         // Clear the online and offline server lists
         
         m_onlineList.clear();
@@ -802,6 +1185,8 @@ public class PassthruServers
         str.append(getOnlineServerCount());
         str.append(",Offline=");
         str.append(getOfflineServerCount());
+        str.append(",Pooled=");
+        str.append(getPooledSessionCount());
         str.append("]");
         
         return str.toString();
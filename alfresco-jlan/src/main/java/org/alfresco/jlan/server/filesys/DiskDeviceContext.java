@@ -26,6 +26,7 @@ package org.alfresco.jlan.server.filesys;
 
 import org.alfresco.jlan.server.core.DeviceContext;
 import org.alfresco.jlan.server.core.DeviceContextException;
+import org.alfresco.jlan.server.filesys.cache.DirectoryCache;
 import org.alfresco.jlan.server.filesys.quota.QuotaManager;
 import org.alfresco.jlan.smb.server.notify.NotifyChangeHandler;
 import org.alfresco.jlan.smb.server.notify.NotifyRequest;
@@ -59,6 +60,9 @@ public class DiskDeviceContext extends DeviceContext {
 
     private String filesystemType = FileSystem.TypeNTFS;
 
+	//	Directory search snapshot cache
+    private DirectoryCache m_dirCache;
+
     /**
      * Class constructor
      */
@@ -190,6 +194,11 @@ public class DiskDeviceContext extends DeviceContext {
 		// Close the change notification handler
         if (hasChangeHandler()) {
             enableChangeHandler(false);
+        }
+
+		//	Release the directory cache
+        if (m_dirCache != null) {
+            m_dirCache.removeAllSnapshots();
         }
     }
 
@@ -223,6 +232,33 @@ public class DiskDeviceContext extends DeviceContext {
         return m_filesysNotifications;
     }
 
+    /**
+     * Determine if the disk context has a directory cache
+     *
+     * @return boolean
+     */
+    public final boolean hasDirectoryCache() {
+        return m_dirCache != null ? true : false;
+    }
+
+    /**
+     * Return the directory cache
+     *
+     * @return DirectoryCache
+     */
+    public final DirectoryCache getDirectoryCache() {
+        return m_dirCache;
+    }
+
+    /**
+     * Set the directory cache, or null to disable directory caching
+     *
+     * @param dirCache DirectoryCache
+     */
+    public final void setDirectoryCache(DirectoryCache dirCache) {
+        m_dirCache = dirCache;
+    }
+
     /**
      * Add a request to the change notification list
      *
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2016 SurCloud.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ */
+
+package org.alfresco.jlan.server.filesys;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+import org.alfresco.jlan.server.SrvSession;
+
+/**
+ * File Region Interface
+ *
+ * <p>Optional interface that a DiskInterface driver can implement to allow file data to be sent to the
+ * client directly from a file channel, without being copied into the response buffer.
+ */
+public interface FileRegionInterface {
+
+	/**
+	 * Return the file channel for an open file, or null if the data must be read using the
+	 * DiskInterface.readFile() method. The channel is owned by the network file and must not
+	 * be closed by the caller.
+	 *
+	 * @param sess SrvSession
+	 * @param tree TreeConnection
+	 * @param file NetworkFile
+	 * @return FileChannel
+	 * @exception IOException
+	 */
+	public FileChannel getFileChannel(SrvSession sess, TreeConnection tree, NetworkFile file)
+		throws IOException;
+}
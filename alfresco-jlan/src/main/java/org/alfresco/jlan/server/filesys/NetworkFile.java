@@ -54,6 +54,7 @@ public abstract class NetworkFile {
     public static final int DeleteOnClose = 0x0002;
     public static final int DelayedWriteError = 0x0004;
     public static final int Created = 0x0008;
+    public static final int WriteThrough = 0x0010;
 
     // File identifier and parent directory identifier
     protected int m_fid;
@@ -401,6 +402,25 @@ public abstract class NetworkFile {
         return (m_flags & IOPending) != 0;
     }
 
+    /**
+     * Check if writes to the file must reach storage before they complete
+     *
+     * @return boolean
+     */
+    public final boolean isWriteThrough() {
+        return (m_flags & WriteThrough) != 0;
+    }
+
+    /**
+     * Check if the file holds written data that has not reached storage yet,
+     * files that buffer writes override this
+     *
+     * @return boolean
+     */
+    public boolean hasBufferedWrites() {
+        return false;
+    }
+
     /**
      * Check if the file was created during the open
      *
@@ -579,6 +599,15 @@ public abstract class NetworkFile {
         m_createDate = dattim;
     }
 
+    /**
+     * Set or clear the write through flag
+     *
+     * @param writeThru boolean
+     */
+    public final void setWriteThrough(boolean writeThru) {
+        setStatusFlag(WriteThrough, writeThru);
+    }
+
     /**
      * Set or clear the delayed write error flag
      *
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2016 SurCloud.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ */
+
+package org.alfresco.jlan.server.filesys.cache;
+
+import org.alfresco.jlan.server.filesys.FileInfo;
+import org.alfresco.jlan.server.filesys.SearchContext;
+
+/**
+ * Cached Search Context Class
+ *
+ * <p>
+ * Search context that returns the file information from a directory snapshot.
+ */
+public class CachedSearchContext extends SearchContext {
+
+    // Directory snapshot and index of the next entry to return
+    private final DirectorySnapshot m_snapshot;
+    private int m_idx;
+
+    /**
+     * Class constructor
+     *
+     * @param snapshot DirectorySnapshot
+     * @param searchStr String
+     */
+    public CachedSearchContext(DirectorySnapshot snapshot, String searchStr) {
+        m_snapshot = snapshot;
+        setSearchString(searchStr);
+    }
+
+    @Override
+    public int getResumeId() {
+        return m_idx;
+    }
+
+    @Override
+    public boolean hasMoreFiles() {
+        return m_idx < m_snapshot.numberOfEntries();
+    }
+
+    @Override
+    public boolean nextFileInfo(FileInfo info) {
+        if (m_idx >= m_snapshot.numberOfEntries()) {
+            return false;
+        }
+        info.copyFrom(m_snapshot.getEntryAt(m_idx++));
+        return true;
+    }
+
+    @Override
+    public String nextFileName() {
+        if (m_idx >= m_snapshot.numberOfEntries()) {
+            return null;
+        }
+        return m_snapshot.getEntryAt(m_idx++).getFileName();
+    }
+
+    @Override
+    public int numberOfEntries() {
+        return m_snapshot.numberOfEntries();
+    }
+
+    @Override
+    public boolean restartAt(int resumeId) {
+        if (resumeId < 0 || resumeId >= m_snapshot.numberOfEntries()) {
+            return false;
+        }
+        m_idx = resumeId;
+        return true;
+    }
+
+    @Override
+    public boolean restartAt(FileInfo info) {
+        // Search backwards from the last returned entry, normally the restart is for that entry
+        int idx = Math.min(m_idx, m_snapshot.numberOfEntries()) - 1;
+        while (idx >= 0) {
+            if (m_snapshot.getEntryAt(idx).getFileName().equals(info.getFileName())) {
+                m_idx = idx;
+                return true;
+            }
+            idx--;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,421 @@
+/*
+ * Copyright (C) 2016 SurCloud.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ */
+
+package org.alfresco.jlan.server.filesys.cache;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.jlan.debug.Debug;
+import org.alfresco.jlan.server.filesys.FileName;
+import org.alfresco.jlan.server.filesys.SearchContext;
+
+/**
+ * Directory Cache Class
+ *
+ * <p>
+ * Caches snapshots of completed directory searches for a shared device, keyed
+ * by directory path, search pattern and search attributes. A repeated wildcard
+ * search of the same folder is served from the snapshot instead of calling the
+ * disk driver, whatever information level the client requests.
+ *
+ * <p>
+ * Snapshots are built by recording a driver search as the client enumerates
+ * it, and are only stored if the enumeration ran to completion. Snapshots are
+ * invalidated by file server change events for the folder and expire after
+ * the cache timeout, which bounds how stale a listing can be when the
+ * filesystem is changed by other servers.
+ */
+public class DirectoryCache {
+
+    // Defaults
+    public static final long DefaultTimeout = 10000L;
+    public static final int DefaultMaximumDirectories = 128;
+    public static final int DefaultMaximumEntries = 50000;
+
+    // Snapshot expiry time in milliseconds
+    private final long m_timeout;
+
+    // Maximum number of cached directory snapshots, and maximum entries per snapshot
+    private final int m_maxDirs;
+    private final int m_maxEntries;
+
+    // Flag to indicate if path names are caseless
+    private final boolean m_caseless;
+
+    // Cached snapshots, keyed by directory path, search pattern and attributes
+    private final ConcurrentMap<String, DirectorySnapshot> m_cache = new ConcurrentHashMap<>();
+
+    // Searches being recorded, a recording is discarded if its folder changes before it completes
+    private final Set<RecordingSearchContext> m_recordings = Collections.newSetFromMap(new ConcurrentHashMap<RecordingSearchContext, Boolean>());
+
+    // Statistics
+    private final AtomicLong m_statHits = new AtomicLong();
+    private final AtomicLong m_statMisses = new AtomicLong();
+    private final AtomicLong m_statInvalidations = new AtomicLong();
+
+    // Debug enable
+    private boolean m_debug;
+
+    /**
+     * Class constructor
+     *
+     * @param caseless boolean
+     */
+    public DirectoryCache(boolean caseless) {
+        this(DefaultTimeout, DefaultMaximumDirectories, DefaultMaximumEntries, caseless);
+    }
+
+    /**
+     * Class constructor
+     *
+     * @param timeout long
+     * @param maxDirs int
+     * @param maxEntries int
+     * @param caseless boolean
+     */
+    public DirectoryCache(long timeout, int maxDirs, int maxEntries, boolean caseless) {
+        m_timeout = timeout;
+        m_maxDirs = maxDirs;
+        m_maxEntries = maxEntries;
+        m_caseless = caseless;
+    }
+
+    /**
+     * Return the snapshot expiry time, in milliseconds
+     *
+     * @return long
+     */
+    public final long getTimeout() {
+        return m_timeout;
+    }
+
+    /**
+     * Return the maximum number of cached directory snapshots
+     *
+     * @return int
+     */
+    public final int getMaximumDirectories() {
+        return m_maxDirs;
+    }
+
+    /**
+     * Return the maximum number of entries in a directory snapshot
+     *
+     * @return int
+     */
+    public final int getMaximumEntries() {
+        return m_maxEntries;
+    }
+
+    /**
+     * Return the number of cached directory snapshots
+     *
+     * @return int
+     */
+    public final int numberOfEntries() {
+        return m_cache.size();
+    }
+
+    /**
+     * Return the count of searches served from the cache
+     *
+     * @return long
+     */
+    public final long getStatHits() {
+        return m_statHits.get();
+    }
+
+    /**
+     * Return the count of searches that were not found in the cache
+     *
+     * @return long
+     */
+    public final long getStatMisses() {
+        return m_statMisses.get();
+    }
+
+    /**
+     * Return the count of snapshots invalidated by change events
+     *
+     * @return long
+     */
+    public final long getStatInvalidations() {
+        return m_statInvalidations.get();
+    }
+
+    /**
+     * Determine if debug output is enabled
+     *
+     * @return boolean
+     */
+    public final boolean hasDebug() {
+        return m_debug;
+    }
+
+    /**
+     * Enable/disable debug output
+     *
+     * @param dbg boolean
+     */
+    public final void setDebug(boolean dbg) {
+        m_debug = dbg;
+    }
+
+    /**
+     * Start a search using a cached directory snapshot
+     *
+     * @param searchPath String
+     * @param attrib int
+     * @return SearchContext, or null if there is no valid snapshot for the search
+     */
+    public final SearchContext startSearch(String searchPath, int attrib) {
+        String key = makeKey(searchPath, attrib);
+        DirectorySnapshot snapshot = m_cache.get(key);
+        if (snapshot != null && snapshot.hasExpired(System.currentTimeMillis(), m_timeout)) {
+            m_cache.remove(key, snapshot);
+            snapshot = null;
+        }
+        if (snapshot == null) {
+            m_statMisses.incrementAndGet();
+            return null;
+        }
+        m_statHits.incrementAndGet();
+        if (Debug.EnableInfo && hasDebug()) {
+            Debug.println("DirectoryCache hit path=" + searchPath + ", entries=" + snapshot.numberOfEntries());
+        }
+        return new CachedSearchContext(snapshot, FileName.splitPath(searchPath)[1]);
+    }
+
+    /**
+     * Wrap a disk driver search so that the search results are recorded and
+     * added to the cache if the search is enumerated to completion
+     *
+     * @param ctx SearchContext
+     * @param searchPath String
+     * @param attrib int
+     * @return SearchContext
+     */
+    public final SearchContext recordSearch(SearchContext ctx, String searchPath, int attrib) {
+        RecordingSearchContext recording = new RecordingSearchContext(this, ctx, makeKey(searchPath, attrib), getDirectoryPath(searchPath));
+        m_recordings.add(recording);
+        return recording;
+    }
+
+    /**
+     * Add a completed snapshot to the cache, if the folder has not changed
+     * since the snapshot recording was started
+     *
+     * @param key String
+     * @param snapshot DirectorySnapshot
+     * @param recording RecordingSearchContext
+     */
+    final void addSnapshot(String key, DirectorySnapshot snapshot, RecordingSearchContext recording) {
+        if (recording.hasChanged()) {
+            return;
+        }
+        if (m_cache.size() >= m_maxDirs && m_cache.containsKey(key) == false) {
+            removeOldestSnapshot();
+        }
+        m_cache.put(key, snapshot);
+        // Discard the snapshot if a change event arrived while it was being added
+        if (recording.hasChanged()) {
+            m_cache.remove(key, snapshot);
+        }
+        if (Debug.EnableInfo && hasDebug()) {
+            Debug.println("DirectoryCache add path=" + snapshot.getDirectoryPath() + ", entries=" + snapshot.numberOfEntries());
+        }
+    }
+
+    /**
+     * Stop tracking a search recording, called when the recording completes or
+     * the search is closed
+     *
+     * @param recording RecordingSearchContext
+     */
+    final void endRecording(RecordingSearchContext recording) {
+        m_recordings.remove(recording);
+    }
+
+    /**
+     * Invalidate cached snapshots affected by a change to the specified file
+     * or directory. The snapshot of the parent folder is removed, along with
+     * any snapshots of the path itself and of folders below it. Recordings of
+     * the same folders are discarded, recordings of other folders are kept.
+     *
+     * @param path String
+     */
+    public final void invalidatePath(String path) {
+        if (path == null) {
+            for (RecordingSearchContext recording : m_recordings) {
+                recording.setChanged();
+            }
+            return;
+        }
+        String dirPath = normalizePath(path);
+        String parentPath = getDirectoryPath(path);
+        String subPrefix = dirPath.endsWith(FileName.DOS_SEPERATOR_STR) ? dirPath : dirPath + FileName.DOS_SEPERATOR;
+        for (RecordingSearchContext recording : m_recordings) {
+            if (isAffected(recording.getDirectoryPath(), parentPath, dirPath, subPrefix)) {
+                recording.setChanged();
+            }
+        }
+        if (m_cache.isEmpty()) {
+            return;
+        }
+        Iterator<DirectorySnapshot> iter = m_cache.values().iterator();
+        while (iter.hasNext()) {
+            String snapPath = iter.next().getDirectoryPath();
+            if (isAffected(snapPath, parentPath, dirPath, subPrefix)) {
+                iter.remove();
+                m_statInvalidations.incrementAndGet();
+                if (Debug.EnableInfo && hasDebug()) {
+                    Debug.println("DirectoryCache invalidate path=" + snapPath + ", change=" + path);
+                }
+            }
+        }
+    }
+
+    /**
+     * Check if a folder is affected by a change to a path
+     *
+     * @param folder String
+     * @param parentPath String
+     * @param dirPath String
+     * @param subPrefix String
+     * @return boolean
+     */
+    private static boolean isAffected(String folder, String parentPath, String dirPath, String subPrefix) {
+        return folder.equals(parentPath) || folder.equals(dirPath) || folder.startsWith(subPrefix);
+    }
+
+    /**
+     * Invalidate cached snapshots affected by a rename
+     *
+     * @param oldPath String
+     * @param newPath String
+     */
+    public final void invalidateRename(String oldPath, String newPath) {
+        invalidatePath(oldPath);
+        invalidatePath(newPath);
+    }
+
+    /**
+     * Remove all cached snapshots
+     */
+    public final void removeAllSnapshots() {
+        for (RecordingSearchContext recording : m_recordings) {
+            recording.setChanged();
+        }
+        m_cache.clear();
+    }
+
+    /**
+     * Remove the oldest snapshot from the cache
+     */
+    private void removeOldestSnapshot() {
+        String oldestKey = null;
+        long oldestTime = Long.MAX_VALUE;
+        for (Map.Entry<String, DirectorySnapshot> entry : m_cache.entrySet()) {
+            if (entry.getValue().getCreationTime() < oldestTime) {
+                oldestTime = entry.getValue().getCreationTime();
+                oldestKey = entry.getKey();
+            }
+        }
+        if (oldestKey != null) {
+            m_cache.remove(oldestKey);
+        }
+    }
+
+    /**
+     * Build the cache key for a search
+     *
+     * @param searchPath String
+     * @param attrib int
+     * @return String
+     */
+    private String makeKey(String searchPath, int attrib) {
+        String[] paths = FileName.splitPath(searchPath);
+        StringBuilder key = new StringBuilder();
+        key.append(normalizePath(paths[0]));
+        key.append(':');
+        key.append(m_caseless && paths[1] != null ? paths[1].toUpperCase() : paths[1]);
+        key.append(':');
+        key.append(attrib);
+        return key.toString();
+    }
+
+    /**
+     * Return the normalized path of the folder containing the specified path
+     *
+     * @param path String
+     * @return String
+     */
+    private String getDirectoryPath(String path) {
+        return normalizePath(FileName.splitPath(path)[0]);
+    }
+
+    /**
+     * Normalize a path so that it can be compared with cached folder paths
+     *
+     * @param path String
+     * @return String
+     */
+    private String normalizePath(String path) {
+        if (path == null || path.length() == 0) {
+            return FileName.DOS_SEPERATOR_STR;
+        }
+        String normPath = path;
+        if (normPath.charAt(0) != FileName.DOS_SEPERATOR) {
+            normPath = FileName.DOS_SEPERATOR_STR + normPath;
+        }
+        if (normPath.length() > 1 && normPath.endsWith(FileName.DOS_SEPERATOR_STR)) {
+            normPath = normPath.substring(0, normPath.length() - 1);
+        }
+        return m_caseless ? normPath.toUpperCase() : normPath;
+    }
+
+    /**
+     * Return the directory cache details as a string
+     *
+     * @return String
+     */
+    @Override
+    public String toString() {
+        StringBuilder str = new StringBuilder();
+        str.append("[DirectoryCache Dirs=");
+        str.append(numberOfEntries());
+        str.append(",Hits=");
+        str.append(getStatHits());
+        str.append(",Misses=");
+        str.append(getStatMisses());
+        str.append(",Invalidations=");
+        str.append(getStatInvalidations());
+        str.append(",Timeout=");
+        str.append(getTimeout());
+        str.append("ms]");
+        return str.toString();
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2016 SurCloud.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ */
+
+package org.alfresco.jlan.server.filesys.cache;
+
+import org.alfresco.jlan.server.filesys.FileInfo;
+
+/**
+ * Directory Snapshot Class
+ *
+ * <p>
+ * Immutable list of the file information returned by a completed directory
+ * search.
+ */
+public final class DirectorySnapshot {
+
+    // Normalized path of the folder that was searched
+    private final String m_dirPath;
+
+    // File information for the search results, in search order
+    private final FileInfo[] m_entries;
+
+    // Time the snapshot was created
+    private final long m_createTime;
+
+    /**
+     * Class constructor
+     *
+     * @param dirPath String
+     * @param entries FileInfo[]
+     */
+    public DirectorySnapshot(String dirPath, FileInfo[] entries) {
+        m_dirPath = dirPath;
+        m_entries = entries;
+        m_createTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Return the normalized folder path
+     *
+     * @return String
+     */
+    public String getDirectoryPath() {
+        return m_dirPath;
+    }
+
+    /**
+     * Return the number of entries in the snapshot
+     *
+     * @return int
+     */
+    public int numberOfEntries() {
+        return m_entries.length;
+    }
+
+    /**
+     * Return the file information for the specified entry. The returned object
+     * is shared and must not be modified.
+     *
+     * @param idx int
+     * @return FileInfo
+     */
+    public FileInfo getEntryAt(int idx) {
+        return m_entries[idx];
+    }
+
+    /**
+     * Return the snapshot creation time
+     *
+     * @return long
+     */
+    public long getCreationTime() {
+        return m_createTime;
+    }
+
+    /**
+     * Check if the snapshot has expired
+     *
+     * @param now long
+     * @param timeout long
+     * @return boolean
+     */
+    public boolean hasExpired(long now, long timeout) {
+        return now - m_createTime > timeout;
+    }
+}
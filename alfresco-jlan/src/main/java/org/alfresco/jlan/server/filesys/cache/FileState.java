@@ -89,6 +89,14 @@ public class FileState {
 	
 	private long m_tmo;
 	
+	//	Time the file state was last accessed via the file state cache, used to select states to evict
+	
+	private volatile long m_lastAccess;
+	
+	//	Indicates the file state is queued for an expiry check by the file state cache
+	
+	private boolean m_expiryQueued;
+	
 	//	File status, indicates if the file/folder exists and if it is a file or folder.
 	//	Constants are defined in the FileStatus class.
 	
@@ -116,7 +124,7 @@ public class FileState {
 
 	//	File lock list, allocated once there are active locks on this file
 	
-	private FileLockList m_lockList;
+	private volatile FileLockList m_lockList;
 	
 	//	Retention period expiry date/time
 	
@@ -166,6 +174,42 @@ public class FileState {
 	  return m_path;
 	}
 	
+	/**
+	 * Return the time the file state was last accessed via the file state cache
+	 * 
+	 * @return long
+	 */
+	public final long getLastAccessTime() {
+		return m_lastAccess;
+	}
+	
+	/**
+	 * Set the time the file state was last accessed via the file state cache
+	 * 
+	 * @param accessTime long
+	 */
+	public final void setLastAccessTime(long accessTime) {
+		m_lastAccess = accessTime;
+	}
+	
+	/**
+	 * Check if the file state is queued for an expiry check, the caller must hold the file state lock
+	 * 
+	 * @return boolean
+	 */
+	final boolean isExpiryQueued() {
+		return m_expiryQueued;
+	}
+	
+	/**
+	 * Set the expiry check queued flag, the caller must hold the file state lock
+	 * 
+	 * @param queued boolean
+	 */
+	final void setExpiryQueued(boolean queued) {
+		m_expiryQueued = queued;
+	}
+	
 	/**
 	 * 	Return the file exists state
 	 * 
@@ -357,6 +401,15 @@ public class FileState {
 	  return false;
 	}
 	
+	/**
+	 * Return the file state expiry time, or NoTimeout
+	 * 
+	 * @return long
+	 */
+	public final long getExpiryTime() {
+		return m_tmo;
+	}
+	
 	/**
 	 * Return the number of seconds left before the file state expires
 	 * 
@@ -538,15 +591,17 @@ public class FileState {
 		
 		//	Add the lock to the list, check if there are any lock conflicts
 		
-		synchronized (m_lockList) {
+		FileLockList lockList = m_lockList;
+		
+		synchronized (lockList) {
 			
 			//	Check if the new lock overlaps with any existing locks
 			
-			if ( m_lockList.allowsLock(lock)) {
+			if ( lockList.allowsLock(lock)) {
 				
 				//	Add the new lock to the list
 				
-				m_lockList.addLock(lock);
+				lockList.addLock(lock);
 			}
 			else
 				throw new LockConflictException();
@@ -564,16 +619,17 @@ public class FileState {
 			
 		//	Check if the lock list has been allocated
 		
-		if ( m_lockList == null)
+		FileLockList lockList = m_lockList;
+		if ( lockList == null)
 			throw new NotLockedException();
 			
 		//	Remove the lock from the active list
 		
-		synchronized ( m_lockList) {
+		synchronized ( lockList) {
 			
 			//	Remove the lock, check if we found the matching lock
 			
-			if ( m_lockList.removeLock(lock) == null)
+			if ( lockList.removeLock(lock) == null)
 				throw new NotLockedException();
 		}
 	}
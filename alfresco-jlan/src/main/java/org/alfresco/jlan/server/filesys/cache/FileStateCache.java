@@ -26,8 +26,16 @@
 package org.alfresco.jlan.server.filesys.cache;
 
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Enumeration;
-import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.alfresco.jlan.debug.Debug;
 import org.alfresco.jlan.server.filesys.FileName;
@@ -38,27 +46,48 @@ import org.alfresco.jlan.server.filesys.FileStatus;
  * 
  * <p>Contains a cache of file/directory information for recently accessed files/directories
  * to reduce the calls made by the core server code to the shared device driver.
+ * 
+ * <p>The cache is a concurrent map so lookups do not serialize on a single monitor. Paths are
+ * normalized by the cache key when they are hashed and compared, so lookups do not build a
+ * normalized path string. The number of cached states is bounded, when the limit is exceeded
+ * the least recently used file states that are not open or locked are evicted.
+ * 
+ * <p>File states are queued on a timing wheel by expiry time, the expiry check only visits the
+ * file states that are due to expire.
  *
  * @author gkspencer
  */
 public class FileStateCache implements Runnable {
 
-	//	Initial allocation size for the state cache
+	//	Initial allocation size for the state cache, and number of update stripes
 	
 	private static final int INITIAL_SIZE					= 500;
+	private static final int CONCURRENCY_LEVEL		= 64;
 	
 	//	Default expire check thread interval
 	
 	private static final long DEFAULT_EXPIRECHECK	= 3000;	// 60000;	//	1 minute
 	
+	//	Default maximum number of file states, eviction removes states until the cache is at the
+	//	low water percentage of the maximum
+	
+	public static final int DefaultMaximumStates	= 100000;
+	private static final int EVICT_LOWWATER				= 90;
+	
 	// File state factory, used to create FileState objects
 	
 	private FileStateFactoryInterface m_stateFactory = new DefaultFileStateFactory();
 	
-	//  File state cache, keyed by file path
+	//  File state cache, keyed by normalized file path, and count of cached states
 
-	private Hashtable<String, FileState> m_stateCache;
+	private ConcurrentHashMap<FileStateKey, FileState> m_stateCache;
+	private AtomicInteger m_stateCount = new AtomicInteger();
 
+	//	Maximum number of file states, zero for no limit, and lock held while evicting states
+	
+	private int m_maxStates = DefaultMaximumStates;
+	private ReentrantLock m_evictLock = new ReentrantLock();
+	
 	//	Wakeup interval for the expire file state checker thread
 	
 	private long m_expireInterval = DEFAULT_EXPIRECHECK;
@@ -76,6 +105,21 @@ public class FileStateCache implements Runnable {
 	private Thread m_expireThread;
 	private boolean m_shutdown = false;
   
+	//	Statistics
+	
+	private AtomicLong m_statHits = new AtomicLong();
+	private AtomicLong m_statMisses = new AtomicLong();
+	private AtomicLong m_statCreateRaces = new AtomicLong();
+	private AtomicLong m_statEvictions = new AtomicLong();
+	private AtomicLong m_statEvictSkips = new AtomicLong();
+	private AtomicLong m_statExpired = new AtomicLong();
+	private volatile long m_statSweepTime;
+	private volatile int m_statSweepVisited;
+	
+	//	Timing wheel of file states waiting for an expiry check
+	
+	private FileStateExpiryWheel m_expiryWheel = new FileStateExpiryWheel();
+	
 	//	Debug enable and output stream
 	
 	private boolean m_debug = false;
@@ -84,7 +128,7 @@ public class FileStateCache implements Runnable {
    * Class constructor
    */
   public FileStateCache() {
-    m_stateCache = new Hashtable<String, FileState>(INITIAL_SIZE);
+    m_stateCache = new ConcurrentHashMap<FileStateKey, FileState>(INITIAL_SIZE, 0.75f, CONCURRENCY_LEVEL);
     
     //	Start the expired file state checker thread
     
@@ -118,7 +162,89 @@ public class FileStateCache implements Runnable {
 	 * @return int
 	 */
 	public final int numberOfStates() {
-		return m_stateCache.size();
+		return m_stateCount.get();
+	}
+	
+	/**
+	 * Return the maximum number of states in the cache, zero indicates no limit
+	 * 
+	 * @return int
+	 */
+	public final int getMaximumStates() {
+		return m_maxStates;
+	}
+	
+	/**
+	 * Return the count of lookups that found a file state
+	 * 
+	 * @return long
+	 */
+	public final long getStatHits() {
+		return m_statHits.get();
+	}
+	
+	/**
+	 * Return the count of lookups that did not find a file state
+	 * 
+	 * @return long
+	 */
+	public final long getStatMisses() {
+		return m_statMisses.get();
+	}
+	
+	/**
+	 * Return the count of file states that were created by two threads at the same time, the
+	 * state created by the losing thread is discarded
+	 * 
+	 * @return long
+	 */
+	public final long getStatCreateRaces() {
+		return m_statCreateRaces.get();
+	}
+	
+	/**
+	 * Return the count of file states evicted to keep the cache within the maximum size
+	 * 
+	 * @return long
+	 */
+	public final long getStatEvictions() {
+		return m_statEvictions.get();
+	}
+	
+	/**
+	 * Return the count of evictions skipped because another thread was already evicting
+	 * 
+	 * @return long
+	 */
+	public final long getStatEvictSkips() {
+		return m_statEvictSkips.get();
+	}
+	
+	/**
+	 * Return the count of file states removed by the expiry check
+	 * 
+	 * @return long
+	 */
+	public final long getStatExpired() {
+		return m_statExpired.get();
+	}
+	
+	/**
+	 * Return the time taken by the last expiry check, in microseconds
+	 * 
+	 * @return long
+	 */
+	public final long getStatSweepTime() {
+		return m_statSweepTime;
+	}
+	
+	/**
+	 * Return the number of file states visited by the last expiry check
+	 * 
+	 * @return int
+	 */
+	public final int getStatSweepVisited() {
+		return m_statSweepVisited;
 	}
 	
   /**
@@ -139,6 +265,15 @@ public class FileStateCache implements Runnable {
   	m_expireInterval = chkIntval;
   }
   
+  /**
+   * Set the maximum number of states in the cache, zero indicates no limit
+   * 
+   * @param maxStates int
+   */
+  public final void setMaximumStates(int maxStates) {
+  	m_maxStates = maxStates;
+  }
+  
   /**
    * Determine if debug output is enabled
    * 
@@ -181,13 +316,8 @@ public class FileStateCache implements Runnable {
    * 
    * @param fstate FileState
    */
-  public final synchronized void addFileState(FileState fstate) {
-  	
-  	//	Check if the file state already exists in the cache
+  public final void addFileState(FileState fstate) {
   	
-  	if ( Debug.EnableInfo && hasDebug() && m_stateCache.get(fstate.getPath()) != null)
-  		Debug.println("***** addFileState() state=" + fstate.toString() + " - ALREADY IN CACHE *****");
-
 		//	DEBUG
 		
 		if ( Debug.EnableError && fstate == null) {
@@ -198,7 +328,14 @@ public class FileStateCache implements Runnable {
   	//	Set the file state timeout and add to the cache
   	
   	fstate.setExpiryTime(System.currentTimeMillis() + getCacheTimer());
-    m_stateCache.put( fstate.getPath(), fstate);
+  	fstate.setLastAccessTime(System.currentTimeMillis());
+  	
+  	if ( putState(fstate) != null && Debug.EnableInfo && hasDebug())
+  		Debug.println("***** addFileState() state=" + fstate.toString() + " - ALREADY IN CACHE *****");
+  	
+  	//	Check if the cache has grown past the maximum size
+  	
+  	checkCacheSize();
   }
   
   /**
@@ -207,8 +344,8 @@ public class FileStateCache implements Runnable {
    * @param path String
    * @return FileState
    */
-  public final synchronized FileState findFileState(String path) {
-    return m_stateCache.get(FileState.normalizePath(path));
+  public final FileState findFileState(String path) {
+    return findFileState(path, false);
   }
   
   /**
@@ -218,24 +355,42 @@ public class FileStateCache implements Runnable {
    * @param create boolean
    * @return FileState
    */
-  public final synchronized FileState findFileState(String path, boolean create) {
+  public final FileState findFileState(String path, boolean create) {
   	
   	//	Find the required file state, if it exists
   	
-  	FileState state = m_stateCache.get(FileState.normalizePath(path));
+  	FileStateKey key = new FileStateKey(path);
+  	FileState state = m_stateCache.get(key);
+  	long curTime = System.currentTimeMillis();
+  	
+  	if ( state != null) {
+  		state.setLastAccessTime(curTime);
+  		m_statHits.incrementAndGet();
+  		return state;
+  	}
+  	m_statMisses.incrementAndGet();
   	
   	//	Check if we should create a new file state
   	
-  	if ( state == null && create == true) {
-  		
-  		//	Create a new file state
+  	if ( create == true) {
   		
-  		state = m_stateFactory.createFileState( path);
+  		//	Create a new file state, set the file state timeout
   		
-	  	//	Set the file state timeout and add to the cache
+  		FileState newState = m_stateFactory.createFileState( path);
+	  	newState.setExpiryTime(curTime + getCacheTimer());
+	  	newState.setLastAccessTime(curTime);
 	  	
-	  	state.setExpiryTime(System.currentTimeMillis() + getCacheTimer());
-	    m_stateCache.put(state.getPath(), state);
+	  	//	Add the new state to the cache, unless another thread has added a state for the path
+	  	
+	  	state = m_stateCache.putIfAbsent(key, newState);
+	  	if ( state == null) {
+	  		state = newState;
+	  		m_stateCount.incrementAndGet();
+	  		scheduleExpiryCheck(state, curTime);
+	  		checkCacheSize();
+	  	}
+	  	else
+	  		m_statCreateRaces.incrementAndGet();
   	}
   	
   	//	Return the file state
@@ -250,11 +405,11 @@ public class FileStateCache implements Runnable {
    * @param newName String
    * @return FileState
    */
-  public final synchronized FileState updateFileState(String oldName, String newName) {
+  public final FileState updateFileState(String oldName, String newName) {
   	
   	//	Find the current file state
   	
-  	FileState state = m_stateCache.remove(FileState.normalizePath(oldName));
+  	FileState state = removeState(new FileStateKey(oldName));
 
 		//	Rename the file state and add it back into the cache using the new name
 		
@@ -274,7 +429,15 @@ public class FileStateCache implements Runnable {
    * @return Enumeration<String>
    */
   public final Enumeration<String> enumerate() {
-    return m_stateCache.keys();
+  	final Iterator<FileStateKey> iter = m_stateCache.keySet().iterator();
+    return new Enumeration<String>() {
+    	public boolean hasMoreElements() {
+    		return iter.hasNext();
+    	}
+    	public String nextElement() {
+    		return iter.next().getPath();
+    	}
+    };
   }
   
   /**
@@ -283,11 +446,11 @@ public class FileStateCache implements Runnable {
    * @param path String
    * @return FileState
    */
-  public final synchronized FileState removeFileState(String path) {
+  public final FileState removeFileState(String path) {
 
 		//	Remove the file state from the cache
 		
-    FileState state = m_stateCache.remove(FileState.normalizePath(path));
+    FileState state = removeState(new FileStateKey(path));
 
 		//	Check if there is a state listener
 		
@@ -309,23 +472,16 @@ public class FileStateCache implements Runnable {
    */
   public final void renameFileState(String newPath, FileState state, boolean isDir) {
 
-    // Synchronize the cache update
+    // Remove the existing file state from the cache, using the original name
 
     String oldPath = state.getPath();
-    
-    synchronized ( m_stateCache) {
-      
-      //  Remove the existing file state from the cache, using the original name
+    removeState(new FileStateKey(oldPath), state);
       
-      m_stateCache.remove( state.getPath());
-      
-      //	Update the file state path and add it back to the cache using the new name
+    //	Update the file state path and add it back to the cache using the new name
 
-      state.setPath( newPath);
-      state.setFileStatus( isDir ? FileStatus.DirectoryExists : FileStatus.FileExists);
-        
-      m_stateCache.put(state.getPath(), state);
-    }
+    state.setPath( newPath);
+    state.setFileStatus( isDir ? FileStatus.DirectoryExists : FileStatus.FileExists);
+    putState(state);
     
     // If the path is to a folder we must change the file status of all file states that are using the old
     // path
@@ -340,27 +496,21 @@ public class FileStateCache implements Runnable {
       
       // Enumerate the file states
       
-      Enumeration enm = enumerate();
-      
-      while ( enm.hasMoreElements()) {
+      for ( FileState renState : m_stateCache.values()) {
         
         //  Get the current path from the state cache
         
-        String statePath = (String) enm.nextElement();
+        String statePath = renState.getPath();
         
         // Check if the path is below the renamed path
         
         if ( statePath.length() > oldPath.length() && statePath.startsWith( oldPath)) {
 
-          // Get the associated file state, update and put back into the cache
-
-          FileState renState = (FileState) m_stateCache.remove( statePath);
+          // Update the file state, it stays in the cache under the old path
 
           renState.setFileStatus( FileStatus.NotExist);
           renState.setFileId( FileState.UnknownFileId);
 
-          m_stateCache.put(renState.getPath(), renState);
-          
           //  DEBUG
           
           if ( Debug.EnableInfo && hasDebug())
@@ -373,22 +523,24 @@ public class FileStateCache implements Runnable {
   /**
    * Remove all file states from the cache
    */
-  public final synchronized void removeAllFileStates() {
+  public final void removeAllFileStates() {
   	
 		//	Check if there are any items in the cache
 		
 		if ( m_stateCache == null || m_stateCache.size() == 0)
 			return;
 			    
-    //	Enumerate the file state cache and remove expired file state objects
+    //	Enumerate the file state cache and remove the file state objects
     
-   	Enumeration<String> enm = m_stateCache.keys();
+    Iterator<FileStateKey> iter = m_stateCache.keySet().iterator();
   	
-  	while ( enm.hasMoreElements()) {
+  	while ( iter.hasNext()) {
 
    	  //	Get the file state
    	  
-   	  FileState state = m_stateCache.get(enm.nextElement());
+   	  FileState state = removeState(iter.next());
+   	  if ( state == null)
+   	  	continue;
 
 			//	Check if there is a state listener
 			
@@ -401,9 +553,9 @@ public class FileStateCache implements Runnable {
 	    	Debug.println("++ Closed: " + state.getPath());
    	}
    	
-   	//	Remove all the file states
+   	//	Clear the expiry queue
    	
-   	m_stateCache.clear();
+   	m_expiryWheel.clear();
   }
   
   /**
@@ -413,57 +565,66 @@ public class FileStateCache implements Runnable {
    */
   public final int removeExpiredFileStates() {
 
-		//	Check if there are any items in the cache
-		
-		if ( m_stateCache == null || m_stateCache.size() == 0)
-			return 0;
-			    
-    //	Enumerate the file state cache and remove expired file state objects
+    //	Get the file states that are due for an expiry check
     
-   	Enumeration<String> enm = m_stateCache.keys();
+		long startTime = System.nanoTime();
 		long curTime = System.currentTimeMillis();
+		List<FileState> dueList = m_expiryWheel.sweep(curTime);
 		
 		int expiredCnt = 0;
     int openCnt    = 0;
    	
-   	while(enm.hasMoreElements()) {
-   	  
-   	  //	Get the file state
+   	for ( FileState state : dueList) {
    	  
-   	  FileState state = m_stateCache.get(enm.nextElement());
-   	  
-   	  if ( state != null && state.hasNoTimeout() == false) {
+   	  synchronized ( state) {
    	  	
-	   	  synchronized ( state) {
-	
-					//	Check if the file state has expired and there are no open references to the file
-					
-		   	  if ( state.hasExpired(curTime) && state.getOpenCount() == 0) {
-		
-						//	Check if there is a state listener
-						
-						if ( m_stateListener == null || m_stateListener.fileStateExpired(state) == true) {
+   	  	//	Ignore file states that have been removed from the cache
+   	  	
+   	  	state.setExpiryQueued(false);
+   	  	if ( m_stateCache.get(new FileStateKey(state.getPath())) != state)
+   	  		continue;
+   	  	
+   	  	//	Check if the file state has a timeout, the timeout may be set later so check again
+   	  	//	after the check interval
+   	  	
+   	  	if ( state.hasNoTimeout()) {
+   	  		scheduleExpiryCheck(state, curTime + getCheckInterval());
+   	  		continue;
+   	  	}
+   	  	
+   	  	//	Check if the file state has expired, the expiry time may have been extended since the
+   	  	//	state was queued
+   	  	
+   	  	if ( state.hasExpired(curTime) == false) {
+   	  		scheduleExpiryCheck(state, state.getExpiryTime());
+   	  		continue;
+   	  	}
+   	  	
+				//	Check if there are open references to the file, or if the state listener wants to
+				//	keep the file state, if so check again after the check interval
+				
+   	  	if ( state.getOpenCount() > 0) {
+   	  		openCnt++;
+   	  		scheduleExpiryCheck(state, curTime + getCheckInterval());
+   	  	}
+   	  	else if ( m_stateListener == null || m_stateListener.fileStateExpired(state) == true) {
 		
-			   	    //	Remove the expired file state
-			   	    
-			   	    m_stateCache.remove(state.getPath());
-			   	    
-			   	    //	DEBUG
-			   	    
-//			   	    if ( m_debug)
-//			   	    	Debug.println("++ Expired file state: " + state);
-			   	    
-			   	    //	Update the expired count
-			   	    
-			   	    expiredCnt++;
-						}
-		   	  }
-          else if ( state.getOpenCount() > 0)
-            openCnt++;
-	   	  }
+   	  		//	Remove the expired file state, update the expired count
+   	  		
+   	  		if ( removeState(new FileStateKey(state.getPath()), state))
+   	  			expiredCnt++;
+   	  	}
+   	  	else
+   	  		scheduleExpiryCheck(state, curTime + getCheckInterval());
    	  }
    	}
 
+   	//	Update the expiry statistics
+   	
+   	m_statExpired.addAndGet(expiredCnt);
+   	m_statSweepVisited = dueList.size();
+   	m_statSweepTime = (System.nanoTime() - startTime) / 1000L;
+   	
     //  DEBUG
     
     if ( m_debug && openCnt > 0) {
@@ -476,6 +637,130 @@ public class FileStateCache implements Runnable {
 		return expiredCnt;
   }
   
+  /**
+   * Queue a file state for an expiry check at the specified time, if it is not already queued
+   * 
+   * @param state FileState
+   * @param checkTime long
+   */
+  private void scheduleExpiryCheck(FileState state, long checkTime) {
+  	synchronized ( state) {
+  		if ( state.isExpiryQueued() == false) {
+  			state.setExpiryQueued(true);
+  			m_expiryWheel.schedule(state, checkTime);
+  		}
+  	}
+  }
+  
+  /**
+   * Check if the cache has grown past the maximum size, and evict the least recently used file states
+   * that are not open or locked. Only one thread evicts at a time, other threads continue without waiting.
+   */
+  private void checkCacheSize() {
+  	
+  	//	Check if the cache is over the maximum size
+  	
+  	int maxStates = m_maxStates;
+  	if ( maxStates <= 0 || m_stateCount.get() <= maxStates)
+  		return;
+  	
+  	if ( m_evictLock.tryLock() == false) {
+  		m_statEvictSkips.incrementAndGet();
+  		return;
+  	}
+  	
+  	try {
+  		
+  		//	Build a list of the file states that can be evicted
+  		
+  		List<FileState> evictList = new ArrayList<FileState>();
+  		for ( FileState state : m_stateCache.values()) {
+  			if ( state.getOpenCount() == 0 && state.hasActiveLocks() == false && state.hasNoTimeout() == false)
+  				evictList.add(state);
+  		}
+  		
+  		//	Evict the least recently used file states until the cache is at the low water mark
+  		
+  		Collections.sort(evictList, new Comparator<FileState>() {
+  			public int compare(FileState state1, FileState state2) {
+  				long access1 = state1.getLastAccessTime();
+  				long access2 = state2.getLastAccessTime();
+  				return access1 < access2 ? -1 : ( access1 == access2 ? 0 : 1);
+  			}
+  		});
+  		
+  		int lowWater = (int) (((long) maxStates * EVICT_LOWWATER) / 100L);
+  		int evictCnt = 0;
+  		
+  		for ( int i = 0; i < evictList.size() && m_stateCount.get() > lowWater; i++) {
+  			FileState state = evictList.get(i);
+  			
+  			synchronized ( state) {
+  				
+  				//	Recheck the state, and allow the state listener to keep the state in the cache
+  				
+  				if ( state.getOpenCount() == 0 && state.hasActiveLocks() == false &&
+  						( m_stateListener == null || m_stateListener.fileStateExpired(state) == true)) {
+  					if ( removeState(new FileStateKey(state.getPath()), state))
+  						evictCnt++;
+  				}
+  			}
+  		}
+  		
+  		m_statEvictions.addAndGet(evictCnt);
+  		
+  		//	DEBUG
+  		
+  		if ( Debug.EnableInfo && hasDebug())
+  			Debug.println("++ Evicted " + evictCnt + " file states, cache=" + numberOfStates());
+  	}
+  	finally {
+  		m_evictLock.unlock();
+  	}
+  }
+  
+  /**
+   * Add a file state to the cache using its current path, replacing any existing state for the path
+   * 
+   * @param state FileState
+   * @return FileState previous state for the path, or null
+   */
+  private FileState putState(FileState state) {
+  	FileState prevState = m_stateCache.put(new FileStateKey(state.getPath()), state);
+  	if ( prevState == null)
+  		m_stateCount.incrementAndGet();
+  	scheduleExpiryCheck(state, state.hasNoTimeout() ? System.currentTimeMillis() + getCheckInterval() : state.getExpiryTime());
+  	return prevState;
+  }
+  
+  /**
+   * Remove the file state for a key from the cache
+   * 
+   * @param key FileStateKey
+   * @return FileState
+   */
+  private FileState removeState(FileStateKey key) {
+  	FileState state = m_stateCache.remove(key);
+  	if ( state != null)
+  		m_stateCount.decrementAndGet();
+  	return state;
+  }
+  
+  /**
+   * Remove a file state from the cache if it is still cached using the specified key
+   * 
+   * @param key FileStateKey
+   * @param state FileState
+   * @return boolean
+   */
+  private boolean removeState(FileStateKey key, FileState state) {
+  	if ( m_stateCache.remove(key, state)) {
+  		m_stateCount.decrementAndGet();
+  		return true;
+  	}
+  	return false;
+  }
+  
   /**
    * Add a file state listener
    * 
@@ -523,7 +808,8 @@ public class FileStateCache implements Runnable {
 				//	Debug
 				
 				if ( Debug.EnableInfo && hasDebug() && cnt > 0)
-					Debug.println("++ Expired " + cnt + " file states, cache=" + m_stateCache.size());
+					Debug.println("++ Expired " + cnt + " file states, cache=" + numberOfStates() + ", checked=" +
+							getStatSweepVisited() + ", time=" + getStatSweepTime() + "us");
   		}
   		catch (Exception ex) {
   			Debug.println(ex);
@@ -551,16 +837,13 @@ public class FileStateCache implements Runnable {
   	//	Dump the file state cache entries to the specified stream
   	
   	if ( m_stateCache.size() > 0)
-  		out.println("++ FileStateCache Entries:");
+  		out.println("++ FileStateCache Entries: hits=" + getStatHits() + ", misses=" + getStatMisses() + ", createRaces=" +
+  				getStatCreateRaces() + ", evictions=" + getStatEvictions() + ", evictSkips=" + getStatEvictSkips() + ", expired=" + getStatExpired());
   	
-  	Enumeration<String> enm = m_stateCache.keys();
   	long curTime = System.currentTimeMillis();
   	
-  	while ( enm.hasMoreElements()) {
-  		String fname = enm.nextElement();
-  		FileState state = m_stateCache.get(fname);
-  		
-  		out.println("++  " + fname + "(" + state.getSecondsToExpire(curTime) + ") : " + state.toString());
+  	for ( FileState state : m_stateCache.values()) {
+  		out.println("++  " + state.getPath() + "(" + state.getSecondsToExpire(curTime) + ") : " + state.toString());
   		
   		//	Check if the state attributes should be output
   		
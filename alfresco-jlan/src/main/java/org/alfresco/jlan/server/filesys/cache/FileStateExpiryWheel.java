@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2016 SurCloud.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ */
+
+package org.alfresco.jlan.server.filesys.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * File State Expiry Wheel Class
+ *
+ * <p>
+ * Hashed timing wheel of file states, keyed by the time each state should be
+ * checked for expiry. A sweep only visits the slots whose time has passed, so
+ * the cost of a sweep depends on the number of states that are due rather than
+ * the size of the cache. States due further ahead than one rotation of the
+ * wheel are visited once per rotation and put back.
+ */
+class FileStateExpiryWheel {
+
+	//	Slot interval, in milliseconds, and number of slots
+	
+	private static final long TickInterval = 1000L;
+	private static final int SlotCount = 1024;
+
+	//	Wheel slots
+	
+	private final List<ConcurrentLinkedQueue<FileState>> m_slots;
+
+	//	Last tick that was swept, -1 if the wheel has not been swept
+	
+	private volatile long m_lastTick = -1L;
+
+	/**
+	 * Class constructor
+	 */
+	FileStateExpiryWheel() {
+		m_slots = new ArrayList<ConcurrentLinkedQueue<FileState>>(SlotCount);
+		for ( int i = 0; i < SlotCount; i++)
+			m_slots.add(new ConcurrentLinkedQueue<FileState>());
+	}
+
+	/**
+	 * Schedule a file state to be checked at the specified time. A time that has already been swept
+	 * is scheduled for the next sweep.
+	 *
+	 * @param state FileState
+	 * @param checkTime long
+	 */
+	final void schedule(FileState state, long checkTime) {
+		while ( true) {
+			long tick = Math.max(checkTime / TickInterval, m_lastTick + 1);
+			ConcurrentLinkedQueue<FileState> slot = m_slots.get((int) (tick % SlotCount));
+			slot.add(state);
+			
+			//	If a sweep passed the slot while the state was added, and did not pick it up, move it
+			
+			if ( m_lastTick < tick || slot.remove(state) == false)
+				return;
+		}
+	}
+
+	/**
+	 * Remove the file states from the slots that are due, the caller must
+	 * reschedule any states that are not removed from the cache. Only one
+	 * thread sweeps the wheel at a time.
+	 *
+	 * @param curTime long
+	 * @return List of FileState
+	 */
+	final synchronized List<FileState> sweep(long curTime) {
+		List<FileState> dueList = new ArrayList<FileState>();
+		long curTick = curTime / TickInterval;
+		long lastTick = m_lastTick;
+		if ( lastTick < 0 || curTick - lastTick > SlotCount)
+			lastTick = curTick - SlotCount;
+		
+		while ( lastTick < curTick) {
+			lastTick++;
+			m_lastTick = lastTick;
+			
+			ConcurrentLinkedQueue<FileState> slot = m_slots.get((int) (lastTick % SlotCount));
+			FileState state = slot.poll();
+			while ( state != null) {
+				dueList.add(state);
+				state = slot.poll();
+			}
+		}
+		return dueList;
+	}
+
+	/**
+	 * Remove all scheduled file states
+	 */
+	final void clear() {
+		for ( ConcurrentLinkedQueue<FileState> slot : m_slots)
+			slot.clear();
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2016 SurCloud.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ */
+
+package org.alfresco.jlan.server.filesys.cache;
+
+import org.alfresco.jlan.server.filesys.FileName;
+
+/**
+ * File State Key Class
+ *
+ * <p>
+ * File state cache key that hashes and compares paths in the form returned by
+ * FileState.normalizePath(), with the folder names uppercased and the file
+ * name case preserved, without building the normalized path string.
+ */
+final class FileStateKey {
+
+	//	Path the key was created from
+	
+	private final String m_path;
+	
+	//	Uppercased folder part of the path, and the offset of the file name
+	
+	private final String m_dir;
+	private final int m_nameOff;
+
+	//	Cached hash code
+	
+	private final int m_hash;
+
+	/**
+	 * Class constructor
+	 *
+	 * @param path String
+	 */
+	FileStateKey(String path) {
+		m_path = path;
+		m_nameOff = path.length() > 3 ? Math.max(path.lastIndexOf(FileName.DOS_SEPERATOR), 0) : 0;
+		m_dir = m_nameOff > 0 ? path.substring(0, m_nameOff).toUpperCase() : "";
+		
+		//	Hash the folder and file name parts as the normalized path string would be hashed
+		
+		int hash = m_dir.hashCode();
+		for ( int i = m_nameOff; i < path.length(); i++)
+			hash = 31 * hash + path.charAt(i);
+		m_hash = hash;
+	}
+
+	/**
+	 * Return the path the key was created from
+	 *
+	 * @return String
+	 */
+	String getPath() {
+		return m_path;
+	}
+
+	/**
+	 * Return the hash code
+	 *
+	 * @return int
+	 */
+	@Override
+	public int hashCode() {
+		return m_hash;
+	}
+
+	/**
+	 * Compare keys, the folder parts are compared uppercased and the file names as is
+	 *
+	 * @param obj Object
+	 * @return boolean
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if ( obj == this)
+			return true;
+		if ( obj instanceof FileStateKey == false)
+			return false;
+		
+		FileStateKey key = (FileStateKey) obj;
+		if ( key.m_hash != m_hash || key.m_path.length() - key.m_nameOff != m_path.length() - m_nameOff)
+			return false;
+		return key.m_dir.equals(m_dir) && key.m_path.regionMatches(key.m_nameOff, m_path, m_nameOff, m_path.length() - m_nameOff);
+	}
+
+	/**
+	 * Return the key as a string
+	 *
+	 * @return String
+	 */
+	@Override
+	public String toString() {
+		return m_path;
+	}
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2016 SurCloud.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ */
+
+package org.alfresco.jlan.server.filesys.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.alfresco.jlan.server.filesys.FileInfo;
+import org.alfresco.jlan.server.filesys.SearchContext;
+
+/**
+ * Recording Search Context Class
+ *
+ * <p>
+ * Wraps a disk driver search context and records the file information
+ * returned by the search. When the search has been enumerated to completion
+ * the recorded entries are added to the directory cache as a snapshot.
+ *
+ * <p>
+ * Recording is abandoned if the search is repositioned other than to push
+ * back the last returned entry, or if the folder has more entries than the
+ * cache allows.
+ */
+class RecordingSearchContext extends SearchContext {
+
+    // Directory cache the snapshot will be added to
+    private final DirectoryCache m_dirCache;
+
+    // Disk driver search context
+    private final SearchContext m_search;
+
+    // Cache key and folder path
+    private final String m_key;
+    private final String m_dirPath;
+
+    // Set if the folder changed while the search was being recorded
+    private volatile boolean m_changed;
+
+    // Recorded file information, or null if recording has been abandoned
+    private List<FileInfo> m_entries = new ArrayList<>();
+
+    /**
+     * Class constructor
+     *
+     * @param dirCache DirectoryCache
+     * @param search SearchContext
+     * @param key String
+     * @param dirPath String
+     */
+    RecordingSearchContext(DirectoryCache dirCache, SearchContext search, String key, String dirPath) {
+        m_dirCache = dirCache;
+        m_search = search;
+        m_key = key;
+        m_dirPath = dirPath;
+        setSearchString(search.getSearchString());
+    }
+
+    /**
+     * Return the path of the folder being recorded
+     *
+     * @return String
+     */
+    final String getDirectoryPath() {
+        return m_dirPath;
+    }
+
+    /**
+     * Mark the recording as out of date, the folder has changed
+     */
+    final void setChanged() {
+        m_changed = true;
+    }
+
+    /**
+     * Check if the folder changed while the search was being recorded
+     *
+     * @return boolean
+     */
+    final boolean hasChanged() {
+        return m_changed;
+    }
+
+    @Override
+    public void closeSearch() {
+        checkCompleted();
+        m_search.closeSearch();
+    }
+
+    @Override
+    public int getResumeId() {
+        return m_search.getResumeId();
+    }
+
+    @Override
+    public boolean hasMoreFiles() {
+        return m_search.hasMoreFiles();
+    }
+
+    @Override
+    public boolean nextFileInfo(FileInfo info) {
+        boolean sts = m_search.nextFileInfo(info);
+        if (m_entries != null) {
+            if (sts == true) {
+                if (m_entries.size() < m_dirCache.getMaximumEntries()) {
+                    FileInfo entry = new FileInfo();
+                    entry.copyFrom(info);
+                    m_entries.add(entry);
+                } else {
+                    m_entries = null;
+                }
+            } else {
+                checkCompleted();
+            }
+        }
+        return sts;
+    }
+
+    @Override
+    public String nextFileName() {
+        // Only file information searches are recorded
+        m_entries = null;
+        return m_search.nextFileName();
+    }
+
+    @Override
+    public int numberOfEntries() {
+        return m_search.numberOfEntries();
+    }
+
+    @Override
+    public boolean restartAt(int resumeId) {
+        m_entries = null;
+        return m_search.restartAt(resumeId);
+    }
+
+    @Override
+    public boolean restartAt(FileInfo info) {
+        // Allow the last returned entry to be pushed back when it does not fit in the reply
+        if (m_entries != null) {
+            int lastIdx = m_entries.size() - 1;
+            if (lastIdx >= 0 && m_entries.get(lastIdx).getFileName().equals(info.getFileName())) {
+                m_entries.remove(lastIdx);
+            } else {
+                m_entries = null;
+            }
+        }
+        boolean sts = m_search.restartAt(info);
+        if (sts == false) {
+            m_entries = null;
+        }
+        return sts;
+    }
+
+    /**
+     * Add the recorded entries to the directory cache if the search has completed
+     */
+    private void checkCompleted() {
+        if (m_entries != null && m_search.hasMoreFiles() == false) {
+            m_dirCache.addSnapshot(m_key, new DirectorySnapshot(m_dirPath, m_entries.toArray(new FileInfo[m_entries.size()])), this);
+        }
+        m_entries = null;
+        m_dirCache.endRecording(this);
+    }
+}
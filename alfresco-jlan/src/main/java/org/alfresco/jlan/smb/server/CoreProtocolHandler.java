@@ -186,6 +186,23 @@ class CoreProtocolHandler extends ProtocolHandler {
     return bufPos;
   }
 
+  /**
+   * Invalidate any cached directory listings affected by a change to the specified path
+   *
+   * @param conn TreeConnection
+   * @param path String
+   */
+  protected final void invalidateDirectoryCache(TreeConnection conn, String path) {
+
+    //  Check if the share has a directory cache
+
+    if ( conn.getContext() instanceof DiskDeviceContext) {
+      DiskDeviceContext diskCtx = (DiskDeviceContext) conn.getContext();
+      if ( diskCtx.hasDirectoryCache())
+        diskCtx.getDirectoryCache().invalidatePath(path);
+    }
+  }
+
   /**
    * Check if the specified path exists, and is a directory.
    *
@@ -374,9 +391,10 @@ class CoreProtocolHandler extends ProtocolHandler {
 			if ( disk != null)
       	disk.closeFile(m_sess, conn, netFile);
 
-      //  Indicate that the file has been closed
+      //  Indicate that the file has been closed, wakes any lock requests waiting on the file
 
       netFile.setClosed(true);
+      m_sess.getSMBServer().fireCloseFileEvent(m_sess, netFile);
     }
     catch (InvalidDeviceInterfaceException ex) {
 
@@ -481,6 +499,7 @@ class CoreProtocolHandler extends ProtocolHandler {
       //  Create the new directory
 
       disk.createDirectory(m_sess, conn, params);
+      invalidateDirectoryCache(conn, params.getPath());
     }
     catch (InvalidDeviceInterfaceException ex) {
 
@@ -607,6 +626,7 @@ class CoreProtocolHandler extends ProtocolHandler {
       //  Create the new file
 
       netFile = disk.createFile(m_sess, conn, params);
+      invalidateDirectoryCache(conn, params.getPath());
 
       //  Add the file to the list of open files for this tree connection
 
@@ -739,6 +759,7 @@ class CoreProtocolHandler extends ProtocolHandler {
       //  Delete the directory
 
       disk.deleteDirectory(m_sess, conn, dirName);
+      invalidateDirectoryCache(conn, dirName);
     }
     catch (InvalidDeviceInterfaceException ex) {
 
@@ -857,6 +878,7 @@ class CoreProtocolHandler extends ProtocolHandler {
       //  Delete file(s)
 
       disk.deleteFile(m_sess, conn, fileName);
+      invalidateDirectoryCache(conn, fileName);
     }
     catch (InvalidDeviceInterfaceException ex) {
 
@@ -1973,6 +1995,8 @@ class CoreProtocolHandler extends ProtocolHandler {
       //  Rename the requested file
 
       disk.renameFile(m_sess, conn, oldName, newName);
+      invalidateDirectoryCache(conn, oldName);
+      invalidateDirectoryCache(conn, newName);
     }
     catch (InvalidDeviceInterfaceException ex) {
 
@@ -2796,6 +2820,7 @@ class CoreProtocolHandler extends ProtocolHandler {
 
       finfo.setFileInformationFlags(setFlags);
       disk.setFileInformation(m_sess, conn, fileName, finfo);
+      invalidateDirectoryCache(conn, fileName);
     }
     catch (InvalidDeviceInterfaceException ex) {
 
@@ -2922,6 +2947,7 @@ class CoreProtocolHandler extends ProtocolHandler {
 
       finfo.setFileInformationFlags(setFlags);
       disk.setFileInformation(m_sess, conn, netFile.getFullName(), finfo);
+      invalidateDirectoryCache(conn, netFile.getFullName());
     }
     catch (InvalidDeviceInterfaceException ex) {
 
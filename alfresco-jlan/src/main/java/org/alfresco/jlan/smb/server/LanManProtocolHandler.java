@@ -671,6 +671,7 @@ class LanManProtocolHandler extends CoreProtocolHandler {
                     }
                     //  Create a new file
                     netFile = disk.createFile(m_sess, conn, params);
+                    invalidateDirectoryCache(conn, params.getPath());
                     //  Indicate that the file did not exist and was created
                     respAction = FileAction.FileCreated;
                 } else {
@@ -1060,6 +1061,8 @@ class LanManProtocolHandler extends CoreProtocolHandler {
             DiskInterface disk = (DiskInterface) conn.getSharedDevice().getInterface();
             //  Rename the requested file
             disk.renameFile(m_sess, conn, oldName, newName);
+            invalidateDirectoryCache(conn, oldName);
+            invalidateDirectoryCache(conn, newName);
         } catch (InvalidDeviceInterfaceException ex) {
             //  Failed to get/initialize the disk interface
             m_sess.sendErrorResponseSMB(SMBStatus.DOSInvalidData, SMBStatus.ErrDos);
@@ -2826,6 +2829,7 @@ class LanManProtocolHandler extends CoreProtocolHandler {
         // Determine if the request has a chained command, if so then we will copy the incoming request
         // so that
         //  a chained reply can be built.
+        SMBSrvPacket rxPkt = m_smbPkt;
         SMBSrvPacket outPkt = m_smbPkt;
         boolean chainedCmd = hasChainedCommand(m_smbPkt);
 
@@ -2836,8 +2840,8 @@ class LanManProtocolHandler extends CoreProtocolHandler {
                 m_sess.debugPrintln("AndX Command = 0x" + Integer.toHexString(m_smbPkt.getAndXCommand()));
             }
 
-            //  Copy the request packet into a new packet for the reply
-            outPkt = new SMBSrvPacket(m_smbPkt);
+            //  Copy the request packet into a new pooled packet for the reply
+            outPkt = m_sess.getSMBServer().getPacketPool().allocatePacket(m_smbPkt, m_smbPkt.getBuffer().length);
         }
 
         //	Reset the byte unpack offset
@@ -2846,118 +2850,126 @@ class LanManProtocolHandler extends CoreProtocolHandler {
         //  Determine the SMB command type
         boolean handledOK = true;
 
-        switch (m_smbPkt.getCommand()) {
+        try {
+            switch (m_smbPkt.getCommand()) {
 
-            //  Session setup
-            case PacketType.SessionSetupAndX:
-                procSessionSetup(outPkt);
-                break;
+                //  Session setup
+                case PacketType.SessionSetupAndX:
+                    procSessionSetup(outPkt);
+                    break;
 
-            //  Tree connect
-            case PacketType.TreeConnectAndX:
-                procTreeConnectAndX(outPkt);
-                break;
+                //  Tree connect
+                case PacketType.TreeConnectAndX:
+                    procTreeConnectAndX(outPkt);
+                    break;
 
-            //  Transaction2
-            case PacketType.Transaction2:
-            case PacketType.Transaction:
-                procTransact2(outPkt);
-                break;
+                //  Transaction2
+                case PacketType.Transaction2:
+                case PacketType.Transaction:
+                    procTransact2(outPkt);
+                    break;
 
-            //	Transaction/transaction2 secondary
-            case PacketType.TransactionSecond:
-            case PacketType.Transaction2Second:
-                procTransact2Secondary(outPkt);
-                break;
+                //	Transaction/transaction2 secondary
+                case PacketType.TransactionSecond:
+                case PacketType.Transaction2Second:
+                    procTransact2Secondary(outPkt);
+                    break;
 
-            //  Close a search started via the FindFirst transaction2 command
-            case PacketType.FindClose2:
-                procFindClose(outPkt);
-                break;
+                //  Close a search started via the FindFirst transaction2 command
+                case PacketType.FindClose2:
+                    procFindClose(outPkt);
+                    break;
 
-            //  Open a file
-            case PacketType.OpenAndX:
-                procOpenAndX(outPkt);
-                break;
+                //  Open a file
+                case PacketType.OpenAndX:
+                    procOpenAndX(outPkt);
+                    break;
 
-            //  Read a file
-            case PacketType.ReadAndX:
-                procReadAndX(outPkt);
-                break;
+                //  Read a file
+                case PacketType.ReadAndX:
+                    procReadAndX(outPkt);
+                    break;
 
-            // Read MPX
-            case PacketType.ReadMpx:
-                procReadMPX(outPkt);
-                break;
+                // Read MPX
+                case PacketType.ReadMpx:
+                    procReadMPX(outPkt);
+                    break;
 
-            // Write to a file
-            case PacketType.WriteAndX:
-                procWriteAndX(outPkt);
-                break;
+                // Write to a file
+                case PacketType.WriteAndX:
+                    procWriteAndX(outPkt);
+                    break;
 
-            // Write MPX
-            case PacketType.WriteMpx:
-                procWriteMPX(outPkt);
-                break;
+                // Write MPX
+                case PacketType.WriteMpx:
+                    procWriteMPX(outPkt);
+                    break;
 
-            //  Tree disconnect
-            case PacketType.TreeDisconnect:
-                procTreeDisconnect(outPkt);
-                break;
+                //  Tree disconnect
+                case PacketType.TreeDisconnect:
+                    procTreeDisconnect(outPkt);
+                    break;
 
-            //  Lock/unlock regions of a file
-            case PacketType.LockingAndX:
-                procLockingAndX(outPkt);
-                break;
+                //  Lock/unlock regions of a file
+                case PacketType.LockingAndX:
+                    procLockingAndX(outPkt);
+                    break;
 
-            //	Logoff a user
-            case PacketType.LogoffAndX:
-                procLogoffAndX(outPkt);
-                break;
+                //	Logoff a user
+                case PacketType.LogoffAndX:
+                    procLogoffAndX(outPkt);
+                    break;
 
-            //	Tree connection (without AndX batching)
-            case PacketType.TreeConnect:
-                super.runProtocol();
-                break;
+                //	Tree connection (without AndX batching)
+                case PacketType.TreeConnect:
+                    super.runProtocol();
+                    break;
 
-            //	Rename file
-            case PacketType.RenameFile:
-                procRenameFile(outPkt);
-                break;
+                //	Rename file
+                case PacketType.RenameFile:
+                    procRenameFile(outPkt);
+                    break;
 
-            //  Echo request
-            case PacketType.Echo:
-                super.procEcho(outPkt);
-                break;
+                //  Echo request
+                case PacketType.Echo:
+                    super.procEcho(outPkt);
+                    break;
 
-            //  Default
-            default:
+                //  Default
+                default:
 
-                //  Get the tree connection details, if it is a disk or printer type connection then pass the request to the
-                //  core protocol handler
-                int treeId = m_smbPkt.getTreeId();
-                TreeConnection conn = null;
-                if (treeId != -1) {
-                    conn = m_sess.findTreeConnection(m_smbPkt);
-                }
+                    //  Get the tree connection details, if it is a disk or printer type connection then pass the request to the
+                    //  core protocol handler
+                    int treeId = m_smbPkt.getTreeId();
+                    TreeConnection conn = null;
+                    if (treeId != -1) {
+                        conn = m_sess.findTreeConnection(m_smbPkt);
+                    }
 
-                if (conn != null) {
+                    if (conn != null) {
 
-                    //  Check if this is a disk or print connection, if so then send the request to the core protocol handler
-                    if (conn.getSharedDevice().getType() == ShareType.DISK || conn.getSharedDevice().getType() == ShareType.PRINTER) {
+                        //  Check if this is a disk or print connection, if so then send the request to the core protocol handler
+                        if (conn.getSharedDevice().getType() == ShareType.DISK || conn.getSharedDevice().getType() == ShareType.PRINTER) {
 
-                        //  Chain to the core protocol handler
-                        handledOK = super.runProtocol();
-                    } else if (conn.getSharedDevice().getType() == ShareType.ADMINPIPE) {
+                            //  Chain to the core protocol handler
+                            handledOK = super.runProtocol();
+                        } else if (conn.getSharedDevice().getType() == ShareType.ADMINPIPE) {
 
-                        //  Send the request to IPC$ remote admin handler
-                        IPCHandler.processIPCRequest(m_sess, outPkt);
-                        handledOK = true;
+                            //  Send the request to IPC$ remote admin handler
+                            IPCHandler.processIPCRequest(m_sess, outPkt);
+                            handledOK = true;
+                        }
                     }
-                }
-                break;
+                    break;
+            }
+        } finally {
+            //  Release the chained reply packet, unless the request has been handed off as a pending request
+            if (outPkt != rxPkt && m_smbPkt == rxPkt) {
+                m_sess.getSMBServer().getPacketPool().releasePacket(outPkt);
+            }
         }
 
+
         //  Return the handled status
         return handledOK;
     }
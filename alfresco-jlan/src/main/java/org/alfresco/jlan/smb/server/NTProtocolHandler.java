@@ -26,6 +26,7 @@ package org.alfresco.jlan.smb.server;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 
 import org.alfresco.jlan.debug.Debug;
 import org.alfresco.jlan.locking.FileLock;
@@ -54,6 +55,7 @@ import org.alfresco.jlan.server.filesys.FileName;
 import org.alfresco.jlan.server.filesys.FileNameException;
 import org.alfresco.jlan.server.filesys.FileOfflineException;
 import org.alfresco.jlan.server.filesys.FileOpenParams;
+import org.alfresco.jlan.server.filesys.FileRegionInterface;
 import org.alfresco.jlan.server.filesys.FileSharingException;
 import org.alfresco.jlan.server.filesys.FileStatus;
 import org.alfresco.jlan.server.filesys.FileSystem;
@@ -71,6 +73,7 @@ import org.alfresco.jlan.server.filesys.TooManyFilesException;
 import org.alfresco.jlan.server.filesys.TreeConnection;
 import org.alfresco.jlan.server.filesys.UnsupportedInfoLevelException;
 import org.alfresco.jlan.server.filesys.VolumeInfo;
+import org.alfresco.jlan.server.filesys.cache.DirectoryCache;
 import org.alfresco.jlan.server.locking.FileLockingInterface;
 import org.alfresco.jlan.server.locking.LockManager;
 import org.alfresco.jlan.smb.DataType;
@@ -123,6 +126,12 @@ public class NTProtocolHandler extends CoreProtocolHandler {
     //	Number of write requests per file to report file size change notifications
     public static final int FileSizeChangeRate = 10;
 
+    //	Minimum read size to send file data directly from the file channel, smaller reads are copied
+    public static final int FileRegionMinimumRead = 8192;
+
+    //	WriteAndX write mode bit requesting that the data is written through to storage
+    public static final int WriteModeWriteThrough = 0x0001;
+
     // Security descriptor to allow Everyone access, returned by the QuerySecurityDescrptor NT
     // transaction when NTFS streams are enabled for a virtual filesystem.
     private static byte[] _sdEveryOne = {0x01, 0x00, 0x04, (byte) 0x80, 0x14, 0x00, 0x00, 0x00,
@@ -182,6 +191,7 @@ public class NTProtocolHandler extends CoreProtocolHandler {
         }
         //  Determine if the request has a chained command, if so then we will copy the incoming request so that
         //  a chained reply can be built.
+        SMBSrvPacket rxPkt = m_smbPkt;
         SMBSrvPacket outPkt = m_smbPkt;
         boolean chainedCmd = hasChainedCommand(m_smbPkt);
         if (chainedCmd) {
@@ -189,8 +199,8 @@ public class NTProtocolHandler extends CoreProtocolHandler {
             if (Debug.EnableInfo && m_sess.hasDebug(SMBSrvSession.DBG_STATE)) {
                 m_sess.debugPrintln("AndX Command = 0x" + Integer.toHexString(m_smbPkt.getAndXCommand()));
             }
-            //  Copy the request packet into a new packet for the reply
-            outPkt = new SMBSrvPacket(m_smbPkt, m_smbPkt.getPacketLength());
+            //  Copy the request packet into a new pooled packet for the reply
+            outPkt = m_sess.getSMBServer().getPacketPool().allocatePacket(m_smbPkt, m_smbPkt.getPacketLength());
         }
         //	Reset the byte unpack offset
         m_smbPkt.resetBytePointer();
@@ -199,115 +209,123 @@ public class NTProtocolHandler extends CoreProtocolHandler {
         m_sess.setProcessId(m_smbPkt.getProcessId());
         //  Determine the SMB command type
         boolean handledOK = true;
-        switch (m_smbPkt.getCommand()) {
-            //  NT Session setup
-            case PacketType.SessionSetupAndX:
-                procSessionSetup(outPkt);
-                break;
-            //  Tree connect
-            case PacketType.TreeConnectAndX:
-                procTreeConnectAndX(outPkt);
-                break;
-            //  Transaction/transaction2
-            case PacketType.Transaction:
-            case PacketType.Transaction2:
-                procTransact2(outPkt);
-                break;
-            //	Transaction/transaction2 secondary
-            case PacketType.TransactionSecond:
-            case PacketType.Transaction2Second:
-                procTransact2Secondary(outPkt);
-                break;
-            //  Close a search started via the FindFirst transaction2 command
-            case PacketType.FindClose2:
-                procFindClose(outPkt);
-                break;
-            //  Open a file
-            case PacketType.OpenAndX:
-                procOpenAndX(outPkt);
-                break;
-            //	Close a file
-            case PacketType.CloseFile:
-                procCloseFile(outPkt);
-                break;
-            //  Read a file
-            case PacketType.ReadAndX:
-                procReadAndX(outPkt);
-                break;
-            //  Write to a file
-            case PacketType.WriteAndX:
-                procWriteAndX(outPkt);
-                break;
-            //	Rename file			
-            case PacketType.RenameFile:
-                procRenameFile(outPkt);
-                break;
-            //	Delete file			
-            case PacketType.DeleteFile:
-                procDeleteFile(outPkt);
-                break;
-            //	Delete directory			
-            case PacketType.DeleteDirectory:
-                procDeleteDirectory(outPkt);
-                break;
-            //  Tree disconnect
-            case PacketType.TreeDisconnect:
-                procTreeDisconnect(outPkt);
-                break;
-            //  Lock/unlock regions of a file
-            case PacketType.LockingAndX:
-                procLockingAndX(outPkt);
-                break;
-            //	Logoff a user
-            case PacketType.LogoffAndX:
-                procLogoffAndX(outPkt);
-                break;
-            //	NT Create/open file
-            case PacketType.NTCreateAndX:
-                procNTCreateAndX(outPkt);
-                break;
-            //	Tree connection (without AndX batching)
-            case PacketType.TreeConnect:
-                super.runProtocol();
-                break;
-            //	NT cancel
-            case PacketType.NTCancel:
-                procNTCancel(outPkt);
-                break;
-            //	NT transaction
-            case PacketType.NTTransact:
-                procNTTransaction(outPkt);
-                break;
-            //	NT transaction secondary
-            case PacketType.NTTransactSecond:
-                procNTTransactionSecondary(outPkt);
-                break;
-            //  Echo request
-            case PacketType.Echo:
-                super.procEcho(outPkt);
-                break;
-            //  Default
-            default:
-                //  Get the tree connection details, if it is a disk or printer type connection then pass the request to the
-                //  core protocol handler
-                int treeId = m_smbPkt.getTreeId();
-                TreeConnection conn = null;
-                if (treeId != -1) {
-                    conn = m_sess.findTreeConnection(m_smbPkt);
-                }
-                if (conn != null) {
-                    //  Check if this is a disk or print connection, if so then send the request to the core protocol handler
-                    if (conn.getSharedDevice().getType() == ShareType.DISK || conn.getSharedDevice().getType() == ShareType.PRINTER) {
-                        //  Chain to the core protocol handler
-                        handledOK = super.runProtocol();
-                    } else if (conn.getSharedDevice().getType() == ShareType.ADMINPIPE) {
-                        //  Send the request to IPC$ remote admin handler
-                        IPCHandler.processIPCRequest(m_sess, outPkt);
-                        handledOK = true;
+        try {
+            switch (m_smbPkt.getCommand()) {
+                //  NT Session setup
+                case PacketType.SessionSetupAndX:
+                    procSessionSetup(outPkt);
+                    break;
+                //  Tree connect
+                case PacketType.TreeConnectAndX:
+                    procTreeConnectAndX(outPkt);
+                    break;
+                //  Transaction/transaction2
+                case PacketType.Transaction:
+                case PacketType.Transaction2:
+                    procTransact2(outPkt);
+                    break;
+                //	Transaction/transaction2 secondary
+                case PacketType.TransactionSecond:
+                case PacketType.Transaction2Second:
+                    procTransact2Secondary(outPkt);
+                    break;
+                //  Close a search started via the FindFirst transaction2 command
+                case PacketType.FindClose2:
+                    procFindClose(outPkt);
+                    break;
+                //  Open a file
+                case PacketType.OpenAndX:
+                    procOpenAndX(outPkt);
+                    break;
+                //	Close a file
+                case PacketType.CloseFile:
+                    procCloseFile(outPkt);
+                    break;
+                //  Read a file
+                case PacketType.ReadAndX:
+                    procReadAndX(outPkt);
+                    break;
+                //  Write to a file
+                case PacketType.WriteAndX:
+                    procWriteAndX(outPkt);
+                    break;
+                //	Rename file			
+                case PacketType.RenameFile:
+                    procRenameFile(outPkt);
+                    break;
+                //	Delete file			
+                case PacketType.DeleteFile:
+                    procDeleteFile(outPkt);
+                    break;
+                //	Delete directory			
+                case PacketType.DeleteDirectory:
+                    procDeleteDirectory(outPkt);
+                    break;
+                //  Tree disconnect
+                case PacketType.TreeDisconnect:
+                    procTreeDisconnect(outPkt);
+                    break;
+                //  Lock/unlock regions of a file
+                case PacketType.LockingAndX:
+                    procLockingAndX(outPkt);
+                    break;
+                //	Logoff a user
+                case PacketType.LogoffAndX:
+                    procLogoffAndX(outPkt);
+                    break;
+                //	NT Create/open file
+                case PacketType.NTCreateAndX:
+                    procNTCreateAndX(outPkt);
+                    break;
+                //	Tree connection (without AndX batching)
+                case PacketType.TreeConnect:
+                    super.runProtocol();
+                    break;
+                //	NT cancel
+                case PacketType.NTCancel:
+                    procNTCancel(outPkt);
+                    break;
+                //	NT transaction
+                case PacketType.NTTransact:
+                    procNTTransaction(outPkt);
+                    break;
+                //	NT transaction secondary
+                case PacketType.NTTransactSecond:
+                    procNTTransactionSecondary(outPkt);
+                    break;
+                //  Echo request
+                case PacketType.Echo:
+                    super.procEcho(outPkt);
+                    break;
+                //  Default
+                default:
+                    //  Get the tree connection details, if it is a disk or printer type connection then pass the request to the
+                    //  core protocol handler
+                    int treeId = m_smbPkt.getTreeId();
+                    TreeConnection conn = null;
+                    if (treeId != -1) {
+                        conn = m_sess.findTreeConnection(m_smbPkt);
                     }
-                }
-                break;
+                    if (conn != null) {
+                        //  Check if this is a disk or print connection, if so then send the request to the core protocol handler
+                        if (conn.getSharedDevice().getType() == ShareType.DISK || conn.getSharedDevice().getType() == ShareType.PRINTER) {
+                            //  Chain to the core protocol handler
+                            handledOK = super.runProtocol();
+                        } else if (conn.getSharedDevice().getType() == ShareType.ADMINPIPE) {
+                            //  Send the request to IPC$ remote admin handler
+                            IPCHandler.processIPCRequest(m_sess, outPkt);
+                            handledOK = true;
+                        }
+                    }
+                    break;
+            }
+        } finally {
+            //  Release the chained reply packet, unless the request has been handed off as a pending request
+            if (outPkt != rxPkt && m_smbPkt == rxPkt) {
+                m_sess.getSMBServer().getPacketPool().releasePacket(outPkt);
+            }
         }
+
         //  Return the handled status
         return handledOK;
     }
@@ -1498,6 +1516,9 @@ public class NTProtocolHandler extends CoreProtocolHandler {
 
                 //	Create the lock/unlock details
                 FileLock fLock = lockMgr.createLockObject(m_sess, conn, netFile, offset, length, pid);
+                
+                //  Set the time to wait for a conflicting lock to be released, -1 indicates wait forever
+                fLock.setTimeout(lockTmo);
 
                 //  Debug
                 if (Debug.EnableInfo && m_sess.hasDebug(SMBSrvSession.DBG_LOCK)) {
@@ -1510,11 +1531,15 @@ public class NTProtocolHandler extends CoreProtocolHandler {
                     //	Check if the request is an unlock
                     if (unlockCnt > 0) {
 
-                        //	Unlock the file
+                        //	Unlock the file, and wake any requests waiting for a lock on the file
                         lockMgr.unlockFile(m_sess, conn, netFile, fLock);
+                        m_sess.getSMBServer().getPendingLockHandler().wakeWaiters(netFile);
                     } else {
 
-                        //	Lock the file
+                        //	Lock the file, a request that overlaps a waiting request is queued behind it
+                        if (m_sess.getSMBServer().getPendingLockHandler().hasOverlappingWaiter(netFile, fLock)) {
+                            throw new LockConflictException();
+                        }
                         lockMgr.lockFile(m_sess, conn, netFile, fLock);
                     }
                 } catch (NotLockedException ex) {
@@ -1524,6 +1549,18 @@ public class NTProtocolHandler extends CoreProtocolHandler {
                     return;
                 } catch (LockConflictException ex) {
 
+                    //  Check if the lock request should wait for the conflicting lock to be released, a chained
+                    //  request is failed immediately
+                    if (lockCnt == 1 && lockTmo != 0 && outPkt == m_smbPkt) {
+
+                        //  Pass the request packet to the pending lock handler, which retries the lock and sends
+                        //  the response asynchronously, and continue processing new requests with a new packet
+                        m_sess.getSMBServer().getPendingLockHandler().queueLock(m_sess, m_smbPkt, conn, netFile, lockMgr, fLock);
+                        m_smbPkt = m_sess.getSMBServer().getPacketPool().allocatePacket(m_smbPkt.getBuffer().length);
+                        m_sess.setReceivePacket(m_smbPkt);
+                        return;
+                    }
+
                     //	Return an error status
                     m_sess.sendErrorResponseSMB(SMBStatus.NTLockNotGranted, SMBStatus.DOSLockConflict, SMBStatus.ErrDos);
                     return;
@@ -1675,6 +1712,7 @@ public class NTProtocolHandler extends CoreProtocolHandler {
                 if (FileAction.createNotExists(openFunc)) {
                     //  Create a new file
                     netFile = disk.createFile(m_sess, conn, params);
+                    invalidateDirectoryCache(conn, fileName);
                     //  Indicate that the file did not exist and was created
                     respAction = FileAction.FileCreated;
                 } else {
@@ -1815,6 +1853,7 @@ public class NTProtocolHandler extends CoreProtocolHandler {
         byte[] buf = outPkt.getBuffer();
         int dataPos = 0;
         int rdlen = 0;
+        FileChannel regionChannel = null;
         try {
             //  Access the disk interface that is associated with the shared device
             DiskInterface disk = (DiskInterface) conn.getSharedDevice().getInterface();
@@ -1827,8 +1866,21 @@ public class NTProtocolHandler extends CoreProtocolHandler {
             if (dataLen < maxCount) {
                 maxCount = dataLen;
             }
+            //  Check if the file data can be sent directly from the file channel, only if there are no
+            //  chained commands to pack after the read data
+            if (disk instanceof FileRegionInterface && m_smbPkt.hasAndXCommand() == false && maxCount >= FileRegionMinimumRead
+                    && m_sess.hasFileRegionSupport()) {
+                regionChannel = ((FileRegionInterface) disk).getFileChannel(m_sess, conn, netFile);
+                if (regionChannel != null) {
+                    //  Calculate the length of data available at the read offset
+                    long fileLen = regionChannel.size();
+                    rdlen = offset < fileLen ? (int) Math.min(maxCount, fileLen - offset) : 0;
+                }
+            }
             //  Read from the file
-            rdlen = disk.readFile(m_sess, conn, netFile, buf, dataPos, maxCount, offset);
+            if (regionChannel == null) {
+                rdlen = disk.readFile(m_sess, conn, netFile, buf, dataPos, maxCount, offset);
+            }
         } catch (InvalidDeviceInterfaceException ex) {
             //  Failed to get/initialize the disk interface
             m_sess.sendErrorResponseSMB(SMBStatus.DOSInvalidData, SMBStatus.ErrDos);
@@ -1856,8 +1908,9 @@ public class NTProtocolHandler extends CoreProtocolHandler {
             }
             //	Filesystem driver is still processing the read request
             //
-            //	Clone a new SMB packet and continue processing new requests.
-            m_smbPkt = new SMBSrvPacket(m_smbPkt);
+            //	Clone a new SMB packet and continue processing new requests. The driver owns the original request
+            //	packet, it is released back to the packet pool when the driver sends the asynchronous response.
+            m_smbPkt = m_sess.getSMBServer().getPacketPool().allocatePacket(m_smbPkt, m_smbPkt.getBuffer().length);
             m_sess.setReceivePacket(m_smbPkt);
             //	The read response will be sent asynchronously by the filesystem driver.
             return;
@@ -1898,8 +1951,11 @@ public class NTProtocolHandler extends CoreProtocolHandler {
         }
         //  Set the byte count
         outPkt.setByteCount((dataPos + rdlen) - outPkt.getByteOffset());
-        //  Check if there is a chained command, or commands
-        if (m_smbPkt.hasAndXCommand()) {
+        //  Check if the file data is sent directly from the file channel
+        if (regionChannel != null) {
+            //  Send the read andX response header followed by the file data
+            m_sess.sendResponseSMB(outPkt, outPkt.getLength(), regionChannel, offset, rdlen);
+        } else if (m_smbPkt.hasAndXCommand()) {
             //  Process any chained commands, AndX
             int pos = procAndXCommands(outPkt, outPkt.getPacketLength(), netFile);
             //  Send the read andX response
@@ -2258,6 +2314,7 @@ public class NTProtocolHandler extends CoreProtocolHandler {
         DiskInterface disk = null;
         int searchId = -1;
         boolean wildcardSearch = false;
+        SrvTransactBuffer replyBuf = null;
         try {
             //  Access the disk interface
             disk = (DiskInterface) conn.getSharedDevice().getInterface();
@@ -2281,8 +2338,19 @@ public class NTProtocolHandler extends CoreProtocolHandler {
                     m_sess.debugPrintln("Converted Unicode wildcards to:" + srchPath);
                 }
             }
-            //  Start a new search
-            ctx = disk.startSearch(m_sess, conn, srchPath, srchAttr);
+            //  Check if a wildcard search can be served from the directory cache
+            DiskDeviceContext diskCtx = (DiskDeviceContext) conn.getContext();
+            DirectoryCache dirCache = wildcardSearch ? diskCtx.getDirectoryCache() : null;
+            if (dirCache != null) {
+                ctx = dirCache.startSearch(srchPath, srchAttr);
+            }
+            //  Start a new search, record the search results for the directory cache
+            if (ctx == null) {
+                ctx = disk.startSearch(m_sess, conn, srchPath, srchAttr);
+                if (ctx != null && dirCache != null) {
+                    ctx = dirCache.recordSearch(ctx, srchPath, srchAttr);
+                }
+            }
             if (ctx != null) {
                 //  Store details of the search in the context
                 ctx.setTreeId(treeId);
@@ -2295,7 +2363,7 @@ public class NTProtocolHandler extends CoreProtocolHandler {
             //  Save the search context
             vc.setSearchContext(searchId, ctx);
             //	Create the reply transact buffer
-            SrvTransactBuffer replyBuf = new SrvTransactBuffer(tbuf);
+            replyBuf = new SrvTransactBuffer(tbuf, m_sess.getSMBServer().getPacketPool());
             DataBuffer dataBuf = replyBuf.getDataBuffer();
             //	Determine the maximum return data length
             int maxLen = replyBuf.getReturnDataLimit();
@@ -2454,6 +2522,11 @@ public class NTProtocolHandler extends CoreProtocolHandler {
             }
             // Filesystem is offline
             m_sess.sendErrorResponseSMB(SMBStatus.NTObjectPathNotFound, SMBStatus.HRDDriveNotReady, SMBStatus.ErrHrd);
+        } finally {
+            //  Release the pooled reply data buffer
+            if (replyBuf != null) {
+                replyBuf.releaseBuffers();
+            }
         }
     }
 
@@ -2508,6 +2581,7 @@ public class NTProtocolHandler extends CoreProtocolHandler {
         SearchContext ctx = null;
         DiskInterface disk = null;
         
+        SrvTransactBuffer replyBuf = null;
         try {
 
             //  Access the disk interface
@@ -2527,7 +2601,7 @@ public class NTProtocolHandler extends CoreProtocolHandler {
                 return;
             }
             //	Create the reply transaction buffer
-            SrvTransactBuffer replyBuf = new SrvTransactBuffer(tbuf);
+            replyBuf = new SrvTransactBuffer(tbuf, m_sess.getSMBServer().getPacketPool());
             DataBuffer dataBuf = replyBuf.getDataBuffer();
             //	Determine the maximum return data length
             int maxLen = replyBuf.getReturnDataLimit();
@@ -2630,6 +2704,11 @@ public class NTProtocolHandler extends CoreProtocolHandler {
             }
             //  Requested information level is not supported
             m_sess.sendErrorResponseSMB(SMBStatus.SRVNotSupported, SMBStatus.ErrSrv);
+        } finally {
+            //  Release the pooled reply data buffer
+            if (replyBuf != null) {
+                replyBuf.releaseBuffers();
+            }
         }
     }
 
@@ -3841,6 +3920,11 @@ public class NTProtocolHandler extends CoreProtocolHandler {
 
             //  Write to the file
             wrtlen = disk.writeFile(m_sess, conn, netFile, buf, dataPos, dataLen, offset);
+
+            //  Flush the file if the client requested write-through
+            if ((m_smbPkt.getParameter(7) & WriteModeWriteThrough) != 0) {
+                disk.flushFile(m_sess, conn, netFile);
+            }
         } catch (InvalidDeviceInterfaceException ex) {
 
             //  Failed to get/initialize the disk interface
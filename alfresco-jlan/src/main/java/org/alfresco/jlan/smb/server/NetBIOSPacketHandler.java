@@ -27,6 +27,7 @@ package org.alfresco.jlan.smb.server;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.channels.FileChannel;
 
 import org.alfresco.jlan.netbios.RFCNetBIOSProtocol;
 import org.alfresco.jlan.util.DataPacker;
@@ -91,12 +92,17 @@ public class NetBIOSPacketHandler extends SocketPacketHandler {
         }
         //	Check if the packet buffer is large enough to hold the data + header
         if (buf.length < (dlen + RFCNetBIOSProtocol.HEADER_LEN)) {
-            //	Allocate a new buffer to hold the data and copy the existing header
-            byte[] newBuf = new byte[dlen + RFCNetBIOSProtocol.HEADER_LEN];
-            System.arraycopy(buf, 0, newBuf, 0, 4);
-            //	Attach the new buffer to the SMB packet
-            pkt.setBuffer(newBuf);
-            buf = newBuf;
+            //	Check if the packet buffer is pooled, if so then replace it with a larger pooled buffer
+            if (pkt.isAllocatedFromPool()) {
+                buf = pkt.getOwnerPacketPool().extendPacket(pkt, dlen + RFCNetBIOSProtocol.HEADER_LEN, RFCNetBIOSProtocol.HEADER_LEN);
+            } else {
+                //	Allocate a new buffer to hold the data and copy the existing header
+                byte[] newBuf = new byte[dlen + RFCNetBIOSProtocol.HEADER_LEN];
+                System.arraycopy(buf, 0, newBuf, 0, 4);
+                //	Attach the new buffer to the SMB packet
+                pkt.setBuffer(newBuf);
+                buf = newBuf;
+            }
         }
 
         //  Read the data part of the packet into the users buffer, this may take
@@ -142,6 +148,39 @@ public class NetBIOSPacketHandler extends SocketPacketHandler {
         //  Fill in the NetBIOS message header, this is already allocated as
         //  part of the users buffer.
         byte[] buf = pkt.getBuffer();
+        setMessageHeader(buf, len);
+        //  Output the data packet
+        int bufSiz = len + RFCNetBIOSProtocol.HEADER_LEN;
+        writePacket(buf, 0, bufSiz);
+    }
+
+    /**
+     * Send an SMB response packet followed by a region of file data
+     *
+     * @param pkt SMBSrvPacket
+     * @param len int
+     * @param fileChannel FileChannel
+     * @param fileOff long
+     * @param dataLen int
+     * @exception IOException	If a network error occurs.
+     */
+    @Override
+    public final void writePacket(SMBSrvPacket pkt, int len, FileChannel fileChannel, long fileOff, int dataLen) throws IOException {
+        //  Fill in the NetBIOS message header, the length includes the file data
+        byte[] buf = pkt.getBuffer();
+        setMessageHeader(buf, len);
+        //  Output the packet header and parameters, then the file data
+        int hdrSiz = len - dataLen + RFCNetBIOSProtocol.HEADER_LEN;
+        writeFileRegion(buf, 0, hdrSiz, fileChannel, fileOff, dataLen);
+    }
+
+    /**
+     * Fill in the NetBIOS session message header
+     *
+     * @param buf byte[]
+     * @param len int
+     */
+    private void setMessageHeader(byte[] buf, int len) {
         buf[0] = (byte) RFCNetBIOSProtocol.SESSION_MESSAGE;
         buf[1] = (byte) 0;
         if (len > 0xFFFF) {
@@ -153,8 +192,5 @@ public class NetBIOSPacketHandler extends SocketPacketHandler {
             //	Set the data length
             DataPacker.putShort((short) len, buf, 2);
         }
-        //  Output the data packet
-        int bufSiz = len + RFCNetBIOSProtocol.HEADER_LEN;
-        writePacket(buf, 0, bufSiz);
     }
 }
@@ -26,6 +26,7 @@ package org.alfresco.jlan.smb.server;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.channels.FileChannel;
 
 /**
  * Protocol Packet Handler Class
@@ -184,6 +185,30 @@ public abstract class PacketHandler {
         writePacket(pkt, pkt.getLength());
     }
 
+    /**
+     * Determine if the packet handler can send file data directly from a file channel
+     *
+     * @return boolean
+     */
+    public boolean hasFileRegionSupport() {
+        return false;
+    }
+
+    /**
+     * Send an SMB response packet followed by a region of file data. The
+     * response length includes the file data length.
+     *
+     * @param pkt SMBSrvPacket
+     * @param len int
+     * @param fileChannel FileChannel
+     * @param fileOff long
+     * @param dataLen int
+     * @exception IOException	If a network error occurs.
+     */
+    public void writePacket(SMBSrvPacket pkt, int len, FileChannel fileChannel, long fileOff, int dataLen) throws IOException {
+        throw new IOException("File region send not supported");
+    }
+
     /**
      * Flush the output socket
      *
@@ -0,0 +1,452 @@
+/*
+ * Copyright (C) 2016 SurCloud.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ */
+
+package org.alfresco.jlan.smb.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.alfresco.jlan.debug.Debug;
+import org.alfresco.jlan.locking.FileLock;
+import org.alfresco.jlan.locking.LockConflictException;
+import org.alfresco.jlan.server.SrvSession;
+import org.alfresco.jlan.server.filesys.FileListener;
+import org.alfresco.jlan.server.filesys.NetworkFile;
+import org.alfresco.jlan.server.filesys.TreeConnection;
+import org.alfresco.jlan.server.locking.LockManager;
+import org.alfresco.jlan.smb.SMBStatus;
+
+/**
+ * Pending Lock Handler Class
+ *
+ * <p>
+ * Holds LockingAndX requests that conflict with an existing lock and have a
+ * timeout, so that the session thread can continue to process requests,
+ * including the unlock that releases the conflicting lock. The waiters of a
+ * file are retried, in the order they were queued, when a range of the file is
+ * unlocked or a handle on the file is closed. A waiter is only granted its lock
+ * once no earlier waiter on an overlapping range is still waiting, and new lock
+ * requests that overlap a waiter are queued behind it. The response is sent
+ * asynchronously when the lock is granted, or an error response when the
+ * timeout expires or the file is closed.
+ */
+public class PendingLockHandler implements Runnable, FileListener {
+
+    // Waiting lock requests, by file path, each list is in the order the requests were queued
+    private final Map<String, LinkedList<PendingLock>> m_waiters = new HashMap<String, LinkedList<PendingLock>>();
+
+    // Paths with waiters to be retried
+    private final LinkedHashSet<String> m_wakeList = new LinkedHashSet<String>();
+
+    // Retry thread, started when the first request is queued
+    private Thread m_thread;
+
+    // Shutdown flag
+    private volatile boolean m_shutdown;
+
+    /**
+     * Details of a pending lock request
+     */
+    private static final class PendingLock {
+
+        // Session, request packet and the file being locked
+        private final SMBSrvSession m_sess;
+        private final SMBSrvPacket m_pkt;
+        private final TreeConnection m_conn;
+        private final NetworkFile m_file;
+
+        // Lock manager and lock details
+        private final LockManager m_lockMgr;
+        private final FileLock m_lock;
+
+        // Time the request expires, or zero if the request waits until the lock is granted
+        private final long m_expiry;
+
+        PendingLock(SMBSrvSession sess, SMBSrvPacket pkt, TreeConnection conn, NetworkFile file, LockManager lockMgr, FileLock lock) {
+            m_sess = sess;
+            m_pkt = pkt;
+            m_conn = conn;
+            m_file = file;
+            m_lockMgr = lockMgr;
+            m_lock = lock;
+            m_expiry = lock.getTimeout() > 0 ? System.currentTimeMillis() + lock.getTimeout() : 0L;
+        }
+    }
+
+    /**
+     * Return the key used to group the waiters of a file. Waiters are grouped
+     * by path only, a wake up for the same path on another share just causes
+     * an extra retry.
+     *
+     * @param file NetworkFile
+     * @return String
+     */
+    private static String waitKey(NetworkFile file) {
+        String path = file.getFullName();
+        return path != null ? path.toUpperCase() : "";
+    }
+
+    /**
+     * Queue a lock request to wait for the conflicting lock to be released.
+     * The handler owns the request packet, the response is built in the
+     * request packet and the packet is released back to the packet pool once
+     * the response has been sent.
+     *
+     * @param sess SMBSrvSession
+     * @param pkt SMBSrvPacket
+     * @param conn TreeConnection
+     * @param file NetworkFile
+     * @param lockMgr LockManager
+     * @param lock FileLock
+     */
+    public final synchronized void queueLock(SMBSrvSession sess, SMBSrvPacket pkt, TreeConnection conn, NetworkFile file, LockManager lockMgr,
+            FileLock lock) {
+        String key = waitKey(file);
+        LinkedList<PendingLock> waiters = m_waiters.get(key);
+        if (waiters == null) {
+            waiters = new LinkedList<PendingLock>();
+            m_waiters.put(key, waiters);
+        }
+        waiters.add(new PendingLock(sess, pkt, conn, file, lockMgr, lock));
+
+        // Retry once, the conflicting lock may have been released before the request was queued
+        m_wakeList.add(key);
+        if (m_thread == null) {
+            m_thread = new Thread(this);
+            m_thread.setName("SMBPendingLocks");
+            m_thread.setDaemon(true);
+            m_thread.start();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Check if a new lock request must wait behind a queued request for an
+     * overlapping range of the same file
+     *
+     * @param file NetworkFile
+     * @param lock FileLock
+     * @return boolean
+     */
+    public final synchronized boolean hasOverlappingWaiter(NetworkFile file, FileLock lock) {
+        if (m_waiters.isEmpty()) {
+            return false;
+        }
+        LinkedList<PendingLock> waiters = m_waiters.get(waitKey(file));
+        if (waiters != null) {
+            for (PendingLock pendLock : waiters) {
+                if (pendLock.m_lock.hasOverlap(lock)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Wake the waiters of a file after a range of the file has been unlocked
+     *
+     * @param file NetworkFile
+     */
+    public final synchronized void wakeWaiters(NetworkFile file) {
+        if (m_waiters.isEmpty()) {
+            return;
+        }
+        String key = waitKey(file);
+        if (m_waiters.containsKey(key) && m_wakeList.add(key)) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * File closed event, the locks held by the handle have been released and
+     * any waiters on the handle are failed
+     *
+     * @param sess SrvSession
+     * @param file NetworkFile
+     */
+    @Override
+    public void fileClosed(SrvSession sess, NetworkFile file) {
+        if (file != null) {
+            wakeWaiters(file);
+        }
+    }
+
+    /**
+     * File opened event
+     *
+     * @param sess SrvSession
+     * @param file NetworkFile
+     */
+    @Override
+    public void fileOpened(SrvSession sess, NetworkFile file) {
+    }
+
+    /**
+     * Return the count of pending lock requests
+     *
+     * @return int
+     */
+    public final synchronized int numberOfPendingLocks() {
+        int cnt = 0;
+        for (LinkedList<PendingLock> waiters : m_waiters.values()) {
+            cnt += waiters.size();
+        }
+        return cnt;
+    }
+
+    /**
+     * Stop the retry thread, pending requests are discarded
+     */
+    public final synchronized void shutdownRequest() {
+        m_shutdown = true;
+        notifyAll();
+    }
+
+    /**
+     * Retry thread, sleeps until a file with waiters is woken or the next
+     * request expires
+     */
+    @Override
+    public void run() {
+        List<String> wakeList = new ArrayList<String>();
+        while (m_shutdown == false) {
+            try {
+                synchronized (this) {
+                    while (m_wakeList.isEmpty() && m_shutdown == false) {
+                        long now = System.currentTimeMillis();
+                        long nextExpiry = queueExpired(now);
+                        if (m_wakeList.isEmpty() == false) {
+                            break;
+                        }
+                        if (nextExpiry == 0L) {
+                            wait();
+                        } else {
+                            wait(nextExpiry - now);
+                        }
+                    }
+                    if (m_shutdown) {
+                        break;
+                    }
+                    wakeList.addAll(m_wakeList);
+                    m_wakeList.clear();
+                }
+
+                // Retry the waiters of each file outside the lock
+                for (String key : wakeList) {
+                    retryWaiters(key);
+                }
+                wakeList.clear();
+            } catch (InterruptedException ex) {
+            } catch (Throwable ex) {
+                wakeList.clear();
+                if (Debug.EnableError) {
+                    Debug.println("[SMB] Pending lock handler error");
+                    Debug.println(ex);
+                }
+            }
+        }
+
+        // Release the packets of any remaining requests
+        synchronized (this) {
+            for (LinkedList<PendingLock> waiters : m_waiters.values()) {
+                for (PendingLock pendLock : waiters) {
+                    pendLock.m_sess.getSMBServer().getPacketPool().releasePacket(pendLock.m_pkt);
+                }
+            }
+            m_waiters.clear();
+            m_wakeList.clear();
+            m_thread = null;
+        }
+    }
+
+    /**
+     * Add the files with expired requests to the wake list, must be called
+     * with the handler locked
+     *
+     * @param now long
+     * @return long, time the next request expires, or zero if no request has a timeout
+     */
+    private long queueExpired(long now) {
+        long nextExpiry = 0L;
+        for (Map.Entry<String, LinkedList<PendingLock>> entry : m_waiters.entrySet()) {
+            for (PendingLock pendLock : entry.getValue()) {
+                if (pendLock.m_expiry == 0L) {
+                    continue;
+                }
+                if (pendLock.m_expiry <= now) {
+                    m_wakeList.add(entry.getKey());
+                    break;
+                }
+                if (nextExpiry == 0L || pendLock.m_expiry < nextExpiry) {
+                    nextExpiry = pendLock.m_expiry;
+                }
+            }
+        }
+        return nextExpiry;
+    }
+
+    /**
+     * Retry the waiters of a file in the order they were queued. A waiter is
+     * skipped while an earlier waiter for an overlapping range is still
+     * waiting.
+     *
+     * @param key String
+     */
+    private void retryWaiters(String key) {
+        List<PendingLock> waiters;
+        synchronized (this) {
+            LinkedList<PendingLock> list = m_waiters.get(key);
+            if (list == null) {
+                return;
+            }
+            waiters = new ArrayList<PendingLock>(list);
+        }
+        List<PendingLock> waiting = new ArrayList<PendingLock>();
+        List<PendingLock> done = new ArrayList<PendingLock>();
+        for (PendingLock pendLock : waiters) {
+            boolean blocked = false;
+            for (PendingLock earlier : waiting) {
+                if (earlier.m_lock.hasOverlap(pendLock.m_lock)) {
+                    blocked = true;
+                    break;
+                }
+            }
+            if (retryLock(pendLock, blocked)) {
+                done.add(pendLock);
+            } else {
+                waiting.add(pendLock);
+            }
+        }
+
+        // Remove the completed requests
+        if (done.isEmpty() == false) {
+            synchronized (this) {
+                LinkedList<PendingLock> list = m_waiters.get(key);
+                if (list != null) {
+                    Iterator<PendingLock> iter = list.iterator();
+                    while (iter.hasNext()) {
+                        if (done.contains(iter.next())) {
+                            iter.remove();
+                        }
+                    }
+                    if (list.isEmpty()) {
+                        m_waiters.remove(key);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Retry a pending lock request
+     *
+     * @param pendLock PendingLock
+     * @param blocked boolean, an earlier waiter for an overlapping range is still waiting
+     * @return true if the request has completed
+     */
+    private boolean retryLock(PendingLock pendLock, boolean blocked) {
+        SMBSrvSession sess = pendLock.m_sess;
+        // Drop the request if the session has closed
+        if (sess.isShutdown()) {
+            sess.getSMBServer().getPacketPool().releasePacket(pendLock.m_pkt);
+            return true;
+        }
+        // Error status, matching the status returned when a lock request fails immediately
+        boolean granted = false;
+        int ntCode = SMBStatus.NTLockNotGranted;
+        int stdCode = SMBStatus.DOSLockConflict;
+        int stdClass = SMBStatus.ErrDos;
+        boolean expired = pendLock.m_expiry != 0L && System.currentTimeMillis() >= pendLock.m_expiry;
+        synchronized (pendLock.m_file) {
+            if (pendLock.m_file.isClosed() == false) {
+                if (blocked) {
+                    // Keep waiting behind the earlier request unless this request has expired
+                    if (expired == false) {
+                        return false;
+                    }
+                } else {
+                    try {
+                        pendLock.m_lockMgr.lockFile(sess, pendLock.m_conn, pendLock.m_file, pendLock.m_lock);
+                        granted = true;
+                    } catch (LockConflictException ex) {
+                        // Keep waiting unless the request has expired
+                        if (expired == false) {
+                            return false;
+                        }
+                    } catch (IOException ex) {
+                        ntCode = -1;
+                        stdCode = SMBStatus.SRVInternalServerError;
+                        stdClass = SMBStatus.ErrSrv;
+                    }
+                }
+            }
+        }
+        // Debug
+        if (Debug.EnableInfo && sess.hasDebug(SMBSrvSession.DBG_LOCK)) {
+            sess.debugPrintln("Pending lock " + (granted ? "granted" : "failed") + " lock=" + pendLock.m_lock);
+        }
+        // Build the response in the request packet
+        SMBSrvPacket pkt = pendLock.m_pkt;
+        if (pkt.isResponse() == false) {
+            pkt.setFlags(pkt.getFlags() + SMBSrvPacket.FLG_RESPONSE);
+        }
+        pkt.setFlags(pkt.getFlags() | sess.getDefaultFlags());
+        pkt.setFlags2(pkt.getFlags2() | sess.getDefaultFlags2());
+        if (granted) {
+            pkt.setParameterCount(2);
+            pkt.setAndXCommand(0xFF);
+            pkt.setParameter(1, 0);
+            if (pkt.isLongErrorCode()) {
+                pkt.setLongErrorCode(SMBStatus.NTSuccess);
+            } else {
+                pkt.setErrorClass(SMBStatus.Success);
+                pkt.setErrorCode(SMBStatus.Success);
+            }
+        } else {
+            pkt.setParameterCount(0);
+            if (pkt.isLongErrorCode() && ntCode != -1) {
+                pkt.setLongErrorCode(ntCode);
+            } else {
+                if (pkt.isLongErrorCode()) {
+                    pkt.setFlags2(pkt.getFlags2() - SMBSrvPacket.FLG2_LONGERRORCODE);
+                }
+                pkt.setErrorCode(stdCode);
+                pkt.setErrorClass(stdClass);
+            }
+        }
+        pkt.setByteCount(0);
+        // Send the response, the packet is released once it has been sent
+        try {
+            sess.sendAsynchResponseSMB(pkt, pkt.getLength());
+        } catch (IOException ex) {
+            if (Debug.EnableError && sess.hasDebug(SMBSrvSession.DBG_LOCK)) {
+                sess.debugPrintln("Pending lock response error, " + ex.toString());
+            }
+        }
+        return true;
+    }
+}
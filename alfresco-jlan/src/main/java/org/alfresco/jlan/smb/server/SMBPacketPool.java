@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2016 SurCloud.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ */
+
+package org.alfresco.jlan.smb.server;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.jlan.debug.Debug;
+import org.alfresco.jlan.server.memory.ByteBufferPool;
+
+/**
+ * SMB Packet Pool Class
+ *
+ * <p>
+ * Allocates SMB packet and transaction buffers from the core server memory
+ * pool. Requests are rounded up to the nearest size class of the pool,
+ * requests larger than the largest size class, or that cannot be satisfied
+ * because the pool is at its maximum allocation, fall back to the heap.
+ *
+ * <p>
+ * Each buffer allocated from the pool is tracked until it is released so that
+ * buffers that are never returned can be reported by the leak check. Session
+ * receive buffers are held for the life of the session and are excluded from
+ * the leak check while the session owns them.
+ */
+public class SMBPacketPool {
+
+    // Default age after which an outstanding buffer is reported as leaked
+    public static final long DefaultLeakAge = 5 * 60 * 1000L;
+
+    // Minimum interval between leak checks
+    public static final long LeakCheckInterval = 60 * 1000L;
+
+    // Core server memory pool, or null if buffers are allocated from the heap
+    private final ByteBufferPool m_bufferPool;
+
+    // Buffers currently allocated out of the pool, keyed by buffer identity
+    private final Map<byte[], BufferAllocation> m_allocated = new ConcurrentHashMap<byte[], BufferAllocation>();
+
+    // Statistics
+    private final AtomicLong m_statPoolAllocs = new AtomicLong();
+    private final AtomicLong m_statHeapAllocs = new AtomicLong();
+    private final AtomicLong m_statReleases = new AtomicLong();
+    private final AtomicLong m_statLeaks = new AtomicLong();
+
+    // Time of the last leak check
+    private volatile long m_lastLeakCheck = System.currentTimeMillis();
+
+    /**
+     * Details of an outstanding pooled buffer
+     */
+    private static final class BufferAllocation {
+
+        // Time the buffer was handed out and the allocating thread
+        private volatile long m_allocTime;
+        private final String m_thread;
+
+        // Flag to indicate the buffer is a session receive buffer
+        private volatile boolean m_sessionOwned;
+
+        // Flag to indicate the buffer has already been reported as leaked
+        private boolean m_reported;
+
+        BufferAllocation() {
+            m_allocTime = System.currentTimeMillis();
+            m_thread = Thread.currentThread().getName();
+        }
+    }
+
+    /**
+     * Class constructor
+     *
+     * @param bufPool ByteBufferPool, or null to allocate from the heap
+     */
+    public SMBPacketPool(ByteBufferPool bufPool) {
+        m_bufferPool = bufPool;
+    }
+
+    /**
+     * Check if buffers are allocated from the core server memory pool
+     *
+     * @return boolean
+     */
+    public final boolean hasMemoryPool() {
+        return m_bufferPool != null;
+    }
+
+    /**
+     * Return the core server memory pool
+     *
+     * @return ByteBufferPool
+     */
+    public final ByteBufferPool getMemoryPool() {
+        return m_bufferPool;
+    }
+
+    /**
+     * Allocate a buffer of at least the specified size
+     *
+     * @param reqSize int
+     * @return byte[]
+     */
+    public final byte[] allocateBuffer(int reqSize) {
+        byte[] buf = null;
+        // Check if the request can be satisfied by the memory pool
+        if (m_bufferPool != null && reqSize <= m_bufferPool.getLargestSize()) {
+            buf = m_bufferPool.allocateBuffer(reqSize);
+            if (buf != null) {
+                m_allocated.put(buf, new BufferAllocation());
+                m_statPoolAllocs.incrementAndGet();
+            }
+        }
+        // Fall back to the heap if the pool could not satisfy the request
+        if (buf == null) {
+            buf = new byte[reqSize];
+            m_statHeapAllocs.incrementAndGet();
+        }
+        return buf;
+    }
+
+    /**
+     * Release a buffer back to the pool. Buffers that were not allocated from
+     * the pool are ignored.
+     *
+     * @param buf byte[]
+     */
+    public final void releaseBuffer(byte[] buf) {
+        if (buf == null || m_allocated.remove(buf) == null) {
+            return;
+        }
+        m_bufferPool.releaseBuffer(buf);
+        m_statReleases.incrementAndGet();
+    }
+
+    /**
+     * Allocate an SMB packet with a buffer of at least the specified size
+     *
+     * @param reqSize int
+     * @return SMBSrvPacket
+     */
+    public final SMBSrvPacket allocatePacket(int reqSize) {
+        SMBSrvPacket pkt = new SMBSrvPacket(allocateBuffer(reqSize));
+        pkt.setOwnerPacketPool(this);
+        return pkt;
+    }
+
+    /**
+     * Allocate an SMB packet with the same buffer size as an existing packet
+     * and copy the specified length of data from the existing packet
+     *
+     * @param srcPkt SMBSrvPacket
+     * @param copyLen int
+     * @return SMBSrvPacket
+     */
+    public final SMBSrvPacket allocatePacket(SMBSrvPacket srcPkt, int copyLen) {
+        SMBSrvPacket pkt = allocatePacket(srcPkt.getBuffer().length);
+        System.arraycopy(srcPkt.getBuffer(), 0, pkt.getBuffer(), 0, copyLen);
+        return pkt;
+    }
+
+    /**
+     * Replace the buffer of a pooled SMB packet with a larger buffer, copying
+     * the specified length of data from the existing buffer. The existing
+     * buffer is released back to the pool.
+     *
+     * @param pkt SMBSrvPacket
+     * @param reqSize int
+     * @param copyLen int
+     * @return byte[]
+     */
+    public final byte[] extendPacket(SMBSrvPacket pkt, int reqSize, int copyLen) {
+        byte[] oldBuf = pkt.getBuffer();
+        byte[] newBuf = allocateBuffer(reqSize);
+        System.arraycopy(oldBuf, 0, newBuf, 0, copyLen);
+        pkt.setBuffer(newBuf);
+        // Keep the session ownership of an extended receive buffer
+        BufferAllocation oldAlloc = m_allocated.get(oldBuf);
+        if (oldAlloc != null && oldAlloc.m_sessionOwned) {
+            setSessionOwned(pkt, true);
+        }
+        releaseBuffer(oldBuf);
+        return newBuf;
+    }
+
+    /**
+     * Mark a pooled SMB packet as a session receive buffer, which is excluded
+     * from the leak check. When a session hands its receive buffer on the age
+     * of the buffer is measured from the hand-out.
+     *
+     * @param pkt SMBSrvPacket
+     * @param owned boolean
+     */
+    public final void setSessionOwned(SMBSrvPacket pkt, boolean owned) {
+        if (pkt == null || pkt.getOwnerPacketPool() != this) {
+            return;
+        }
+        BufferAllocation alloc = m_allocated.get(pkt.getBuffer());
+        if (alloc != null) {
+            if (owned == false) {
+                alloc.m_allocTime = System.currentTimeMillis();
+            }
+            alloc.m_sessionOwned = owned;
+        }
+    }
+
+    /**
+     * Release an SMB packet buffer back to the pool
+     *
+     * @param pkt SMBSrvPacket
+     */
+    public final void releasePacket(SMBSrvPacket pkt) {
+        if (pkt == null || pkt.getOwnerPacketPool() != this) {
+            return;
+        }
+        releaseBuffer(pkt.getBuffer());
+        pkt.setOwnerPacketPool(null);
+    }
+
+    /**
+     * Return the count of pooled buffers currently allocated out
+     *
+     * @return int
+     */
+    public final int getAllocatedCount() {
+        return m_allocated.size();
+    }
+
+    /**
+     * Return the count of buffers allocated from the memory pool
+     *
+     * @return long
+     */
+    public final long getStatPoolAllocations() {
+        return m_statPoolAllocs.get();
+    }
+
+    /**
+     * Return the count of buffers allocated from the heap
+     *
+     * @return long
+     */
+    public final long getStatHeapAllocations() {
+        return m_statHeapAllocs.get();
+    }
+
+    /**
+     * Return the count of buffers released back to the memory pool
+     *
+     * @return long
+     */
+    public final long getStatReleases() {
+        return m_statReleases.get();
+    }
+
+    /**
+     * Return the count of buffers reported as leaked
+     *
+     * @return long
+     */
+    public final long getStatLeaks() {
+        return m_statLeaks.get();
+    }
+
+    /**
+     * Run the leak check if the check interval has expired since the last
+     * check
+     *
+     * @return int
+     */
+    public final int checkForLeaks() {
+        long now = System.currentTimeMillis();
+        if (now - m_lastLeakCheck < LeakCheckInterval) {
+            return 0;
+        }
+        m_lastLeakCheck = now;
+        return checkForLeaks(DefaultLeakAge);
+    }
+
+    /**
+     * Report pooled buffers that have been allocated out for longer than the
+     * specified age, session receive buffers are not checked. Each buffer is
+     * only reported once.
+     *
+     * @param maxAge long
+     * @return int Count of newly detected leaked buffers
+     */
+    public final int checkForLeaks(long maxAge) {
+        long now = System.currentTimeMillis();
+        int leakCnt = 0;
+        Iterator<Map.Entry<byte[], BufferAllocation>> iter = m_allocated.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<byte[], BufferAllocation> entry = iter.next();
+            BufferAllocation alloc = entry.getValue();
+            if (alloc.m_reported == false && alloc.m_sessionOwned == false && now - alloc.m_allocTime > maxAge) {
+                alloc.m_reported = true;
+                leakCnt++;
+                if (Debug.EnableWarn) {
+                    Debug.println("[SMB] Packet pool buffer leak, len=" + entry.getKey().length + ", age=" + ((now - alloc.m_allocTime) / 1000L)
+                            + "s, thread=" + alloc.m_thread);
+                }
+            }
+        }
+        m_statLeaks.addAndGet(leakCnt);
+        return leakCnt;
+    }
+
+    /**
+     * Return the packet pool details as a string
+     *
+     * @return String
+     */
+    @Override
+    public String toString() {
+        StringBuilder str = new StringBuilder();
+        str.append("[SMBPacketPool Allocated=");
+        str.append(getAllocatedCount());
+        str.append(",Pool=");
+        str.append(getStatPoolAllocations());
+        str.append(",Heap=");
+        str.append(getStatHeapAllocations());
+        str.append(",Released=");
+        str.append(getStatReleases());
+        str.append(",Leaks=");
+        str.append(getStatLeaks());
+        if (m_bufferPool != null) {
+            str.append(",");
+            str.append(m_bufferPool.toString());
+        }
+        str.append("]");
+        return str.toString();
+    }
+}
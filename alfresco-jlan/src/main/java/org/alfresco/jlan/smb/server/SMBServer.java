@@ -41,6 +41,7 @@ import org.alfresco.jlan.server.Version;
 import org.alfresco.jlan.server.auth.CifsAuthenticator;
 import org.alfresco.jlan.server.config.ConfigId;
 import org.alfresco.jlan.server.config.ConfigurationListener;
+import org.alfresco.jlan.server.config.CoreServerConfigSection;
 import org.alfresco.jlan.server.config.InvalidConfigurationException;
 import org.alfresco.jlan.server.config.ServerConfiguration;
 import org.alfresco.jlan.server.core.DeviceContext;
@@ -55,6 +56,7 @@ import org.alfresco.jlan.smb.SMBException;
 import org.alfresco.jlan.smb.ServerType;
 import org.alfresco.jlan.smb.dcerpc.UUID;
 import org.alfresco.jlan.smb.mailslot.HostAnnouncer;
+import org.alfresco.jlan.smb.server.stats.SMBServerStatistics;
 import org.alfresco.jlan.smb.server.win32.Win32NetBIOSLanaMonitor;
 import org.alfresco.jlan.smb.server.win32.Win32NetBIOSSessionSocketHandler;
 
@@ -100,6 +102,15 @@ public class SMBServer extends NetworkFileServer implements Runnable, Configurat
     // Server GUID
     private UUID m_serverGUID;
 
+    //	SMB packet/transaction buffer pool
+    private SMBPacketPool m_packetPool;
+
+    //	SMB command statistics
+    private SMBServerStatistics m_stats;
+
+    //	Lock requests waiting for a conflicting lock to be released
+    private PendingLockHandler m_pendingLocks;
+
     /**
      * Create an SMB server using the specified configuration.
      *
@@ -218,6 +229,14 @@ public class SMBServer extends NetworkFileServer implements Runnable, Configurat
             m_sessionHandlers = new LinkedList<>();
             //	Create the active session list
             m_sessions = new SrvSessionList();
+            //	Create the SMB packet pool, using the core server memory pool if configured
+            CoreServerConfigSection coreConfig = (CoreServerConfigSection) getConfiguration().getConfigSection(CoreServerConfigSection.SectionName);
+            m_packetPool = new SMBPacketPool(coreConfig != null ? coreConfig.getMemoryPool() : null);
+            //	Create the pending lock request handler
+            m_pendingLocks = new PendingLockHandler();
+            addFileListener(m_pendingLocks);
+            //	Create the SMB command statistics
+            m_stats = new SMBServerStatistics(m_sessions, SMBServerStatistics.DefaultSummaryInterval);
         } else {
             setEnabled(false);
         }
@@ -291,6 +310,33 @@ public class SMBServer extends NetworkFileServer implements Runnable, Configurat
         return m_cifsConfig;
     }
 
+    /**
+     * Return the SMB packet pool
+     *
+     * @return SMBPacketPool
+     */
+    public final SMBPacketPool getPacketPool() {
+        return m_packetPool;
+    }
+
+    /**
+     * Return the pending lock request handler
+     *
+     * @return PendingLockHandler
+     */
+    public final PendingLockHandler getPendingLockHandler() {
+        return m_pendingLocks;
+    }
+
+    /**
+     * Return the SMB command statistics
+     *
+     * @return SMBServerStatistics
+     */
+    public final SMBServerStatistics getStatistics() {
+        return m_stats;
+    }
+
     /**
      * Return the server comment.
      *
@@ -407,6 +453,8 @@ public class SMBServer extends NetworkFileServer implements Runnable, Configurat
             getFilesystemConfiguration().addShare(admShare);
             //  Clear the server shutdown flag
             setShutdown(false);
+            //	Publish the SMB command statistics
+            m_stats.startStatistics(getServerName());
             //	Get the list of IP addresses the server is bound to
             getServerIPAddresses();
             //	Check if the NT SMB dialect is enabled, if so then update the server flags to indicate that
@@ -482,6 +530,7 @@ public class SMBServer extends NetworkFileServer implements Runnable, Configurat
         //	Close the shared devices, host announcer and session handlers
         closeDevices();
         closeHostAnnouncers();
+        m_stats.shutdownStatistics();
         closeSessionHandlers();
         //	Shutdown the Win32 NetBIOS LANA monitor, if enabled
         if (isWindows && Win32NetBIOSLanaMonitor.getLanaMonitor() != null) {
@@ -503,6 +552,8 @@ public class SMBServer extends NetworkFileServer implements Runnable, Configurat
         m_sessions.removeSession(sess);
         //	Notify session listeners that a session has been closed
         fireSessionClosedEvent(sess);
+        //	Check for packet buffers that have not been released back to the pool
+        m_packetPool.checkForLeaks();
     }
 
     /**
@@ -534,6 +585,10 @@ public class SMBServer extends NetworkFileServer implements Runnable, Configurat
     public final void shutdownServer(boolean immediate) {
         //	Indicate that the server is closing
         setShutdown(true);
+        //	Stop retrying pending lock requests
+        if (m_pendingLocks != null) {
+            m_pendingLocks.shutdownRequest();
+        }
         try {
             //	Close the session handlers
             closeSessionHandlers();
@@ -126,6 +126,9 @@ public class SMBSrvPacket {
     protected int m_pos;
     protected int m_endpos;
 
+    //	Packet pool that owns the packet buffer, or null if the buffer was not pooled
+    private SMBPacketPool m_ownerPool;
+
     /**
      * Default constructor
      */
@@ -1474,4 +1477,31 @@ public class SMBSrvPacket {
     public final void setBuffer(byte[] buf) {
         m_smbbuf = buf;
     }
+
+    /**
+     * Determine if the packet buffer was allocated from a packet pool
+     *
+     * @return boolean
+     */
+    public final boolean isAllocatedFromPool() {
+        return m_ownerPool != null;
+    }
+
+    /**
+     * Return the packet pool that owns the packet buffer
+     *
+     * @return SMBPacketPool
+     */
+    public final SMBPacketPool getOwnerPacketPool() {
+        return m_ownerPool;
+    }
+
+    /**
+     * Set the packet pool that owns the packet buffer
+     *
+     * @param pool SMBPacketPool
+     */
+    protected final void setOwnerPacketPool(SMBPacketPool pool) {
+        m_ownerPool = pool;
+    }
 }
@@ -37,6 +37,7 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.channels.FileChannel;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -64,6 +65,7 @@ import org.alfresco.jlan.smb.SMBDate;
 import org.alfresco.jlan.smb.SMBStatus;
 import org.alfresco.jlan.smb.server.notify.NotifyRequest;
 import org.alfresco.jlan.smb.server.notify.NotifyRequestList;
+import org.alfresco.jlan.smb.server.stats.CommandStatisticsTable;
 import org.alfresco.jlan.util.DataPacker;
 import org.alfresco.jlan.util.HexDump;
 import org.alfresco.jlan.util.StringList;
@@ -111,6 +113,14 @@ public class SMBSrvSession extends SrvSession implements Runnable {
     //	SMB packet used for response
     private SMBSrvPacket m_smbPkt;
 
+    //	Command statistics for this session, and the error status and length of the responses to the current request
+    private final CommandStatisticsTable m_stats = new CommandStatisticsTable();
+    private boolean m_respError;
+    private long m_respBytes;
+
+    //	Thread processing the current request, only its responses are recorded against the request
+    private volatile Thread m_reqThread;
+
     //	Protocol handler for this session, depends upon the negotiated SMB dialect
     private ProtocolHandler m_handler;
 
@@ -190,9 +200,10 @@ public class SMBSrvSession extends SrvSession implements Runnable {
         //	Set the packet handler
         m_pktHandler = handler;
 
-        //  Allocate a receive buffer
-        m_buf = new byte[DefaultBufferSize];
-        m_smbPkt = new SMBSrvPacket(m_buf);
+        //  Allocate a receive buffer from the SMB packet pool
+        m_smbPkt = srv.getPacketPool().allocatePacket(DefaultBufferSize);
+        srv.getPacketPool().setSessionOwned(m_smbPkt, true);
+        m_buf = m_smbPkt.getBuffer();
 
         //	If this is a TCPIP SMB or Win32 NetBIOS session then bypass the NetBIOS session setup
         //	phase.
@@ -703,11 +714,17 @@ public class SMBSrvSession extends SrvSession implements Runnable {
     }
 
     /**
-     * Set the SMB packet
+     * Set the SMB packet. The previous receive packet is no longer owned by the
+     * session.
      *
      * @param pkt SMBSrvPacket
      */
     public final void setReceivePacket(SMBSrvPacket pkt) {
+        SMBPacketPool pktPool = getSMBServer().getPacketPool();
+        if (m_smbPkt != pkt) {
+            pktPool.setSessionOwned(m_smbPkt, false);
+        }
+        pktPool.setSessionOwned(pkt, true);
         m_smbPkt = pkt;
         m_buf = pkt.getBuffer();
     }
@@ -822,8 +839,10 @@ public class SMBSrvSession extends SrvSession implements Runnable {
      * @throws java.io.IOException
      */
     protected void procSMBNegotiate() throws SMBSrvException, IOException {
-        // Create an SMB server packet using the receive buffer
-        m_smbPkt = new SMBSrvPacket(m_buf);
+        // Create an SMB server packet using the receive buffer, the buffer is still owned by the packet pool
+        SMBSrvPacket negPkt = new SMBSrvPacket(m_buf);
+        negPkt.setOwnerPacketPool(m_smbPkt.getOwnerPacketPool());
+        m_smbPkt = negPkt;
         // Initialize the NetBIOS header
         m_buf[0] = (byte) RFCNetBIOSProtocol.SESSION_MESSAGE;
         // Check if the received packet looks like a valid SMB
@@ -970,7 +989,7 @@ public class SMBSrvSession extends SrvSession implements Runnable {
             nt.packWord(NTMaxMultiplexed);      // maximum multiplexed requests
             // setting to 1 will disable change notify requests from the client
             nt.packWord(MaxVirtualCircuits);    // maximum number of virtual circuits
-            int maxBufSize = m_smbPkt.getBuffer().length - RFCNetBIOSProtocol.HEADER_LEN;
+            int maxBufSize = Math.min(m_smbPkt.getBuffer().length, DefaultBufferSize) - RFCNetBIOSProtocol.HEADER_LEN;
             nt.packInt(maxBufSize);
             nt.packInt(0); // maximum raw size
             // Create a session token, using the system clock
@@ -1045,8 +1064,6 @@ public class SMBSrvSession extends SrvSession implements Runnable {
                 debugPrintln("Server session started");
             }
             //	Start/end times if timing debug is enabled
-            long startTime = 0L;
-            long endTime;
             //  The server session loops until the NetBIOS hangup state is set.
             while (m_state != SMBSrvSessionState.NBHANGUP) {
                 //	Set the current receive length to -1 to indicate that the session thread is not currently processing
@@ -1067,6 +1084,8 @@ public class SMBSrvSession extends SrvSession implements Runnable {
                     hangupSession("Remote disconnect");
                     continue;
                 }
+                //	The packet handler may have replaced the receive buffer to hold a large request
+                m_buf = m_smbPkt.getBuffer();
                 //  Check the packet signature if we are in an SMB state
                 if (m_state > SMBSrvSessionState.NBSESSREQ) {
                     //  Check for an SMB2 packet signature
@@ -1086,10 +1105,6 @@ public class SMBSrvSession extends SrvSession implements Runnable {
                         continue;
                     }
                 }
-                //	Debug
-                if (Debug.EnableInfo && hasDebug(DBG_TIMING)) {
-                    startTime = System.currentTimeMillis();
-                }
                 //	Store the received data length
                 m_smbPkt.setReceivedLength(m_rxlen);
                 //  Debug
@@ -1115,14 +1130,6 @@ public class SMBSrvSession extends SrvSession implements Runnable {
                     case SMBSrvSessionState.SMBSESSION:
                         //  Run the main protocol handler
                         runHandler();
-                        //	Debug
-                        if (Debug.EnableInfo && hasDebug(DBG_TIMING)) {
-                            endTime = System.currentTimeMillis();
-                            long duration = endTime - startTime;
-                            if (duration > 20) {
-                                debugPrintln("Processed packet " + PacketType.getCommandName(m_smbPkt.getCommand()) + " (0x" + Integer.toHexString(m_smbPkt.getCommand()) + ") in " + duration + "ms");
-                            }
-                        }
                         break;
 
                 } // end switch session state
@@ -1154,6 +1161,8 @@ public class SMBSrvSession extends SrvSession implements Runnable {
         }
         //  Close the session
         closeSocket();
+        //	Release the receive buffer back to the packet pool
+        getSMBServer().getPacketPool().releasePacket(m_smbPkt);
         //	Notify the server that the session has closed
         getSMBServer().sessionClosed(this);
     }
@@ -1175,14 +1184,37 @@ public class SMBSrvSession extends SrvSession implements Runnable {
         if (Debug.EnableInfo && hasDebug(DBG_PKTTYPE)) {
             debugPrintln("Rx packet type - " + m_smbPkt.getPacketTypeString() + ", SID=" + m_smbPkt.getSID());
         }
-        //  Call the protocol handler
-        if (m_handler.runProtocol() == false) {
-            //  The sessions protocol handler did not process the request, return an unsupported
-            //  SMB error status.
-            sendErrorResponseSMB(SMBStatus.SRVNotSupported, SMBStatus.ErrSrv);
+        //	Save the request details for the command statistics, the handler may reuse the packet
+        int cmd = m_smbPkt.getCommand();
+        int rxlen = m_rxlen;
+        String shareName = getShareName(m_smbPkt.getUserId(), m_smbPkt.getTreeId());
+        m_respError = false;
+        m_respBytes = 0L;
+        m_reqThread = Thread.currentThread();
+        long startTime = System.nanoTime();
+        boolean completed = false;
+        try {
+            //  Call the protocol handler
+            if (m_handler.runProtocol() == false) {
+                //  The sessions protocol handler did not process the request, return an unsupported
+                //  SMB error status.
+                sendErrorResponseSMB(SMBStatus.SRVNotSupported, SMBStatus.ErrSrv);
+            }
+            // Commit/rollback a transaction that the filesystem driver may have stored in the session
+            endTransaction();
+            completed = true;
+        } finally {
+            //	Update the server, share and session command statistics, an exception counts as an error
+            m_reqThread = null;
+            long micros = (System.nanoTime() - startTime) / 1000L;
+            boolean error = m_respError || completed == false;
+            getSMBServer().getStatistics().record(shareName, cmd, micros, error, rxlen, m_respBytes);
+            m_stats.record(cmd, micros, error, rxlen, m_respBytes);
+            //	Debug
+            if (Debug.EnableInfo && hasDebug(DBG_TIMING) && micros > 20000L) {
+                debugPrintln("Processed packet " + PacketType.getCommandName(cmd) + " (0x" + Integer.toHexString(cmd) + ") in " + (micros / 1000L) + "ms");
+            }
         }
-        // Commit/rollback a transaction that the filesystem driver may have stored in the session
-        endTransaction();
         //	Check if there are any pending asynchronous response packets
         while (hasAsynchResponse()) {
             //	Remove the current asynchronous response SMB packet and send to the client
@@ -1193,6 +1225,8 @@ public class SMBSrvSession extends SrvSession implements Runnable {
                 debugPrintln("Sent queued asynch response type=" + asynchPkt.getPacketTypeString() + ", mid=" + asynchPkt.getMultiplexId() + ", pid=" + asynchPkt.getProcessId());
                 debugPrintln("  Async queue len=" + m_asynchQueue.size());
             }
+            //	Release the response buffer if it was allocated from the packet pool
+            getSMBServer().getPacketPool().releasePacket(asynchPkt);
         }
     }
 
@@ -1214,6 +1248,108 @@ public class SMBSrvSession extends SrvSession implements Runnable {
      * @exception IOException
      */
     public synchronized final void sendResponseSMB(SMBSrvPacket pkt, int len) throws IOException {
+        //	Set the response flags
+        setResponseFlags(pkt);
+        recordResponse(pkt, len);
+        //  Send the response packet
+        m_pktHandler.writePacket(pkt, len);
+        m_pktHandler.flushPacket();
+        //	Debug
+        if (Debug.EnableInfo && hasDebug(DBG_TXDATA)) {
+            debugPrintln("Tx Data len=" + len);
+            HexDump.Dump(pkt.getBuffer(), 64, 0, Debug.getDebugInterface());
+        }
+    }
+
+    /**
+     * Send an SMB response followed by a region of file data that is sent
+     * directly from the file channel. The response length includes the file
+     * data length.
+     *
+     * @param pkt SMBSrvPacket
+     * @param len int
+     * @param fileChannel FileChannel
+     * @param fileOff long
+     * @param dataLen int
+     * @exception IOException
+     */
+    public synchronized final void sendResponseSMB(SMBSrvPacket pkt, int len, FileChannel fileChannel, long fileOff, int dataLen) throws IOException {
+        //	Set the response flags
+        setResponseFlags(pkt);
+        recordResponse(pkt, len);
+        //  Send the response packet and file data
+        m_pktHandler.writePacket(pkt, len, fileChannel, fileOff, dataLen);
+        m_pktHandler.flushPacket();
+        //	Debug
+        if (Debug.EnableInfo && hasDebug(DBG_TXDATA)) {
+            debugPrintln("Tx Data len=" + len + ", fileData=" + dataLen);
+            HexDump.Dump(pkt.getBuffer(), 64, 0, Debug.getDebugInterface());
+        }
+    }
+
+    /**
+     * Determine if the session can send file data directly from a file channel
+     *
+     * @return boolean
+     */
+    public final boolean hasFileRegionSupport() {
+        return m_pktHandler.hasFileRegionSupport();
+    }
+
+    /**
+     * Record the status and length of a response for the command statistics.
+     * The more processing required status of an intermediate session setup
+     * reply is not an error. Asynchronous responses sent by other threads, such
+     * as oplock breaks and change notifications, are not recorded against the
+     * request being processed.
+     *
+     * @param pkt SMBSrvPacket
+     * @param len int
+     */
+    private void recordResponse(SMBSrvPacket pkt, int len) {
+        if (Thread.currentThread() != m_reqThread) {
+            return;
+        }
+        if (pkt.isLongErrorCode()) {
+            int sts = pkt.getLongErrorCode();
+            if (sts != SMBStatus.NTSuccess && sts != SMBStatus.NTMoreProcessingRequired) {
+                m_respError = true;
+            }
+        } else if (pkt.getErrorClass() != SMBStatus.Success) {
+            m_respError = true;
+        }
+        m_respBytes += len;
+    }
+
+    /**
+     * Return the name of the share a request is for, or null if the tree
+     * connection is not valid
+     *
+     * @param uid int
+     * @param tid int
+     * @return String
+     */
+    private String getShareName(int uid, int tid) {
+        VirtualCircuit vc = findVirtualCircuit(uid);
+        TreeConnection conn = vc != null ? vc.findConnection(tid) : null;
+        return conn != null && conn.getSharedDevice() != null ? conn.getSharedDevice().getName() : null;
+    }
+
+    /**
+     * Return the command statistics for this session
+     *
+     * @return CommandStatisticsTable
+     */
+    public final CommandStatisticsTable getCommandStatistics() {
+        return m_stats;
+    }
+
+    /**
+     * Set the response and default flags for a response packet
+     *
+     * @param pkt SMBSrvPacket
+     */
+    private void setResponseFlags(SMBSrvPacket pkt) {
         //	Make sure the response flag is set
         if (pkt.isResponse() == false) {
             pkt.setFlags(pkt.getFlags() + SMBSrvPacket.FLG_RESPONSE);
@@ -1224,14 +1360,6 @@ public class SMBSrvSession extends SrvSession implements Runnable {
         int flags2 = pkt.getFlags2() | getDefaultFlags2();
         flags2 &= ~(SMBPacket.FLG2_EXTENDEDATTRIB + SMBPacket.FLG2_EXTENDNEGOTIATE + SMBPacket.FLG2_DFSRESOLVE + SMBPacket.FLG2_SECURITYSIGS);
         pkt.setFlags2(flags2);
-        //  Send the response packet
-        m_pktHandler.writePacket(pkt, len);
-        m_pktHandler.flushPacket();
-        //	Debug
-        if (Debug.EnableInfo && hasDebug(DBG_TXDATA)) {
-            debugPrintln("Tx Data len=" + len);
-            HexDump.Dump(pkt.getBuffer(), 64, 0, Debug.getDebugInterface());
-        }
     }
 
     /**
@@ -1335,7 +1463,8 @@ public class SMBSrvSession extends SrvSession implements Runnable {
     }
 
     /**
-     * Send, or queue, an asynchronous response SMB
+     * Send, or queue, an asynchronous response SMB. A packet allocated from
+     * the packet pool is released back to the pool once it has been sent.
      *
      * @param pkt	SMBSrvPacket
      * @param len	int
@@ -1347,8 +1476,13 @@ public class SMBSrvSession extends SrvSession implements Runnable {
         boolean sts = false;
         if (m_rxlen == -1) {//&& m_pktHandler.availableBytes() == 0
             //	Send the asynchronous response immediately
-            sendResponseSMB(pkt, len);
-            m_pktHandler.flushPacket();
+            try {
+                sendResponseSMB(pkt, len);
+                m_pktHandler.flushPacket();
+            } finally {
+                //	Release the response buffer if it was allocated from the packet pool
+                getSMBServer().getPacketPool().releasePacket(pkt);
+            }
             //	Indicate that the SMB response has been sent
             sts = true;
         } else {
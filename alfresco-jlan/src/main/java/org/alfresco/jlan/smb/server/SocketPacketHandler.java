@@ -38,6 +38,7 @@ import java.io.IOException;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
@@ -215,6 +216,61 @@ public abstract class SocketPacketHandler extends PacketHandler {
         }
     }
 
+    /**
+     * File data can be sent directly from a file channel to the socket channel
+     *
+     * @return boolean
+     */
+    @Override
+    public boolean hasFileRegionSupport() {
+        return true;
+    }
+
+    /**
+     * Send a packet header followed by a region of file data, the file data is
+     * transferred from the file channel to the socket channel without copying
+     * through a heap buffer
+     *
+     * @param pkt byte[]
+     * @param off int
+     * @param len int
+     * @param fileChannel FileChannel
+     * @param fileOff long
+     * @param dataLen int
+     * @throws IOException
+     */
+    protected final void writeFileRegion(byte[] pkt, int off, int len, FileChannel fileChannel, long fileOff, int dataLen) throws IOException {
+        if (channel == null) {
+            throw new IOException("channel closed");
+        }
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(pkt, off, len);
+            while (buf.remaining() > 0) {
+                channel.write(buf);
+            }
+            long pos = fileOff;
+            long remaining = dataLen;
+            while (remaining > 0) {
+                long cnt = fileChannel.transferTo(pos, remaining, channel);
+                if (cnt <= 0) {
+                    break;
+                }
+                pos += cnt;
+                remaining -= cnt;
+            }
+            // The file was truncated after the response was built, pad the data to the length already sent
+            if (remaining > 0) {
+                ByteBuffer padBuf = ByteBuffer.allocate((int) remaining);
+                while (padBuf.remaining() > 0) {
+                    channel.write(padBuf);
+                }
+            }
+        } catch (IOException e) {
+            closeHandler();
+            throw e;
+        }
+    }
+
     /**
      * Flush the output socket
      *
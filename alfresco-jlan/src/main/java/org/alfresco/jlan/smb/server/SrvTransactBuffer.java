@@ -39,6 +39,11 @@ import org.alfresco.jlan.util.DataPacker;
  */
 class SrvTransactBuffer extends TransactBuffer {
 
+	//	Packet pool and data block buffer, if the data block was allocated from the pool
+	
+	private SMBPacketPool m_pktPool;
+	private byte[] m_pooledData;
+
 	/**
 	 * Class constructor
 	 * 
@@ -73,6 +78,39 @@ class SrvTransactBuffer extends TransactBuffer {
 		setTreeId(tbuf.getTreeId());
 	}
 	
+	/**
+	 * Class constructor
+	 * 
+	 * <p>Construct a TransactBuffer using the maximum size settings from the specified transaction buffer,
+	 * the data block is allocated from the packet pool and must be released using releaseBuffers()
+	 * 
+	 * @param tbuf SrvTransactBuffer
+	 * @param pktPool SMBPacketPool
+	 */
+	public SrvTransactBuffer(SrvTransactBuffer tbuf, SMBPacketPool pktPool) {
+		super(tbuf.getReturnSetupLimit(), tbuf.getReturnParameterLimit(), 0);
+		
+		//	Allocate the data block from the packet pool
+		
+		if ( tbuf.getReturnDataLimit() > 0) {
+			m_pktPool = pktPool;
+			m_pooledData = pktPool.allocateBuffer(tbuf.getReturnDataLimit());
+			m_dataBuf = new DataBuffer(m_pooledData);
+		}
+		
+		//	Save the return limits for this transaction buffer
+		
+		setReturnLimits(tbuf.getReturnSetupLimit(), tbuf.getReturnParameterLimit(), tbuf.getReturnDataLimit());
+		
+		//	Set the transaction reply type
+		
+		setType(tbuf.isType());
+		
+		//	Copy the tree id
+		
+		setTreeId(tbuf.getTreeId());
+	}
+	
 	/**
 	 * Class constructor
 	 * 
@@ -190,4 +228,15 @@ class SrvTransactBuffer extends TransactBuffer {
 		
 		m_multi = false;
 	}
+
+	/**
+	 * Release the data block back to the packet pool, if it was allocated from the pool
+	 */
+	public final void releaseBuffers() {
+		if ( m_pooledData != null) {
+			m_pktPool.releaseBuffer(m_pooledData);
+			m_pooledData = null;
+			m_dataBuf = null;
+		}
+	}
 }
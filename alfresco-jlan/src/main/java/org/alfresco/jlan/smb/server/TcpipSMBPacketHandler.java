@@ -36,6 +36,7 @@ package org.alfresco.jlan.smb.server;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.channels.FileChannel;
 
 import org.alfresco.jlan.netbios.RFCNetBIOSProtocol;
 import org.alfresco.jlan.util.DataPacker;
@@ -93,12 +94,17 @@ public class TcpipSMBPacketHandler extends SocketPacketHandler {
         }
         //	Check if the packet buffer is large enough to hold the data + header
         if (buf.length < (dlen + RFCNetBIOSProtocol.HEADER_LEN)) {
-            //	Allocate a new buffer to hold the data and copy the existing header
-            byte[] newBuf = new byte[dlen + RFCNetBIOSProtocol.HEADER_LEN];
-            System.arraycopy(buf, 0, newBuf, 0, 4);
-            //	Attach the new buffer to the SMB packet
-            pkt.setBuffer(newBuf);
-            buf = newBuf;
+            //	Check if the packet buffer is pooled, if so then replace it with a larger pooled buffer
+            if (pkt.isAllocatedFromPool()) {
+                buf = pkt.getOwnerPacketPool().extendPacket(pkt, dlen + RFCNetBIOSProtocol.HEADER_LEN, RFCNetBIOSProtocol.HEADER_LEN);
+            } else {
+                //	Allocate a new buffer to hold the data and copy the existing header
+                byte[] newBuf = new byte[dlen + RFCNetBIOSProtocol.HEADER_LEN];
+                System.arraycopy(buf, 0, newBuf, 0, 4);
+                //	Attach the new buffer to the SMB packet
+                pkt.setBuffer(newBuf);
+                buf = newBuf;
+            }
         }
         //  Read the data part of the packet into the users buffer, this may take
         //  several reads
@@ -143,4 +149,24 @@ public class TcpipSMBPacketHandler extends SocketPacketHandler {
         int bufSiz = len + RFCNetBIOSProtocol.HEADER_LEN;
         writePacket(buf, 0, bufSiz);
     }
+
+    /**
+     * Send a packet to the output stream followed by a region of file data
+     *
+     * @param pkt SMBSrvPacket
+     * @param len int
+     * @param fileChannel FileChannel
+     * @param fileOff long
+     * @param dataLen int
+     * @throws java.io.IOException
+     */
+    @Override
+    public void writePacket(SMBSrvPacket pkt, int len, FileChannel fileChannel, long fileOff, int dataLen) throws IOException {
+        //  Fill in the TCP SMB message header, the length includes the file data
+        byte[] buf = pkt.getBuffer();
+        DataPacker.putInt(len, buf, 0);
+        //  Output the packet header and parameters, then the file data
+        int hdrSiz = len - dataLen + RFCNetBIOSProtocol.HEADER_LEN;
+        writeFileRegion(buf, 0, hdrSiz, fileChannel, fileOff, dataLen);
+    }
 }
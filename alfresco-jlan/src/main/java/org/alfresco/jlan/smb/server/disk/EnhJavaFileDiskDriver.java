@@ -28,6 +28,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.util.StringTokenizer;
 
 import org.alfresco.jlan.debug.Debug;
@@ -42,6 +43,7 @@ import org.alfresco.jlan.server.filesys.FileExistsException;
 import org.alfresco.jlan.server.filesys.FileInfo;
 import org.alfresco.jlan.server.filesys.FileName;
 import org.alfresco.jlan.server.filesys.FileOpenParams;
+import org.alfresco.jlan.server.filesys.FileRegionInterface;
 import org.alfresco.jlan.server.filesys.FileStatus;
 import org.alfresco.jlan.server.filesys.FileSystem;
 import org.alfresco.jlan.server.filesys.NetworkFile;
@@ -58,7 +60,7 @@ import org.alfresco.config.ConfigElement;
  *
  * @author gkspencer
  */
-public class EnhJavaFileDiskDriver implements DiskInterface, FileLockingInterface {
+public class EnhJavaFileDiskDriver implements DiskInterface, FileLockingInterface, FileRegionInterface {
 
   //	DOS file seperator character
     private static final String DOS_SEPERATOR = "\\";
@@ -772,6 +774,25 @@ public class EnhJavaFileDiskDriver implements DiskInterface, FileLockingInterfac
         return rdlen;
     }
 
+    /**
+     * Return the file channel for an open file, used to send file data directly to the client
+     *
+     * @param sess	Session details
+     * @param tree	Tree connection
+     * @param file	Network file
+     * @return FileChannel, or null if the file data must be read using readFile()
+     * @exception IOException
+     */
+    public FileChannel getFileChannel(SrvSession sess, TreeConnection tree, NetworkFile file)
+            throws java.io.IOException {
+
+	  //	Directories are read using readFile() so that the access denied error is returned
+        if (file.isDirectory() || file instanceof NIOJavaNetworkFile == false) {
+            return null;
+        }
+        return ((NIOJavaNetworkFile) file).getFileChannel();
+    }
+
     /**
      * Rename a file
      *
@@ -953,7 +974,11 @@ public class EnhJavaFileDiskDriver implements DiskInterface, FileLockingInterfac
             File rootDir = new File(path.getValue());
 
   		//	Create a device context using the absolute path
-            ctx = new DiskDeviceContext(rootDir.getAbsolutePath());
+            JavaFileDeviceContext javaCtx = new JavaFileDeviceContext(rootDir.getAbsolutePath());
+            ctx = javaCtx;
+
+			//	Enable watching of the local directory tree for changes made outside of the server, if configured
+            javaCtx.configureWatcher(args);
 
 			//	Set filesystem flags
             ctx.setFilesystemAttributes(FileSystem.CasePreservedNames + FileSystem.UnicodeOnDisk);
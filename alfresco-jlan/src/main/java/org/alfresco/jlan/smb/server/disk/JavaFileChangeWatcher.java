@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) 2016 SurCloud.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ */
+
+package org.alfresco.jlan.smb.server.disk;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.jlan.debug.Debug;
+import org.alfresco.jlan.server.filesys.DiskDeviceContext;
+import org.alfresco.jlan.server.filesys.FileName;
+import org.alfresco.jlan.server.filesys.NotifyChange;
+import org.alfresco.jlan.smb.server.notify.NotifyChangeHandler;
+
+/**
+ * Java File Change Watcher Class
+ *
+ * <p>
+ * Watches the local directory tree of a share using a WatchService, inotify on
+ * Linux, so that changes made outside of the file server are reported to the
+ * change notification handler and invalidate the directory cache. Each directory in the tree is registered separately, new directories
+ * are registered as they are created. Changes that arrive within a short window
+ * are collected and duplicates are reported once.
+ */
+public class JavaFileChangeWatcher implements Runnable {
+
+	//	Default maximum number of watched directories
+	public static final int DefaultMaximumWatches = 8192;
+
+	//	Window to collect changes before they are reported, in milliseconds
+	public static final long SettleWindow = 100L;
+
+	//	Share context and root path
+	private final DiskDeviceContext m_ctx;
+	private final Path m_root;
+
+	//	Watch service and registered directories, a directory is kept in the
+	//	directory set until its delete has been reported
+	private WatchService m_watcher;
+	private final Map<WatchKey, Path> m_keys = new HashMap<WatchKey, Path>();
+	private final Set<Path> m_dirs = new HashSet<Path>();
+
+	//	Maximum number of watched directories
+	private int m_maxWatches = DefaultMaximumWatches;
+
+	//	Watcher thread and shutdown flag
+	private Thread m_thread;
+	private volatile boolean m_shutdown;
+
+	//	Debug output enable
+	private boolean m_debug;
+
+	/**
+	 * Class constructor
+	 *
+	 * @param ctx DiskDeviceContext
+	 * @param rootPath String
+	 */
+	public JavaFileChangeWatcher(DiskDeviceContext ctx, String rootPath) {
+		m_ctx = ctx;
+		m_root = Paths.get(rootPath).toAbsolutePath().normalize();
+	}
+
+	/**
+	 * Set the maximum number of watched directories
+	 *
+	 * @param maxWatches int
+	 */
+	public final void setMaximumWatches(int maxWatches) {
+		m_maxWatches = maxWatches;
+	}
+
+	/**
+	 * Return the number of watched directories
+	 *
+	 * @return int
+	 */
+	public final synchronized int numberOfWatches() {
+		return m_keys.size();
+	}
+
+	/**
+	 * Enable/disable debug output
+	 *
+	 * @param dbg boolean
+	 */
+	public final void setDebug(boolean dbg) {
+		m_debug = dbg;
+	}
+
+	/**
+	 * Register the directory tree and start the watcher thread
+	 *
+	 * @exception IOException
+	 */
+	public final void startWatcher()
+			throws IOException {
+		m_watcher = FileSystems.getDefault().newWatchService();
+		registerTree(m_root);
+
+		m_thread = new Thread(this);
+		m_thread.setDaemon(true);
+		m_thread.setName("FileWatch_" + m_ctx.getDeviceName());
+		m_thread.start();
+	}
+
+	/**
+	 * Stop the watcher thread and release the watches
+	 */
+	public final void shutdownWatcher() {
+		m_shutdown = true;
+		if (m_watcher != null) {
+			try {
+				m_watcher.close();
+			} catch (IOException ex) {
+			}
+		}
+		if (m_thread != null) {
+			m_thread.interrupt();
+			m_thread = null;
+		}
+		synchronized (this) {
+			m_keys.clear();
+			m_dirs.clear();
+		}
+	}
+
+	/**
+	 * Register a directory and its subdirectories
+	 *
+	 * @param dir Path
+	 */
+	private void registerTree(Path dir) {
+		try {
+			Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path subDir, BasicFileAttributes attrs) throws IOException {
+					return register(subDir) ? FileVisitResult.CONTINUE : FileVisitResult.TERMINATE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException ex) {
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException ex) {
+			if (Debug.EnableError) {
+				Debug.println("[FileWatch] Failed to register " + dir + ", " + ex.toString());
+			}
+		}
+	}
+
+	/**
+	 * Register a single directory
+	 *
+	 * @param dir Path
+	 * @return boolean, false if the watch limit has been reached
+	 * @exception IOException
+	 */
+	private synchronized boolean register(Path dir)
+			throws IOException {
+		if (m_keys.size() >= m_maxWatches) {
+			if (Debug.EnableError) {
+				Debug.println("[FileWatch] Watch limit " + m_maxWatches + " reached for " + m_ctx.getDeviceName() + ", not watching " + dir);
+			}
+			return false;
+		}
+		WatchKey key = dir.register(m_watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+		m_keys.put(key, dir);
+		m_dirs.add(dir);
+		return true;
+	}
+
+	/**
+	 * Remove a deleted directory, and any directories below it, from the watched
+	 * directories
+	 *
+	 * @param path Path
+	 * @return boolean, true if the path was a watched directory
+	 */
+	private synchronized boolean removeWatchedDirectory(Path path) {
+		if (m_dirs.remove(path) == false) {
+			return false;
+		}
+		Iterator<Path> iter = m_dirs.iterator();
+		while (iter.hasNext()) {
+			if (iter.next().startsWith(path)) {
+				iter.remove();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Convert a local path to a share relative path
+	 *
+	 * @param path Path
+	 * @return String
+	 */
+	private String toSharePath(Path path) {
+		StringBuilder str = new StringBuilder(64);
+		for (Path name : m_root.relativize(path)) {
+			str.append(FileName.DOS_SEPERATOR);
+			str.append(name.toString());
+		}
+		return str.length() > 0 ? str.toString() : FileName.DOS_SEPERATOR_STR;
+	}
+
+	/**
+	 * Watcher thread
+	 */
+	@Override
+	public void run() {
+		while (m_shutdown == false) {
+			try {
+
+				//	Wait for a change, then collect the changes that arrive within the settle window
+				Map<Path, WatchEvent.Kind<?>> changes = new LinkedHashMap<Path, WatchEvent.Kind<?>>();
+				boolean overflow = processKey(m_watcher.take(), changes);
+
+				WatchKey key = m_watcher.poll(SettleWindow, TimeUnit.MILLISECONDS);
+				while (key != null) {
+					overflow |= processKey(key, changes);
+					key = m_watcher.poll();
+				}
+
+				//	Report the changes
+				if (overflow) {
+					reportOverflow();
+				}
+				for (Map.Entry<Path, WatchEvent.Kind<?>> change : changes.entrySet()) {
+					reportChange(change.getKey(), change.getValue());
+				}
+			} catch (InterruptedException | ClosedWatchServiceException ex) {
+				//	Shutdown
+			} catch (Exception ex) {
+				if (Debug.EnableError) {
+					Debug.println("[FileWatch] Error processing changes for " + m_ctx.getDeviceName());
+					Debug.println(ex);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Collect the events for a watch key and reset the key
+	 *
+	 * @param key WatchKey
+	 * @param changes Map<Path, WatchEvent.Kind<?>>
+	 * @return boolean, true if events were lost
+	 */
+	private boolean processKey(WatchKey key, Map<Path, WatchEvent.Kind<?>> changes) {
+		Path dir;
+		synchronized (this) {
+			dir = m_keys.get(key);
+		}
+		boolean overflow = false;
+		for (WatchEvent<?> evt : key.pollEvents()) {
+			if (evt.kind() == StandardWatchEventKinds.OVERFLOW) {
+				overflow = true;
+			} else if (dir != null) {
+
+				//	Keep the last event for each path, a create followed by a modify is reported as a create
+				Path path = dir.resolve((Path) evt.context());
+				WatchEvent.Kind<?> prev = changes.remove(path);
+				if (prev == StandardWatchEventKinds.ENTRY_CREATE && evt.kind() == StandardWatchEventKinds.ENTRY_MODIFY) {
+					changes.put(path, prev);
+				} else {
+					changes.put(path, evt.kind());
+				}
+			}
+		}
+
+		//	Reset the key, remove it if the directory is no longer accessible
+		if (key.reset() == false) {
+			synchronized (this) {
+				m_keys.remove(key);
+			}
+		}
+		return overflow;
+	}
+
+	/**
+	 * Report a change to the change handler and invalidate the directory cache
+	 *
+	 * @param path Path
+	 * @param kind WatchEvent.Kind<?>
+	 */
+	private void reportChange(Path path, WatchEvent.Kind<?> kind) {
+		String sharePath = toSharePath(path);
+		boolean isdir;
+		int filter;
+		int action;
+
+		if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+			isdir = Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS);
+			filter = isdir ? NotifyChange.DirectoryName : NotifyChange.FileName;
+			action = NotifyChange.ActionAdded;
+
+			//	Watch a new directory tree
+			if (isdir) {
+				registerTree(path);
+			}
+		} else if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+			isdir = removeWatchedDirectory(path);
+			filter = isdir ? NotifyChange.DirectoryName : NotifyChange.FileName;
+			action = NotifyChange.ActionRemoved;
+		} else {
+
+			//	A modify event on a directory is caused by a change to its contents, which is reported separately
+			isdir = Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS);
+			if (isdir) {
+				return;
+			}
+			filter = NotifyChange.LastWrite + NotifyChange.Size;
+			action = NotifyChange.ActionModified;
+		}
+
+		if (Debug.EnableInfo && m_debug) {
+			Debug.println("[FileWatch] " + kind.name() + " " + sharePath + (isdir ? " (dir)" : ""));
+		}
+
+		//	Report the change, the change handler also invalidates the directory cache
+		NotifyChangeHandler changeHandler = m_ctx.getChangeHandler();
+		if (changeHandler != null) {
+			changeHandler.notifyExternalChange(filter, action, sharePath, isdir);
+		} else if (m_ctx.hasDirectoryCache()) {
+			m_ctx.getDirectoryCache().invalidatePath(sharePath);
+		}
+	}
+
+	/**
+	 * Changes have been lost, clear the caches
+	 */
+	private void reportOverflow() {
+		if (Debug.EnableError) {
+			Debug.println("[FileWatch] Change events lost for " + m_ctx.getDeviceName() + ", clearing caches");
+		}
+		if (m_ctx.hasDirectoryCache()) {
+			m_ctx.getDirectoryCache().removeAllSnapshots();
+		}
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2016 SurCloud.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ */
+
+package org.alfresco.jlan.smb.server.disk;
+
+import java.io.IOException;
+
+import org.alfresco.config.ConfigElement;
+import org.alfresco.jlan.debug.Debug;
+import org.alfresco.jlan.server.core.DeviceContextException;
+import org.alfresco.jlan.server.filesys.DiskDeviceContext;
+import org.alfresco.jlan.server.filesys.DiskSharedDevice;
+
+/**
+ * Java File Device Context Class
+ *
+ * <p>
+ * Device context for the local disk drivers. If the share configuration has a
+ * WatchChanges element the local directory tree is watched for changes made
+ * outside of the file server, the optional maxWatches attribute limits the
+ * number of watched directories.
+ */
+public class JavaFileDeviceContext extends DiskDeviceContext {
+
+	//	Change watcher, null if changes are not watched
+	private JavaFileChangeWatcher m_watcher;
+
+	/**
+	 * Class constructor
+	 *
+	 * @param rootPath String
+	 */
+	public JavaFileDeviceContext(String rootPath) {
+		super(rootPath);
+	}
+
+	/**
+	 * Configure the change watcher from the share configuration
+	 *
+	 * @param args ConfigElement
+	 * @exception DeviceContextException
+	 */
+	public final void configureWatcher(ConfigElement args)
+			throws DeviceContextException {
+		ConfigElement watchElem = args.getChild("WatchChanges");
+		if (watchElem == null) {
+			return;
+		}
+		m_watcher = new JavaFileChangeWatcher(this, getDeviceName());
+		String maxWatches = watchElem.getAttribute("maxWatches");
+		if (maxWatches != null && maxWatches.length() > 0) {
+			try {
+				m_watcher.setMaximumWatches(Integer.parseInt(maxWatches));
+			} catch (NumberFormatException ex) {
+				throw new DeviceContextException("Invalid maxWatches value, " + maxWatches);
+			}
+		}
+		m_watcher.setDebug(watchElem.getAttribute("debug") != null);
+	}
+
+	/**
+	 * Return the change watcher, or null if changes are not watched
+	 *
+	 * @return JavaFileChangeWatcher
+	 */
+	public final JavaFileChangeWatcher getChangeWatcher() {
+		return m_watcher;
+	}
+
+	/**
+	 * Start the change watcher, the change handler and directory cache have been
+	 * configured by this point
+	 *
+	 * @param share DiskSharedDevice
+	 * @exception DeviceContextException
+	 */
+	@Override
+	public void startFilesystem(DiskSharedDevice share)
+			throws DeviceContextException {
+		super.startFilesystem(share);
+		if (m_watcher != null && isAvailable()) {
+			try {
+				m_watcher.startWatcher();
+			} catch (IOException ex) {
+				if (Debug.EnableError) {
+					Debug.println("[FileWatch] Failed to watch " + getDeviceName() + ", " + ex.toString());
+				}
+				m_watcher = null;
+			}
+		}
+	}
+
+	/**
+	 * Close the device context, stop the change watcher
+	 */
+	@Override
+	public void CloseContext() {
+		if (m_watcher != null) {
+			m_watcher.shutdownWatcher();
+			m_watcher = null;
+		}
+		super.CloseContext();
+	}
+}
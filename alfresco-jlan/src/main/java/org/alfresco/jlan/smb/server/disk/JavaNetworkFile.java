@@ -29,6 +29,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 
 import org.alfresco.jlan.server.filesys.AccessMode;
 import org.alfresco.jlan.server.filesys.DiskFullException;
@@ -344,6 +345,22 @@ public class JavaNetworkFile extends NetworkFile {
     return rdlen;
   }
 
+  /**
+   * Return the file channel, the file is opened if not already open.
+   *
+   * @return FileChannel
+   * @exception IOException
+   */
+  public FileChannel getFileChannel()
+    throws java.io.IOException {
+
+    //  Open the file, if not already open
+
+    if (m_io == null)
+      openFile(false);
+    return m_io.getChannel();
+  }
+
   /**
    * Seek to the specified file position.
    *
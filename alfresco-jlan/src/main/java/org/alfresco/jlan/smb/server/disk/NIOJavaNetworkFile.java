@@ -302,6 +302,22 @@ public class NIOJavaNetworkFile extends NetworkFile {
         return rdlen;
     }
 
+    /**
+     * Return the file channel, the file is opened if not already open.
+     *
+     * @return FileChannel
+     * @exception IOException
+     */
+    public FileChannel getFileChannel()
+            throws java.io.IOException {
+
+    //  Open the file, if not already open
+        if (m_channel == null) {
+            openFile(false);
+        }
+        return m_channel;
+    }
+
     /**
      * Seek to the specified file position.
      *
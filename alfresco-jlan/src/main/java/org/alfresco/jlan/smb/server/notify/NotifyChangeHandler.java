@@ -25,6 +25,11 @@
 
 package org.alfresco.jlan.smb.server.notify;
 
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Vector;
 
 import org.alfresco.jlan.debug.Debug;
@@ -41,10 +46,33 @@ import org.alfresco.jlan.util.DataPacker;
 /**
  * Notify Change Handler Class
  *
+ * <p>Pending requests are indexed by the watched directory path so matching an event does not check every
+ * request. Events that arrive within a short window are collected and sent to each request as a single
+ * notify response.
+ *
  * @author gkspencer
  */
 public class NotifyChangeHandler implements Runnable {
 
+	//	Window to collect events into a single notify response, in milliseconds
+	
+	public static final long DefaultBatchWindow		= 20L;
+	
+	//	Maximum length of the notify information returned in a single response, a client that asks for
+	//	more changes is told to enumerate the directory instead
+	
+	public static final int MaxNotifyLength				= 1024;
+	
+	//	Interval between checks for expired requests, in milliseconds
+	
+	public static final long ExpiryCheckInterval	= 30000L;
+	
+	//	Window that an external change is ignored for after the server has queued the same change, in
+	//	milliseconds, and the number of recent server changes kept
+	
+	public static final long ExternalChangeWindow	= 2000L;
+	public static final int MaxRecentChanges			= 1024;
+
 	//	Change notification request list and global filter mask
 	
 	private NotifyRequestList m_notifyList;
@@ -69,6 +97,22 @@ public class NotifyChangeHandler implements Runnable {
 	//	Shutdown request flag
 	
 	private boolean m_shutdown;
+	
+	//	Event batch window, in milliseconds, and time of the last expired request check
+	
+	private long m_batchWindow = DefaultBatchWindow;
+	private long m_lastExpiryCheck;
+	
+	//	Recent changes queued by the server, keyed by action and path, used to ignore the same change when
+	//	it is reported by an external change source
+	
+	private LinkedHashMap<String, Long> m_recentChanges = new LinkedHashMap<String, Long>(64, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		
+		protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+			return size() > MaxRecentChanges;
+		}
+	};
 			
 	/**
 	 * Class constructor
@@ -105,7 +149,7 @@ public class NotifyChangeHandler implements Runnable {
 		//	Check if the request list has been allocated
 		
 		if ( m_notifyList == null)
-			m_notifyList = new NotifyRequestList();
+			m_notifyList = new NotifyRequestList(true);
 			
 		//	Add the request to the list
 
@@ -282,6 +326,11 @@ public class NotifyChangeHandler implements Runnable {
 	 */
 	public final void notifyFileChanged(int action, String path) {
 		
+		//	Invalidate any cached directory listings affected by the change
+		
+		if ( m_diskCtx.hasDirectoryCache())
+			m_diskCtx.getDirectoryCache().invalidatePath(path);
+		
 		//	Check if file change notifications are enabled
 		
 		if ( getGlobalNotifyMask() == 0 || hasFileNameChange() == false)
@@ -300,6 +349,11 @@ public class NotifyChangeHandler implements Runnable {
 	 */
 	public final void notifyRename(String oldName, String newName) {
 		
+		//	Invalidate any cached directory listings affected by the rename
+		
+		if ( m_diskCtx.hasDirectoryCache())
+			m_diskCtx.getDirectoryCache().invalidateRename(oldName, newName);
+		
 		//	Check if file change notifications are enabled
 		
 		if ( getGlobalNotifyMask() == 0 || (hasFileNameChange() == false && hasDirectoryNameChange() == false))
@@ -318,6 +372,11 @@ public class NotifyChangeHandler implements Runnable {
 	 */
 	public final void notifyDirectoryChanged(int action, String path) {
 		
+		//	Invalidate any cached directory listings affected by the change
+		
+		if ( m_diskCtx.hasDirectoryCache())
+			m_diskCtx.getDirectoryCache().invalidatePath(path);
+		
 		//	Check if file change notifications are enabled
 		
 		if ( getGlobalNotifyMask() == 0 || hasDirectoryNameChange() == false)
@@ -336,6 +395,11 @@ public class NotifyChangeHandler implements Runnable {
 	 */
 	public final void notifyAttributesChanged(String path, boolean isdir) {
 		
+		//	Invalidate any cached directory listings affected by the change
+		
+		if ( m_diskCtx.hasDirectoryCache())
+			m_diskCtx.getDirectoryCache().invalidatePath(path);
+		
 		//	Check if file change notifications are enabled
 		
 		if ( getGlobalNotifyMask() == 0 || hasAttributeChange() == false)
@@ -353,6 +417,11 @@ public class NotifyChangeHandler implements Runnable {
 	 */
 	public final void notifyFileSizeChanged(String path) {
 		
+		//	Invalidate any cached directory listings affected by the change
+		
+		if ( m_diskCtx.hasDirectoryCache())
+			m_diskCtx.getDirectoryCache().invalidatePath(path);
+		
 		//	Check if file change notifications are enabled
 		
 		if ( getGlobalNotifyMask() == 0 || hasFileSizeChange() == false)
@@ -371,6 +440,11 @@ public class NotifyChangeHandler implements Runnable {
 	 */
 	public final void notifyLastWriteTimeChanged(String path, boolean isdir) {
 		
+		//	Invalidate any cached directory listings affected by the change
+		
+		if ( m_diskCtx.hasDirectoryCache())
+			m_diskCtx.getDirectoryCache().invalidatePath(path);
+		
 		//	Check if file change notifications are enabled
 		
 		if ( getGlobalNotifyMask() == 0 || hasFileWriteTimeChange() == false)
@@ -389,6 +463,11 @@ public class NotifyChangeHandler implements Runnable {
 	 */
 	public final void notifyLastAccessTimeChanged(String path, boolean isdir) {
 		
+		//	Invalidate any cached directory listings affected by the change
+		
+		if ( m_diskCtx.hasDirectoryCache())
+			m_diskCtx.getDirectoryCache().invalidatePath(path);
+		
 		//	Check if file change notifications are enabled
 		
 		if ( getGlobalNotifyMask() == 0 || hasFileAccessTimeChange() == false)
@@ -407,6 +486,11 @@ public class NotifyChangeHandler implements Runnable {
 	 */
 	public final void notifyCreationTimeChanged(String path, boolean isdir) {
 		
+		//	Invalidate any cached directory listings affected by the change
+		
+		if ( m_diskCtx.hasDirectoryCache())
+			m_diskCtx.getDirectoryCache().invalidatePath(path);
+		
 		//	Check if file change notifications are enabled
 		
 		if ( getGlobalNotifyMask() == 0 || hasFileCreateTimeChange() == false)
@@ -425,6 +509,11 @@ public class NotifyChangeHandler implements Runnable {
 	 */
 	public final void notifySecurityDescriptorChanged(String path, boolean isdir) {
 		
+		//	Invalidate any cached directory listings affected by the change
+		
+		if ( m_diskCtx.hasDirectoryCache())
+			m_diskCtx.getDirectoryCache().invalidatePath(path);
+		
 		//	Check if file change notifications are enabled
 		
 		if ( getGlobalNotifyMask() == 0 || hasSecurityDescriptorChange() == false)
@@ -435,6 +524,50 @@ public class NotifyChangeHandler implements Runnable {
 		queueNotification(new NotifyChangeEvent(NotifyChange.Security, NotifyChange.ActionModified, path, isdir));		
 	}
 
+	/**
+	 * Change made outside of the file server notification, from a change source watching the underlying
+	 * filesystem. The change is ignored if the server has queued the same change recently.
+	 * 
+	 * @param filter int
+	 * @param action int
+	 * @param path String
+	 * @param isdir boolean
+	 */
+	public final void notifyExternalChange(int filter, int action, String path, boolean isdir) {
+		
+		//	Invalidate any cached directory listings affected by the change
+		
+		if ( m_diskCtx.hasDirectoryCache())
+			m_diskCtx.getDirectoryCache().invalidatePath(path);
+		
+		//	Check if change notifications are enabled for the change
+		
+		if (( getGlobalNotifyMask() & filter) == 0)
+			return;
+		
+		//	Check if the server has already queued the change
+		
+		synchronized ( m_recentChanges) {
+			Long queuedAt = m_recentChanges.get(getChangeKey(action, path));
+			if ( queuedAt != null && System.currentTimeMillis() - queuedAt.longValue() < ExternalChangeWindow)
+				return;
+		}
+		
+		//	Queue the change notification event
+		
+		queueEvent(new NotifyChangeEvent(filter, action, path, isdir));
+	}
+	
+	/**
+	 * Set the window used to collect events into a single notify response, zero sends each event as it
+	 * is queued
+	 * 
+	 * @param window long
+	 */
+	public final void setBatchWindow(long window) {
+		m_batchWindow = window;
+	}
+
 	/**
 	 * Enable debug output
 	 * 
@@ -476,10 +609,45 @@ public class NotifyChangeHandler implements Runnable {
 		if ( Debug.EnableInfo && hasDebug())
 		  Debug.println("Send buffered notifications, req=" + req + ", evtList=" + ( evtList != null ? "" + evtList.numberOfEvents() : "null"));
 		
-	  //	Initialize the notification request timeout
+		//	Check if the notify enum status is set, or there are no buffered events
+		
+		if ( req.hasNotifyEnum() == false && ( evtList == null || evtList.numberOfEvents() == 0))
+			return;
+		
+		//	Build the list of buffered events, if the notify enum status is set the client must enumerate the
+		//	directory
+		
+		List<NotifyChangeEvent> events = null;
+		
+		if ( req.hasNotifyEnum() == false) {
+			events = new ArrayList<NotifyChangeEvent>(evtList.numberOfEvents());
+			for ( int i = 0; i < evtList.numberOfEvents(); i++)
+				events.add(evtList.getEventAt(i));
+		}
+		
+		//	Send all of the buffered events in a single response
+		
+		req.setNotifyEnum( false);
+		sendNotifyResponse(req, events, true, System.currentTimeMillis() + NotifyRequest.DefaultRequestTimeout);
+		
+		//	DEBUG
+		
+		if ( Debug.EnableInfo && hasDebug())
+			Debug.println("sendBufferedNotifications() done");
+	}
+	
+	/**
+	 * Send a notify response for a request, containing the notify information for a list of events. If the
+	 * event list is null, or the notify information would be too long, the response tells the client to
+	 * enumerate the directory.
+	 * 
+	 * @param req NotifyRequest
+	 * @param events List<NotifyChangeEvent>
+	 * @param relative boolean, use paths relative to the watched directory
+	 * @param tmo long
+	 */
+	private final void sendNotifyResponse(NotifyRequest req, List<NotifyChangeEvent> events, boolean relative, long tmo) {
 		
-		long tmo = System.currentTimeMillis() + NotifyRequest.DefaultRequestTimeout;
-
 		//	Allocate the NT transaction packet to send the asynchronous notification
 		
 		NTTransPacket ntpkt = new NTTransPacket();
@@ -493,169 +661,213 @@ public class NotifyChangeHandler implements Runnable {
 		ntpkt.setNTParameter(1, 0);					//	total data count
 		ntpkt.setNTParameter(3, pos - 4);		//	offset to parameter block
 
-		//	Check if the notify enum status is set
+		//	Pack the notification structures
+		
+		int prmLen = -1;
+		if ( events != null)
+			prmLen = packNotifyEvents(ntpkt, req, events, relative);
 		
-		if ( req.hasNotifyEnum()) {
+		if ( prmLen == -1) {
 		  
-			//	Set the parameter block length
+			//	Tell the client to enumerate the directory
 			
+			ntpkt.setPosition(pos);
 			ntpkt.setNTParameter(0, 0);				//	total parameter block count
 			ntpkt.setNTParameter(2, 0);				//	parameter block count for this packet
 			ntpkt.setNTParameter(6, pos - 4);	//	data block offset
-			ntpkt.setByteCount();
-
-			ntpkt.setCommand(PacketType.NTTransact);
-      ntpkt.setLongErrorCode(SMBStatus.NTNotifyEnumDir);
+			ntpkt.setLongErrorCode(SMBStatus.NTNotifyEnumDir);
+		}
+		else {
 			
-			ntpkt.setFlags(SMBSrvPacket.FLG_CANONICAL + SMBSrvPacket.FLG_CASELESS);
-			ntpkt.setFlags2(SMBSrvPacket.FLG2_UNICODE + SMBSrvPacket.FLG2_LONGERRORCODE);
+			//	Set the parameter block length, longword align the buffer position
 			
-			//	Set the notification request id to indicate that it has completed
-				
-			req.setCompleted(true, tmo);
-			req.setNotifyEnum( false);
-				
-			//	Set the response for the current notify request
-				
-			ntpkt.setMultiplexId(req.getMultiplexId());
-			ntpkt.setTreeId(req.getTreeId());
-			ntpkt.setUserId(req.getUserId());
-			ntpkt.setProcessId(req.getProcessId());
-	
-			try {			
-	
-				//	Send the response to the current session
-	
-				if ( req.getSession().sendAsynchResponseSMB(ntpkt, ntpkt.getLength()) == false) {
-						
-					//	Asynchronous request was queued, clone the request packet
-						
-					ntpkt = new NTTransPacket(ntpkt);
-				}
-			}
-			catch (Exception ex) {
+			ntpkt.alignBytePointer();
+			
+			ntpkt.setNTParameter(0, prmLen);		//	total parameter block count
+			ntpkt.setNTParameter(2, prmLen);		//	parameter block count for this packet
+			ntpkt.setNTParameter(6, ntpkt.getPosition() - 4);
+																					//	data block offset
+			ntpkt.setLongErrorCode(0);
+		}
+		
+		ntpkt.setByteCount();
+		ntpkt.setCommand(PacketType.NTTransact);
+		
+		ntpkt.setFlags(SMBSrvPacket.FLG_CANONICAL + SMBSrvPacket.FLG_CASELESS);
+		ntpkt.setFlags2(SMBSrvPacket.FLG2_UNICODE + SMBSrvPacket.FLG2_LONGERRORCODE);
+		
+		//	Set the notification request id to indicate that it has completed
+			
+		req.setCompleted(true, tmo);
+			
+		//	Set the response for the current notify request
+			
+		ntpkt.setMultiplexId(req.getMultiplexId());
+		ntpkt.setTreeId(req.getTreeId());
+		ntpkt.setUserId(req.getUserId());
+		ntpkt.setProcessId(req.getProcessId());
 
-        //  DEBUG
-        
-        if ( Debug.EnableError && hasDebug())
-          Debug.println("Failed to send change notification, " + ex.getMessage());
-			}
+		try {			
+
+			//	Send the response to the current session, the packet is queued if it cannot be sent
+			//	immediately
+			
+			req.getSession().sendAsynchResponseSMB(ntpkt, ntpkt.getLength());
 		}
-		else if ( evtList != null) {
-		  
-			//	Pack the change notification events
+		catch (Exception ex) {
+
+      //  DEBUG
+      
+      if ( Debug.EnableError && hasDebug())
+        Debug.println("Failed to send change notification, " + ex.getMessage());
+		}
+	}
+	
+	/**
+	 * Pack the notify information structures for a list of events
+	 * 
+	 * @param ntpkt NTTransPacket
+	 * @param req NotifyRequest
+	 * @param events List<NotifyChangeEvent>
+	 * @param relative boolean, use paths relative to the watched directory
+	 * @return int, length of the notify information or -1 if the information is too long
+	 */
+	private final int packNotifyEvents(NTTransPacket ntpkt, NotifyRequest req, List<NotifyChangeEvent> events, boolean relative) {
+
+		//	Maximum length of the notify information, limited by the packet buffer
+		
+		int startPos = ntpkt.getPosition();
+		int maxLen = Math.min(MaxNotifyLength, ntpkt.getBuffer().length - startPos);
+		int entryPos = -1;
+		
+		for ( NotifyChangeEvent evt : events) {
 			
-			for ( int i = 0; i < evtList.numberOfEvents(); i++) {
-			  
-			  //	Get the current event from the list
-			  
-			  NotifyChangeEvent evt = evtList.getEventAt(i);
-			  
-				//	Get the relative file name for the event
+			//	Get the path for the event
+			
+			String relName = null;
+			if ( relative)
+				relName = FileName.makeRelativePath(req.getWatchPath(), evt.getFileName());
+			else
+				relName = evt.getFileName();
+			
+			if ( relName == null)
+			  relName = evt.getShortFileName();
+			
+			//	DEBUG
+
+			if ( Debug.EnableInfo && hasDebug())
+			  Debug.println("  Notify evtPath=" + evt.getFileName()  + ", reqPath=" + req.getWatchPath() + ", relative=" + relName);
+			
+			//	Pack the notification structure
+			
+			entryPos = packNotifyEntry(ntpkt, entryPos, evt.getAction(), relName, startPos + maxLen);
+			if ( entryPos == -1)
+				return -1;
+			
+			//	Check if the event is a file/directory rename, if so then add the old file/directory details
+			
+			if ( evt.getAction() == NotifyChange.ActionRenamedNewName &&
+					 evt.hasOldFileName()) {
+
+				//	Get the old file name
 				
-				String relName = FileName.makeRelativePath(req.getWatchPath(), evt.getFileName());
+				relName = FileName.makeRelativePath(req.getWatchPath(), evt.getOldFileName());
 				if ( relName == null)
-				  relName = evt.getShortFileName();
-				
-				//	DEBUG
-	
-				if ( Debug.EnableInfo && hasDebug())
-				  Debug.println("  Notify evtPath=" + evt.getFileName()  + ", reqPath=" + req.getWatchPath() + ", relative=" + relName);
-				
-				//	Pack the notification structure
-				
-				ntpkt.packInt(0);																//	offset to next structure
-				ntpkt.packInt(evt.getAction());									//	action
-				ntpkt.packInt(relName.length() * 2);						//	file name length
-				ntpkt.packString(relName, true, false);
-				
-				//	Check if the event is a file/directory rename, if so then add the old file/directory details
+				  relName = evt.getOldFileName();
 				
-				if ( evt.getAction() == NotifyChange.ActionRenamedNewName &&
-						 evt.hasOldFileName()) {
-	
-					//	Set the offset from the first structure to this structure
-					
-					int newPos = DataPacker.longwordAlign(ntpkt.getPosition());
-					DataPacker.putIntelInt(newPos - pos, ntpkt.getBuffer(), pos);
-	
-					//	Get the old file name
-					
-					relName = FileName.makeRelativePath(req.getWatchPath(), evt.getOldFileName());
-					if ( relName == null)
-					  relName = evt.getOldFileName();
-					
-					//	Add the old file/directory name details
+				//	Add the old file/directory name details
+
+				entryPos = packNotifyEntry(ntpkt, entryPos, NotifyChange.ActionRenamedOldName, relName, startPos + maxLen);
+				if ( entryPos == -1)
+					return -1;
+			}
+		}
+		
+		//	Return the notify information length
+		
+		return ntpkt.getPosition() - startPos;
+	}
 	
-					ntpkt.packInt(0);																//	offset to next structure
-					ntpkt.packInt(NotifyChange.ActionRenamedOldName);
-					ntpkt.packInt(relName.length() * 2);						//	file name length
-					ntpkt.packString(relName, true, false);
-				}
-				
-				//	Calculate the parameter block length, longword align the buffer position
-				
-				int prmLen = ntpkt.getPosition() - pos;
-				ntpkt.alignBytePointer();
-				pos = (pos + 3) & 0xFFFFFFFC;
-				
-				//	Set the parameter block length
-				
-				ntpkt.setNTParameter(0, prmLen);		//	total parameter block count
-				ntpkt.setNTParameter(2, prmLen);		//	parameter block count for this packet
-				ntpkt.setNTParameter(6, ntpkt.getPosition() - 4);
-																						//	data block offset
-				ntpkt.setByteCount();
+	/**
+	 * Pack a notify information structure, and link the previous structure to it
+	 * 
+	 * @param ntpkt NTTransPacket
+	 * @param prevPos int, offset of the previous structure or -1
+	 * @param action int
+	 * @param name String
+	 * @param endPos int, buffer limit
+	 * @return int, offset of the new structure or -1 if the structure does not fit
+	 */
+	private final int packNotifyEntry(NTTransPacket ntpkt, int prevPos, int action, String name, int endPos) {
+		
+		//	Structures are longword aligned, set the offset from the previous structure to this structure
+		
+		if ( prevPos != -1) {
+			ntpkt.alignBytePointer();
+			DataPacker.putIntelInt(ntpkt.getPosition() - prevPos, ntpkt.getBuffer(), prevPos);
+		}
+		
+		int entryPos = ntpkt.getPosition();
+		if ( entryPos + 12 + ( name.length() * 2) > endPos)
+			return -1;
+		
+		ntpkt.packInt(0);											//	offset to next structure
+		ntpkt.packInt(action);								//	action
+		ntpkt.packInt(name.length() * 2);			//	file name length
+		ntpkt.packString(name, true, false);
+		
+		return entryPos;
+	}
 	
-				ntpkt.setCommand(PacketType.NTTransact);
-				
-				ntpkt.setFlags(SMBSrvPacket.FLG_CANONICAL + SMBSrvPacket.FLG_CASELESS);
-				ntpkt.setFlags2(SMBSrvPacket.FLG2_UNICODE + SMBSrvPacket.FLG2_LONGERRORCODE);
-				
-				//	Set the notification request id to indicate that it has completed
-					
-				req.setCompleted(true, tmo);
-					
-				//	Set the response for the current notify request
-					
-				ntpkt.setMultiplexId(req.getMultiplexId());
-				ntpkt.setTreeId(req.getTreeId());
-				ntpkt.setUserId(req.getUserId());
-				ntpkt.setProcessId(req.getProcessId());
+	/**
+	 * Queue a change notification event for processing
+	 * 
+	 * @param evt NotifyChangeEvent
+	 */
+	protected final void queueNotification(NotifyChangeEvent evt) {
 		
-				try {			
+		//	Record the change so the same change from an external change source can be ignored
 		
-					//	Send the response to the current session
+		long now = System.currentTimeMillis();
 		
-					if ( req.getSession().sendAsynchResponseSMB(ntpkt, ntpkt.getLength()) == false) {
-							
-						//	Asynchronous request was queued, clone the request packet
-							
-						ntpkt = new NTTransPacket(ntpkt);
+		synchronized ( m_recentChanges) {
+			if ( evt.getAction() == NotifyChange.ActionRenamedNewName) {
+				
+				//	An external change source sees a rename as a remove and an add
+				
+				for ( String name : new String[] { evt.getFileName(), evt.getOldFileName() }) {
+					if ( name != null) {
+						m_recentChanges.put(getChangeKey(NotifyChange.ActionRemoved, name), now);
+						m_recentChanges.put(getChangeKey(NotifyChange.ActionAdded, name), now);
 					}
 				}
-				catch (Exception ex) {
-
-          //  DEBUG
-          
-          if ( Debug.EnableError && hasDebug())
-            Debug.println("Failed to send change notification, " + ex.getMessage());
-				}
 			}
+			else
+				m_recentChanges.put(getChangeKey(evt.getAction(), evt.getFileName()), now);
 		}
 		
-		//	DEBUG
+		//	Queue the event
 		
-		if ( Debug.EnableInfo && hasDebug())
-			Debug.println("sendBufferedNotifications() done");
+		queueEvent(evt);
 	}
 	
 	/**
-	 * Queue a change notification event for processing
+	 * Return the key used to record a recent change
+	 * 
+	 * @param action int
+	 * @param path String
+	 * @return String
+	 */
+	private static String getChangeKey(int action, String path) {
+		return action + ":" + path.toUpperCase();
+	}
+	
+	/**
+	 * Add a change notification event to the queue and wakeup the processing thread
 	 * 
 	 * @param evt NotifyChangeEvent
 	 */
-	protected final void queueNotification(NotifyChangeEvent evt) {
+	private final void queueEvent(NotifyChangeEvent evt) {
 		
 		//	DEBUG
 		
@@ -683,156 +895,90 @@ public class NotifyChangeHandler implements Runnable {
 	 * @return int
 	 */
 	protected final int sendChangeNotification(NotifyChangeEvent evt) {
+		List<NotifyChangeEvent> events = new ArrayList<NotifyChangeEvent>(1);
+		events.add(evt);
+		return sendChangeNotifications(events);
+	}
+	
+	/**
+	 * Send change notifications to sessions with notification enabled that match a batch of change events.
+	 * Each active request is sent one response containing all of its matching events, the events for
+	 * completed requests are buffered until the client resets the request.
+	 * 
+	 * @param events List<NotifyChangeEvent>
+	 * @return int
+	 */
+	protected final int sendChangeNotifications(List<NotifyChangeEvent> events) {
 
-		//	DEBUG
-		
-		if ( Debug.EnableInfo && hasDebug())
-			Debug.println("sendChangeNotification event=" + evt);
-			
-		//	Get a list of notification requests that match the type/path
-		
-		Vector reqList = findMatchingRequests(evt.getFilter(),evt.getFileName(),evt.isDirectory());
-		if ( reqList == null || reqList.size() == 0)
-			return 0;
-
-		//	DEBUG
-		
-		if ( Debug.EnableInfo && hasDebug())
-			Debug.println("  Found " + reqList.size() + " matching change listeners");
-			
-		//	Initialize the notification request timeout
-		
-		long tmo = System.currentTimeMillis() + NotifyRequest.DefaultRequestTimeout;
-
-		//	Allocate the NT transaction packet to send the asynchronous notification
+		//	Collect the matching events for each active request
 		
-		NTTransPacket ntpkt = new NTTransPacket();
-
-		//	Send the notify response to each client in the list
+		Map<NotifyRequest, List<NotifyChangeEvent>> sendMap = new IdentityHashMap<NotifyRequest, List<NotifyChangeEvent>>();
+		int matchCnt = 0;
 		
-		for ( int i = 0; i < reqList.size(); i++) {
-			
-			//	Get the current request
-			
-			NotifyRequest req = (NotifyRequest) reqList.elementAt(i);
-
-			//	Build the change notification response SMB
-			
-			ntpkt.setParameterCount(18);
-			ntpkt.resetBytePointerAlign();
-			
-			int pos = ntpkt.getPosition();
-			ntpkt.setNTParameter(1, 0);				//	total data count
-			ntpkt.setNTParameter(3, pos - 4);		//	offset to parameter block
-
-			//	Get the path for the event
-			
-			String relName = evt.getFileName();
-			if ( relName == null)
-			  relName = evt.getShortFileName();
+		for ( NotifyChangeEvent evt : events) {
 			
 			//	DEBUG
-
-			if ( Debug.EnableInfo && hasDebug())
-			  Debug.println("  Notify evtPath=" + evt.getFileName()  + ", reqPath=" + req.getWatchPath() + ", relative=" + relName);
-			
-			//	Pack the notification structure
-			
-			ntpkt.packInt(0);						//	offset to next structure
-			ntpkt.packInt(evt.getAction());			//	action
-			ntpkt.packInt(relName.length() * 2);	//	file name length
-			ntpkt.packString(relName, true, false);
 			
-			//	Check if the event is a file/directory rename, if so then add the old file/directory details
-			
-			if ( evt.getAction() == NotifyChange.ActionRenamedNewName &&
-					 evt.hasOldFileName()) {
-
-				//	Set the offset from the first structure to this structure
-				
-				int newPos = DataPacker.longwordAlign(ntpkt.getPosition());
-				DataPacker.putIntelInt(newPos - pos, ntpkt.getBuffer(), pos);
-
-				//	Get the old file name
-				
-				relName = FileName.makeRelativePath(req.getWatchPath(), evt.getOldFileName());
-				if ( relName == null)
-				  relName = evt.getOldFileName();
+			if ( Debug.EnableInfo && hasDebug())
+				Debug.println("sendChangeNotification event=" + evt);
 				
-				//	Add the old file/directory name details
-
-				ntpkt.packInt(0);									//	offset to next structure
-				ntpkt.packInt(NotifyChange.ActionRenamedOldName);
-				ntpkt.packInt(relName.length() * 2);				//	file name length
-				ntpkt.packString(relName, true, false);
-			}
-			
-			//	Calculate the parameter block length, longword align the buffer position
+			//	Get a list of notification requests that match the type/path
 			
-			int prmLen = ntpkt.getPosition() - pos;
-			ntpkt.alignBytePointer();
-			pos = (pos + 3) & 0xFFFFFFFC;
-			
-			//	Set the parameter block length
-			
-			ntpkt.setNTParameter(0, prmLen);		//	total parameter block count
-			ntpkt.setNTParameter(2, prmLen);		//	parameter block count for this packet
-			ntpkt.setNTParameter(6, ntpkt.getPosition() - 4);
-													//	data block offset
-			ntpkt.setByteCount();
-
-			ntpkt.setCommand(PacketType.NTTransact);
-			ntpkt.setLongErrorCode(0);
+			Vector reqList = findMatchingRequests(evt.getFilter(),evt.getFileName(),evt.isDirectory());
+			if ( reqList == null || reqList.size() == 0)
+				continue;
+	
+			//	DEBUG
 			
-			ntpkt.setFlags(SMBSrvPacket.FLG_CANONICAL + SMBSrvPacket.FLG_CASELESS);
-			ntpkt.setFlags2(SMBSrvPacket.FLG2_UNICODE + SMBSrvPacket.FLG2_LONGERRORCODE);
+			if ( Debug.EnableInfo && hasDebug())
+				Debug.println("  Found " + reqList.size() + " matching change listeners");
 			
-			//	Check if the request is already complete
+			matchCnt += reqList.size();
 			
-			if ( req.isCompleted() == false) {			
-
-				//	Set the notification request id to indicate that it has completed
-				
-				req.setCompleted(true, tmo);
+			for ( int i = 0; i < reqList.size(); i++) {
 				
-				//	Set the response for the current notify request
-				
-				ntpkt.setMultiplexId(req.getMultiplexId());
-				ntpkt.setTreeId(req.getTreeId());
-				ntpkt.setUserId(req.getUserId());
-				ntpkt.setProcessId(req.getProcessId());
-	
-				//	DEBUG
+				//	Get the current request
 				
-//				ntpkt.DumpPacket();
+				NotifyRequest req = (NotifyRequest) reqList.elementAt(i);
+				List<NotifyChangeEvent> reqEvents = sendMap.get(req);
 				
-				try {			
-	
-					//	Send the response to the current session
-	
-					if ( req.getSession().sendAsynchResponseSMB(ntpkt, ntpkt.getLength()) == false) {
-						
-						//	Asynchronous request was queued, clone the request packet
-						
-						ntpkt = new NTTransPacket(ntpkt);
+				if ( reqEvents != null || req.isCompleted() == false) {
+					
+					//	Add the event to the response for the request
+					
+					if ( reqEvents == null) {
+						reqEvents = new ArrayList<NotifyChangeEvent>();
+						sendMap.put(req, reqEvents);
 					}
+					reqEvents.add(evt);
 				}
-				catch (Exception ex) {
-				  ex.printStackTrace();
+				else {
+					
+					//	Buffer the event so it can be sent when the client resets the notify request
+					
+					req.addEvent(evt);
+	
+					//	DEBUG
+					
+					if ( Debug.EnableInfo && req.getSession().hasDebug(SMBSrvSession.DBG_NOTIFY))
+						req.getSession().debugPrintln("Buffered notify req=" + req + ", event=" + evt + ", sess=" + req.getSession().getSessionId());
+					
+					//	Reset the notification pending flag for the session
+					
+					req.getSession().setNotifyPending(false);
 				}
 			}
-			else {
-				
-				//	Buffer the event so it can be sent when the client resets the notify request
-				
-				req.addEvent(evt);
-
-				//	DEBUG
-				
-				if ( Debug.EnableInfo && req.getSession().hasDebug(SMBSrvSession.DBG_NOTIFY))
-					req.getSession().debugPrintln("Buffered notify req=" + req + ", event=" + evt + ", sess=" + req.getSession().getSessionId());
-			}
-						
+		}
+		
+		//	Send the notify response to each active request
+		
+		long tmo = System.currentTimeMillis() + NotifyRequest.DefaultRequestTimeout;
+		
+		for ( Map.Entry<NotifyRequest, List<NotifyChangeEvent>> entry : sendMap.entrySet()) {
+			
+			NotifyRequest req = entry.getKey();
+			sendNotifyResponse(req, entry.getValue(), false, tmo);
+			
 			//	Reset the notification pending flag for the session
 			
 			req.getSession().setNotifyPending(false);
@@ -840,7 +986,7 @@ public class NotifyChangeHandler implements Runnable {
 			//	DEBUG
 			
 			if ( Debug.EnableInfo && req.getSession().hasDebug(SMBSrvSession.DBG_NOTIFY))
-				req.getSession().debugPrintln("Asynch notify req=" + req + ", event=" + evt + ", sess=" + req.getSession().getUniqueId());
+				req.getSession().debugPrintln("Asynch notify req=" + req + ", events=" + entry.getValue().size() + ", sess=" + req.getSession().getUniqueId());
 		}
 		
 		//	DEBUG
@@ -850,7 +996,7 @@ public class NotifyChangeHandler implements Runnable {
 			
 		//	Return the count of matching requests
 		
-		return reqList.size();
+		return matchCnt;
 	}
 	
 	/**
@@ -867,22 +1013,29 @@ public class NotifyChangeHandler implements Runnable {
 		
 		Vector reqList = new Vector();
 		
+		if ( m_notifyList == null)
+			return reqList;
+		
 		//	Normalise the path string
 		
 		String matchPath = path.toUpperCase();
-		
-		//	Search for matching requests and remove them from the main request list
-
-		int idx = 0;
 		long curTime = System.currentTimeMillis();
 		
+		//	Remove expired requests from the list periodically, expired requests that are found by the
+		//	search are removed as they are found
+		
 		boolean removedReq = false;
 		
-		while ( idx < m_notifyList.numberOfRequests()) {
-			
-			//	Get the current request
-			
-			NotifyRequest curReq = m_notifyList.getRequest(idx);
+		if ( curTime - m_lastExpiryCheck >= ExpiryCheckInterval) {
+			m_lastExpiryCheck = curTime;
+			removedReq = m_notifyList.removeExpiredRequests(curTime) > 0;
+		}
+		
+		//	Get the requests watching the path, or the whole tree above the path, from the index
+		
+		List<NotifyRequest> candidates = m_notifyList.findRequestsForPath(matchPath, isdir);
+		
+		for ( NotifyRequest curReq : candidates) {
 			
 			//	DEBUG
 			
@@ -895,7 +1048,7 @@ public class NotifyChangeHandler implements Runnable {
 				
 				//	Remove the request from the list
 				
-				m_notifyList.removeRequestAt(idx);
+				m_notifyList.removeRequest(curReq);
 
 				//	DEBUG
 				
@@ -913,9 +1066,6 @@ public class NotifyChangeHandler implements Runnable {
 				//	to be recalculated
 				
 				removedReq = true;
-				
-				//	Restart the loop
-				
 				continue;
 			}
 			
@@ -929,55 +1079,21 @@ public class NotifyChangeHandler implements Runnable {
 			    Debug.println("  hasFilter typ=" + typ + ", watchTree=" + curReq.hasWatchTree() + ", watchPath=" + curReq.getWatchPath() +
 			        ", matchPath=" + matchPath + ", isDir=" + isdir);
 			  
-				//	Check if the path matches or is a subdirectory and the whole tree is being watched
+				//	For all notify requests in the matching list we set the 'notify pending' state on the associated SMB
+				//	session so that any socket writes on those sessions are synchronized until the change notification
+				//	response has been sent.
 				
-				boolean wantReq = false;
+				curReq.getSession().setNotifyPending(true);
 				
-				if ( matchPath.length() == 0 && curReq.hasWatchTree())
-					wantReq = true;
-				else if ( curReq.hasWatchTree() == true && matchPath.startsWith(curReq.getWatchPath()) == true)
-					wantReq = true;
-				else if ( isdir == true && matchPath.compareTo(curReq.getWatchPath()) == 0)
-					wantReq = true;
-				else if ( isdir == false) {
-					
-					//	Strip the file name from the path and compare
-					
-					String[] paths = FileName.splitPath(matchPath);
-					
-					if ( paths != null && paths[0] != null) {
-						
-						//	Check if the directory part of the path is the directory being watched
-						
-						if ( curReq.getWatchPath().equalsIgnoreCase(paths[0]))
-							wantReq = true;
-					}
-				}
+				//	Add the request to the matching list
 				
-				//	Check if the request is required
-				
-				if ( wantReq == true) {
-					
-					//	For all notify requests in the matching list we set the 'notify pending' state on the associated SMB
-					//	session so that any socket writes on those sessions are synchronized until the change notification
-					//	response has been sent.
-					
-					curReq.getSession().setNotifyPending(true);
-					
-					//	Add the request to the matching list
-					
-					reqList.addElement(curReq);
+				reqList.addElement(curReq);
 
-					//	DEBUG
-				  
-				  if ( Debug.EnableInfo && hasDebug())
-				    Debug.println("  Added request to matching list");
-				}
+				//	DEBUG
+			  
+			  if ( Debug.EnableInfo && hasDebug())
+			    Debug.println("  Added request to matching list");
 			}
-
-			//	Move to the next request in the list
-				
-			idx++;
 		}
 
 		//	If requests were removed from the queue the global filter mask must be recalculated
@@ -1003,7 +1119,8 @@ public class NotifyChangeHandler implements Runnable {
 			
 			synchronized ( m_eventList) {
 				try {
-					m_eventList.wait();			
+					if ( m_eventList.numberOfEvents() == 0)
+						m_eventList.wait();			
 				}
 				catch (InterruptedException ex) {
 				}
@@ -1013,40 +1130,46 @@ public class NotifyChangeHandler implements Runnable {
 			
 			if ( m_shutdown == true)
 				break;
-				
-			//	Loop until all pending events have been processed
 			
-			while ( m_eventList.numberOfEvents() > 0) {
-				
-				//	Remove the event at the head of the queue
-				
-				NotifyChangeEvent evt = null;
-				
-				synchronized ( m_eventList) {
-					evt = m_eventList.removeEventAt(0);
-				}
-				
-				//	Check if the event is valid
-				
-				if ( evt == null)
-					break;
-
+			//	Wait for the batch window so that events that arrive together are sent in a single response
+			
+			if ( m_batchWindow > 0) {
 				try {
-				  
-					//	Send out change notifications to clients that match the filter/path
-	
-					int cnt = sendChangeNotification(evt);
-					
-					//	DEBUG
-					
-					if ( Debug.EnableInfo && hasDebug())				
-						Debug.println("Change notify event=" + evt.toString() + ", clients=" + cnt);
+					Thread.sleep(m_batchWindow);
 				}
-				catch (Throwable ex) {
-				  Debug.println("NotifyChangeHandler thread");
-				  Debug.println(ex);
+				catch (InterruptedException ex) {
 				}
 			}
+				
+			//	Remove all pending events from the queue
+			
+			List<NotifyChangeEvent> events = null;
+			
+			synchronized ( m_eventList) {
+				events = new ArrayList<NotifyChangeEvent>(m_eventList.numberOfEvents());
+				for ( int i = 0; i < m_eventList.numberOfEvents(); i++)
+					events.add(m_eventList.getEventAt(i));
+				m_eventList.removeAllEvents();
+			}
+			
+			if ( events.size() == 0)
+				continue;
+
+			try {
+			  
+				//	Send out change notifications to clients that match the filter/path
+
+				int cnt = sendChangeNotifications(events);
+				
+				//	DEBUG
+				
+				if ( Debug.EnableInfo && hasDebug())				
+					Debug.println("Change notify events=" + events.size() + ", clients=" + cnt);
+			}
+			catch (Throwable ex) {
+			  Debug.println("NotifyChangeHandler thread");
+			  Debug.println(ex);
+			}
 		}
 		
 		//	DEBUG
@@ -25,8 +25,14 @@
 
 package org.alfresco.jlan.smb.server.notify;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Vector;
 
+import org.alfresco.jlan.server.filesys.FileName;
 import org.alfresco.jlan.server.filesys.NetworkFile;
 import org.alfresco.jlan.smb.server.SMBSrvSession;
 
@@ -34,6 +40,11 @@ import org.alfresco.jlan.smb.server.SMBSrvSession;
 /**
  * Notify Change Request List Class
  *
+ * <p>An indexed request list also keeps the requests in maps keyed by the watched directory path, one for
+ * all requests and one for the requests that watch the whole tree, so the requests for a changed path can
+ * be found without checking every request. A count of requests per filter bit keeps the global filter
+ * mask without scanning the list.
+ *
  * @author gkspencer
  */
 public class NotifyRequestList {
@@ -42,6 +53,16 @@ public class NotifyRequestList {
 	
 	private Vector<NotifyRequest> m_requests;
 	
+	//	Requests indexed by watched directory path, and the whole tree requests indexed by watched
+	//	directory path. Only allocated for an indexed list.
+	
+	private HashMap<String, List<NotifyRequest>> m_dirIndex;
+	private HashMap<String, List<NotifyRequest>> m_treeIndex;
+	
+	//	Count of requests using each filter bit
+	
+	private int[] m_filterCounts = new int[32];
+	
 	/**
 	 * Default constructor
 	 */
@@ -49,6 +70,20 @@ public class NotifyRequestList {
 		m_requests = new Vector<NotifyRequest>();
 	}
 	
+	/**
+	 * Class constructor
+	 * 
+	 * @param indexed boolean
+	 */
+	public NotifyRequestList(boolean indexed) {
+		m_requests = new Vector<NotifyRequest>();
+		
+		if ( indexed) {
+			m_dirIndex = new HashMap<String, List<NotifyRequest>>();
+			m_treeIndex = new HashMap<String, List<NotifyRequest>>();
+		}
+	}
+	
 	/**
 	 * Return the specified request
 	 * 
@@ -74,18 +109,13 @@ public class NotifyRequestList {
 	 */
 	public final synchronized int getGlobalFilter() {
 		
-		//	Loop through all the requests
+		//	Build the global filter mask from the filter bits used by the pending requests
 		
 		int filter = 0;
 		
-		if ( m_requests.size() > 0) {
-
-			//	Build the global filter mask from all pending requests
-					
-			for ( int i = 0; i < m_requests.size(); i++) {
-				NotifyRequest req = m_requests.elementAt(i);
-				filter |= req.getFilter();
-			}
+		for ( int i = 0; i < m_filterCounts.length; i++) {
+			if ( m_filterCounts[i] > 0)
+				filter |= 1 << i;
 		}
 
 		//	Return the filter mask
@@ -100,6 +130,7 @@ public class NotifyRequestList {
 	 */
 	public final synchronized void addRequest(NotifyRequest req) {
 		m_requests.add(req);
+		indexRequest(req, true);
 	}
 
 	/**
@@ -186,6 +217,7 @@ public class NotifyRequestList {
 				//	Remove the request from the list
 				
 				m_requests.removeElementAt(i);
+				indexRequest(curReq, false);
 				return curReq;
 			}
 		}
@@ -209,7 +241,9 @@ public class NotifyRequestList {
 			
 		//	Remove the specified request
 
-    return m_requests.remove( idx);
+		NotifyRequest req = m_requests.remove( idx);
+		indexRequest(req, false);
+    return req;
 	}
 	
 	/**
@@ -233,6 +267,7 @@ public class NotifyRequestList {
 				//	Remove the request from the list
 				
 				m_requests.removeElementAt(idx);
+				indexRequest(curReq, false);
 			}
 			else
 				idx++;
@@ -261,6 +296,7 @@ public class NotifyRequestList {
 				//	Remove the request from the list
 				
 				m_requests.removeElementAt(idx);
+				indexRequest(curReq, false);
 			}
 			else
 				idx++;
@@ -272,6 +308,163 @@ public class NotifyRequestList {
 	 */
 	public final synchronized void clearRequestList() {
 		m_requests.removeAllElements();
+		
+		if ( m_dirIndex != null) {
+			m_dirIndex.clear();
+			m_treeIndex.clear();
+		}
+		m_filterCounts = new int[32];
+	}
+	
+	/**
+	 * Return the requests that may match a change to the specified path, the requests watching the changed
+	 * directory or the directory containing the changed file, and the whole tree requests for the path and
+	 * the directories above it. The caller must check the request filters.
+	 * 
+	 * @param matchPath String, uppercased path
+	 * @param isdir boolean
+	 * @return List of NotifyRequest
+	 */
+	public final synchronized List<NotifyRequest> findRequestsForPath(String matchPath, boolean isdir) {
+		
+		//	Return all requests for an unindexed list
+		
+		if ( m_dirIndex == null)
+			return new ArrayList<NotifyRequest>(m_requests);
+		
+		IdentityHashMap<NotifyRequest, Boolean> reqMap = new IdentityHashMap<NotifyRequest, Boolean>();
+		
+		if ( matchPath.length() == 0) {
+			
+			//	Change to the root, all whole tree requests match
+			
+			for ( List<NotifyRequest> treeList : m_treeIndex.values())
+				addRequests(reqMap, treeList);
+		}
+		else {
+			
+			//	Add the whole tree requests for the root, each directory above the path and the path itself
+			
+			if ( matchPath.charAt(0) == FileName.DOS_SEPERATOR)
+				addRequests(reqMap, m_treeIndex.get(FileName.DOS_SEPERATOR_STR));
+			
+			for ( int pos = matchPath.indexOf(FileName.DOS_SEPERATOR, 1); pos != -1; pos = matchPath.indexOf(FileName.DOS_SEPERATOR, pos + 1))
+				addRequests(reqMap, m_treeIndex.get(matchPath.substring(0, pos)));
+			addRequests(reqMap, m_treeIndex.get(normalizeWatchPath(matchPath)));
+			
+			//	Add the requests watching the changed directory, or the directory containing the changed file
+			
+			if ( isdir)
+				addRequests(reqMap, m_dirIndex.get(normalizeWatchPath(matchPath)));
+			else {
+				String[] paths = FileName.splitPath(matchPath);
+				if ( paths[0] != null)
+					addRequests(reqMap, m_dirIndex.get(normalizeWatchPath(paths[0])));
+			}
+		}
+		
+		//	Return the candidate requests
+		
+		return new ArrayList<NotifyRequest>(reqMap.keySet());
+	}
+	
+	/**
+	 * Remove the expired requests from the list
+	 * 
+	 * @param curTime long
+	 * @return int
+	 */
+	public final synchronized int removeExpiredRequests(long curTime) {
+		
+		int removeCnt = 0;
+		Iterator<NotifyRequest> iter = m_requests.iterator();
+		
+		while ( iter.hasNext()) {
+			NotifyRequest curReq = iter.next();
+			if ( curReq.hasExpired(curTime)) {
+				iter.remove();
+				indexRequest(curReq, false);
+				removeCnt++;
+			}
+		}
+		return removeCnt;
+	}
+	
+	/**
+	 * Add a request to, or remove a request from, the path indexes and filter counts
+	 * 
+	 * @param req NotifyRequest
+	 * @param add boolean
+	 */
+	private final void indexRequest(NotifyRequest req, boolean add) {
+		
+		//	Update the filter bit counts
+		
+		int filter = req.getFilter();
+		
+		for ( int i = 0; i < m_filterCounts.length; i++) {
+			if (( filter & (1 << i)) != 0)
+				m_filterCounts[i] += add ? 1 : -1;
+		}
+		
+		//	Update the path indexes
+		
+		if ( m_dirIndex != null) {
+			String watchPath = normalizeWatchPath(req.getWatchPath());
+			updateIndex(m_dirIndex, watchPath, req, add);
+			if ( req.hasWatchTree())
+				updateIndex(m_treeIndex, watchPath, req, add);
+		}
+	}
+	
+	/**
+	 * Add a request to, or remove a request from, a path index
+	 * 
+	 * @param index HashMap<String, List<NotifyRequest>>
+	 * @param path String
+	 * @param req NotifyRequest
+	 * @param add boolean
+	 */
+	private static void updateIndex(HashMap<String, List<NotifyRequest>> index, String path, NotifyRequest req, boolean add) {
+		List<NotifyRequest> reqList = index.get(path);
+		
+		if ( add) {
+			if ( reqList == null) {
+				reqList = new ArrayList<NotifyRequest>(2);
+				index.put(path, reqList);
+			}
+			reqList.add(req);
+		}
+		else if ( reqList != null) {
+			reqList.remove(req);
+			if ( reqList.isEmpty())
+				index.remove(path);
+		}
+	}
+	
+	/**
+	 * Add the requests from an index entry to the candidate requests
+	 * 
+	 * @param reqMap IdentityHashMap<NotifyRequest, Boolean>
+	 * @param reqList List<NotifyRequest>
+	 */
+	private static void addRequests(IdentityHashMap<NotifyRequest, Boolean> reqMap, List<NotifyRequest> reqList) {
+		if ( reqList != null) {
+			for ( NotifyRequest req : reqList)
+				reqMap.put(req, Boolean.TRUE);
+		}
+	}
+	
+	/**
+	 * Normalize a watched directory path, remove a trailing seperator other than for the root path
+	 * 
+	 * @param path String
+	 * @return String
+	 */
+	private static String normalizeWatchPath(String path) {
+		if ( path.length() > 1 && path.charAt(path.length() - 1) == FileName.DOS_SEPERATOR)
+			return path.substring(0, path.length() - 1);
+		return path;
 	}
 			
 	/**
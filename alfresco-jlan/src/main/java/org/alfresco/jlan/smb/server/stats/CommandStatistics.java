@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2016 SurCloud.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ */
+
+package org.alfresco.jlan.smb.server.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.jlan.smb.PacketType;
+
+/**
+ * Command Statistics Class
+ *
+ * <p>
+ * Latency histogram, error count and byte counters for a single SMB command.
+ */
+public final class CommandStatistics {
+
+    // SMB command code
+    private final int m_cmd;
+
+    // Latency histogram
+    private final LatencyHistogram m_latency = new LatencyHistogram();
+
+    // Error count and bytes received/sent
+    private final AtomicLong m_errors = new AtomicLong();
+    private final AtomicLong m_rxBytes = new AtomicLong();
+    private final AtomicLong m_txBytes = new AtomicLong();
+
+    /**
+     * Class constructor
+     *
+     * @param cmd int
+     */
+    public CommandStatistics(int cmd) {
+        m_cmd = cmd;
+    }
+
+    /**
+     * Return the SMB command code
+     *
+     * @return int
+     */
+    public int getCommand() {
+        return m_cmd;
+    }
+
+    /**
+     * Return the SMB command name
+     *
+     * @return String
+     */
+    public String getCommandName() {
+        return PacketType.getCommandName(m_cmd);
+    }
+
+    /**
+     * Return the latency histogram
+     *
+     * @return LatencyHistogram
+     */
+    public LatencyHistogram getLatency() {
+        return m_latency;
+    }
+
+    /**
+     * Return the number of requests that returned an error status
+     *
+     * @return long
+     */
+    public long getErrors() {
+        return m_errors.get();
+    }
+
+    /**
+     * Return the number of request bytes received
+     *
+     * @return long
+     */
+    public long getBytesReceived() {
+        return m_rxBytes.get();
+    }
+
+    /**
+     * Return the number of response bytes sent
+     *
+     * @return long
+     */
+    public long getBytesSent() {
+        return m_txBytes.get();
+    }
+
+    /**
+     * Record a completed request
+     *
+     * @param micros long
+     * @param error boolean
+     * @param rxBytes int
+     * @param txBytes long
+     */
+    public void record(long micros, boolean error, int rxBytes, long txBytes) {
+        m_latency.record(micros);
+        if (error) {
+            m_errors.incrementAndGet();
+        }
+        m_rxBytes.addAndGet(rxBytes);
+        if (txBytes > 0) {
+            m_txBytes.addAndGet(txBytes);
+        }
+    }
+
+    /**
+     * Clear the statistics
+     */
+    public void reset() {
+        m_latency.reset();
+        m_errors.set(0L);
+        m_rxBytes.set(0L);
+        m_txBytes.set(0L);
+    }
+
+    /**
+     * Return a point in time copy of the statistics
+     *
+     * @return CommandStatisticsInfo
+     */
+    public CommandStatisticsInfo getInfo() {
+        return new CommandStatisticsInfo(getCommandName(), m_latency.getCount(), getErrors(), m_latency.getMean(),
+                m_latency.getPercentile(0.5), m_latency.getPercentile(0.99), m_latency.getMaximum(), getBytesReceived(), getBytesSent());
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2016 SurCloud.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ */
+
+package org.alfresco.jlan.smb.server.stats;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Command Statistics Info Class
+ *
+ * <p>
+ * Point in time copy of the statistics for an SMB command, returned to JMX
+ * clients as open data. Latencies are in microseconds.
+ */
+public final class CommandStatisticsInfo {
+
+    private final String m_command;
+    private final long m_count;
+    private final long m_errors;
+    private final long m_mean;
+    private final long m_p50;
+    private final long m_p99;
+    private final long m_max;
+    private final long m_rxBytes;
+    private final long m_txBytes;
+
+    /**
+     * Class constructor
+     *
+     * @param command String
+     * @param count long
+     * @param errors long
+     * @param mean long
+     * @param p50 long
+     * @param p99 long
+     * @param max long
+     * @param rxBytes long
+     * @param txBytes long
+     */
+    @ConstructorProperties({"command", "count", "errors", "meanLatency", "p50Latency", "p99Latency", "maxLatency", "bytesReceived", "bytesSent"})
+    public CommandStatisticsInfo(String command, long count, long errors, long mean, long p50, long p99, long max, long rxBytes, long txBytes) {
+        m_command = command;
+        m_count = count;
+        m_errors = errors;
+        m_mean = mean;
+        m_p50 = p50;
+        m_p99 = p99;
+        m_max = max;
+        m_rxBytes = rxBytes;
+        m_txBytes = txBytes;
+    }
+
+    public String getCommand() {
+        return m_command;
+    }
+
+    public long getCount() {
+        return m_count;
+    }
+
+    public long getErrors() {
+        return m_errors;
+    }
+
+    public long getMeanLatency() {
+        return m_mean;
+    }
+
+    public long getP50Latency() {
+        return m_p50;
+    }
+
+    public long getP99Latency() {
+        return m_p99;
+    }
+
+    public long getMaxLatency() {
+        return m_max;
+    }
+
+    public long getBytesReceived() {
+        return m_rxBytes;
+    }
+
+    public long getBytesSent() {
+        return m_txBytes;
+    }
+
+    /**
+     * Return the statistics as a string
+     *
+     * @return String
+     */
+    @Override
+    public String toString() {
+        StringBuilder str = new StringBuilder();
+        str.append(m_command);
+        str.append(" count=");
+        str.append(m_count);
+        str.append(", errors=");
+        str.append(m_errors);
+        str.append(", mean=");
+        str.append(m_mean);
+        str.append("us, p50=");
+        str.append(m_p50);
+        str.append("us, p99=");
+        str.append(m_p99);
+        str.append("us, max=");
+        str.append(m_max);
+        str.append("us, rx=");
+        str.append(m_rxBytes);
+        str.append(", tx=");
+        str.append(m_txBytes);
+        return str.toString();
+    }
+}
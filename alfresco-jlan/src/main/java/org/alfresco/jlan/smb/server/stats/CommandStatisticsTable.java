@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2016 SurCloud.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ */
+
+package org.alfresco.jlan.smb.server.stats;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Command Statistics Table Class
+ *
+ * <p>
+ * Statistics for each SMB command, indexed by the command code. Entries are
+ * allocated on first use so a table for a session only holds the commands the
+ * client has used.
+ */
+public final class CommandStatisticsTable {
+
+    // Number of SMB command codes
+    private static final int CommandCount = 256;
+
+    // Per command statistics
+    private final AtomicReferenceArray<CommandStatistics> m_commands = new AtomicReferenceArray<>(CommandCount);
+
+    /**
+     * Record a completed request
+     *
+     * @param cmd int
+     * @param micros long
+     * @param error boolean
+     * @param rxBytes int
+     * @param txBytes long
+     */
+    public void record(int cmd, long micros, boolean error, int rxBytes, long txBytes) {
+        getCommandStatistics(cmd).record(micros, error, rxBytes, txBytes);
+    }
+
+    /**
+     * Return the statistics for a command, allocating the entry if required
+     *
+     * @param cmd int
+     * @return CommandStatistics
+     */
+    public CommandStatistics getCommandStatistics(int cmd) {
+        int idx = cmd & 0xFF;
+        CommandStatistics stats = m_commands.get(idx);
+        if (stats == null) {
+            m_commands.compareAndSet(idx, null, new CommandStatistics(idx));
+            stats = m_commands.get(idx);
+        }
+        return stats;
+    }
+
+    /**
+     * Return the total number of recorded requests
+     *
+     * @return long
+     */
+    public long getRequestCount() {
+        long cnt = 0;
+        for (int i = 0; i < CommandCount; i++) {
+            CommandStatistics stats = m_commands.get(i);
+            if (stats != null) {
+                cnt += stats.getLatency().getCount();
+            }
+        }
+        return cnt;
+    }
+
+    /**
+     * Return a point in time copy of the statistics for the commands that have
+     * been used
+     *
+     * @return List of CommandStatisticsInfo
+     */
+    public List<CommandStatisticsInfo> getInfo() {
+        List<CommandStatisticsInfo> info = new ArrayList<>();
+        for (int i = 0; i < CommandCount; i++) {
+            CommandStatistics stats = m_commands.get(i);
+            if (stats != null && stats.getLatency().getCount() > 0) {
+                info.add(stats.getInfo());
+            }
+        }
+        return info;
+    }
+
+    /**
+     * Clear the statistics
+     */
+    public void reset() {
+        for (int i = 0; i < CommandCount; i++) {
+            CommandStatistics stats = m_commands.get(i);
+            if (stats != null) {
+                stats.reset();
+            }
+        }
+    }
+}
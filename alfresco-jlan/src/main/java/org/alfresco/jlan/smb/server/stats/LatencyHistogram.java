@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2016 SurCloud.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ */
+
+package org.alfresco.jlan.smb.server.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency Histogram Class
+ *
+ * <p>
+ * Lock free latency histogram with log-linear buckets in microseconds. Each
+ * power of two range is split into four buckets, so percentiles are accurate
+ * to within 25% of the recorded value.
+ */
+public final class LatencyHistogram {
+
+    // Number of sub-buckets per power of two, as a shift and a count
+    private static final int SubBucketShift = 2;
+    private static final int SubBuckets = 1 << SubBucketShift;
+
+    // Number of buckets, covers latencies up to 2^36 microseconds
+    private static final int MaxExponent = 36;
+    private static final int BucketCount = MaxExponent * SubBuckets;
+
+    // Bucket counts
+    private final AtomicLongArray m_buckets = new AtomicLongArray(BucketCount);
+
+    // Sample count, total and maximum latency in microseconds
+    private final AtomicLong m_count = new AtomicLong();
+    private final AtomicLong m_total = new AtomicLong();
+    private final AtomicLong m_max = new AtomicLong();
+
+    /**
+     * Record a latency
+     *
+     * @param micros long
+     */
+    public void record(long micros) {
+        long val = micros < 0 ? 0 : micros;
+        m_buckets.incrementAndGet(bucketIndex(val));
+        m_count.incrementAndGet();
+        m_total.addAndGet(val);
+        long curMax = m_max.get();
+        while (val > curMax && m_max.compareAndSet(curMax, val) == false) {
+            curMax = m_max.get();
+        }
+    }
+
+    /**
+     * Return the number of recorded samples
+     *
+     * @return long
+     */
+    public long getCount() {
+        return m_count.get();
+    }
+
+    /**
+     * Return the mean latency in microseconds
+     *
+     * @return long
+     */
+    public long getMean() {
+        long cnt = m_count.get();
+        return cnt > 0 ? m_total.get() / cnt : 0L;
+    }
+
+    /**
+     * Return the maximum latency in microseconds
+     *
+     * @return long
+     */
+    public long getMaximum() {
+        return m_max.get();
+    }
+
+    /**
+     * Return the latency, in microseconds, below which the specified fraction
+     * of samples fall
+     *
+     * @param fraction double, between 0 and 1
+     * @return long
+     */
+    public long getPercentile(double fraction) {
+        long cnt = 0;
+        long[] counts = new long[BucketCount];
+        for (int i = 0; i < BucketCount; i++) {
+            counts[i] = m_buckets.get(i);
+            cnt += counts[i];
+        }
+        if (cnt == 0) {
+            return 0L;
+        }
+        long target = (long) Math.ceil(fraction * cnt);
+        if (target < 1) {
+            target = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < BucketCount; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(bucketUpperBound(i), getMaximum());
+            }
+        }
+        return getMaximum();
+    }
+
+    /**
+     * Clear all recorded samples
+     */
+    public void reset() {
+        for (int i = 0; i < BucketCount; i++) {
+            m_buckets.set(i, 0L);
+        }
+        m_count.set(0L);
+        m_total.set(0L);
+        m_max.set(0L);
+    }
+
+    /**
+     * Return the bucket index for a latency
+     *
+     * @param val long
+     * @return int
+     */
+    private static int bucketIndex(long val) {
+        if (val < SubBuckets) {
+            return (int) val;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(val);
+        if (exp >= MaxExponent) {
+            return BucketCount - 1;
+        }
+        int sub = (int) (val >> (exp - SubBucketShift)) - SubBuckets;
+        return (exp - SubBucketShift + 1) * SubBuckets + sub;
+    }
+
+    /**
+     * Return the highest latency that falls into a bucket
+     *
+     * @param idx int
+     * @return long
+     */
+    private static long bucketUpperBound(int idx) {
+        if (idx < SubBuckets) {
+            return idx;
+        }
+        int exp = idx / SubBuckets + SubBucketShift - 1;
+        long mantissa = (idx % SubBuckets) + SubBuckets;
+        return ((mantissa + 1) << (exp - SubBucketShift)) - 1;
+    }
+}
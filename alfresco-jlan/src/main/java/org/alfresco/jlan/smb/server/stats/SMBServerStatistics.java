@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2016 SurCloud.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ */
+
+package org.alfresco.jlan.smb.server.stats;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.alfresco.jlan.debug.Debug;
+import org.alfresco.jlan.server.SrvSessionList;
+import org.alfresco.jlan.smb.server.SMBSrvSession;
+
+/**
+ * SMB Server Statistics Class
+ *
+ * <p>
+ * Always on SMB command statistics for the server and for each share. Session
+ * level statistics are held by the session. The statistics are published as
+ * an MXBean and a summary is written to the debug output periodically if
+ * requests have been processed since the last summary.
+ */
+public class SMBServerStatistics implements SMBServerStatisticsMXBean, Runnable {
+
+    // Default summary interval
+    public static final long DefaultSummaryInterval = 300000L;
+
+    // JMX object name
+    public static final String ObjectNamePrefix = "org.alfresco.jlan:type=SMBServer,name=CommandStatistics,server=";
+
+    // Server wide command statistics
+    private final CommandStatisticsTable m_serverStats = new CommandStatisticsTable();
+
+    // Per share command statistics
+    private final ConcurrentMap<String, CommandStatisticsTable> m_shareStats = new ConcurrentHashMap<>();
+
+    // Active session list, used to find session statistics
+    private final SrvSessionList m_sessions;
+
+    // Summary interval, in milliseconds, and request count at the last summary
+    private final long m_interval;
+    private long m_lastCount;
+
+    // Summary thread and shutdown flag
+    private Thread m_summaryThread;
+    private volatile boolean m_shutdown;
+
+    // Registered JMX object name
+    private ObjectName m_objName;
+
+    /**
+     * Class constructor
+     *
+     * @param sessions SrvSessionList
+     * @param interval long
+     */
+    public SMBServerStatistics(SrvSessionList sessions, long interval) {
+        m_sessions = sessions;
+        m_interval = interval;
+    }
+
+    /**
+     * Record a completed request
+     *
+     * @param shareName String, or null if the request is not for a share
+     * @param cmd int
+     * @param micros long
+     * @param error boolean
+     * @param rxBytes int
+     * @param txBytes long
+     */
+    public final void record(String shareName, int cmd, long micros, boolean error, int rxBytes, long txBytes) {
+        m_serverStats.record(cmd, micros, error, rxBytes, txBytes);
+        if (shareName != null) {
+            CommandStatisticsTable shareStats = m_shareStats.get(shareName);
+            if (shareStats == null) {
+                m_shareStats.putIfAbsent(shareName, new CommandStatisticsTable());
+                shareStats = m_shareStats.get(shareName);
+            }
+            shareStats.record(cmd, micros, error, rxBytes, txBytes);
+        }
+    }
+
+    /**
+     * Return the server wide statistics table
+     *
+     * @return CommandStatisticsTable
+     */
+    public final CommandStatisticsTable getServerStatistics() {
+        return m_serverStats;
+    }
+
+    @Override
+    public List<CommandStatisticsInfo> getCommandStatistics() {
+        return m_serverStats.getInfo();
+    }
+
+    @Override
+    public List<String> getShareNames() {
+        List<String> names = new ArrayList<>(m_shareStats.keySet());
+        Collections.sort(names);
+        return names;
+    }
+
+    @Override
+    public List<CommandStatisticsInfo> getShareStatistics(String shareName) {
+        CommandStatisticsTable shareStats = shareName != null ? m_shareStats.get(shareName) : null;
+        return shareStats != null ? shareStats.getInfo() : Collections.<CommandStatisticsInfo>emptyList();
+    }
+
+    @Override
+    public List<CommandStatisticsInfo> getSessionStatistics(int sessId) {
+        SMBSrvSession sess = (SMBSrvSession) m_sessions.findSession(sessId);
+        return sess != null ? sess.getCommandStatistics().getInfo() : Collections.<CommandStatisticsInfo>emptyList();
+    }
+
+    @Override
+    public void resetStatistics() {
+        m_serverStats.reset();
+        m_shareStats.clear();
+        m_lastCount = 0;
+    }
+
+    /**
+     * Register the MXBean and start the summary thread
+     *
+     * @param serverName String
+     */
+    public final void startStatistics(String serverName) {
+        try {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objName = new ObjectName(ObjectNamePrefix + ObjectName.quote(serverName));
+            if (mbs.isRegistered(objName) == false) {
+                mbs.registerMBean(this, objName);
+                m_objName = objName;
+            }
+        } catch (Exception ex) {
+            if (Debug.EnableError) {
+                Debug.println("[SMB] Failed to register statistics MXBean, " + ex.toString());
+            }
+        }
+        if (m_interval > 0) {
+            m_summaryThread = new Thread(this);
+            m_summaryThread.setDaemon(true);
+            m_summaryThread.setName("SMBStatsSummary");
+            m_summaryThread.start();
+        }
+    }
+
+    /**
+     * Unregister the MXBean and stop the summary thread
+     */
+    public final void shutdownStatistics() {
+        m_shutdown = true;
+        if (m_summaryThread != null) {
+            m_summaryThread.interrupt();
+            m_summaryThread = null;
+        }
+        if (m_objName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(m_objName);
+            } catch (Exception ex) {
+            }
+            m_objName = null;
+        }
+    }
+
+    /**
+     * Write a summary of the server statistics to the debug output
+     */
+    public final void logSummary() {
+        List<CommandStatisticsInfo> info = m_serverStats.getInfo();
+        Debug.println("[SMB] Command statistics (latency in microseconds):");
+        for (CommandStatisticsInfo cmdInfo : info) {
+            Debug.println("[SMB]   " + cmdInfo.toString());
+        }
+    }
+
+    /**
+     * Summary thread
+     */
+    @Override
+    public void run() {
+        while (m_shutdown == false) {
+            try {
+                Thread.sleep(m_interval);
+            } catch (InterruptedException ex) {
+                continue;
+            }
+            try {
+                // Only output a summary if requests have been processed since the last summary
+                long cnt = m_serverStats.getRequestCount();
+                if (Debug.EnableInfo && cnt != m_lastCount) {
+                    m_lastCount = cnt;
+                    logSummary();
+                }
+            } catch (Exception ex) {
+                Debug.println(ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2016 SurCloud.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * http://www.gnu.org/licenses/licenses.html
+ */
+
+package org.alfresco.jlan.smb.server.stats;
+
+import java.util.List;
+
+/**
+ * SMB Server Statistics MXBean Interface
+ *
+ * <p>
+ * JMX management interface for the SMB command statistics. Latencies are in
+ * microseconds.
+ */
+public interface SMBServerStatisticsMXBean {
+
+    /**
+     * Return the statistics for all SMB commands processed by the server
+     *
+     * @return List of CommandStatisticsInfo
+     */
+    public List<CommandStatisticsInfo> getCommandStatistics();
+
+    /**
+     * Return the names of the shares that have statistics
+     *
+     * @return List of String
+     */
+    public List<String> getShareNames();
+
+    /**
+     * Return the command statistics for a share
+     *
+     * @param shareName String
+     * @return List of CommandStatisticsInfo
+     */
+    public List<CommandStatisticsInfo> getShareStatistics(String shareName);
+
+    /**
+     * Return the command statistics for an active session
+     *
+     * @param sessId int
+     * @return List of CommandStatisticsInfo
+     */
+    public List<CommandStatisticsInfo> getSessionStatistics(int sessId);
+
+    /**
+     * Clear the server and share statistics
+     */
+    public void resetStatistics();
+}
@@ -70,6 +70,17 @@ public class DataBuffer {
 		m_offset = 0;
 	}
 
+	/**
+	 * Create a data buffer to write data to, using an existing buffer
+	 * 
+	 * @param buf byte[]
+	 */
+	public DataBuffer(byte[] buf) {
+		m_data = buf;
+		m_pos = 0;
+		m_offset = 0;
+	}
+
 	/**
 	 * Create a data buffer to read data from
 	 * 
@@ -731,17 +742,17 @@ public class DataBuffer {
 	}
 
 	/**
-	 * Word align the buffer position
+	 * Word align the buffer position, the pad bytes are zeroed
 	 */
 	public final void wordAlign() {
-		m_pos = DataPacker.wordAlign(m_pos);
+		putZeros(DataPacker.wordAlign(m_pos) - m_pos);
 	}
 
 	/**
-	 * Longword align the buffer position
+	 * Longword align the buffer position, the pad bytes are zeroed
 	 */
 	public final void longwordAlign() {
-		m_pos = DataPacker.longwordAlign(m_pos);
+		putZeros(DataPacker.longwordAlign(m_pos) - m_pos);
 	}
 
 	/**